@@ -4,27 +4,129 @@ import org.esa.beam.PixelData;
 import org.esa.beam.nn.NNffbpAlphaTabFast;
 import org.esa.beam.nn.util.NeuralNetIOConverter;
 
+import java.util.Arrays;
+
 /**
  * Class providing the atmospheric correction.
  */
 public class AtmosCorrection {
 
     private NNffbpAlphaTabFast atmosphereNet;
+    private BatchTosa batchTosa;
+    private boolean inputRangeCheck = true;
+    private StageTimer stageTimer;
+    // the neural net buffers of perform(PixelBatch), which allocates no memory
+    private final double[] atmoNetInput;
+    private final double[] atmoNetOutput;
 
-    static final int INVALID = 0x01;  // LAND || CLOUD_ICE
+    static final int INVALID = 0x01;  // LAND || CLOUD_ICE || TOA_OOR || INPUT_OOR || NAN_INPUT
     static final int LAND = 0x02;
     static final int CLOUD_ICE = 0x04;
     static final int TOA_OOR = 0x08;
+    static final int INPUT_OOR = 0x10;
+    static final int NAN_INPUT = 0x20;
+
+    // sun zenith, x, y, z, temperature and salinity precede the spectral inputs of the neural net
+    static final int NUM_NON_SPECTRAL_NN_INPUTS = 6;
 
     /**
      * @param atmosphereNet the neural net for atmospheric correction
      */
     public AtmosCorrection(NNffbpAlphaTabFast atmosphereNet) {
+        this(atmosphereNet, null);
+    }
+
+    /**
+     * @param atmosphereNet the neural net for atmospheric correction
+     * @param batchTosa     the TOSA computation for pixel batches
+     */
+    public AtmosCorrection(NNffbpAlphaTabFast atmosphereNet, BatchTosa batchTosa) {
         this.atmosphereNet = atmosphereNet;
+        this.batchTosa = batchTosa;
+        atmoNetInput = new double[atmosphereNet.getInmin().length];
+        atmoNetOutput = new double[atmosphereNet.getOutmin().length];
+    }
+
+    /**
+     * @param inputRangeCheck if true (the default), pixels with a neural net input outside of the training range
+     *                        are flagged with {@link #INPUT_OOR} and not corrected, otherwise only the sun zenith
+     *                        angle is checked and the net extrapolates
+     */
+    public void setInputRangeCheck(boolean inputRangeCheck) {
+        this.inputRangeCheck = inputRangeCheck;
+    }
+
+    /**
+     * @param stageTimer the timer the TOSA and neural net stages of {@link #perform(PixelBatch)} are measured
+     *                   with, may be null
+     */
+    void setStageTimer(StageTimer stageTimer) {
+        this.stageTimer = stageTimer;
     }
 
     /**
-     * This method performs the AC, using new net (15 Jan 2013).
+     * Performs the AC for all pixels of a batch. This is equivalent to calling
+     * {@link #perform(PixelData, double, double)} for each pixel, but without any per-pixel objects.
+     * The temperature and salinity of the batch must have been set. The results are written
+     * to the flag, TOSA reflectance and reflectance buffers of the batch. Pixels with an invalid neural net
+     * input (see {@link #getNeuralNetInputFlags}) are flagged, and the net is not run for them. The TOSA
+     * reflectances and reflectances of all invalid pixels are {@link Constants#INVALID_REFLEC_VALUE}.
+     * No memory is allocated, as the neural net buffers are reused (guarded by {@code AllocationTest}).
+     * Like the neural net, an instance must therefore not be used by several threads at once.
+     *
+     * @param batch the pixel batch
+     */
+    public void perform(PixelBatch batch) {
+        final int size = batch.getSize();
+        final double maxSolzen = atmosphereNet.getInmax()[0];
+        for (int i = 0; i < size; i++) {
+            batch.flag[i] = getInvalidFlags(batch.validation[i], batch.solzen[i], maxSolzen);
+        }
+
+        if (stageTimer != null) {
+            stageTimer.start();
+        }
+        computeGeometry(batch);
+        batchTosa.perform(batch);
+        if (stageTimer != null) {
+            stageTimer.lap(ProcessingStage.TOSA);
+        }
+
+        final int numBands = batch.getNumBands();
+        final double[] inmin = atmosphereNet.getInmin();
+        final double[] inmax = atmosphereNet.getInmax();
+        for (int i = 0; i < size; i++) {
+            if (batch.flag[i] != 0) {
+                setInvalid(batch, i);
+                continue;
+            }
+            atmoNetInput[0] = batch.solzen[i];
+            atmoNetInput[1] = batch.sinViewZenith[i] * batch.cosAziDiff[i];
+            atmoNetInput[2] = batch.sinViewZenith[i] * batch.sinAziDiff[i];
+            atmoNetInput[3] = batch.cosViewZenith[i];
+            atmoNetInput[4] = batch.temperature[i];
+            atmoNetInput[5] = batch.salinity[i];
+            NeuralNetIOConverter.convertLogarithmMultipliedPi(batch.tosaReflec, i, atmoNetInput,
+                                                              NUM_NON_SPECTRAL_NN_INPUTS);
+            final int inputFlags = getNeuralNetInputFlags(atmoNetInput, inmin, inmax, inputRangeCheck);
+            if (inputFlags != 0) {
+                batch.flag[i] = inputFlags;
+                setInvalid(batch, i);
+                continue;
+            }
+            atmosphereNet.calc(atmoNetInput, atmoNetOutput);
+            for (int b = 0; b < numBands; b++) {
+                batch.reflec[b][i] = atmoNetOutput[b];
+            }
+        }
+        if (stageTimer != null) {
+            stageTimer.lap(ProcessingStage.NEURAL_NET);
+        }
+    }
+
+    /**
+     * This method performs the AC, using new net (15 Jan 2013). The TOSA reflectances and reflectances of
+     * invalid pixels are {@link Constants#INVALID_REFLEC_VALUE}, as for {@link #perform(PixelBatch)}.
      *
      * @param pixel            the pixel input data
      * @param temperature      the water temperature
@@ -35,22 +137,8 @@ public class AtmosCorrection {
 
         final AtmosCorrectionResult acResult = new AtmosCorrectionResult();
 
-        if (isLand(pixel)) {
-            acResult.raiseFlag(LAND);
-        }
-
-        if (isCloudIce(pixel)) {
-            acResult.raiseFlag(CLOUD_ICE);
-        }
-
-        if (isToaOor(pixel)) {
-            acResult.raiseFlag(TOA_OOR);
-        }
-
-        if ((acResult.getFlag() & LAND) == LAND ||
-            (acResult.getFlag() & CLOUD_ICE) == CLOUD_ICE ||
-            (acResult.getFlag() & TOA_OOR) == TOA_OOR) {
-            acResult.raiseFlag(INVALID);
+        acResult.raiseFlag(getInvalidFlags(pixel.validation, pixel.solzen, atmosphereNet.getInmax()[0]));
+        if ((acResult.getFlag() & INVALID) == INVALID) {
             return acResult;
         }
 
@@ -67,8 +155,7 @@ public class AtmosCorrection {
         Tosa tosa = new Tosa();
         tosa.init();
         final double[] rlTosa = tosa.perform(pixel, tetaViewSurfRad, tetaSunSurfRad);
-        acResult.setTosaReflec(rlTosa.clone());
-        final double[] rTosa = NeuralNetIOConverter.multiplyPi(rlTosa); // rTosa = rlTosa * PI
+        acResult.setTosaReflec(rlTosa);
 
         int atmoNetInputIndex = 0;
         double[] atmoNetInput = new double[atmosphereNet.getInmin().length];
@@ -79,14 +166,87 @@ public class AtmosCorrection {
         atmoNetInput[atmoNetInputIndex++] = temperature;
         atmoNetInput[atmoNetInputIndex++] = salinity;
 
-        final double[] logRTosa = NeuralNetIOConverter.convertLogarithm(rTosa);
-        System.arraycopy(logRTosa, 0, atmoNetInput, atmoNetInputIndex, rlTosa.length);
+        // log(rTosa) with rTosa = rlTosa * PI
+        NeuralNetIOConverter.convertLogarithmMultipliedPi(rlTosa, 0, atmoNetInput, atmoNetInputIndex, rlTosa.length);
+        final int inputFlags = getNeuralNetInputFlags(atmoNetInput, atmosphereNet.getInmin(),
+                                                      atmosphereNet.getInmax(), inputRangeCheck);
+        if (inputFlags != 0) {
+            acResult.raiseFlag(inputFlags);
+            // the TOSA reflectance has been computed, but is invalid like the one of the other invalid pixels
+            Arrays.fill(rlTosa, Constants.INVALID_REFLEC_VALUE);
+            return acResult;
+        }
         double[] atmoNetOutput = atmosphereNet.calc(atmoNetInput);
         acResult.setReflec(atmoNetOutput);
 
         return acResult;
     }
 
+    /**
+     * Computes the AC flags of a pixel which can be derived without running the correction, i.e. from the
+     * TOA validation mask and the sun zenith angle only.
+     *
+     * @param validation   the TOA validation mask of the pixel
+     * @param solzen       the sun zenith angle (deg)
+     * @param maxSolzen    the maximum sun zenith angle the neural net has been trained for (deg)
+     * @return the flags, with {@link #INVALID} raised if the pixel cannot be corrected, or 0 otherwise
+     */
+    static int getInvalidFlags(int validation, double solzen, double maxSolzen) {
+        int flags = 0;
+        if ((validation & ToaReflectanceValidationOp.LAND_FLAG_MASK) == ToaReflectanceValidationOp.LAND_FLAG_MASK) {
+            flags |= LAND;
+        }
+        if ((validation & ToaReflectanceValidationOp.CLOUD_ICE_FLAG_MASK) == ToaReflectanceValidationOp.CLOUD_ICE_FLAG_MASK) {
+            flags |= CLOUD_ICE;
+        }
+        if ((validation & ToaReflectanceValidationOp.RLTOA_OOR_FLAG_MASK) == ToaReflectanceValidationOp.RLTOA_OOR_FLAG_MASK) {
+            flags |= TOA_OOR;
+        }
+        if (solzen > maxSolzen) {
+            flags |= INPUT_OOR;
+        }
+        if (flags != 0) {
+            flags |= INVALID;
+        }
+        return flags;
+    }
+
+    /**
+     * Checks the input of the neural net. NaN or infinite values occur e.g. for a non-positive TOSA reflectance,
+     * whose logarithm is taken.
+     *
+     * @param input      the neural net input
+     * @param inmin      the minimum input values of the training
+     * @param inmax      the maximum input values of the training
+     * @param rangeCheck if true, the input is also checked against the training range
+     * @return {@link #INVALID} | {@link #NAN_INPUT} if any input is NaN or infinite, otherwise
+     *         {@link #INVALID} | {@link #INPUT_OOR} if any input is out of the training range, or 0
+     */
+    static int getNeuralNetInputFlags(double[] input, double[] inmin, double[] inmax, boolean rangeCheck) {
+        boolean nan = false;
+        boolean outOfRange = false;
+        for (int k = 0; k < inmin.length; k++) {
+            final double value = input[k];
+            // the difference is NaN for NaN and for infinite values
+            nan |= value - value != 0.0;
+            outOfRange |= value < inmin[k] || value > inmax[k];
+        }
+        if (nan) {
+            return INVALID | NAN_INPUT;
+        }
+        if (rangeCheck && outOfRange) {
+            return INVALID | INPUT_OOR;
+        }
+        return 0;
+    }
+
+    private static void setInvalid(PixelBatch batch, int i) {
+        for (int b = 0; b < batch.getNumBands(); b++) {
+            batch.tosaReflec[b][i] = Constants.INVALID_REFLEC_VALUE;
+            batch.reflec[b][i] = Constants.INVALID_REFLEC_VALUE;
+        }
+    }
+
     static boolean isToaOor(PixelData pixel) {
         return (pixel.validation & ToaReflectanceValidationOp.RLTOA_OOR_FLAG_MASK) == ToaReflectanceValidationOp.RLTOA_OOR_FLAG_MASK;
     }
@@ -100,7 +260,33 @@ public class AtmosCorrection {
     }
 
 
-    private static double correctViewAngle(double teta_view_deg, int pixelX, int centerPixel) {
+    /**
+     * Computes the sines and cosines of the sun zenith, the corrected view zenith and the azimuth difference
+     * for all pixels of the batch with no flag raised.
+     *
+     * @param batch the pixel batch
+     */
+    static void computeGeometry(PixelBatch batch) {
+        for (int i = 0; i < batch.getSize(); i++) {
+            if (batch.flag[i] != 0) {
+                continue;
+            }
+            final double tetaViewSurfDeg = correctViewAngle(batch.satzen[i], batch.pixelX[i] * batch.columnStep,
+                                                              batch.nadirColumnIndex);
+            final double tetaViewSurfRad = Math.toRadians(tetaViewSurfDeg);
+            final double tetaSunSurfRad = Math.toRadians(batch.solzen[i]);
+            // as in getAzimuthDifference(), acos(cos(x)) is folded into cos(x) and |sin(x)|
+            final double aziDiffRad = Math.toRadians(batch.satazi[i]) - Math.PI - Math.toRadians(batch.solazi[i]);
+            batch.cosSunZenith[i] = Math.cos(tetaSunSurfRad);
+            batch.sinSunZenith[i] = Math.sin(tetaSunSurfRad);
+            batch.cosViewZenith[i] = Math.cos(tetaViewSurfRad);
+            batch.sinViewZenith[i] = Math.sin(tetaViewSurfRad);
+            batch.cosAziDiff[i] = Math.cos(aziDiffRad);
+            batch.sinAziDiff[i] = Math.abs(Math.sin(aziDiffRad));
+        }
+    }
+
+    static double correctViewAngle(double teta_view_deg, int pixelX, int centerPixel) {
         final double ang_coef_1 = -0.004793;
         final double ang_coef_2 = 0.0093247;
         teta_view_deg = teta_view_deg + Math.abs(pixelX - centerPixel) * ang_coef_2 + ang_coef_1;
@@ -0,0 +1,314 @@
+package org.esa.beam.atmosphere.operator;
+
+import static java.lang.Math.*;
+
+/**
+ * Batch version of {@link Tosa}: computes the TOSA reflectances of all valid pixels of a {@link PixelBatch},
+ * band by band.
+ * <p/>
+ * All terms which depend only on the wavelength and on the scene-wide ozone, pressure and altitude are
+ * computed once at construction, so an instance can be shared by all tiles of a scene. As the ozone of
+ * the correction layer equals the real ozone, the ozone and Rayleigh transmittances of {@link Tosa}
+ * combine into two exponentials per band and pixel:
+ * <pre>
+ *   rlTosa = rlToa * cosView / (PI * cosSun) * exp((oz - r) / cosView + (oz + r) / cosSun)
+ *          + tauRayl * phaseRayl / (4 * PI * cosView * cosSun) * exp(r / cosSun - r / cosView)
+ * </pre>
+ * with oz = ozone absorption * ozone / 1000 and r = tauRayl / 2. The results are equal to those of
+ * {@link Tosa} within floating-point tolerance, given the solar fluxes {@link Constants#SOLAR_FLUXES_TO_USE}.
+ * <p/>
+ * Optionally, the sun and view dependent factors of both terms are taken from lookup tables instead.
+ * They are separable in cos(sun) and cos(view), so four 1-D tables per band over equidistant cos values
+ * in [{@link #LUT_MIN_COS}, 1] are sufficient. The tables are built once per scene and interpolated linearly.
+ * With {@link #DEFAULT_LUT_SIZE} nodes the error of the TOSA reflectances is below 1.0E-5 relative to the
+ * TOA reflectance for zenith angles up to 75 deg (TOSA reflectances can be close to zero, as the path
+ * radiance correction is negative for pressures below 1013.2 hPa). Pixels with cos values below the table
+ * range are computed exactly.
+ * <p/>
+ * If the ozone and the pressure vary from pixel to pixel (see {@link #BatchTosa(double)}), only the
+ * wavelength dependent terms are precomputed, and no lookup tables can be used.
+ */
+public class BatchTosa {
+
+    private static final double DELTA = 0.0279;
+    private static final double GAM = DELTA / (2.0 - DELTA);
+    private static final double PHASE_A = 3.0 / (4.0 * (1.0 + 2.0 * GAM)) * (1.0 - GAM);
+    private static final double PHASE_B = 3.0 / (4.0 * (1.0 + 2.0 * GAM)) * (1.0 + 3.0 * GAM);
+
+    /**
+     * The smallest cos(zenith) covered by the lookup tables, corresponds to a zenith angle of about 87 deg.
+     */
+    public static final double LUT_MIN_COS = 0.05;
+    public static final int DEFAULT_LUT_SIZE = 1024;
+
+    private final int numBands;
+    private final boolean pixelAuxdata;
+    private final double altitudeFactor;
+    private final double[] tauRaylFactor;
+    private final double[] tauRaylRest;
+    private final double[] sunExponent;
+    private final double[] viewExponent;
+    private final double[] halfTauRaylRest;
+
+    // lookup tables [band][node], null if not used
+    private final int lutSize;
+    private final double lutStep;
+    private final double[][] toaSunLut;
+    private final double[][] toaViewLut;
+    private final double[][] pathSunLut;
+    private final double[][] pathViewLut;
+
+    private boolean fastMath;
+
+    /**
+     * Creates an instance which takes the ozone and the pressure at altitude of each pixel from the
+     * {@link PixelBatch#ozone} and {@link PixelBatch#pressure} buffers of the batch.
+     *
+     * @param altitude the altitude (m)
+     */
+    public BatchTosa(double altitude) {
+        this(Double.NaN, Double.NaN, altitude, 0, true);
+    }
+
+    /**
+     * Creates an instance computing the transmittances exactly.
+     *
+     * @param ozone    the ozone (DU)
+     * @param pressure the pressure at altitude (hPa)
+     * @param altitude the altitude (m)
+     */
+    public BatchTosa(double ozone, double pressure, double altitude) {
+        this(ozone, pressure, altitude, 0);
+    }
+
+    /**
+     * @param ozone    the ozone (DU)
+     * @param pressure the pressure at altitude (hPa)
+     * @param altitude the altitude (m)
+     * @param lutSize  the number of nodes of the transmittance lookup tables, 0 if no tables shall be used
+     */
+    public BatchTosa(double ozone, double pressure, double altitude, int lutSize) {
+        this(ozone, pressure, altitude, lutSize, false);
+    }
+
+    private BatchTosa(double ozone, double pressure, double altitude, int lutSize, boolean pixelAuxdata) {
+        if (lutSize == 1 || lutSize < 0) {
+            throw new IllegalArgumentException("lutSize must be 0 or > 1");
+        }
+        numBands = Constants.MODIS_SPECTRAL_WAVELENGHTS_TO_USE.length;
+        this.pixelAuxdata = pixelAuxdata;
+        tauRaylFactor = new double[numBands];
+        tauRaylRest = new double[numBands];
+        sunExponent = new double[numBands];
+        viewExponent = new double[numBands];
+        halfTauRaylRest = new double[numBands];
+
+        /* calculate relative airmass rayleigh correction for correction layer*/
+        if (altitude < 1.0f) {
+            altitude = 1.0f;
+        }
+        altitudeFactor = pow((1.0 - 0.0065 * altitude / 288.15), 5.255);
+        final double raylRestMass = getRaylRestMass(pressure);
+
+        for (int i = 0; i < numBands; i++) {
+            /* optical thickness of rayleigh for correction layer, lam in micrometer */
+            final double wavelength = Constants.MODIS_SPECTRAL_WAVELENGHTS_TO_USE[i] / 1000;
+            tauRaylFactor[i] = 0.008524 * pow(wavelength, -4.0) +
+                    9.63E-5 * pow(wavelength, -6.0) +
+                    1.1E-6 * pow(wavelength, -8.0);
+            tauRaylRest[i] = raylRestMass * tauRaylFactor[i];
+            halfTauRaylRest[i] = tauRaylRest[i] * 0.5; /* 0.5 because diffuse trans */
+            final double ozoneThickness = Constants.OZONE_ABSORPTIONS_TO_USE[i] * ozone / 1000.0;
+            sunExponent[i] = ozoneThickness + halfTauRaylRest[i];
+            viewExponent[i] = ozoneThickness - halfTauRaylRest[i];
+        }
+
+        this.lutSize = lutSize;
+        if (lutSize > 0) {
+            lutStep = (1.0 - LUT_MIN_COS) / (lutSize - 1);
+            toaSunLut = new double[numBands][lutSize];
+            toaViewLut = new double[numBands][lutSize];
+            pathSunLut = new double[numBands][lutSize];
+            pathViewLut = new double[numBands][lutSize];
+            for (int k = 0; k < lutSize; k++) {
+                final double airMass = 1.0 / (LUT_MIN_COS + k * lutStep);
+                for (int i = 0; i < numBands; i++) {
+                    toaSunLut[i][k] = airMass * exp(sunExponent[i] * airMass);
+                    toaViewLut[i][k] = exp(viewExponent[i] * airMass) / (PI * airMass);
+                    pathSunLut[i][k] = airMass * exp(halfTauRaylRest[i] * airMass);
+                    pathViewLut[i][k] = airMass * exp(-halfTauRaylRest[i] * airMass);
+                }
+            }
+        } else {
+            lutStep = 0.0;
+            toaSunLut = null;
+            toaViewLut = null;
+            pathSunLut = null;
+            pathViewLut = null;
+        }
+    }
+
+    public boolean isLutUsed() {
+        return lutSize > 0;
+    }
+
+    /**
+     * @param fastMath if true, {@link FastMath#exp} is used instead of {@link Math#exp}
+     */
+    public void setFastMath(boolean fastMath) {
+        this.fastMath = fastMath;
+    }
+
+    public boolean isFastMath() {
+        return fastMath;
+    }
+
+    /**
+     * Computes the TOSA reflectances of all pixels of the batch with no flag raised. The geometry of these
+     * pixels (sun and view zenith, azimuth difference) must have been set.
+     *
+     * @param batch the pixel batch
+     */
+    public void perform(PixelBatch batch) {
+        final int size = batch.getSize();
+        final int[] flag = batch.flag;
+        final double[] airMassSun = batch.airMassSun;
+        final double[] airMassView = batch.airMassView;
+        final double[] phase = batch.rayleighPhase;
+
+        for (int i = 0; i < size; i++) {
+            if (flag[i] != 0) {
+                continue;
+            }
+            final double cosSun = batch.cosSunZenith[i];
+            final double cosView = batch.cosViewZenith[i];
+            airMassSun[i] = 1.0 / cosSun;
+            airMassView[i] = 1.0 / cosView;
+            /* phase function for rayleigh path radiance, the azimuth difference of the batch is shifted by PI */
+            final double cosScatAng = -cosView * cosSun +
+                    batch.sinViewZenith[i] * batch.sinSunZenith[i] * batch.cosAziDiff[i];
+            phase[i] = PHASE_A * cosScatAng * cosScatAng + PHASE_B;
+            if (isLutUsed()) {
+                batch.lutPositionSun[i] = getLutPosition(cosSun);
+                batch.lutPositionView[i] = getLutPosition(cosView);
+            }
+        }
+
+        if (pixelAuxdata) {
+            performWithPixelAuxdata(batch);
+            return;
+        }
+        if (isLutUsed()) {
+            performWithLut(batch);
+            return;
+        }
+
+        for (int b = 0; b < numBands; b++) {
+            final double[] rlToa = batch.toaReflectance[b];
+            final double[] rlTosa = batch.tosaReflec[b];
+            final double sunExp = sunExponent[b];
+            final double viewExp = viewExponent[b];
+            final double halfTau = halfTauRaylRest[b];
+            final double pathFactor = tauRaylRest[b] / (4.0 * PI);
+            for (int i = 0; i < size; i++) {
+                if (flag[i] != 0) {
+                    continue;
+                }
+                final double mS = airMassSun[i];
+                final double mV = airMassView[i];
+                rlTosa[i] = rlToa[i] * mS / (PI * mV) * exponential(viewExp * mV + sunExp * mS) +
+                        pathFactor * phase[i] * mS * mV * exponential(halfTau * (mS - mV));
+            }
+        }
+    }
+
+    private void performWithPixelAuxdata(PixelBatch batch) {
+        final int size = batch.getSize();
+        final int[] flag = batch.flag;
+        final double[] airMassSun = batch.airMassSun;
+        final double[] airMassView = batch.airMassView;
+        final double[] phase = batch.rayleighPhase;
+        final double[] ozone = batch.ozone;
+        final double[] pressure = batch.pressure;
+
+        for (int b = 0; b < numBands; b++) {
+            final double[] rlToa = batch.toaReflectance[b];
+            final double[] rlTosa = batch.tosaReflec[b];
+            final double tauFactor = tauRaylFactor[b];
+            final double ozoneAbsorption = Constants.OZONE_ABSORPTIONS_TO_USE[b] / 1000.0;
+            for (int i = 0; i < size; i++) {
+                if (flag[i] != 0) {
+                    continue;
+                }
+                final double mS = airMassSun[i];
+                final double mV = airMassView[i];
+                final double tau = getRaylRestMass(pressure[i]) * tauFactor;
+                final double halfTau = tau * 0.5;
+                final double ozoneThickness = ozoneAbsorption * ozone[i];
+                rlTosa[i] = rlToa[i] * mS / (PI * mV) *
+                        exponential((ozoneThickness - halfTau) * mV + (ozoneThickness + halfTau) * mS) +
+                        tau / (4.0 * PI) * phase[i] * mS * mV * exponential(halfTau * (mS - mV));
+            }
+        }
+    }
+
+    private double exponential(double x) {
+        return fastMath ? FastMath.exp(x) : exp(x);
+    }
+
+    private double getRaylRestMass(double pressure) {
+        return (pressure * altitudeFactor - 1013.2) / 1013.2;
+    }
+
+    private void performWithLut(PixelBatch batch) {
+        final int size = batch.getSize();
+        final int[] flag = batch.flag;
+        final double[] posSun = batch.lutPositionSun;
+        final double[] posView = batch.lutPositionView;
+        final double[] phase = batch.rayleighPhase;
+
+        for (int b = 0; b < numBands; b++) {
+            final double[] rlToa = batch.toaReflectance[b];
+            final double[] rlTosa = batch.tosaReflec[b];
+            final double[] toaSun = toaSunLut[b];
+            final double[] toaView = toaViewLut[b];
+            final double[] pathSun = pathSunLut[b];
+            final double[] pathView = pathViewLut[b];
+            final double pathFactor = tauRaylRest[b] / (4.0 * PI);
+            for (int i = 0; i < size; i++) {
+                if (flag[i] != 0) {
+                    continue;
+                }
+                final double ps = posSun[i];
+                final double pv = posView[i];
+                if (ps < 0.0 || pv < 0.0) {
+                    final double mS = batch.airMassSun[i];
+                    final double mV = batch.airMassView[i];
+                    rlTosa[i] = rlToa[i] * mS / (PI * mV) * exponential(viewExponent[b] * mV + sunExponent[b] * mS) +
+                            pathFactor * phase[i] * mS * mV * exponential(halfTauRaylRest[b] * (mS - mV));
+                    continue;
+                }
+                final int is = (int) ps;
+                final double ws = ps - is;
+                final int iv = (int) pv;
+                final double wv = pv - iv;
+                final double tS = toaSun[is] + ws * (toaSun[is + 1] - toaSun[is]);
+                final double tV = toaView[iv] + wv * (toaView[iv + 1] - toaView[iv]);
+                final double pS = pathSun[is] + ws * (pathSun[is + 1] - pathSun[is]);
+                final double pV = pathView[iv] + wv * (pathView[iv + 1] - pathView[iv]);
+                rlTosa[i] = rlToa[i] * tS * tV + pathFactor * phase[i] * pS * pV;
+            }
+        }
+    }
+
+    /**
+     * @return the fractional table position of the cos value, always less than lutSize - 1,
+     *         or -1 if the value is not covered by the tables
+     */
+    private double getLutPosition(double cos) {
+        if (cos < LUT_MIN_COS || cos > 1.0) {
+            return -1.0;
+        }
+        return Math.min((cos - LUT_MIN_COS) / lutStep, lutSize - 1.000001);
+    }
+}
@@ -0,0 +1,428 @@
+package org.esa.beam.atmosphere.operator;
+
+import com.bc.ceres.core.ProgressMonitor;
+import edu.ucar.ral.nujan.netcdf.NhDimension;
+import edu.ucar.ral.nujan.netcdf.NhException;
+import edu.ucar.ral.nujan.netcdf.NhFileWriter;
+import edu.ucar.ral.nujan.netcdf.NhGroup;
+import edu.ucar.ral.nujan.netcdf.NhVariable;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.GeoCoding;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.MetadataAttribute;
+import org.esa.beam.framework.datamodel.MetadataElement;
+import org.esa.beam.framework.datamodel.PixelPos;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes the atmospherically corrected product to a NetCDF4 file with chunked and deflate compressed variables.
+ * The chunks are the tiles of the product, so each tile computed by {@link ModisAtmosCorrectionOp} is written
+ * and compressed as one chunk and never has to be split or merged. The tiles are computed by a pool of threads,
+ * some tiles ahead of the chunk which is written.
+ * <p/>
+ * The file is written with the pure Java NetCDF4 writer used by the BEAM NetCDF module (Nujan). It compresses
+ * the chunks in the writing thread, and it does not provide the HDF5 shuffle filter.
+ * <p/>
+ * The attributes of a NetCDF4 file are fixed before the first chunk is written, while the processing statistics
+ * of the operator are complete only after the last tile. The text attributes of the statistics (like the neural
+ * net file) are written as global attributes, the numeric ones as the variable {@code processing_statistics},
+ * which is written after the last chunk. Its attribute {@code statistic_names} lists the names of its values,
+ * the times of the processing stages prefixed with the name of the stage, like {@code Tosa.wall_time_s}.
+ */
+public class ChunkedNetCdf4Writer {
+
+    /**
+     * The format name used by {@link ModisAtmosCorrectionBatch} to select this writer.
+     */
+    public static final String FORMAT_NAME = "NetCDF4-AC";
+    public static final String FILE_EXTENSION = ".nc";
+    public static final int DEFAULT_COMPRESSION_LEVEL = 5;
+
+    private static final String LAT_VARIABLE_NAME = "lat";
+    private static final String LON_VARIABLE_NAME = "lon";
+    private static final String STATISTICS_VARIABLE_NAME = "processing_statistics";
+    private static final String STATISTICS_DIMENSION_NAME = "statistic";
+    private static final String STATISTIC_NAMES_ATTRIBUTE_NAME = "statistic_names";
+
+    private final int compressionLevel;
+    private final int numThreads;
+
+    /**
+     * Creates a writer with the default compression level, which computes tiles with as many threads as there
+     * are processors.
+     */
+    public ChunkedNetCdf4Writer() {
+        this(DEFAULT_COMPRESSION_LEVEL, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a writer.
+     *
+     * @param compressionLevel the deflate level, 0 (no compression) to 9 (best compression)
+     * @param numThreads       the number of threads computing tiles
+     */
+    public ChunkedNetCdf4Writer(int compressionLevel, int numThreads) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("compressionLevel must be in [0, 9]");
+        }
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads < 1");
+        }
+        this.compressionLevel = compressionLevel;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Writes a product.
+     *
+     * @param product the product
+     * @param file    the output file, the extension {@code .nc} is appended if missing
+     * @param pm      a progress monitor
+     * @return the written file
+     * @throws IOException if the product cannot be written
+     */
+    public File write(Product product, File file, ProgressMonitor pm) throws IOException {
+        if (!file.getName().endsWith(FILE_EXTENSION)) {
+            file = new File(file.getPath() + FILE_EXTENSION);
+        }
+        final int width = product.getSceneRasterWidth();
+        final int height = product.getSceneRasterHeight();
+        final List<Band> bands = new ArrayList<Band>();
+        for (Band band : product.getBands()) {
+            bands.add(band);
+        }
+        if (bands.isEmpty()) {
+            throw new IOException("Product '" + product.getName() + "' has no bands.");
+        }
+        final RenderedImage tileImage = bands.get(0).getSourceImage();
+        final int[] chunkShape = getChunkShape(new Dimension(tileImage.getTileWidth(), tileImage.getTileHeight()),
+                                               width, height);
+        final GeoCoding geoCoding = product.getGeoCoding();
+
+        final List<Rectangle> chunks = new ArrayList<Rectangle>();
+        for (int y = 0; y < height; y += chunkShape[0]) {
+            for (int x = 0; x < width; x += chunkShape[1]) {
+                chunks.add(new Rectangle(x, y, Math.min(chunkShape[1], width - x), Math.min(chunkShape[0], height - y)));
+            }
+        }
+
+        pm.beginTask("Writing NetCDF4 file...", chunks.size());
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        NhFileWriter writer = null;
+        try {
+            writer = new NhFileWriter(file.getPath(), NhFileWriter.OPT_OVERWRITE);
+            final NhVariable[] variables = defineVariables(writer.getRootGroup(), product, bands, geoCoding,
+                                                           chunkShape);
+            final MetadataElement statisticsElement = product.getMetadataRoot().getElement(
+                    ProcessingStatistics.METADATA_ELEMENT_NAME);
+            final List<String> statisticNames = new ArrayList<String>();
+            NhVariable statisticsVariable = null;
+            if (statisticsElement != null) {
+                statisticNames.addAll(getStatisticNames(statisticsElement));
+                statisticsVariable = defineStatistics(writer.getRootGroup(), statisticsElement, statisticNames);
+            }
+            writer.endDefine();
+
+            // at most two tiles per thread are kept in memory
+            final int maxChunksAhead = 2 * numThreads;
+            final LinkedList<Future<Object[]>> pending = new LinkedList<Future<Object[]>>();
+            int nextChunk = 0;
+            for (Rectangle chunk : chunks) {
+                while (nextChunk < chunks.size() && pending.size() < maxChunksAhead) {
+                    final Rectangle rectangle = chunks.get(nextChunk++);
+                    pending.add(executor.submit(new Callable<Object[]>() {
+                        @Override
+                        public Object[] call() {
+                            return readChunk(bands, geoCoding, rectangle);
+                        }
+                    }));
+                }
+                final Object[] data = getChunk(pending.removeFirst());
+                final int[] start = {chunk.y, chunk.x};
+                for (int i = 0; i < variables.length; i++) {
+                    variables[i].writeData(start, data[i], true);
+                }
+                pm.worked(1);
+            }
+            if (statisticsVariable != null) {
+                // the operator has completed the statistics with the last tile
+                statisticsVariable.writeData(new int[]{0}, getStatistics(statisticsElement, statisticNames), true);
+            }
+            writer.close();
+            writer = null;
+        } catch (NhException e) {
+            throw new IOException("Could not write NetCDF4 file '" + file + "': " + e.getMessage(), e);
+        } finally {
+            executor.shutdownNow();
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (NhException ignore) {
+                }
+            }
+            pm.done();
+        }
+        return file;
+    }
+
+    /**
+     * Gets the chunk shape (rows, columns) for a tile size, limited to the raster size.
+     *
+     * @param tileSize the tile size
+     * @param width    the raster width
+     * @param height   the raster height
+     * @return the chunk shape
+     */
+    static int[] getChunkShape(Dimension tileSize, int width, int height) {
+        return new int[]{Math.max(1, Math.min(tileSize.height, height)), Math.max(1, Math.min(tileSize.width, width))};
+    }
+
+    private NhVariable[] defineVariables(NhGroup root, Product product, List<Band> bands, GeoCoding geoCoding,
+                                         int[] chunkShape) throws NhException {
+        final NhDimension[] dimensions = {
+                root.addDimension("y", product.getSceneRasterHeight()),
+                root.addDimension("x", product.getSceneRasterWidth())
+        };
+        root.addAttribute("Conventions", NhVariable.TP_STRING_VAR, "CF-1.4");
+        root.addAttribute("title", NhVariable.TP_STRING_VAR, product.getName());
+        root.addAttribute("product_type", NhVariable.TP_STRING_VAR, product.getProductType());
+        if (product.getStartTime() != null) {
+            root.addAttribute("start_date", NhVariable.TP_STRING_VAR, product.getStartTime().format());
+        }
+        if (product.getEndTime() != null) {
+            root.addAttribute("stop_date", NhVariable.TP_STRING_VAR, product.getEndTime().format());
+        }
+
+        final List<NhVariable> variables = new ArrayList<NhVariable>();
+        for (Band band : bands) {
+            final int type = getNhType(band.getDataType());
+            final Object fillValue = band.isNoDataValueUsed() ? toNhValue(type, band.getNoDataValue()) : null;
+            final NhVariable variable = root.addVariable(band.getName(), type, dimensions, chunkShape, fillValue,
+                                                         compressionLevel);
+            addAttributes(variable, band, type, geoCoding != null);
+            variables.add(variable);
+        }
+        if (geoCoding != null) {
+            final NhVariable lat = root.addVariable(LAT_VARIABLE_NAME, NhVariable.TP_FLOAT, dimensions, chunkShape,
+                                                    null, compressionLevel);
+            lat.addAttribute("standard_name", NhVariable.TP_STRING_VAR, "latitude");
+            lat.addAttribute("units", NhVariable.TP_STRING_VAR, "degrees_north");
+            variables.add(lat);
+            final NhVariable lon = root.addVariable(LON_VARIABLE_NAME, NhVariable.TP_FLOAT, dimensions, chunkShape,
+                                                    null, compressionLevel);
+            lon.addAttribute("standard_name", NhVariable.TP_STRING_VAR, "longitude");
+            lon.addAttribute("units", NhVariable.TP_STRING_VAR, "degrees_east");
+            variables.add(lon);
+        }
+        return variables.toArray(new NhVariable[variables.size()]);
+    }
+
+    private static NhVariable defineStatistics(NhGroup root, MetadataElement statisticsElement,
+                                               List<String> statisticNames) throws NhException {
+        for (MetadataAttribute attribute : statisticsElement.getAttributes()) {
+            if (attribute.getDataType() == ProductData.TYPE_ASCII) {
+                root.addAttribute(attribute.getName(), NhVariable.TP_STRING_VAR, attribute.getData().getElemString());
+            }
+        }
+        if (statisticNames.isEmpty()) {
+            return null;
+        }
+        final NhDimension[] dimensions = {root.addDimension(STATISTICS_DIMENSION_NAME, statisticNames.size())};
+        final NhVariable variable = root.addVariable(STATISTICS_VARIABLE_NAME, NhVariable.TP_DOUBLE, dimensions,
+                                                     new int[]{statisticNames.size()}, null, 0);
+        final StringBuilder names = new StringBuilder();
+        for (String name : statisticNames) {
+            names.append(names.length() > 0 ? " " : "").append(name);
+        }
+        variable.addAttribute("long_name", NhVariable.TP_STRING_VAR, "Processing statistics of the product");
+        variable.addAttribute(STATISTIC_NAMES_ATTRIBUTE_NAME, NhVariable.TP_STRING_VAR, names.toString());
+        return variable;
+    }
+
+    /**
+     * Gets the names of the numeric statistics, the names of the stage times are prefixed with the stage name.
+     *
+     * @param statisticsElement the statistics written by {@link ProcessingStatistics#writeMetadata}
+     * @return the names
+     */
+    static List<String> getStatisticNames(MetadataElement statisticsElement) {
+        final List<String> names = new ArrayList<String>();
+        for (MetadataAttribute attribute : statisticsElement.getAttributes()) {
+            if (attribute.getDataType() != ProductData.TYPE_ASCII) {
+                names.add(attribute.getName());
+            }
+        }
+        for (MetadataElement stageElement : statisticsElement.getElements()) {
+            for (MetadataAttribute attribute : stageElement.getAttributes()) {
+                names.add(stageElement.getName() + "." + attribute.getName());
+            }
+        }
+        return names;
+    }
+
+    private static double[] getStatistics(MetadataElement statisticsElement, List<String> statisticNames) {
+        final double[] values = new double[statisticNames.size()];
+        for (int i = 0; i < values.length; i++) {
+            final String name = statisticNames.get(i);
+            final int dotIndex = name.indexOf('.');
+            final MetadataElement element = dotIndex > 0 ? statisticsElement.getElement(name.substring(0, dotIndex))
+                                                         : statisticsElement;
+            values[i] = element != null ? element.getAttributeDouble(name.substring(dotIndex + 1), Double.NaN)
+                                        : Double.NaN;
+        }
+        return values;
+    }
+
+    private static void addAttributes(NhVariable variable, Band band, int type, boolean hasCoordinates) throws
+            NhException {
+        if (band.getDescription() != null) {
+            variable.addAttribute("long_name", NhVariable.TP_STRING_VAR, band.getDescription());
+        }
+        if (band.getUnit() != null) {
+            variable.addAttribute("units", NhVariable.TP_STRING_VAR, band.getUnit());
+        }
+        if (ProductData.isUIntType(band.getDataType())) {
+            variable.addAttribute("_Unsigned", NhVariable.TP_STRING_VAR, "true");
+        }
+        if (band.isScalingApplied()) {
+            variable.addAttribute("scale_factor", NhVariable.TP_DOUBLE, band.getScalingFactor());
+            variable.addAttribute("add_offset", NhVariable.TP_DOUBLE, band.getScalingOffset());
+        }
+        if (band.getSpectralWavelength() > 0.0f) {
+            variable.addAttribute("radiation_wavelength", NhVariable.TP_FLOAT, band.getSpectralWavelength());
+        }
+        if (band.getValidPixelExpression() != null && band.getValidPixelExpression().length() > 0) {
+            variable.addAttribute("valid_pixel_expression", NhVariable.TP_STRING_VAR, band.getValidPixelExpression());
+        }
+        final FlagCoding flagCoding = band.getFlagCoding();
+        if (flagCoding != null) {
+            final String[] flagNames = flagCoding.getFlagNames();
+            final StringBuilder meanings = new StringBuilder();
+            final int[] masks = new int[flagNames.length];
+            for (int i = 0; i < flagNames.length; i++) {
+                meanings.append(i > 0 ? " " : "").append(flagNames[i]);
+                masks[i] = flagCoding.getFlagMask(flagNames[i]);
+            }
+            variable.addAttribute("flag_meanings", NhVariable.TP_STRING_VAR, meanings.toString());
+            variable.addAttribute("flag_masks", type, toNhArray(type, masks));
+        }
+        if (hasCoordinates) {
+            variable.addAttribute("coordinates", NhVariable.TP_STRING_VAR, LAT_VARIABLE_NAME + " " + LON_VARIABLE_NAME);
+        }
+    }
+
+    private static Object[] readChunk(List<Band> bands, GeoCoding geoCoding, Rectangle rectangle) {
+        final int numValues = rectangle.width * rectangle.height;
+        final Object[] data = new Object[bands.size() + (geoCoding != null ? 2 : 0)];
+        for (int i = 0; i < bands.size(); i++) {
+            final Band band = bands.get(i);
+            final ProductData productData = ProductData.createInstance(band.getDataType(), numValues);
+            band.getSourceImage().getData(rectangle).getDataElements(rectangle.x, rectangle.y,
+                                                                     rectangle.width, rectangle.height,
+                                                                     productData.getElems());
+            data[i] = productData.getElems();
+        }
+        if (geoCoding != null) {
+            final float[] lat = new float[numValues];
+            final float[] lon = new float[numValues];
+            final PixelPos pixelPos = new PixelPos();
+            final GeoPos geoPos = new GeoPos();
+            int index = 0;
+            for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+                for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
+                    pixelPos.setLocation(x + 0.5f, y + 0.5f);
+                    geoCoding.getGeoPos(pixelPos, geoPos);
+                    lat[index] = geoPos.lat;
+                    lon[index] = geoPos.lon;
+                    index++;
+                }
+            }
+            data[bands.size()] = lat;
+            data[bands.size() + 1] = lon;
+        }
+        return data;
+    }
+
+    private static Object[] getChunk(Future<Object[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Writing has been interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not compute tile: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    static int getNhType(int dataType) {
+        switch (dataType) {
+            case ProductData.TYPE_INT8:
+            case ProductData.TYPE_UINT8:
+                return NhVariable.TP_SBYTE;
+            case ProductData.TYPE_INT16:
+            case ProductData.TYPE_UINT16:
+                return NhVariable.TP_SHORT;
+            case ProductData.TYPE_INT32:
+            case ProductData.TYPE_UINT32:
+                return NhVariable.TP_INT;
+            case ProductData.TYPE_FLOAT32:
+                return NhVariable.TP_FLOAT;
+            case ProductData.TYPE_FLOAT64:
+                return NhVariable.TP_DOUBLE;
+            default:
+                throw new IllegalArgumentException("Data type " + ProductData.getTypeString(dataType) +
+                                                           " is not supported.");
+        }
+    }
+
+    private static Object toNhValue(int nhType, double value) {
+        switch (nhType) {
+            case NhVariable.TP_SBYTE:
+                return (byte) value;
+            case NhVariable.TP_SHORT:
+                return (short) value;
+            case NhVariable.TP_INT:
+                return (int) value;
+            case NhVariable.TP_FLOAT:
+                return (float) value;
+            default:
+                return value;
+        }
+    }
+
+    private static Object toNhArray(int nhType, int[] values) {
+        switch (nhType) {
+            case NhVariable.TP_SBYTE: {
+                final byte[] array = new byte[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    array[i] = (byte) values[i];
+                }
+                return array;
+            }
+            case NhVariable.TP_SHORT: {
+                final short[] array = new short[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    array[i] = (short) values[i];
+                }
+                return array;
+            }
+            default:
+                return values;
+        }
+    }
+}
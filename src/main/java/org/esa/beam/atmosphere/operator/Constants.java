@@ -17,12 +17,19 @@ public class Constants {
     public static final String MODIS_L2_FLAG_BAND_NAME = "L2Flags";
     public static final String AC_FLAG_BAND_NAME = "ac_flags";
 
+    // The value written to the reflectance bands of pixels which could not be corrected:
+    public static final double INVALID_REFLEC_VALUE = 0.0;
+
+    // The number of 1km lines acquired in one scan of the MODIS mirror:
+    public static final int MODIS_LINES_PER_SCAN = 10;
+
     public static final String MODIS_LATITUDE_BAND_NAME = "Latitude";
     public static final String MODIS_LONGITUDE_BAND_NAME = "Longitude";
     public static final String MODIS_SUN_ZENITH_BAND_NAME = "SolarZenith";
     public static final String MODIS_SUN_AZIMUTH_BAND_NAME = "SolarAzimuth";
     public static final String MODIS_VIEW_ZENITH_BAND_NAME = "SensorZenith";
     public static final String MODIS_VIEW_AZIMUTH_BAND_NAME = "SensorAzimuth";
+    public static final String MODIS_LAND_SEA_MASK_BAND_NAME = "Land/SeaMask";
 
     // The 1km spectral bands in the MODIS L1b LAC product:
     public static final String[] MODIS_SPECTRAL_BAND_NAMES = {
@@ -43,6 +50,9 @@ public class Constants {
             "RefSB_26"
     };
 
+    // Scaled integers of the MODIS L1b EV bands above this value are fill or saturation codes:
+    public static final int MODIS_L1B_MAX_VALID_SCALED_INTEGER = 32767;
+
     // The names of the spectral bands to use as input for NN approach:
     public static final String[] MODIS_SPECTRAL_BANDNAMES_TO_USE = {
             MODIS_TOA_BAND_NAME_PREFIX + "RefSB_8",     // 412nm
@@ -0,0 +1,48 @@
+package org.esa.beam.atmosphere.operator;
+
+/**
+ * A fast approximation of {@link Math#exp}, used by the TOSA correction of pixel batches. It is a polynomial
+ * after a branch-free argument reduction combined with a small table. Its maximum error on [-700, 700], as
+ * determined by {@code FastMathTest}, is 2 ulp; outside of this domain the result is undefined.
+ * <p/>
+ * Measured with {@code FastMathBenchmark}, it is about 1.4 times faster than {@link Math#exp} on a current JVM
+ * (Java 17). Approximations of log, sin and cos were slower than the {@link Math} intrinsics and are therefore
+ * not provided.
+ */
+public final class FastMath {
+
+    private static final double LN2_HI = 6.93147180369123816490e-01;
+    private static final double LN2_LO = 1.90821492927058770002e-10;
+
+    // exp(x) = 2^(k / 32) exp(r), the powers 2^(j / 32) are tabulated
+    private static final int EXP_TABLE_BITS = 5;
+    private static final int EXP_TABLE_SIZE = 1 << EXP_TABLE_BITS;
+    private static final double EXP_SCALE = EXP_TABLE_SIZE / Math.log(2.0);
+    private static final double EXP_LN2_HI = LN2_HI / EXP_TABLE_SIZE;
+    private static final double EXP_LN2_LO = LN2_LO / EXP_TABLE_SIZE;
+    private static final double[] EXP_TABLE = new double[EXP_TABLE_SIZE];
+
+    static {
+        for (int j = 0; j < EXP_TABLE_SIZE; j++) {
+            EXP_TABLE[j] = Math.pow(2.0, (double) j / EXP_TABLE_SIZE);
+        }
+    }
+
+    private FastMath() {
+    }
+
+    /**
+     * @param x the argument, in [-700, 700]
+     * @return e raised to the power of x
+     */
+    public static double exp(double x) {
+        // x = k ln2 / 32 + r with |r| <= ln2 / 64
+        final double kd = Math.floor(x * EXP_SCALE + 0.5);
+        final double r = (x - kd * EXP_LN2_HI) - kd * EXP_LN2_LO;
+        final int k = (int) kd;
+        final double p = r * (1.0 + r * (1.0 / 2 + r * (1.0 / 6 + r * (1.0 / 24 + r * (1.0 / 120 + r * (1.0 / 720))))));
+        final double scale = Double.longBitsToDouble((long) ((k >> EXP_TABLE_BITS) + 1023) << 52);
+        final double t = EXP_TABLE[k & (EXP_TABLE_SIZE - 1)];
+        return (t + t * p) * scale;
+    }
+}
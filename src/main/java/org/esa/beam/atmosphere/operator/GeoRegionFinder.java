@@ -0,0 +1,108 @@
+package org.esa.beam.atmosphere.operator;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import org.esa.beam.framework.datamodel.RasterDataNode;
+
+import java.awt.Rectangle;
+
+/**
+ * Finds the smallest pixel rectangle of a MODIS swath which contains all pixels of a geographical region,
+ * using the latitude and longitude of every pixel. Unlike a search of the region's corners with the geo-coding,
+ * this also works for regions which the swath covers only partly, and near the edges of the swath, where the
+ * pixels are strongly distorted.
+ */
+public class GeoRegionFinder {
+
+    // the number of rows of latitude and longitude read at once
+    private static final int ROWS_PER_READ = 64;
+
+    private final Envelope envelope;
+    private final PreparedGeometry preparedRegion;
+    private final GeometryFactory geometryFactory;
+
+    /**
+     * Creates a finder.
+     *
+     * @param region the region, in geographical coordinates (x = longitude, y = latitude)
+     */
+    public GeoRegionFinder(Geometry region) {
+        envelope = region.getEnvelopeInternal();
+        // for a lat/lon bounding box the test against the envelope is sufficient
+        preparedRegion = region.isRectangle() ? null : PreparedGeometryFactory.prepare(region);
+        geometryFactory = new GeometryFactory();
+    }
+
+    /**
+     * Finds the pixel rectangle of the region in a swath.
+     *
+     * @param latNode the latitude of every pixel
+     * @param lonNode the longitude of every pixel
+     * @return the rectangle, empty if no pixel is inside the region
+     */
+    public Rectangle findPixelRegion(RasterDataNode latNode, RasterDataNode lonNode) {
+        final int width = latNode.getSceneRasterWidth();
+        final int height = latNode.getSceneRasterHeight();
+        final float[] lat = new float[width * ROWS_PER_READ];
+        final float[] lon = new float[width * ROWS_PER_READ];
+        final Rectangle pixelRegion = new Rectangle();
+        for (int y = 0; y < height; y += ROWS_PER_READ) {
+            final int rows = Math.min(ROWS_PER_READ, height - y);
+            final Rectangle rectangle = new Rectangle(0, y, width, rows);
+            latNode.getGeophysicalImage().getData(rectangle).getSamples(0, y, width, rows, 0, lat);
+            lonNode.getGeophysicalImage().getData(rectangle).getSamples(0, y, width, rows, 0, lon);
+            addPixelRegion(lat, lon, rectangle, pixelRegion);
+        }
+        return pixelRegion;
+    }
+
+    /**
+     * Adds the pixels of a rectangle which are inside the region to a pixel region.
+     *
+     * @param lat         the latitudes of the pixels of the rectangle
+     * @param lon         the longitudes of the pixels of the rectangle
+     * @param rectangle   the rectangle
+     * @param pixelRegion the pixel region, which is enlarged
+     */
+    void addPixelRegion(float[] lat, float[] lon, Rectangle rectangle, Rectangle pixelRegion) {
+        int index = 0;
+        for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+            for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
+                if (isInside(lat[index], lon[index]) && !pixelRegion.contains(x, y)) {
+                    if (pixelRegion.isEmpty()) {
+                        pixelRegion.setBounds(x, y, 1, 1);
+                    } else {
+                        pixelRegion.add(new Rectangle(x, y, 1, 1));
+                    }
+                }
+                index++;
+            }
+        }
+    }
+
+    boolean isInside(float lat, float lon) {
+        if (!envelope.contains(lon, lat)) {
+            return false;
+        }
+        return preparedRegion == null || preparedRegion.contains(geometryFactory.createPoint(new Coordinate(lon, lat)));
+    }
+
+    /**
+     * Enlarges a pixel rectangle to complete MODIS scans.
+     *
+     * @param pixelRegion the pixel rectangle
+     * @param height      the number of rows of the swath
+     * @return the enlarged rectangle
+     */
+    static Rectangle alignToScans(Rectangle pixelRegion, int height) {
+        final int minY = pixelRegion.y - pixelRegion.y % Constants.MODIS_LINES_PER_SCAN;
+        final int maxY = pixelRegion.y + pixelRegion.height;
+        final int alignedMaxY = Math.min(height, ((maxY + Constants.MODIS_LINES_PER_SCAN - 1) /
+                Constants.MODIS_LINES_PER_SCAN) * Constants.MODIS_LINES_PER_SCAN);
+        return new Rectangle(pixelRegion.x, minY, pixelRegion.width, alignedMaxY - minY);
+    }
+}
@@ -0,0 +1,196 @@
+package org.esa.beam.atmosphere.operator;
+
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+
+/**
+ * A global field of an auxiliary quantity, e.g. the total ozone or the surface pressure, given on a regular
+ * lat/lon grid, as in the NCEP and TOMS auxiliary data files. The field is interpolated bilinearly, longitudes
+ * are wrapped around if the grid covers the whole globe.
+ */
+public class GriddedAuxdata {
+
+    private final double lat0;
+    private final double latStep;
+    private final int numLats;
+    private final double lon0;
+    private final double lonStep;
+    private final int numLons;
+    private final boolean global;
+    private final float[] values;
+
+    /**
+     * @param lat0    the latitude of the first grid row (deg)
+     * @param latStep the latitude increment between grid rows, negative if the grid is stored north to south (deg)
+     * @param numLats the number of grid rows
+     * @param lon0    the longitude of the first grid column (deg)
+     * @param lonStep the longitude increment between grid columns (deg)
+     * @param numLons the number of grid columns
+     * @param values  the values, row by row
+     */
+    GriddedAuxdata(double lat0, double latStep, int numLats, double lon0, double lonStep, int numLons, float[] values) {
+        if (values.length != numLats * numLons) {
+            throw new IllegalArgumentException("values.length != numLats * numLons");
+        }
+        this.lat0 = lat0;
+        this.latStep = latStep;
+        this.numLats = numLats;
+        this.lon0 = lon0;
+        this.lonStep = lonStep;
+        this.numLons = numLons;
+        this.global = Math.abs(numLons * lonStep - 360.0) < 1.0e-3 * Math.abs(lonStep);
+        this.values = values;
+    }
+
+    /**
+     * Reads the gridded fields of all time steps from a NetCDF file. The variable must have the dimensions
+     * (lat, lon) or (time, lat, lon), with equidistant 1-D coordinate variables for lat and lon. Scaling and
+     * missing values are applied, a pressure given in Pa is converted to hPa.
+     *
+     * @param file         the NetCDF file
+     * @param variableName the name of the variable
+     * @return the gridded fields, one per time step
+     * @throws IOException if the file cannot be read or does not contain a suitable variable
+     * @see #getTimeIndex(double, int)
+     */
+    public static GriddedAuxdata[] read(File file, String variableName) throws IOException {
+        final NetcdfDataset dataset = NetcdfDataset.openDataset(file.getPath());
+        try {
+            final Variable variable = dataset.findVariable(variableName);
+            if (variable == null) {
+                throw new IOException(MessageFormat.format("Variable ''{0}'' not found in ''{1}''.",
+                                                           variableName, file.getPath()));
+            }
+            final int rank = variable.getRank();
+            if (rank != 2 && rank != 3) {
+                throw new IOException(MessageFormat.format("Variable ''{0}'' must have 2 or 3 dimensions, but has {1}.",
+                                                           variableName, rank));
+            }
+            final double[] lats = readAxis(dataset, variable.getDimension(rank - 2).getName());
+            final double[] lons = readAxis(dataset, variable.getDimension(rank - 1).getName());
+
+            final int numTimes = rank == 3 ? variable.getShape()[0] : 1;
+            final int[] origin = new int[rank];
+            final int[] shape = variable.getShape();
+            if (rank == 3) {
+                shape[0] = 1;
+            }
+            final double unitFactor = isPascal(variable) ? 0.01 : 1.0;
+            final GriddedAuxdata[] fields = new GriddedAuxdata[numTimes];
+            for (int t = 0; t < numTimes; t++) {
+                if (rank == 3) {
+                    origin[0] = t;
+                }
+                final Array array = variable.read(origin, shape);
+                final float[] values = new float[lats.length * lons.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = (float) (array.getDouble(i) * unitFactor);
+                }
+                fields[t] = new GriddedAuxdata(lats[0], getStep(lats), lats.length,
+                                               lons[0], getStep(lons), lons.length, values);
+            }
+            return fields;
+        } catch (InvalidRangeException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            dataset.close();
+        }
+    }
+
+    /**
+     * Selects the time step closest to a time of day. The time steps are assumed to be equidistant and to
+     * start at 00:00 UTC, as in the 6-hourly NCEP files; the last step of the day is also used up to midnight.
+     *
+     * @param dayFraction the time of day as a fraction of the day
+     * @param numTimes    the number of time steps
+     * @return the time index
+     */
+    static int getTimeIndex(double dayFraction, int numTimes) {
+        return Math.max(0, Math.min((int) Math.round(dayFraction * numTimes), numTimes - 1));
+    }
+
+    /**
+     * @param lat the latitude (deg)
+     * @param lon the longitude (deg)
+     * @return the bilinearly interpolated value, NaN if one of the surrounding grid values is missing
+     */
+    public double getValue(double lat, double lon) {
+        final double latPos = clamp((lat - lat0) / latStep, numLats - 1);
+        final int i0 = Math.min((int) latPos, Math.max(0, numLats - 2));
+        final int i1 = Math.min(i0 + 1, numLats - 1);
+        final double wLat = latPos - i0;
+
+        double lonPos = (lon - lon0) / lonStep;
+        final int j0;
+        final int j1;
+        if (global) {
+            lonPos = lonPos - Math.floor(lonPos / numLons) * numLons;
+            j0 = Math.min((int) lonPos, numLons - 1);
+            j1 = (j0 + 1) % numLons;
+        } else {
+            lonPos = clamp(lonPos, numLons - 1);
+            j0 = Math.min((int) lonPos, Math.max(0, numLons - 2));
+            j1 = Math.min(j0 + 1, numLons - 1);
+        }
+        final double wLon = lonPos - j0;
+
+        final double v00 = values[i0 * numLons + j0];
+        final double v01 = values[i0 * numLons + j1];
+        final double v10 = values[i1 * numLons + j0];
+        final double v11 = values[i1 * numLons + j1];
+        return interpolate(interpolate(v00, v01, wLon), interpolate(v10, v11, wLon), wLat);
+    }
+
+    // values with zero weight are ignored, so that missing neighbours do not affect values exactly on the grid
+    private static double interpolate(double v0, double v1, double w) {
+        if (w == 0.0) {
+            return v0;
+        }
+        if (w == 1.0) {
+            return v1;
+        }
+        return v0 + w * (v1 - v0);
+    }
+
+    private static double clamp(double pos, int max) {
+        return Math.max(0.0, Math.min(pos, max));
+    }
+
+    private static double[] readAxis(NetcdfDataset dataset, String dimensionName) throws IOException {
+        final Variable axis = dataset.findVariable(dimensionName);
+        if (axis == null || axis.getRank() != 1) {
+            throw new IOException(MessageFormat.format("Coordinate variable ''{0}'' not found.", dimensionName));
+        }
+        final Array array = axis.read();
+        final double[] values = new double[(int) array.getSize()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = array.getDouble(i);
+        }
+        if (values.length > 2) {
+            final double step = getStep(values);
+            for (int i = 1; i < values.length; i++) {
+                if (Math.abs(values[i] - values[i - 1] - step) > 1.0e-3 * Math.abs(step)) {
+                    throw new IOException(MessageFormat.format("Coordinate variable ''{0}'' is not equidistant.",
+                                                               dimensionName));
+                }
+            }
+        }
+        return values;
+    }
+
+    private static double getStep(double[] axis) {
+        return axis.length > 1 ? (axis[axis.length - 1] - axis[0]) / (axis.length - 1) : 1.0;
+    }
+
+    private static boolean isPascal(Variable variable) {
+        final Attribute units = variable.findAttribute("units");
+        return units != null && "Pa".equals(units.getStringValue());
+    }
+}
@@ -0,0 +1,77 @@
+package org.esa.beam.atmosphere.operator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A JVM-wide cache of {@link GriddedAuxdata}, so that all tiles and all granules of a day share the
+ * fields read once from the auxiliary data files of that day. The least recently used variables are removed
+ * if more than {@link #MAX_ENTRIES} variables are cached. A file which has been modified since its variable has
+ * been cached, e.g. a daily file replaced in place, is read again.
+ */
+public class GriddedAuxdataCache {
+
+    static final int MAX_ENTRIES = 8;
+
+    private static final Map<String, GriddedAuxdata[]> cache = new LinkedHashMap<String, GriddedAuxdata[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, GriddedAuxdata[]> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private GriddedAuxdataCache() {
+    }
+
+    /**
+     * Gets the gridded field of the time step closest to a time of day, reading the file if the variable is
+     * not yet cached.
+     *
+     * @param file         the NetCDF file
+     * @param variableName the name of the variable
+     * @param dayFraction  the time of day as a fraction of the day
+     * @return the gridded field
+     * @throws IOException if the field cannot be read
+     * @see GriddedAuxdata#read(File, String)
+     */
+    public static synchronized GriddedAuxdata get(File file, String variableName, double dayFraction) throws IOException {
+        final String key = getKey(file, variableName);
+        GriddedAuxdata[] fields = cache.get(key);
+        if (fields == null) {
+            fields = GriddedAuxdata.read(file, variableName);
+            removeOtherVersions(file, variableName);
+            cache.put(key, fields);
+        }
+        return fields[GriddedAuxdata.getTimeIndex(dayFraction, fields.length)];
+    }
+
+    static String getKey(File file, String variableName) throws IOException {
+        return getVariablePath(file, variableName) + "#" + file.lastModified() + "#" + file.length();
+    }
+
+    private static String getVariablePath(File file, String variableName) throws IOException {
+        return file.getCanonicalPath() + "#" + variableName;
+    }
+
+    // the fields of a file which has been replaced are not used anymore
+    private static void removeOtherVersions(File file, String variableName) throws IOException {
+        final String prefix = getVariablePath(file, variableName) + "#";
+        final Iterator<String> keys = cache.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().startsWith(prefix)) {
+                keys.remove();
+            }
+        }
+    }
+
+    static synchronized void clear() {
+        cache.clear();
+    }
+
+    static synchronized int size() {
+        return cache.size();
+    }
+}
@@ -0,0 +1,491 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.GeoCoding;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.RasterDataNode;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.framework.gpf.OperatorException;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Extracts match-up windows of the atmospheric correction at the positions of in-situ stations, e.g. for the
+ * validation of the water leaving reflectances. The pixel nearest to a station is located with the latitude and
+ * longitude of the GEO product, starting at the position given by the geo-coding of the L1b product, so that only
+ * a few source tiles around the station are read. {@link ModisAtmosCorrectionOp} is then run with the
+ * {@code pixelRegion} parameter on the window of 3 x 3 or 5 x 5 pixels around this pixel only.
+ * <p/>
+ * For every pixel of every window one line is written to a CSV table, with the station, the pixel position, the
+ * latitude and longitude, the TOA reflectances and all bands of the target product (angles, TOSA reflectances,
+ * water leaving reflectances and flags).
+ * <p/>
+ * Usage: {@code MatchupExtractor <station file> <input directory or file list> <output CSV file> [-window <size>]
+ * [-maxDistance <km>] [-P<parameter>=<value> ...]}
+ * <p/>
+ * The station file is a CSV file with a header line, which contains the columns {@code lat} (or {@code latitude})
+ * and {@code lon} (or {@code longitude}) and optionally {@code name} (or {@code id}, {@code station}). The values
+ * are separated by commas, semicolons or tabs. The input files are paired as in {@link ModisAtmosCorrectionBatch}.
+ */
+public class MatchupExtractor {
+
+    static final int DEFAULT_WINDOW_SIZE = 3;
+    static final double DEFAULT_MAX_DISTANCE = 5.0;
+
+    private static final double KM_PER_DEGREE = 111.195;
+    // the distance to the first guess of the geo-coding searched at once, in pixels
+    private static final int SEARCH_RADIUS = 8;
+    private static final int MAX_SEARCH_STEPS = 10;
+    // the number of rows of latitude and longitude read at once if the granule has no geo-coding
+    private static final int ROWS_PER_READ = 64;
+
+    private final List<Station> stations;
+    private final int windowSize;
+    private final double maxDistance;
+    private final Map<String, Object> parameters;
+    private List<String> columnNames;
+
+    /**
+     * Creates an extractor.
+     *
+     * @param stations    the stations
+     * @param windowSize  the width and height of the windows, an odd number
+     * @param maxDistance the maximum distance of the pixel nearest to a station (km)
+     * @param parameters  the parameters of {@link ModisAtmosCorrectionOp}
+     */
+    public MatchupExtractor(List<Station> stations, int windowSize, double maxDistance,
+                            Map<String, Object> parameters) {
+        if (windowSize < 1 || windowSize % 2 == 0) {
+            throw new IllegalArgumentException("windowSize must be a positive odd number");
+        }
+        this.stations = stations;
+        this.windowSize = windowSize;
+        this.maxDistance = maxDistance;
+        this.parameters = parameters;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: MatchupExtractor <station file> <input directory or file list> " +
+                                       "<output CSV file> [-window <size>] [-maxDistance <km>] " +
+                                       "[-P<parameter>=<value> ...]");
+            System.exit(1);
+        }
+        final List<Station> stations = readStations(new File(args[0]));
+        final File input = new File(args[1]);
+        final File outputFile = new File(args[2]);
+        int windowSize = DEFAULT_WINDOW_SIZE;
+        double maxDistance = DEFAULT_MAX_DISTANCE;
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("-window") && i + 1 < args.length) {
+                windowSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-maxDistance") && i + 1 < args.length) {
+                maxDistance = Double.parseDouble(args[++i]);
+            } else if (args[i].startsWith("-P") && args[i].indexOf('=') > 2) {
+                final String name = args[i].substring(2, args[i].indexOf('='));
+                parameters.put(name, ModisAtmosCorrectionBatch.convertParameter(
+                        name, args[i].substring(args[i].indexOf('=') + 1)));
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+
+        final List<File> unmatchedFiles = new ArrayList<File>();
+        final List<ModisAtmosCorrectionBatch.GranulePair> pairs =
+                ModisAtmosCorrectionBatch.findGranulePairs(ModisAtmosCorrectionBatch.listInputFiles(input),
+                                                           unmatchedFiles);
+        final MatchupExtractor extractor = new MatchupExtractor(stations, windowSize, maxDistance, parameters);
+        final long t1 = System.nanoTime();
+        int numWindows = 0;
+        int failed = 0;
+        final PrintWriter writer = new PrintWriter(new FileWriter(outputFile));
+        try {
+            for (ModisAtmosCorrectionBatch.GranulePair pair : pairs) {
+                try {
+                    numWindows += extractor.extract(pair, writer);
+                } catch (Exception e) {
+                    failed++;
+                    System.err.println("Granule " + pair.granuleId + " failed: " + e.getMessage());
+                }
+                writer.flush();
+            }
+        } finally {
+            writer.close();
+        }
+        final double seconds = (System.nanoTime() - t1) / 1.0e9;
+        System.out.printf(Locale.ENGLISH, "%d granules searched, %d failed, %d unmatched files, %d windows " +
+                                  "extracted, %.1f s, see %s%n",
+                          pairs.size(), failed, unmatchedFiles.size(), numWindows, seconds, outputFile);
+        System.exit(failed == 0 ? 0 : 2);
+    }
+
+    /**
+     * Extracts the windows of all stations covered by a granule.
+     *
+     * @param pair   the L1b/GEO pair of the granule
+     * @param writer the writer of the CSV table
+     * @return the number of windows extracted
+     * @throws IOException if a product cannot be read
+     */
+    public int extract(ModisAtmosCorrectionBatch.GranulePair pair, PrintWriter writer) throws IOException {
+        final Product l1bProduct = ModisAtmosCorrectionBatch.readProduct(pair.l1bFile);
+        try {
+            final Product geoProduct = ModisAtmosCorrectionBatch.readProduct(pair.geoFile);
+            try {
+                return extract(pair.granuleId, l1bProduct, geoProduct, writer);
+            } finally {
+                geoProduct.dispose();
+            }
+        } finally {
+            l1bProduct.dispose();
+        }
+    }
+
+    int extract(String granuleId, Product l1bProduct, Product geoProduct, PrintWriter writer) {
+        final RasterDataNode latNode = geoProduct.getRasterDataNode(
+                Constants.MODIS_GEO_GEOLOCATION_BAND_NAME_PREFIX + Constants.MODIS_LATITUDE_BAND_NAME);
+        final RasterDataNode lonNode = geoProduct.getRasterDataNode(
+                Constants.MODIS_GEO_GEOLOCATION_BAND_NAME_PREFIX + Constants.MODIS_LONGITUDE_BAND_NAME);
+        if (latNode == null || lonNode == null) {
+            throw new OperatorException("Latitude or longitude not found in MODIS GEO product.");
+        }
+        final Map<String, Product> sourceProducts = new HashMap<String, Product>();
+        sourceProducts.put("modisL1bProduct", l1bProduct);
+        sourceProducts.put("modisGeoProduct", geoProduct);
+
+        int numWindows = 0;
+        for (Station station : stations) {
+            final Point pixel = findPixel(latNode, lonNode, l1bProduct.getGeoCoding(), station.lat, station.lon);
+            if (pixel == null) {
+                continue;
+            }
+            final Rectangle window = getWindow(pixel, windowSize, latNode.getSceneRasterWidth(),
+                                               latNode.getSceneRasterHeight());
+            final Map<String, Object> windowParameters = new HashMap<String, Object>(parameters);
+            windowParameters.put("pixelRegion", window);
+            final Product targetProduct = GPF.createProduct(GPF.getOperatorAlias(ModisAtmosCorrectionOp.class),
+                                                            windowParameters, sourceProducts);
+            try {
+                final List<String> names = new ArrayList<String>();
+                final List<String[]> values = new ArrayList<String[]>();
+                addColumn(latNode, window, "latitude", names, values);
+                addColumn(lonNode, window, "longitude", names, values);
+                for (String bandName : Constants.MODIS_SPECTRAL_BANDNAMES_TO_USE) {
+                    addColumn(l1bProduct.getBand(bandName), window, bandName, names, values);
+                }
+                final Rectangle targetRectangle = new Rectangle(window.width, window.height);
+                for (Band band : targetProduct.getBands()) {
+                    addColumn(band, targetRectangle, band.getName(), names, values);
+                }
+                writeRows(granuleId, station, window, latNode, lonNode, names, values, writer);
+            } finally {
+                targetProduct.dispose();
+            }
+            numWindows++;
+        }
+        return numWindows;
+    }
+
+    /**
+     * Finds the pixel nearest to a position. The search starts at the pixel position of the geo-coding, and
+     * moves towards the position until the nearest pixel is found. Without a geo-coding, all pixels are searched.
+     *
+     * @param latNode   the latitude of every pixel
+     * @param lonNode   the longitude of every pixel
+     * @param geoCoding the geo-coding, may be {@code null}
+     * @param lat       the latitude of the position
+     * @param lon       the longitude of the position
+     * @return the pixel, or {@code null} if no pixel is within the maximum distance
+     */
+    Point findPixel(RasterDataNode latNode, RasterDataNode lonNode, GeoCoding geoCoding, double lat, double lon) {
+        final int width = latNode.getSceneRasterWidth();
+        final int height = latNode.getSceneRasterHeight();
+        final Rectangle bounds = new Rectangle(width, height);
+        PixelPos pixelPos = null;
+        if (geoCoding != null && geoCoding.canGetPixelPos()) {
+            pixelPos = geoCoding.getPixelPos(new GeoPos((float) lat, (float) lon), null);
+        }
+        Point pixel = null;
+        if (pixelPos != null && pixelPos.isValid() && bounds.contains(pixelPos)) {
+            int x = (int) pixelPos.x;
+            int y = (int) pixelPos.y;
+            for (int step = 0; step < MAX_SEARCH_STEPS; step++) {
+                final Rectangle rectangle = new Rectangle(x - SEARCH_RADIUS, y - SEARCH_RADIUS,
+                                                          2 * SEARCH_RADIUS + 1,
+                                                          2 * SEARCH_RADIUS + 1).intersection(bounds);
+                pixel = findNearestPixel(latNode, lonNode, rectangle, lat, lon);
+                // the geo-coding may be wrong by more than the search radius, e.g. at the edges of the swath
+                if (pixel.x == x && pixel.y == y || !isOnInnerBorder(pixel, rectangle, bounds)) {
+                    break;
+                }
+                x = pixel.x;
+                y = pixel.y;
+            }
+        } else {
+            double minDistance = Double.POSITIVE_INFINITY;
+            for (int y = 0; y < height; y += ROWS_PER_READ) {
+                final Rectangle rectangle = new Rectangle(0, y, width, Math.min(ROWS_PER_READ, height - y));
+                final Point rectanglePixel = findNearestPixel(latNode, lonNode, rectangle, lat, lon);
+                final double distance = getDistance(lat, lon, latNode, lonNode, rectanglePixel);
+                if (distance < minDistance) {
+                    minDistance = distance;
+                    pixel = rectanglePixel;
+                }
+            }
+        }
+        if (pixel == null || !(getDistance(lat, lon, latNode, lonNode, pixel) <= maxDistance)) {
+            return null;
+        }
+        return pixel;
+    }
+
+    private static Point findNearestPixel(RasterDataNode latNode, RasterDataNode lonNode, Rectangle rectangle,
+                                          double lat, double lon) {
+        final float[] lats = readSamples(latNode, rectangle);
+        final float[] lons = readSamples(lonNode, rectangle);
+        final int index = findNearestPixel(lats, lons, lat, lon);
+        return new Point(rectangle.x + index % rectangle.width, rectangle.y + index / rectangle.width);
+    }
+
+    /**
+     * Finds the pixel nearest to a position.
+     *
+     * @param lats the latitudes of the pixels
+     * @param lons the longitudes of the pixels
+     * @param lat  the latitude of the position
+     * @param lon  the longitude of the position
+     * @return the index of the nearest pixel
+     */
+    static int findNearestPixel(float[] lats, float[] lons, double lat, double lon) {
+        int nearestIndex = 0;
+        double minDistance = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < lats.length; i++) {
+            final double distance = getDistance(lat, lon, lats[i], lons[i]);
+            if (distance < minDistance) {
+                minDistance = distance;
+                nearestIndex = i;
+            }
+        }
+        return nearestIndex;
+    }
+
+    /**
+     * Computes the distance of two positions, for distances of a few pixels.
+     *
+     * @return the distance (km)
+     */
+    static double getDistance(double lat1, double lon1, double lat2, double lon2) {
+        double deltaLon = Math.abs(lon2 - lon1);
+        if (deltaLon > 180.0) {
+            deltaLon = 360.0 - deltaLon;
+        }
+        final double dx = deltaLon * Math.cos(Math.toRadians(0.5 * (lat1 + lat2)));
+        final double dy = lat2 - lat1;
+        return KM_PER_DEGREE * Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static double getDistance(double lat, double lon, RasterDataNode latNode, RasterDataNode lonNode,
+                                      Point pixel) {
+        final Rectangle rectangle = new Rectangle(pixel.x, pixel.y, 1, 1);
+        return getDistance(lat, lon, readSamples(latNode, rectangle)[0], readSamples(lonNode, rectangle)[0]);
+    }
+
+    private static boolean isOnInnerBorder(Point pixel, Rectangle rectangle, Rectangle bounds) {
+        return pixel.x == rectangle.x && pixel.x > bounds.x ||
+                pixel.y == rectangle.y && pixel.y > bounds.y ||
+                pixel.x == rectangle.x + rectangle.width - 1 && pixel.x < bounds.x + bounds.width - 1 ||
+                pixel.y == rectangle.y + rectangle.height - 1 && pixel.y < bounds.y + bounds.height - 1;
+    }
+
+    /**
+     * Gets the window around a pixel, clipped to the granule.
+     *
+     * @param pixel      the pixel
+     * @param windowSize the width and height of the window
+     * @param width      the width of the granule
+     * @param height     the height of the granule
+     * @return the window
+     */
+    static Rectangle getWindow(Point pixel, int windowSize, int width, int height) {
+        final int halfSize = windowSize / 2;
+        return new Rectangle(pixel.x - halfSize, pixel.y - halfSize, windowSize, windowSize).intersection(
+                new Rectangle(width, height));
+    }
+
+    private static float[] readSamples(RasterDataNode node, Rectangle rectangle) {
+        return node.getGeophysicalImage().getData(rectangle).getSamples(
+                rectangle.x, rectangle.y, rectangle.width, rectangle.height, 0,
+                new float[rectangle.width * rectangle.height]);
+    }
+
+    private static void addColumn(RasterDataNode node, Rectangle rectangle, String name, List<String> names,
+                                  List<String[]> values) {
+        if (node == null) {
+            throw new OperatorException("Band '" + name + "' not found.");
+        }
+        final String[] columnValues = new String[rectangle.width * rectangle.height];
+        if (node instanceof Band && ((Band) node).isFlagBand()) {
+            final int[] samples = node.getSourceImage().getData(rectangle).getSamples(
+                    rectangle.x, rectangle.y, rectangle.width, rectangle.height, 0, new int[columnValues.length]);
+            for (int i = 0; i < samples.length; i++) {
+                columnValues[i] = String.valueOf(samples[i]);
+            }
+        } else {
+            final float[] samples = readSamples(node, rectangle);
+            for (int i = 0; i < samples.length; i++) {
+                columnValues[i] = String.valueOf(samples[i]);
+            }
+        }
+        names.add(name);
+        values.add(columnValues);
+    }
+
+    private void writeRows(String granuleId, Station station, Rectangle window, RasterDataNode latNode,
+                           RasterDataNode lonNode, List<String> names, List<String[]> values, PrintWriter writer) {
+        if (columnNames == null) {
+            columnNames = names;
+            writer.print("granule,station,station_lat,station_lon,x,y,distance_km");
+            for (String name : names) {
+                writer.print(',');
+                writer.print(toCsvField(name));
+            }
+            writer.println();
+        } else if (!columnNames.equals(names)) {
+            throw new OperatorException("The bands of granule " + granuleId + " differ from the bands of the " +
+                                                "granules extracted before.");
+        }
+        final float[] lats = readSamples(latNode, window);
+        final float[] lons = readSamples(lonNode, window);
+        int index = 0;
+        for (int y = window.y; y < window.y + window.height; y++) {
+            for (int x = window.x; x < window.x + window.width; x++) {
+                writer.printf(Locale.ENGLISH, "%s,%s,%s,%s,%d,%d,%.3f", toCsvField(granuleId),
+                              toCsvField(station.name), station.lat, station.lon, x, y,
+                              getDistance(station.lat, station.lon, lats[index], lons[index]));
+                for (String[] columnValues : values) {
+                    writer.print(',');
+                    writer.print(columnValues[index]);
+                }
+                writer.println();
+                index++;
+            }
+        }
+    }
+
+    /**
+     * Quotes a value for a CSV field as of RFC 4180, if it contains a comma, a double quote or a line break.
+     * Double quotes in the value are doubled.
+     *
+     * @param value the value
+     * @return the field
+     */
+    static String toCsvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 &&
+            value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Reads the stations of a CSV file.
+     *
+     * @param file the file
+     * @return the stations
+     * @throws IOException if the file cannot be read or has no latitude and longitude columns
+     */
+    static List<Station> readStations(File file) throws IOException {
+        final Reader reader = new FileReader(file);
+        try {
+            return readStations(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    static List<Station> readStations(Reader reader) throws IOException {
+        final BufferedReader lineReader = new BufferedReader(reader);
+        final String header = lineReader.readLine();
+        if (header == null) {
+            throw new IOException("The station file is empty.");
+        }
+        final String separator = header.contains("\t") ? "\t" : header.contains(";") ? ";" : ",";
+        final List<String> columns = new ArrayList<String>();
+        for (String column : header.split(separator)) {
+            columns.add(column.trim().toLowerCase(Locale.ENGLISH));
+        }
+        final int nameIndex = findColumn(columns, "name", "id", "station");
+        final int latIndex = findColumn(columns, "lat", "latitude");
+        final int lonIndex = findColumn(columns, "lon", "long", "longitude");
+        if (latIndex < 0 || lonIndex < 0) {
+            throw new IOException("The station file has no 'lat' and 'lon' columns.");
+        }
+
+        final List<Station> stations = new ArrayList<Station>();
+        String line = lineReader.readLine();
+        while (line != null) {
+            if (line.trim().length() > 0 && !line.startsWith("#")) {
+                final String[] values = line.split(separator);
+                if (values.length <= Math.max(latIndex, lonIndex)) {
+                    throw new IOException("Missing latitude or longitude in line '" + line + "'.");
+                }
+                final String name = nameIndex >= 0 && nameIndex < values.length ?
+                        values[nameIndex].trim() : String.valueOf(stations.size() + 1);
+                try {
+                    stations.add(new Station(name, Double.parseDouble(values[latIndex].trim()),
+                                             Double.parseDouble(values[lonIndex].trim())));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid latitude or longitude in line '" + line + "'.");
+                }
+            }
+            line = lineReader.readLine();
+        }
+        return stations;
+    }
+
+    private static int findColumn(List<String> columns, String... names) {
+        for (String name : names) {
+            if (columns.contains(name)) {
+                return columns.indexOf(name);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * An in-situ station.
+     */
+    public static class Station {
+
+        public final String name;
+        public final double lat;
+        public final double lon;
+
+        public Station(String name, double lat, double lon) {
+            this.name = name;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + lat + ", " + lon + ")";
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package org.esa.beam.atmosphere.operator;
+
+import com.bc.ceres.core.ProgressMonitor;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+import org.esa.beam.dataio.dimap.DimapProductConstants;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.MetadataElement;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.annotations.Parameter;
+
+import javax.media.jai.JAI;
+import javax.media.jai.TileCache;
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Processes many MODIS granules in one JVM. The MOD021KM (or MYD021KM) L1b products and the MOD03 (or MYD03)
+ * GEO products are taken from a directory or from a file list and matched by the granule time in their names.
+ * A bounded pool of granule workers runs {@link ModisAtmosCorrectionOp} for the pairs. All workers share the
+ * neural net, the water mask and the salinity and temperature climatology (see {@link SharedResources}), and
+ * the tiles of all granules are computed by the common JAI tile scheduler. One target product is written for
+ * each granule, and a summary report of all granules is written to the output directory. With the operator
+ * parameter {@code scansPerStrip} the granules are streamed by a {@link ScanStripWriter}, with the format
+ * {@link ChunkedNetCdf4Writer#FORMAT_NAME} they are written to compressed NetCDF4 files, with the format
+ * {@link SparsePixelWriter#FORMAT_NAME} only the valid water pixels are written, to sparse files.
+ * <p/>
+ * Usage: {@code ModisAtmosCorrectionBatch <input directory or file list> <output directory> [-threads <n>]
+ * [-format <format name>] [-P<parameter>=<value> ...]}
+ * <p/>
+ * A file list contains one file per line, relative paths are resolved against the directory of the list, empty
+ * lines and lines starting with '#' are ignored.
+ */
+public class ModisAtmosCorrectionBatch {
+
+    static final String SUMMARY_FILE_NAME = "modis_ac_batch_summary.txt";
+    static final String OUTPUT_SUFFIX = "_AC";
+
+    private static final Pattern GRANULE_NAME_PATTERN =
+            Pattern.compile("(M[OY]D)(021KM|03)\\.(A\\d{7}\\.\\d{4})\\.", Pattern.CASE_INSENSITIVE);
+
+    private final File outputDir;
+    private final String formatName;
+    private final int numGranuleWorkers;
+    private final Map<String, Object> parameters;
+
+    /**
+     * Creates a batch processor.
+     *
+     * @param outputDir         the output directory
+     * @param formatName        the name of the output format
+     * @param numGranuleWorkers the maximum number of granules processed at the same time
+     * @param parameters        the parameters of {@link ModisAtmosCorrectionOp}
+     */
+    public ModisAtmosCorrectionBatch(File outputDir, String formatName, int numGranuleWorkers,
+                                     Map<String, Object> parameters) {
+        if (numGranuleWorkers < 1) {
+            throw new IllegalArgumentException("numGranuleWorkers < 1");
+        }
+        this.outputDir = outputDir;
+        this.formatName = formatName;
+        this.numGranuleWorkers = numGranuleWorkers;
+        this.parameters = new HashMap<String, Object>(parameters);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: ModisAtmosCorrectionBatch <input directory or file list> <output directory> " +
+                                       "[-threads <n>] [-format <format name>] [-P<parameter>=<value> ...]");
+            System.exit(1);
+        }
+        final File input = new File(args[0]);
+        final File outputDir = new File(args[1]);
+        int numGranuleWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+        String formatName = ProductIO.DEFAULT_FORMAT_NAME;
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("-threads") && i + 1 < args.length) {
+                numGranuleWorkers = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-format") && i + 1 < args.length) {
+                formatName = args[++i];
+            } else if (args[i].startsWith("-P") && args[i].indexOf('=') > 2) {
+                final String name = args[i].substring(2, args[i].indexOf('='));
+                parameters.put(name, convertParameter(name, args[i].substring(args[i].indexOf('=') + 1)));
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+
+        final List<File> files = listInputFiles(input);
+        final List<File> unmatchedFiles = new ArrayList<File>();
+        final List<GranulePair> pairs = findGranulePairs(files, unmatchedFiles);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create output directory " + outputDir);
+        }
+        final ModisAtmosCorrectionBatch batch = new ModisAtmosCorrectionBatch(outputDir, formatName,
+                                                                              numGranuleWorkers, parameters);
+        final long t1 = System.nanoTime();
+        final List<GranuleResult> results = batch.process(pairs);
+        final double seconds = (System.nanoTime() - t1) / 1.0e9;
+        final File summaryFile = new File(outputDir, SUMMARY_FILE_NAME);
+        writeSummary(summaryFile, results, unmatchedFiles, seconds);
+
+        int failed = 0;
+        for (GranuleResult result : results) {
+            if (result.error != null) {
+                failed++;
+            }
+        }
+        System.out.printf(Locale.ENGLISH, "%d granules processed, %d failed, %d unmatched files, %.1f s, see %s%n",
+                          results.size(), failed, unmatchedFiles.size(), seconds, summaryFile);
+        System.exit(failed == 0 ? 0 : 2);
+    }
+
+    /**
+     * Processes granules with the pool of granule workers. A failure of a granule does not stop the others.
+     *
+     * @param pairs the L1b/GEO pairs of the granules
+     * @return the results of all granules, in the order of the pairs
+     * @throws InterruptedException if the current thread is interrupted while waiting for the workers
+     */
+    public List<GranuleResult> process(List<GranulePair> pairs) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(numGranuleWorkers);
+        try {
+            final List<Callable<GranuleResult>> tasks = new ArrayList<Callable<GranuleResult>>();
+            for (final GranulePair pair : pairs) {
+                tasks.add(new Callable<GranuleResult>() {
+                    @Override
+                    public GranuleResult call() {
+                        return process(pair);
+                    }
+                });
+            }
+            final List<GranuleResult> results = new ArrayList<GranuleResult>();
+            for (Future<GranuleResult> future : executor.invokeAll(tasks)) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    // process(pair) catches all exceptions
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    GranuleResult process(GranulePair pair) {
+        final GranuleResult result = new GranuleResult(pair, getOutputFile(pair));
+        final long t1 = System.nanoTime();
+        Product l1bProduct = null;
+        Product geoProduct = null;
+        Product targetProduct = null;
+        try {
+            l1bProduct = readProduct(pair.l1bFile);
+            geoProduct = readProduct(pair.geoFile);
+            // the operator is created directly, as the strip writer needs its intermediate products
+            final ModisAtmosCorrectionOp operator = new ModisAtmosCorrectionOp();
+            operator.setSourceProduct("modisL1bProduct", l1bProduct);
+            operator.setSourceProduct("modisGeoProduct", geoProduct);
+            for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+                operator.setParameter(entry.getKey(), entry.getValue());
+            }
+            if (SparsePixelWriter.FORMAT_NAME.equals(formatName)) {
+                operator.setParameter("sparseOutputDir", result.outputFile);
+            }
+            targetProduct = operator.getTargetProduct();
+            final int scansPerStrip = getScansPerStrip();
+            if (SparsePixelWriter.FORMAT_NAME.equals(formatName)) {
+                // the operator writes the sparse file while the tiles are computed
+                computeAllTiles(targetProduct);
+            } else if (ChunkedNetCdf4Writer.FORMAT_NAME.equals(formatName)) {
+                new ChunkedNetCdf4Writer().write(targetProduct, result.outputFile, ProgressMonitor.NULL);
+            } else if (scansPerStrip > 0) {
+                // the rows of the source products differ from the target rows for a region or a quicklook
+                new ScanStripWriter(scansPerStrip * Constants.MODIS_LINES_PER_SCAN).write(
+                        targetProduct, result.outputFile, formatName, new Product[]{l1bProduct, geoProduct},
+                        operator.getSourceRegion().y, operator.getQuicklookStep(),
+                        operator.getIntermediateProducts(), ProgressMonitor.NULL);
+            } else {
+                GPF.writeProduct(targetProduct, result.outputFile, formatName, false, ProgressMonitor.NULL);
+                if (DimapProductConstants.DIMAP_FORMAT_NAME.equals(formatName)) {
+                    // the header has been written before the statistics were complete
+                    ScanStripWriter.rewriteDimapHeader(targetProduct, result.outputFile);
+                }
+            }
+
+            final MetadataElement statisticsElement =
+                    targetProduct.getMetadataRoot().getElement(ProcessingStatistics.METADATA_ELEMENT_NAME);
+            if (statisticsElement != null) {
+                result.processedPixels = (long) statisticsElement.getAttributeDouble("processed_pixels", 0.0);
+                result.validPixels = (long) statisticsElement.getAttributeDouble("valid_pixels", 0.0);
+            }
+        } catch (Exception e) {
+            result.error = e;
+        } finally {
+            result.seconds = (System.nanoTime() - t1) / 1.0e9;
+            if (targetProduct != null) {
+                targetProduct.dispose();
+            }
+            if (geoProduct != null) {
+                geoProduct.dispose();
+            }
+            if (l1bProduct != null) {
+                l1bProduct.dispose();
+            }
+        }
+        return result;
+    }
+
+    private static void computeAllTiles(Product targetProduct) {
+        final RenderedImage image = targetProduct.getBand(Constants.AC_FLAG_BAND_NAME).getSourceImage().getImage(0);
+        final TileCache tileCache = JAI.getDefaultInstance().getTileCache();
+        for (int tileY = image.getMinTileY(); tileY < image.getMinTileY() + image.getNumYTiles(); tileY++) {
+            for (int tileX = image.getMinTileX(); tileX < image.getMinTileX() + image.getNumXTiles(); tileX++) {
+                // all target bands are computed together, but only the sparse file is kept
+                image.getTile(tileX, tileY);
+                for (Band band : targetProduct.getBands()) {
+                    tileCache.remove(band.getSourceImage().getImage(0), tileX, tileY);
+                }
+            }
+        }
+    }
+
+    private int getScansPerStrip() {
+        final Object scansPerStrip = parameters.get("scansPerStrip");
+        return scansPerStrip instanceof Integer ? (Integer) scansPerStrip : 0;
+    }
+
+    File getOutputFile(GranulePair pair) {
+        String name = pair.l1bFile.getName();
+        if (name.lastIndexOf('.') > 0) {
+            name = name.substring(0, name.lastIndexOf('.'));
+        }
+        // the product writer appends the extension of its format
+        return new File(outputDir, name + OUTPUT_SUFFIX);
+    }
+
+    static Product readProduct(File file) throws IOException {
+        final Product product = ProductIO.readProduct(file);
+        if (product == null) {
+            throw new IOException("No reader found for " + file);
+        }
+        return product;
+    }
+
+    /**
+     * Lists the input files of a directory or a file list.
+     *
+     * @param input the input directory or file list
+     * @return the input files
+     * @throws IOException if the file list cannot be read
+     */
+    static List<File> listInputFiles(File input) throws IOException {
+        final List<File> files = new ArrayList<File>();
+        if (input.isDirectory()) {
+            final File[] dirFiles = input.listFiles();
+            if (dirFiles != null) {
+                Arrays.sort(dirFiles);
+                files.addAll(Arrays.asList(dirFiles));
+            }
+            return files;
+        }
+        final BufferedReader reader = new BufferedReader(new FileReader(input));
+        try {
+            String line = reader.readLine();
+            while (line != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    File file = new File(line);
+                    if (!file.isAbsolute()) {
+                        file = new File(input.getAbsoluteFile().getParentFile(), line);
+                    }
+                    files.add(file);
+                }
+                line = reader.readLine();
+            }
+        } finally {
+            reader.close();
+        }
+        return files;
+    }
+
+    /**
+     * Matches L1b and GEO files by the platform and the granule time in their names, e.g.
+     * {@code MOD021KM.A2010123.1030.005.2010124000000.hdf} and {@code MOD03.A2010123.1030.005.2010123235959.hdf}.
+     *
+     * @param files          the files
+     * @param unmatchedFiles receives the files which are not part of a pair
+     * @return the pairs, ordered by platform and granule time
+     */
+    static List<GranulePair> findGranulePairs(List<File> files, List<File> unmatchedFiles) {
+        final Map<String, File> l1bFiles = new TreeMap<String, File>();
+        final Map<String, File> geoFiles = new HashMap<String, File>();
+        for (File file : files) {
+            final Matcher matcher = GRANULE_NAME_PATTERN.matcher(file.getName());
+            if (!matcher.find()) {
+                unmatchedFiles.add(file);
+                continue;
+            }
+            final String granuleId = matcher.group(1).toUpperCase() + "." + matcher.group(3).toUpperCase();
+            final Map<String, File> typeFiles = matcher.group(2).equals("03") ? geoFiles : l1bFiles;
+            if (typeFiles.containsKey(granuleId)) {
+                // e.g. another collection of the same granule
+                unmatchedFiles.add(file);
+            } else {
+                typeFiles.put(granuleId, file);
+            }
+        }
+        final List<GranulePair> pairs = new ArrayList<GranulePair>();
+        for (Map.Entry<String, File> entry : l1bFiles.entrySet()) {
+            final File geoFile = geoFiles.remove(entry.getKey());
+            if (geoFile != null) {
+                pairs.add(new GranulePair(entry.getKey(), entry.getValue(), geoFile));
+            } else {
+                unmatchedFiles.add(entry.getValue());
+            }
+        }
+        unmatchedFiles.addAll(geoFiles.values());
+        return pairs;
+    }
+
+    /**
+     * Converts the string value of an operator parameter to the type of the parameter.
+     *
+     * @param name  the name of the parameter
+     * @param value the string value
+     * @return the converted value
+     */
+    static Object convertParameter(String name, String value) {
+        final Field field;
+        try {
+            field = ModisAtmosCorrectionOp.class.getDeclaredField(name);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalArgumentException("Unknown parameter: " + name);
+        }
+        if (field.getAnnotation(Parameter.class) == null) {
+            throw new IllegalArgumentException("Unknown parameter: " + name);
+        }
+        final Class<?> type = field.getType();
+        if (type == boolean.class) {
+            return Boolean.valueOf(value);
+        } else if (type == int.class) {
+            return Integer.valueOf(value);
+        } else if (type == double.class) {
+            return Double.valueOf(value);
+        } else if (type == File.class) {
+            return new File(value);
+        } else if (type == String.class) {
+            return value;
+        } else if (type == Geometry.class) {
+            try {
+                return new WKTReader().read(value);
+            } catch (ParseException e) {
+                throw new IllegalArgumentException("Parameter " + name + " is no valid WKT: " + e.getMessage());
+            }
+        } else if (type == Rectangle.class) {
+            final String[] values = value.split(",");
+            if (values.length != 4) {
+                throw new IllegalArgumentException("Parameter " + name + " must be given as 'x,y,width,height'.");
+            }
+            return new Rectangle(Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim()),
+                                 Integer.parseInt(values[2].trim()), Integer.parseInt(values[3].trim()));
+        }
+        throw new IllegalArgumentException("Parameter " + name + " of type " + type.getSimpleName() +
+                                                   " is not supported.");
+    }
+
+    static void writeSummary(File summaryFile, List<GranuleResult> results, List<File> unmatchedFiles,
+                             double seconds) throws IOException {
+        final PrintWriter writer = new PrintWriter(new FileWriter(summaryFile));
+        try {
+            long processedPixels = 0;
+            long validPixels = 0;
+            writer.println("granule\tstatus\tseconds\tprocessed_pixels\tvalid_pixels\tl1b_file\tgeo_file\toutput\tmessage");
+            for (GranuleResult result : results) {
+                writer.printf(Locale.ENGLISH, "%s\t%s\t%.3f\t%d\t%d\t%s\t%s\t%s\t%s%n",
+                              result.pair.granuleId, result.error == null ? "OK" : "FAILED", result.seconds,
+                              result.processedPixels, result.validPixels, result.pair.l1bFile,
+                              result.pair.geoFile, result.outputFile, getMessage(result.error));
+                processedPixels += result.processedPixels;
+                validPixels += result.validPixels;
+            }
+            for (File file : unmatchedFiles) {
+                writer.printf("-\tUNMATCHED\t\t\t\t%s\t\t\t%n", file);
+            }
+            writer.printf(Locale.ENGLISH, "# total: %d granules, %d unmatched files, %.3f s, %d processed pixels, " +
+                                  "%d valid pixels, %.0f pixels/s%n",
+                          results.size(), unmatchedFiles.size(), seconds, processedPixels, validPixels,
+                          seconds > 0.0 ? processedPixels / seconds : 0.0);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String getMessage(Throwable error) {
+        if (error == null) {
+            return "";
+        }
+        if (error instanceof OperatorException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        final String message = error.getMessage() != null ? error.getMessage() : error.getClass().getName();
+        return message.replace('\t', ' ').replace('\n', ' ');
+    }
+
+    /**
+     * The L1b and GEO files of a granule.
+     */
+    public static class GranulePair {
+
+        public final String granuleId;
+        public final File l1bFile;
+        public final File geoFile;
+
+        public GranulePair(String granuleId, File l1bFile, File geoFile) {
+            this.granuleId = granuleId;
+            this.l1bFile = l1bFile;
+            this.geoFile = geoFile;
+        }
+    }
+
+    /**
+     * The result of processing a granule.
+     */
+    public static class GranuleResult {
+
+        public final GranulePair pair;
+        public final File outputFile;
+        public double seconds;
+        public long processedPixels;
+        public long validPixels;
+        public Exception error;
+
+        GranuleResult(GranulePair pair, File outputFile) {
+            this.pair = pair;
+            this.outputFile = outputFile;
+        }
+    }
+}
@@ -2,7 +2,9 @@ package org.esa.beam.atmosphere.operator;
 
 import com.bc.ceres.core.ProgressMonitor;
 import com.bc.ceres.glevel.MultiLevelImage;
-import org.esa.beam.PixelData;
+import com.vividsolutions.jts.geom.Geometry;
+import org.esa.beam.framework.dataio.ProductSubsetBuilder;
+import org.esa.beam.framework.dataio.ProductSubsetDef;
 import org.esa.beam.framework.datamodel.*;
 import org.esa.beam.framework.gpf.Operator;
 import org.esa.beam.framework.gpf.OperatorException;
@@ -14,9 +16,11 @@ import org.esa.beam.framework.gpf.annotations.SourceProduct;
 import org.esa.beam.framework.gpf.annotations.TargetProduct;
 import org.esa.beam.nn.NNffbpAlphaTabFast;
 import org.esa.beam.util.ProductUtils;
+import org.esa.beam.util.converters.JtsGeometryConverter;
+import org.esa.beam.util.converters.RectangleConverter;
 import org.esa.beam.waterradiance.AuxdataProvider;
-import org.esa.beam.waterradiance.AuxdataProviderFactory;
 
+import javax.management.JMException;
 import javax.media.jai.InterpolationNearest;
 import javax.media.jai.JAI;
 import javax.media.jai.PlanarImage;
@@ -26,10 +30,19 @@ import javax.media.jai.operator.TransposeType;
 import java.awt.*;
 import java.awt.image.renderable.ParameterBlock;
 import java.io.*;
+import java.lang.reflect.Field;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Main operator for the MODIS atmospheric correction.
@@ -64,10 +77,82 @@ public class ModisAtmosCorrectionOp extends Operator {
                description = "Toggles the output of Top of Standard Atmosphere reflectance.")
     private boolean outputTosa;
 
+    @Parameter(defaultValue = REFLECTANCE_ENCODING_FLOAT32,
+               valueSet = {REFLECTANCE_ENCODING_FLOAT32, REFLECTANCE_ENCODING_INT16},
+               label = "Reflectance encoding",
+               description = "The encoding of the refl_ and tosa_ bands. With 'int16' the values are stored as " +
+                       "scaled 16 bit integers with a quantisation error of at most 2.0E-6 (refl_) and " +
+                       "1.6E-5 (tosa_, for values in [-0.5, 1.5]), and invalid pixels get the no-data value.")
+    private String reflectanceEncoding;
+
+    @Parameter(defaultValue = "false", label = "Use lookup tables for TOSA transmittances",
+               description = "If set to 'true' the ozone and Rayleigh transmittances of the TOSA correction are " +
+                       "interpolated from tables over cos(sun) and cos(view) (error < 1.0E-5 of the TOA reflectance).")
+    private boolean useTosaLut;
+
+    @Parameter(defaultValue = "false", label = "Use fast math",
+               description = "If set to 'true' a fast approximation of exp is used in the TOSA correction " +
+                       "(error of at most 2 ulp).")
+    private boolean useFastMath;
+
+    @Parameter(defaultValue = "true", label = "Flag neural net input out of training range",
+               description = "If set to 'true' pixels with any neural net input outside of the training range are " +
+                       "flagged as INPUT_OOR and not corrected. If set to 'false' only the sun zenith angle is checked.")
+    private boolean checkNeuralNetInputRange;
+
     @Parameter(label = "Use SRTM Land/Water mask", defaultValue = "true",
                description = "If set to 'false' a land detection expression as defined below is used.")
     private boolean useSrtmWaterMask;
 
+    @Parameter(label = "Use MODIS GEO Land/SeaMask", defaultValue = "false",
+               description = "If set to 'true' the Land/SeaMask band of the MODIS GEO product is used for land " +
+                       "detection, instead of the SRTM mask or the land detection expression. Land, coastline " +
+                       "and ephemeral water pixels (mask values 1, 2 and 4) are treated as land.")
+    private boolean useModisLandSeaMask;
+
+    @Parameter(label = "Coastline buffer of MODIS Land/SeaMask", defaultValue = "0", unit = "pixels",
+               description = "Positive values dilate the land of the MODIS Land/SeaMask, negative values erode it.")
+    private int coastlineBuffer;
+
+    @Parameter(label = "Scans per strip", defaultValue = "0",
+               description = "If greater than 0, the granule is processed in strips of complete scans of " +
+                       "10 lines over the full width, which are computed and written one after the other, " +
+                       "so that the memory needed does not depend on the length of the granule.")
+    private int scansPerStrip;
+
+    @Parameter(converter = JtsGeometryConverter.class, label = "Geographical region",
+               description = "The region to be processed, as WKT in geographical coordinates, e.g. the lat/lon " +
+                       "bounding box 'POLYGON((9 53, 31 53, 31 66, 9 66, 9 53))'. The target product is the smallest " +
+                       "pixel rectangle containing all pixels of the region (complete scans, if scansPerStrip " +
+                       "is set). If not given, the complete granule is processed.")
+    private Geometry geoRegion;
+
+    @Parameter(converter = RectangleConverter.class, label = "Pixel region",
+               description = "The pixel rectangle of the granule to be processed, as 'x,y,width,height'. " +
+                       "An alternative to the geographical region. If not given, the complete granule is processed.")
+    private Rectangle pixelRegion;
+
+    @Parameter(label = "Quicklook step", defaultValue = "1",
+               description = "If greater than 1, a quicklook is computed: only every n-th pixel of every n-th line " +
+                       "is processed, and the target product is reduced in size by this factor in both directions.")
+    private int quicklookStep;
+
+    @Parameter(label = "Sparse output directory",
+               description = "If given, the valid water pixels are also written to a sparse, columnar file in this " +
+                       "directory while the tiles are computed (see SparsePixelWriter).")
+    private File sparseOutputDir;
+
+    @Parameter(label = "Tiles read ahead", defaultValue = "0",
+               description = "If greater than 0, the L1b and GEO source tiles of this number of following tiles are " +
+                       "read ahead on separate I/O threads, while the current tiles are corrected.")
+    private int prefetchTiles;
+
+    @Parameter(label = "Checkpoint directory",
+               description = "If given, the samples of each computed tile are stored in this directory, and tiles " +
+                       "stored by a previous run with the same granule, neural net and parameters are reloaded " +
+                       "instead of being computed again.")
+    private File checkpointDir;
+
     @Parameter(defaultValue = "EV_1KM_RefSB_16 > 0.1", // todo
                label = "Land detection expression (if no SRTM mask used)",
                description = "The arithmetic expression used for land detection.",
@@ -103,10 +188,46 @@ public class ModisAtmosCorrectionOp extends Operator {
     @Parameter(label = "Ozone", defaultValue = "350", unit = "DU", description = "Ozone (DU)")
     private double ozone;
 
+    @Parameter(label = "Ozone auxiliary data file",
+               description = "A NetCDF file with a global ozone grid (DU), e.g. from TOMS. If given, the ozone is " +
+                       "interpolated per pixel, and the constant ozone is only used where the grid has no value.")
+    private File ozoneAuxdataFile;
+
+    @Parameter(label = "Ozone variable name", defaultValue = "ozone",
+               description = "The name of the ozone variable in the ozone auxiliary data file.")
+    private String ozoneVariableName;
+
+    @Parameter(label = "Pressure auxiliary data file",
+               description = "A NetCDF file with a global surface pressure grid (hPa or Pa), e.g. from NCEP. If given, " +
+                       "the pressure is interpolated per pixel, and the constant pressure is only used where the " +
+                       "grid has no value.")
+    private File pressureAuxdataFile;
+
+    @Parameter(label = "Pressure variable name", defaultValue = "pressure",
+               description = "The name of the pressure variable in the pressure auxiliary data file.")
+    private String pressureVariableName;
+
 
     public static final String MODIS_ATMOS_CORRECTION_VERSION = "1.0-SNAPSHOT";
 
+    public static final String REFLECTANCE_ENCODING_FLOAT32 = "float32";
+    public static final String REFLECTANCE_ENCODING_INT16 = "int16";
+
+    // the maximum number of pixels processed in one batch
+    private static final int BATCH_SIZE = 4096;
+    // the distance of the nodes of the per-tile auxiliary data grids, in pixels
+    private static final int AUXDATA_GRID_STEP = 16;
+    // the number of I/O threads reading source tiles ahead, the HDF reader does not read in parallel anyway
+    private static final int PREFETCH_THREADS = 2;
+    // the range of the TOSA reflectances encoded as int16, values outside are clipped. The TOSA correction
+    // can give negative values for dark water, which must be kept.
+    static final double MIN_INT16_TOSA_REFLEC = -0.5;
+    static final double MAX_INT16_TOSA_REFLEC = 1.5;
+
     private String modisNeuralNetString;
+    // the shared prototype of the neural net, only copied and never used for computations
+    private NNffbpAlphaTabFast modisNeuralNet;
+    private double maxSunZenith;
     private Date date;
     private AuxdataProvider snTProvider;
 
@@ -119,9 +240,23 @@ public class ModisAtmosCorrectionOp extends Operator {
 
     private Band[] spectralNodes;
 
+    private ScaledSampleDecoder latDecoder;
+    private ScaledSampleDecoder lonDecoder;
+    private ScaledSampleDecoder solzenDecoder;
+    private ScaledSampleDecoder solaziDecoder;
+    private ScaledSampleDecoder satzenDecoder;
+    private ScaledSampleDecoder sataziDecoder;
+    private ScaledSampleDecoder[] spectralDecoders;
+
     private int nadirColumnIndex;
 
+    private ToaReflectanceValidationOp validationOp;
     private Band validationBand;
+    private Band acFlagsBand;
+
+    private BatchTosa batchTosa;
+    private GriddedAuxdata ozoneAuxdata;
+    private GriddedAuxdata pressureAuxdata;
 
     private RenderedOp flippedLatImage;
     private RenderedOp flippedLonImage;
@@ -130,10 +265,69 @@ public class ModisAtmosCorrectionOp extends Operator {
     private RenderedOp flippedSolaziImage;
     private RenderedOp flippedSatzenImage;
 
+    // the neural net is not thread-safe and expensive to create, so a tile takes an instance from the pool and
+    // returns it when it is done, there are at most as many instances as tiles have been computed concurrently.
+    // The pools are owned by the operator, so the instances are released in dispose() and not kept by the
+    // long-lived tile computing threads.
+    private final Queue<AtmosCorrection> atmosCorrectionPool = new ConcurrentLinkedQueue<AtmosCorrection>();
+    private final Queue<PixelBatch> pixelBatchPool = new ConcurrentLinkedQueue<PixelBatch>();
+    // the encodings of the bands stored as int16, only modified in initialize()
+    private final Map<Band, ScaledInt16Encoding> int16Encodings = new HashMap<Band, ScaledInt16Encoding>();
+    // the subsets of the source products for the region or the quicklook
+    private final List<Product> subsetProducts = new ArrayList<Product>();
+
+    private ProcessingStatistics statistics;
+    private MetadataElement statisticsElement;
+    // the number of target pixels not yet computed, the statistics metadata is written when it reaches zero
+    private final AtomicLong remainingPixelCount = new AtomicLong();
+    private SparsePixelWriter sparsePixelWriter;
+    private SourceTilePrefetcher prefetcher;
+    private TileCheckpointStore checkpointStore;
+    private Rectangle sourceRegion;
+
 
     @Override
     public void initialize() throws OperatorException {
         validateModisL1bProduct(modisL1bProduct);
+        // before the product is replaced by a subset
+        final String granuleId = getGranuleId(modisL1bProduct);
+
+        Rectangle region = null;
+        if (geoRegion != null && pixelRegion != null) {
+            throw new OperatorException("Only one of the geographical region and the pixel region can be given.");
+        }
+        if (geoRegion != null) {
+            region = findPixelRegion();
+            getLogger().info("Processing pixel region " + region + " of the geographical region.");
+        } else if (pixelRegion != null) {
+            region = pixelRegion.intersection(new Rectangle(modisL1bProduct.getSceneRasterWidth(),
+                                                            modisL1bProduct.getSceneRasterHeight()));
+            if (region.isEmpty()) {
+                throw new OperatorException("The pixel region " + pixelRegion + " is outside of the MODIS granule.");
+            }
+        }
+        if (quicklookStep < 1) {
+            throw new OperatorException("The quicklook step must be at least 1.");
+        }
+        if (region != null || quicklookStep > 1) {
+            if (region == null) {
+                region = new Rectangle(modisL1bProduct.getSceneRasterWidth(), modisL1bProduct.getSceneRasterHeight());
+            }
+            // the distance to the nadir column is measured in the complete swath, in full resolution pixels
+            nadirColumnIndex = ModisFlightDirection.findNadirColumnIndex(modisGeoProduct) - region.x;
+            // the subsets only read the pixel region, and in quicklook mode every n-th pixel, from the source products
+            modisL1bProduct = createSubset(modisL1bProduct, region);
+            modisGeoProduct = createSubset(modisGeoProduct, region);
+            if (quicklookStep > 1) {
+                getLogger().info("Computing quicklook of " + modisL1bProduct.getSceneRasterWidth() + " x " +
+                                 modisL1bProduct.getSceneRasterHeight() + " pixels, with a step of " + quicklookStep +
+                                 " pixels in the granule.");
+            }
+        } else {
+            nadirColumnIndex = ModisFlightDirection.findNadirColumnIndex(modisGeoProduct);
+        }
+        sourceRegion = region != null ? region : new Rectangle(modisL1bProduct.getSceneRasterWidth(),
+                                                               modisL1bProduct.getSceneRasterHeight());
 
         latNode = modisGeoProduct.getRasterDataNode(Constants.MODIS_GEO_GEOLOCATION_BAND_NAME_PREFIX+
                                                             Constants.MODIS_LATITUDE_BAND_NAME);
@@ -162,10 +356,24 @@ public class ModisAtmosCorrectionOp extends Operator {
         flippedSataziImage = flipImage(modisGeoProduct.getBand(sataziNode.getName()));
 //        sataziNode.setSourceImage(flippedSolzenImage);
 
-        spectralNodes = new Band[Constants.MODIS_SPECTRAL_BAND_NAMES.length];
-        for (int i = 0; i < Constants.MODIS_SPECTRAL_BAND_NAMES.length; i++) {
-            spectralNodes[i] = modisL1bProduct.getBand(Constants.MODIS_TOA_BAND_NAME_PREFIX +
-                                                               Constants.MODIS_SPECTRAL_BAND_NAMES[i]);
+        // only the spectral bands used as neural net input are read here, the bands used by the flag expressions
+        // are read by the validation operator
+        spectralNodes = new Band[Constants.MODIS_SPECTRAL_BANDNAMES_TO_USE.length];
+        for (int i = 0; i < Constants.MODIS_SPECTRAL_BANDNAMES_TO_USE.length; i++) {
+            spectralNodes[i] = modisL1bProduct.getBand(Constants.MODIS_SPECTRAL_BANDNAMES_TO_USE[i]);
+            if (spectralNodes[i] == null) {
+                throw new OperatorException("Band '" + Constants.MODIS_SPECTRAL_BANDNAMES_TO_USE[i] +
+                                                    "' not found in MODIS L1b product.");
+            }
+        }
+
+        createSampleDecoders();
+
+        loadNeuralNet(Constants.MODIS_ATMOSPHERIC_NET_NAME, atmoNetModisFile);
+        if (modisNeuralNet.getInmin().length != AtmosCorrection.NUM_NON_SPECTRAL_NN_INPUTS + spectralNodes.length) {
+            throw new OperatorException(MessageFormat.format("Neural net has {0} inputs, but {1} are provided.",
+                                                             modisNeuralNet.getInmin().length,
+                                                             AtmosCorrection.NUM_NON_SPECTRAL_NN_INPUTS + spectralNodes.length));
         }
 
         final int rasterHeight = modisL1bProduct.getSceneRasterHeight();
@@ -174,29 +382,50 @@ public class ModisAtmosCorrectionOp extends Operator {
         Product outputProduct = new Product(modisL1bProduct.getName() + "_AC", "MODIS_L2_AC", rasterWidth, rasterHeight);
         outputProduct.setStartTime(modisL1bProduct.getStartTime());
         outputProduct.setEndTime(modisL1bProduct.getEndTime());
+        Dimension stripTileSize = null;
+        if (scansPerStrip > 0) {
+            stripTileSize = new Dimension(rasterWidth,
+                                          Math.min(rasterHeight, scansPerStrip * Constants.MODIS_LINES_PER_SCAN));
+            outputProduct.setPreferredTileSize(stripTileSize);
+        }
         ProductUtils.copyMetadata(modisL1bProduct, outputProduct);
         ProductUtils.copyGeoCoding(modisL1bProduct, outputProduct);
 
-        addTargetBands(outputProduct);
+        addTargetBands(outputProduct, modisNeuralNet);
 
-        Band acFlagsBand = outputProduct.addBand(Constants.AC_FLAG_BAND_NAME, ProductData.TYPE_UINT16);
+        acFlagsBand = outputProduct.addBand(Constants.AC_FLAG_BAND_NAME, ProductData.TYPE_UINT16);
         final FlagCoding acFlagCoding = createAcFlagCoding();
         acFlagsBand.setSampleCoding(acFlagCoding);
         outputProduct.getFlagCodingGroup().add(acFlagCoding);
         addAcMasks(outputProduct);
 
-        final ToaReflectanceValidationOp validationOp = ToaReflectanceValidationOp.create(modisL1bProduct,
-                                                                                          useSrtmWaterMask,
-                                                                                          landExpression,
-                                                                                          cloudIceExpression,
-                                                                                          rlToaOorExpression);
+        validationOp = ToaReflectanceValidationOp.create(modisL1bProduct,
+                                                         modisGeoProduct,
+                                                         useSrtmWaterMask,
+                                                         useModisLandSeaMask,
+                                                         coastlineBuffer,
+                                                         landExpression,
+                                                         cloudIceExpression,
+                                                         rlToaOorExpression);
+        if (stripTileSize != null) {
+            validationOp.setPreferredTileSize(stripTileSize);
+        }
         Product toaValidationProduct = validationOp.getTargetProduct();
         validationBand = toaValidationProduct.getBandAt(0);
 
-        InputStream modisNeuralNetStream = getNeuralNetStream(Constants.MODIS_ATMOSPHERIC_NET_NAME, atmoNetModisFile);
-        modisNeuralNetString = readNeuralNetFromStream(modisNeuralNetStream);
+        maxSunZenith = modisNeuralNet.getInmax()[0];
 
-        nadirColumnIndex = ModisFlightDirection.findNadirColumnIndex(modisGeoProduct);
+        ozoneAuxdata = readGriddedAuxdata(ozoneAuxdataFile, ozoneVariableName);
+        pressureAuxdata = readGriddedAuxdata(pressureAuxdataFile, pressureVariableName);
+        if (ozoneAuxdata != null || pressureAuxdata != null) {
+            if (useTosaLut) {
+                getLogger().warning("TOSA lookup tables cannot be used with per-pixel ozone or pressure.");
+            }
+            batchTosa = new BatchTosa(altitude);
+        } else {
+            batchTosa = new BatchTosa(ozone, pressure, altitude, useTosaLut ? BatchTosa.DEFAULT_LUT_SIZE : 0);
+        }
+        batchTosa.setFastMath(useFastMath);
 
         if (useSnTMap) {
             snTProvider = createSnTProvider();
@@ -204,6 +433,43 @@ public class ModisAtmosCorrectionOp extends Operator {
 
         }
 
+        statistics = new ProcessingStatistics();
+        try {
+            statistics.register(outputProduct.getName() + "@" + Integer.toHexString(System.identityHashCode(this)));
+        } catch (JMException e) {
+            getLogger().warning("Could not register processing statistics as MBean: " + e.getMessage());
+        }
+        statisticsElement = new MetadataElement(ProcessingStatistics.METADATA_ELEMENT_NAME);
+        statisticsElement.setAttributeString("neural_net_file", atmoNetModisFile.getPath());
+        if (quicklookStep > 1) {
+            statisticsElement.setAttributeInt("quicklook_step", quicklookStep);
+        }
+        statistics.writeMetadata(statisticsElement);
+        outputProduct.getMetadataRoot().addElement(statisticsElement);
+        remainingPixelCount.set((long) rasterWidth * rasterHeight);
+
+        if (checkpointDir != null) {
+            if (sparseOutputDir != null) {
+                // the sparse file is written from the pixel batches, which restored tiles do not have
+                throw new OperatorException("The checkpoint directory cannot be combined with sparse output.");
+            }
+            final String key = TileCheckpointStore.createKey(granuleId, modisNeuralNetString,
+                                                             getCheckpointParameters());
+            try {
+                checkpointStore = new TileCheckpointStore(checkpointDir, key);
+            } catch (IOException e) {
+                throw new OperatorException("Could not create checkpoint directory in " + checkpointDir, e);
+            }
+            getLogger().info("Using checkpoints in " + checkpointStore.getDir());
+        }
+        if (sparseOutputDir != null) {
+            try {
+                sparsePixelWriter = new SparsePixelWriter(sparseOutputDir, rasterWidth, rasterHeight);
+            } catch (IOException e) {
+                throw new OperatorException("Could not create sparse output in " + sparseOutputDir, e);
+            }
+        }
+
         setTargetProduct(outputProduct);
 
     }
@@ -212,82 +478,430 @@ public class ModisAtmosCorrectionOp extends Operator {
     public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRectangle, ProgressMonitor pm) throws
             OperatorException {
         pm.beginTask("Correcting atmosphere...", targetRectangle.height);
+        PixelBatch batch = null;
+        AtmosCorrection ac = null;
         try {
-            final Map<String, ProductData> modisSampleDataMap = preLoadModisSources(targetRectangle);
-            final Map<String, ProductData> targetSampleDataMap = getTargetSampleData(targetTiles);
-
-            AtmosCorrection ac = new AtmosCorrection(new NNffbpAlphaTabFast(modisNeuralNetString));
+            // the tile is processed in strips of rows, so the batch buffers stay small
+            final int rowsPerBatch = Math.max(1, Math.min(targetRectangle.height, BATCH_SIZE / targetRectangle.width));
+            batch = acquirePixelBatch(rowsPerBatch * targetRectangle.width);
+
+            final long tileStart = System.nanoTime();
+            if (checkpointStore != null && restoreCheckpoint(targetTiles, targetRectangle)) {
+                addFlagCounts(targetTiles.get(acFlagsBand), targetRectangle, batch);
+                statistics.addRestoredTile();
+                addTile(tileStart, false, targetRectangle);
+                return;
+            }
+            final StageTimer timer = new StageTimer(statistics);
+            if (prefetchTiles > 0) {
+                // waits for the sources of this tile if they are being read ahead
+                getPrefetcher().tileStarted(targetRectangle);
+                timer.lap(ProcessingStage.SOURCE_FETCH);
+            }
+            final Map<RasterDataNode, Tile> sourceTiles = new HashMap<RasterDataNode, Tile>(27);
+            sourceTiles.put(validationBand, getSourceTile(validationBand, targetRectangle));
+            sourceTiles.put(solzenNode, getSourceTile(solzenNode, targetRectangle));
+            final Tile acFlagsTile = targetTiles.get(acFlagsBand);
+            final boolean processable = containsProcessablePixels(sourceTiles, acFlagsTile, targetRectangle, batch);
+            timer.lap(ProcessingStage.VALIDATION);
+            if (!processable) {
+                // no pixel of this tile can be corrected, so we do not need to read the spectral sources at all
+                writeInvalidReflectances(targetTiles, targetRectangle);
+                timer.lap(ProcessingStage.TARGET_WRITE);
+                addFlagCounts(acFlagsTile, targetRectangle, batch);
+                storeCheckpoint(targetTiles, targetRectangle);
+                completeSparseTile(targetRectangle);
+                addTile(tileStart, true, targetRectangle);
+                return;
+            }
+            for (RasterDataNode node : new RasterDataNode[]{solaziNode, satzenNode, sataziNode, latNode, lonNode}) {
+                sourceTiles.put(node, getSourceTile(node, targetRectangle));
+            }
+            for (Band spectralNode : spectralNodes) {
+                sourceTiles.put(spectralNode, getSourceTile(spectralNode, targetRectangle));
+            }
+            timer.lap(ProcessingStage.SOURCE_FETCH);
 
-            for (int y = 0; y < targetRectangle.getHeight(); y++) {
-                checkForCancellation();
-                final int lineIndex = y * targetRectangle.width;
-                final int pixelY = targetRectangle.y + y;
-
-                for (int x = 0; x < targetRectangle.getWidth(); x++) {
-                    final int pixelIndex = lineIndex + x;
-                    final PixelData inputData = loadModisPixelData(modisSampleDataMap, pixelIndex);
-                    final int pixelX = targetRectangle.x + x;
-                    inputData.pixelX = pixelX;
-                    inputData.pixelY = pixelY;
-
-                    double salinity;
-                    double temperature;
-                    if (snTProvider != null) {
-                        GeoCoding geoCoding = modisL1bProduct.getGeoCoding();
-                        GeoPos geoPos = geoCoding.getGeoPos(new PixelPos(pixelX + 0.5f, pixelY + 0.5f), null);
-                        salinity = snTProvider.getSalinity(date, geoPos.getLat(), geoPos.getLon());
-                        temperature = snTProvider.getTemperature(date, geoPos.getLat(), geoPos.getLon());
-                        if (Double.isNaN(salinity)) {
-                            salinity = averageSalinity;
-                        }
-                        if (Double.isNaN(temperature)) {
-                            temperature = averageTemperature;
-                        }
-                    } else {
-                        salinity = averageSalinity;
-                        temperature = averageTemperature;
-                    }
+            final TileAuxdataGrid ozoneGrid = createTileAuxdataGrid(ozoneAuxdata, sourceTiles, targetRectangle);
+            final TileAuxdataGrid pressureGrid = createTileAuxdataGrid(pressureAuxdata, sourceTiles, targetRectangle);
+            timer.lap(ProcessingStage.SALINITY_TEMPERATURE);
 
-                    AtmosCorrectionResult acResult = ac.perform(inputData, temperature, salinity);
+            ac = acquireAtmosCorrection();
+            ac.setStageTimer(timer);
+            // the sparse pixels are only appended when the tile is complete
+            final SparsePixelWriter.TilePixels sparsePixels =
+                    sparsePixelWriter != null ? new SparsePixelWriter.TilePixels() : null;
 
-                    fillTargetSampleData(targetSampleDataMap, pixelIndex, acResult);
+            final int maxY = targetRectangle.y + targetRectangle.height;
+            for (int y = targetRectangle.y; y < maxY; y += rowsPerBatch) {
+                checkForCancellation();
+                final Rectangle strip = new Rectangle(targetRectangle.x, y, targetRectangle.width,
+                                                      Math.min(rowsPerBatch, maxY - y));
+                batch.setRectangle(strip);
+                timer.start();
+                loadValidationSources(sourceTiles, strip, batch);
+                timer.lap(ProcessingStage.VALIDATION);
+                loadModisSources(sourceTiles, strip, batch);
+                timer.lap(ProcessingStage.SOURCE_FETCH);
+                loadSalinityAndTemperature(batch);
+                loadAuxdata(ozoneGrid, ozone, batch, batch.ozone);
+                loadAuxdata(pressureGrid, pressure, batch, batch.pressure);
+                timer.lap(ProcessingStage.SALINITY_TEMPERATURE);
+
+                ac.perform(batch);
+
+                timer.start();
+                writeTargetSamples(targetTiles, strip, batch);
+                if (sparsePixels != null) {
+                    sparsePixels.add(batch);
                 }
-                pm.worked(1);
+                timer.lap(ProcessingStage.TARGET_WRITE);
+                statistics.addFlags(batch.flag, batch.getSize());
+                pm.worked(strip.height);
+            }
+            storeCheckpoint(targetTiles, targetRectangle);
+            if (sparsePixels != null) {
+                sparsePixelWriter.completeTile(targetRectangle, sparsePixels);
             }
-            commitSampleData(targetSampleDataMap, targetTiles);
+            addTile(tileStart, false, targetRectangle);
         } catch (Exception e) {
             throw new OperatorException(e);
         } finally {
+            if (ac != null) {
+                ac.setStageTimer(null);
+                atmosCorrectionPool.add(ac);
+            }
+            if (batch != null) {
+                pixelBatchPool.add(batch);
+            }
             pm.done();
         }
 
     }
 
-    private RenderedOp flipImage(Band sourceBand) {
-        final RenderedOp verticalFlippedImage = TransposeDescriptor.create(sourceBand.getSourceImage(), TransposeDescriptor.FLIP_VERTICAL, null);
-        return TransposeDescriptor.create(verticalFlippedImage, TransposeDescriptor.FLIP_HORIZONTAL, null);
+    @Override
+    public void dispose() {
+        if (statistics != null) {
+            if (statistics.getComputedTileCount() > 0) {
+                getLogger().info(MessageFormat.format("{0} of {1} tiles skipped, as they contain no valid water pixels.",
+                                                      statistics.getSkippedTileCount(),
+                                                      statistics.getComputedTileCount()));
+            }
+            statistics.writeMetadata(statisticsElement);
+            statistics.unregister();
+        }
+        synchronized (this) {
+            if (prefetcher != null) {
+                prefetcher.dispose();
+                prefetcher = null;
+            }
+        }
+        if (sparsePixelWriter != null) {
+            try {
+                // marked as incomplete if not all tiles have been computed
+                sparsePixelWriter.close();
+            } catch (IOException e) {
+                getLogger().warning("Could not close sparse output: " + e.getMessage());
+            }
+        }
+        if (validationOp != null) {
+            validationOp.dispose();
+            validationOp = null;
+        }
+        for (Product subsetProduct : subsetProducts) {
+            subsetProduct.dispose();
+        }
+        subsetProducts.clear();
+        atmosCorrectionPool.clear();
+        pixelBatchPool.clear();
+        super.dispose();
+    }
+
+    /**
+     * Returns the pixel rectangle of the source products the target product is computed from. Target row
+     * {@code y} is computed from source row {@code getSourceRegion().y + y * getQuicklookStep()}.
+     *
+     * @return the region of the source products, null before the target product has been created
+     */
+    public Rectangle getSourceRegion() {
+        return sourceRegion;
+    }
+
+    /**
+     * @return the step between the source pixels of neighbouring target pixels
+     */
+    public int getQuicklookStep() {
+        return quicklookStep;
+    }
+
+    /**
+     * @return the processing statistics of this operator instance
+     */
+    public ProcessingStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Returns the products computed internally for the target product: the subsets of the source products for
+     * the region or the quicklook, and the products of the TOA reflectance validation. Their images hold cached
+     * tiles as the source products do, see {@link ScanStripWriter}.
+     *
+     * @return the intermediate products, empty before the target product has been created
+     */
+    public Product[] getIntermediateProducts() {
+        final List<Product> products = new ArrayList<Product>(subsetProducts);
+        if (validationOp != null) {
+            products.add(validationOp.getTargetProduct());
+            products.addAll(Arrays.asList(validationOp.getIntermediateProducts()));
+        }
+        return products.toArray(new Product[products.size()]);
+    }
+
+    private synchronized SourceTilePrefetcher getPrefetcher() {
+        if (prefetcher == null) {
+            final List<RasterDataNode> sourceNodes = new ArrayList<RasterDataNode>();
+            sourceNodes.addAll(Arrays.asList(solaziNode, satzenNode, sataziNode, latNode, lonNode));
+            sourceNodes.addAll(Arrays.asList(spectralNodes));
+            prefetcher = new SourceTilePrefetcher(new RasterDataNode[]{validationBand, solzenNode},
+                                                  sourceNodes.toArray(new RasterDataNode[sourceNodes.size()]),
+                                                  new SourceTilePrefetcher.TileFilter() {
+                                                      @Override
+                                                      public boolean isProcessable(Rectangle targetRectangle) {
+                                                          // restored tiles do not need sources
+                                                          return !(checkpointStore != null &&
+                                                                   checkpointStore.getFile(targetRectangle).isFile()) &&
+                                                                 containsProcessablePixels(targetRectangle);
+                                                      }
+                                                  },
+                                                  acFlagsBand.getSourceImage(), prefetchTiles, PREFETCH_THREADS,
+                                                  statistics);
+        }
+        return prefetcher;
+    }
+
+    /**
+     * Checks the sources of the validation like {@link #containsProcessablePixels(Map, Tile, Rectangle, PixelBatch)},
+     * without writing flags, e.g. for reading the other sources ahead.
+     */
+    private boolean containsProcessablePixels(Rectangle rectangle) {
+        final int numPixels = rectangle.width * rectangle.height;
+        final int[] validation = validationBand.getSourceImage().getData(rectangle).getSamples(
+                rectangle.x, rectangle.y, rectangle.width, rectangle.height, 0, new int[numPixels]);
+        final float[] solzen = solzenNode.getGeophysicalImage().getData(rectangle).getSamples(
+                rectangle.x, rectangle.y, rectangle.width, rectangle.height, 0, new float[numPixels]);
+        for (int i = 0; i < numPixels; i++) {
+            if (AtmosCorrection.getInvalidFlags(validation[i], solzen[i], maxSunZenith) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean restoreCheckpoint(Map<Band, Tile> targetTiles, Rectangle targetRectangle) {
+        try {
+            return checkpointStore.restore(targetTiles, targetRectangle);
+        } catch (IOException e) {
+            getLogger().warning("Could not restore tile " + targetRectangle + ", computing it again: " +
+                                        e.getMessage());
+            return false;
+        }
+    }
+
+    private void storeCheckpoint(Map<Band, Tile> targetTiles, Rectangle targetRectangle) {
+        if (checkpointStore != null) {
+            try {
+                checkpointStore.store(targetTiles, targetRectangle);
+            } catch (IOException e) {
+                // the processing does not depend on the checkpoints
+                getLogger().warning("Could not store checkpoint of tile " + targetRectangle + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static String getGranuleId(Product product) {
+        final StringBuilder granuleId = new StringBuilder(product.getName());
+        if (product.getFileLocation() != null) {
+            granuleId.append('|').append(product.getFileLocation().getAbsolutePath());
+        }
+        granuleId.append('|').append(product.getSceneRasterWidth()).append('x').append(product.getSceneRasterHeight());
+        if (product.getStartTime() != null) {
+            granuleId.append('|').append(product.getStartTime().format());
+        }
+        return granuleId.toString();
+    }
+
+    /**
+     * @return the values of the parameters which influence the target samples, with the size and modification
+     *         time of files, so that changed auxiliary data is detected
+     */
+    private SortedMap<String, String> getCheckpointParameters() {
+        final SortedMap<String, String> parameters = new TreeMap<String, String>();
+        for (Field field : ModisAtmosCorrectionOp.class.getDeclaredFields()) {
+            if (field.getAnnotation(Parameter.class) == null ||
+                Arrays.asList("checkpointDir", "prefetchTiles", "sparseOutputDir").contains(field.getName())) {
+                continue;
+            }
+            final Object value;
+            try {
+                field.setAccessible(true);
+                value = field.get(this);
+            } catch (IllegalAccessException e) {
+                throw new OperatorException(e);
+            }
+            if (value instanceof File) {
+                final File file = (File) value;
+                parameters.put(field.getName(), file.getAbsolutePath() + "|" + file.length() + "|" +
+                        file.lastModified());
+            } else {
+                parameters.put(field.getName(), String.valueOf(value));
+            }
+        }
+        return parameters;
+    }
+
+    private void completeSparseTile(Rectangle targetRectangle) throws IOException {
+        if (sparsePixelWriter != null) {
+            sparsePixelWriter.completeTile(targetRectangle);
+        }
+    }
+
+    private void addTile(long tileStart, boolean skipped, Rectangle targetRectangle) {
+        final int tilePixelCount = targetRectangle.width * targetRectangle.height;
+        statistics.addTile(tileStart, skipped, tilePixelCount);
+        if (remainingPixelCount.addAndGet(-tilePixelCount) <= 0) {
+            // all tiles have been computed (tiles computed again add to the statistics, too)
+            statistics.writeMetadata(statisticsElement);
+        }
+    }
+
+    private void addFlagCounts(Tile acFlagsTile, Rectangle targetRectangle, PixelBatch batch) {
+        final ProductData buffer = acFlagsTile.getDataBuffer();
+        final int rowsPerBatch = batch.getCapacity() / targetRectangle.width;
+        final int maxY = targetRectangle.y + targetRectangle.height;
+        for (int y = targetRectangle.y; y < maxY; y += rowsPerBatch) {
+            int index = 0;
+            for (int row = y; row < Math.min(y + rowsPerBatch, maxY); row++) {
+                final int offset = acFlagsTile.getDataBufferIndex(targetRectangle.x, row);
+                for (int x = 0; x < targetRectangle.width; x++) {
+                    batch.flag[index++] = buffer.getElemIntAt(offset + x);
+                }
+            }
+            statistics.addFlags(batch.flag, index);
+        }
+    }
+
+    // a batch of the pool, to be returned to the pool when the tile is done
+    private PixelBatch acquirePixelBatch(int capacity) {
+        final PixelBatch batch = pixelBatchPool.poll();
+        if (batch != null && batch.getCapacity() >= capacity) {
+            return batch;
+        }
+        // a batch too small for this tile is dropped
+        final PixelBatch newBatch = new PixelBatch(spectralNodes.length, Math.max(capacity, BATCH_SIZE));
+        newBatch.nadirColumnIndex = nadirColumnIndex;
+        newBatch.columnStep = quicklookStep;
+        return newBatch;
+    }
+
+    // a correction of the pool, to be returned to the pool when the tile is done
+    private AtmosCorrection acquireAtmosCorrection() {
+        final AtmosCorrection pooled = atmosCorrectionPool.poll();
+        if (pooled != null) {
+            return pooled;
+        }
+        final AtmosCorrection ac = new AtmosCorrection(createNeuralNet(), batchTosa);
+        ac.setInputRangeCheck(checkNeuralNetInputRange);
+        return ac;
+    }
+
+    private Rectangle findPixelRegion() {
+        final RasterDataNode lat = modisGeoProduct.getRasterDataNode(Constants.MODIS_GEO_GEOLOCATION_BAND_NAME_PREFIX +
+                                                                             Constants.MODIS_LATITUDE_BAND_NAME);
+        final RasterDataNode lon = modisGeoProduct.getRasterDataNode(Constants.MODIS_GEO_GEOLOCATION_BAND_NAME_PREFIX +
+                                                                             Constants.MODIS_LONGITUDE_BAND_NAME);
+        Rectangle region = new GeoRegionFinder(geoRegion).findPixelRegion(lat, lon);
+        if (region.isEmpty()) {
+            throw new OperatorException("The MODIS granule does not contain pixels of the geographical region.");
+        }
+        if (scansPerStrip > 0) {
+            region = GeoRegionFinder.alignToScans(region, modisGeoProduct.getSceneRasterHeight());
+        }
+        return region;
     }
 
-    private PixelData loadModisPixelData(Map<String, ProductData> sourceTileMap, int index) {
-        final PixelData pixelData = new PixelData();
-        pixelData.nadirColumnIndex = nadirColumnIndex;
-        pixelData.validation = sourceTileMap.get(validationBand.getName()).getElemIntAt(index);
-        final ProductData flags = sourceTileMap.get(Constants.MODIS_L2_FLAG_BAND_NAME);
-        if (flags != null) {
-            pixelData.flag = flags.getElemIntAt(index);
+    private Product createSubset(Product product, Rectangle region) {
+        final ProductSubsetDef subsetDef = new ProductSubsetDef();
+        subsetDef.setRegion(region);
+        subsetDef.setSubSampling(quicklookStep, quicklookStep);
+        try {
+            final Product subset = ProductSubsetBuilder.createProductSubset(product, subsetDef, product.getName(),
+                                                                            product.getDescription());
+            subsetProducts.add(subset);
+            return subset;
+        } catch (IOException e) {
+            throw new OperatorException("Could not create subset of product '" + product.getName() + "'.", e);
         }
+    }
 
-        pixelData.solzen = getScaledValue(sourceTileMap, solzenNode, index);
-        pixelData.solazi = getScaledValue(sourceTileMap, solaziNode, index);
-        pixelData.satzen = getScaledValue(sourceTileMap, satzenNode, index);
-        pixelData.satazi = getScaledValue(sourceTileMap, sataziNode, index);
-        pixelData.lat = getScaledValue(sourceTileMap, latNode, index);
-        pixelData.lon = getScaledValue(sourceTileMap, lonNode, index);
+    // a copy with its own activation buffers, the definition is shared with all other copies
+    private NNffbpAlphaTabFast createNeuralNet() {
+        return modisNeuralNet.createCopy();
+    }
 
-        // todo: can we get these from aux product??
-        pixelData.ozone = ozone;
-        pixelData.altitude = altitude;
-        pixelData.pressure = pressure;
+    private void createSampleDecoders() {
+        latDecoder = ScaledSampleDecoder.create(latNode);
+        lonDecoder = ScaledSampleDecoder.create(lonNode);
+        solzenDecoder = ScaledSampleDecoder.create(solzenNode);
+        solaziDecoder = ScaledSampleDecoder.create(solaziNode);
+        satzenDecoder = ScaledSampleDecoder.create(satzenNode);
+        sataziDecoder = ScaledSampleDecoder.create(sataziNode);
+        spectralDecoders = new ScaledSampleDecoder[spectralNodes.length];
+        for (int i = 0; i < spectralNodes.length; i++) {
+            spectralDecoders[i] = ScaledSampleDecoder.create(spectralNodes[i],
+                                                             Constants.MODIS_L1B_MAX_VALID_SCALED_INTEGER);
+        }
+    }
+
+    private boolean containsProcessablePixels(Map<RasterDataNode, Tile> sourceTiles, Tile acFlagsTile,
+                                              Rectangle targetRectangle, PixelBatch batch) {
+        final int rowsPerBatch = batch.getCapacity() / targetRectangle.width;
+        final int maxY = targetRectangle.y + targetRectangle.height;
+        for (int y = targetRectangle.y; y < maxY; y += rowsPerBatch) {
+            final Rectangle strip = new Rectangle(targetRectangle.x, y, targetRectangle.width,
+                                                  Math.min(rowsPerBatch, maxY - y));
+            batch.setRectangle(strip);
+            loadValidationSources(sourceTiles, strip, batch);
+            for (int i = 0; i < batch.getSize(); i++) {
+                batch.flag[i] = AtmosCorrection.getInvalidFlags(batch.validation[i], batch.solzen[i], maxSunZenith);
+                if (batch.flag[i] == 0) {
+                    return true;
+                }
+            }
+            writeFlags(acFlagsTile, strip, batch);
+        }
+        return false;
+    }
+
+    private void loadValidationSources(Map<RasterDataNode, Tile> sourceTiles, Rectangle rectangle, PixelBatch batch) {
+        final Tile validationTile = sourceTiles.get(validationBand);
+        final ProductData validationData = validationTile.getDataBuffer();
+        int index = 0;
+        for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+            final int offset = validationTile.getDataBufferIndex(rectangle.x, y);
+            for (int x = 0; x < rectangle.width; x++) {
+                batch.validation[index++] = validationData.getElemIntAt(offset + x);
+            }
+        }
+
+        solzenDecoder.decode(sourceTiles.get(solzenNode), rectangle, batch.solzen);
+    }
+
+    private void loadModisSources(Map<RasterDataNode, Tile> sourceTiles, Rectangle rectangle, PixelBatch batch) {
+        solaziDecoder.decode(sourceTiles.get(solaziNode), rectangle, batch.solazi);
+        satzenDecoder.decode(sourceTiles.get(satzenNode), rectangle, batch.satzen);
+        sataziDecoder.decode(sourceTiles.get(sataziNode), rectangle, batch.satazi);
+        latDecoder.decode(sourceTiles.get(latNode), rectangle, batch.lat);
+        lonDecoder.decode(sourceTiles.get(lonNode), rectangle, batch.lon);
 
         // we need the following 9 spectral nodes (toa radiances) as input:
         // 412nm (RefSB_8)
@@ -299,107 +913,188 @@ public class ModisAtmosCorrectionOp extends Operator {
         // 678nm (RefSB_14lo)
         // 748nm (RefSB_15)
         // 869nm (RefSB_16)
-        pixelData.toa_radiance = new double[Constants.MODIS_SPECTRAL_BANDNAMES_TO_USE.length];
-        pixelData.solar_flux = new double[Constants.MODIS_SPECTRAL_BANDNAMES_TO_USE.length];
-        int bandsToUseIndex = 0;
-        for (String bandToUse : Constants.MODIS_SPECTRAL_BANDNAMES_TO_USE) {
-            for (final Band spectralNode : spectralNodes) {
-                if (spectralNode.getName().equals(bandToUse)) {
-                    pixelData.toa_radiance[bandsToUseIndex] = getScaledValue(sourceTileMap, spectralNode, index);
-                    pixelData.solar_flux[bandsToUseIndex] = Constants.SOLAR_FLUXES_TO_USE[bandsToUseIndex];
-                    bandsToUseIndex++;
+        for (int i = 0; i < spectralNodes.length; i++) {
+            spectralDecoders[i].decode(sourceTiles.get(spectralNodes[i]), rectangle, batch.toaReflectance[i]);
+        }
+    }
+
+    private void loadSalinityAndTemperature(PixelBatch batch) throws Exception {
+        for (int i = 0; i < batch.getSize(); i++) {
+            double salinity;
+            double temperature;
+            if (snTProvider != null) {
+                GeoCoding geoCoding = modisL1bProduct.getGeoCoding();
+                GeoPos geoPos = geoCoding.getGeoPos(new PixelPos(batch.pixelX[i] + 0.5f, batch.pixelY[i] + 0.5f), null);
+                salinity = snTProvider.getSalinity(date, geoPos.getLat(), geoPos.getLon());
+                temperature = snTProvider.getTemperature(date, geoPos.getLat(), geoPos.getLon());
+                if (Double.isNaN(salinity)) {
+                    salinity = averageSalinity;
+                }
+                if (Double.isNaN(temperature)) {
+                    temperature = averageTemperature;
                 }
+            } else {
+                salinity = averageSalinity;
+                temperature = averageTemperature;
             }
+            batch.salinity[i] = salinity;
+            batch.temperature[i] = temperature;
         }
-
-        return pixelData;
     }
 
-    private static double getScaledValue(Map<String, ProductData> sourceTileMap, RasterDataNode rasterDataNode,
-                                         int index) {
-        double rawValue = sourceTileMap.get(rasterDataNode.getName()).getElemFloatAt(index);
-        rawValue = rasterDataNode.scale(rawValue);
-        return rawValue;
+    private GriddedAuxdata readGriddedAuxdata(File file, String variableName) {
+        if (file == null) {
+            return null;
+        }
+        final ProductData.UTC startTime = modisL1bProduct.getStartTime();
+        final double dayFraction = startTime != null ? startTime.getSecondsFraction() / 86400.0 : 0.5;
+        try {
+            return GriddedAuxdataCache.get(file, variableName, dayFraction);
+        } catch (IOException e) {
+            throw new OperatorException("Could not read auxiliary data file '" + file.getPath() + "'.", e);
+        }
     }
 
+    private TileAuxdataGrid createTileAuxdataGrid(GriddedAuxdata auxdata, Map<RasterDataNode, Tile> sourceTiles,
+                                                  Rectangle targetRectangle) {
+        if (auxdata == null) {
+            return null;
+        }
+        final Tile latTile = sourceTiles.get(latNode);
+        final Tile lonTile = sourceTiles.get(lonNode);
+        final TileAuxdataGrid grid = new TileAuxdataGrid(targetRectangle, AUXDATA_GRID_STEP);
+        for (int j = 0; j < grid.getNumNodesY(); j++) {
+            for (int i = 0; i < grid.getNumNodesX(); i++) {
+                final int x = grid.getNodeX(i);
+                final int y = grid.getNodeY(j);
+                grid.setNodeValue(i, j, auxdata.getValue(latTile.getSampleDouble(x, y), lonTile.getSampleDouble(x, y)));
+            }
+        }
+        return grid;
+    }
 
-    private Map<String, ProductData> preLoadModisSources(Rectangle targetRectangle) {
-        final Map<String, ProductData> map = new HashMap<String, ProductData>(27);
-
-        final Tile validationTile = getSourceTile(validationBand, targetRectangle);
-        map.put(validationBand.getName(), validationTile.getRawSamples());
-
-        final Tile solzenTile = getSourceTile(solzenNode, targetRectangle);
-        map.put(solzenTile.getRasterDataNode().getName(), solzenTile.getRawSamples());
-
-        final Tile solaziTile = getSourceTile(solaziNode, targetRectangle);
-        map.put(solaziTile.getRasterDataNode().getName(), solaziTile.getRawSamples());
-
-        final Tile satzenTile = getSourceTile(satzenNode, targetRectangle);
-        map.put(satzenTile.getRasterDataNode().getName(), satzenTile.getRawSamples());
-
-        final Tile sataziTile = getSourceTile(sataziNode, targetRectangle);
-        map.put(sataziTile.getRasterDataNode().getName(), sataziTile.getRawSamples());
-
-        final Tile latitudeTile = getSourceTile(latNode, targetRectangle);
-        map.put(latitudeTile.getRasterDataNode().getName(), latitudeTile.getRawSamples());
-
-        final Tile longitudeTile = getSourceTile(lonNode, targetRectangle);
-        map.put(longitudeTile.getRasterDataNode().getName(), longitudeTile.getRawSamples());
-
-        for (RasterDataNode spectralNode : spectralNodes) {
-            final Tile spectralTile = getSourceTile(spectralNode, targetRectangle);
-            map.put(spectralTile.getRasterDataNode().getName(), spectralTile.getRawSamples());
+    private static void loadAuxdata(TileAuxdataGrid grid, double constantValue, PixelBatch batch, double[] values) {
+        final int size = batch.getSize();
+        if (grid == null) {
+            Arrays.fill(values, 0, size, constantValue);
+            return;
+        }
+        grid.interpolate(batch.pixelX, batch.pixelY, values, size);
+        for (int i = 0; i < size; i++) {
+            if (Double.isNaN(values[i])) {
+                values[i] = constantValue;
+            }
         }
-        return map;
     }
 
-    private static Map<String, ProductData> getTargetSampleData(Map<Band, Tile> targetTiles) {
-        final Map<String, ProductData> map = new HashMap<String, ProductData>(targetTiles.size());
+    private void writeTargetSamples(Map<Band, Tile> targetTiles, Rectangle rectangle, PixelBatch batch) {
         for (Map.Entry<Band, Tile> bandTileEntry : targetTiles.entrySet()) {
             final Band band = bandTileEntry.getKey();
-            final Tile tile = bandTileEntry.getValue();
-            map.put(band.getName(), tile.getRawSamples());
+            if (band == acFlagsBand) {
+                writeFlags(bandTileEntry.getValue(), rectangle, batch);
+            } else {
+                final double[] values = getResultValues(band.getName(), batch);
+                final ScaledInt16Encoding encoding = int16Encodings.get(band);
+                if (values != null && encoding != null) {
+                    writeEncodedValues(bandTileEntry.getValue(), rectangle, values, batch.flag, encoding);
+                } else if (values != null) {
+                    writeValues(bandTileEntry.getValue(), rectangle, values);
+                }
+            }
         }
-        return map;
     }
 
-    private static void commitSampleData(Map<String, ProductData> sampleDataMap, Map<Band, Tile> targetTiles) {
-        for (Map.Entry<Band, Tile> bandTileEntry : targetTiles.entrySet()) {
-            final Band band = bandTileEntry.getKey();
-            final Tile tile = bandTileEntry.getValue();
-            tile.setRawSamples(sampleDataMap.get(band.getName()));
+    private static double[] getResultValues(String bandName, PixelBatch batch) {
+        for (int i = 0; i < Constants.MODIS_REFLEC_BAND_NAMES.length; i++) {
+            if (Constants.MODIS_REFLEC_BAND_NAMES[i].equals(bandName)) {
+                return batch.reflec[i];
+            }
+            if (Constants.MODIS_TOSA_REFLEC_BAND_NAMES[i].equals(bandName)) {
+                return batch.tosaReflec[i];
+            }
         }
+        return null;
+    }
 
+    private static void writeFlags(Tile tile, Rectangle rectangle, PixelBatch batch) {
+        final ProductData buffer = tile.getDataBuffer();
+        int index = 0;
+        for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+            final int offset = tile.getDataBufferIndex(rectangle.x, y);
+            for (int x = 0; x < rectangle.width; x++) {
+                buffer.setElemIntAt(offset + x, batch.flag[index++]);
+            }
+        }
     }
 
-    private void fillTargetSampleData(Map<String, ProductData> targetSampleData, int pixelIndex,
-                                      AtmosCorrectionResult acResult) {
+    private static void writeValues(Tile tile, Rectangle rectangle, double[] values) {
+        final ProductData buffer = tile.getDataBuffer();
+        int index = 0;
+        for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+            final int offset = tile.getDataBufferIndex(rectangle.x, y);
+            for (int x = 0; x < rectangle.width; x++) {
+                buffer.setElemDoubleAt(offset + x, values[index++]);
+            }
+        }
+    }
 
-        final ProductData acFlagTile = targetSampleData.get(Constants.AC_FLAG_BAND_NAME);
-        acFlagTile.setElemIntAt(pixelIndex, acResult.getFlag());
-        fillTargetSample(Constants.MODIS_REFLEC_BAND_NAMES, pixelIndex, targetSampleData, acResult.getReflec());
-        if (outputTosa) {
-            fillTargetSample(Constants.MODIS_TOSA_REFLEC_BAND_NAMES, pixelIndex, targetSampleData, acResult.getTosaReflec());
+    /**
+     * Converts values to the raw values of an int16 band in the same pass as writing them. Pixels flagged as
+     * invalid get the no-data value.
+     */
+    private static void writeEncodedValues(Tile tile, Rectangle rectangle, double[] values, int[] flags,
+                                           ScaledInt16Encoding encoding) {
+        final ProductData buffer = tile.getDataBuffer();
+        int index = 0;
+        for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+            final int offset = tile.getDataBufferIndex(rectangle.x, y);
+            for (int x = 0; x < rectangle.width; x++) {
+                final int raw = (flags[index] & AtmosCorrection.INVALID) != 0 ?
+                                ScaledInt16Encoding.NO_DATA_VALUE : encoding.encode(values[index]);
+                buffer.setElemIntAt(offset + x, raw);
+                index++;
+            }
         }
     }
 
-    private void fillTargetSample(String[] bandNames, int pixelIndex,
-                                  Map<String, ProductData> targetData, double[] values) {
-        for (int i = 0; i < bandNames.length; i++) {
-            final String bandName = bandNames[i];
-            if (bandName != null) {
-                int bandIndex = i > 10 ? i - 1 : i;
-                final ProductData tile = targetData.get(bandName);
-                tile.setElemDoubleAt(pixelIndex, values[bandIndex]);
+    private void writeInvalidReflectances(Map<Band, Tile> targetTiles, Rectangle rectangle) {
+        for (Map.Entry<Band, Tile> bandTileEntry : targetTiles.entrySet()) {
+            if (bandTileEntry.getKey() != acFlagsBand) {
+                final Tile tile = bandTileEntry.getValue();
+                final ProductData buffer = tile.getDataBuffer();
+                final boolean int16 = int16Encodings.containsKey(bandTileEntry.getKey());
+                for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+                    final int offset = tile.getDataBufferIndex(rectangle.x, y);
+                    for (int x = 0; x < rectangle.width; x++) {
+                        if (int16) {
+                            buffer.setElemIntAt(offset + x, ScaledInt16Encoding.NO_DATA_VALUE);
+                        } else {
+                            buffer.setElemDoubleAt(offset + x, Constants.INVALID_REFLEC_VALUE);
+                        }
+                    }
+                }
             }
         }
     }
 
-    private void addTargetBands(Product outputProduct) {
-        addSpectralTargetBands(outputProduct, Constants.MODIS_REFLEC_BAND_NAMES, "Water leaving reflectance at {0} nm", "sr^-1");
+    private RenderedOp flipImage(Band sourceBand) {
+        final RenderedOp verticalFlippedImage = TransposeDescriptor.create(sourceBand.getSourceImage(), TransposeDescriptor.FLIP_VERTICAL, null);
+        return TransposeDescriptor.create(verticalFlippedImage, TransposeDescriptor.FLIP_HORIZONTAL, null);
+    }
+
+    private void addTargetBands(Product outputProduct, NNffbpAlphaTabFast modisNeuralNet) {
+        final boolean int16 = REFLECTANCE_ENCODING_INT16.equals(reflectanceEncoding);
+        // the net only gives water leaving reflectances in its output range
+        final double[] reflecMax = int16 ? modisNeuralNet.getOutmax() : null;
+        addSpectralTargetBands(outputProduct, Constants.MODIS_REFLEC_BAND_NAMES, "Water leaving reflectance at {0} nm", "sr^-1",
+                               int16 ? modisNeuralNet.getOutmin() : null, reflecMax);
         if (outputTosa) {
-            addSpectralTargetBands(outputProduct, Constants.MODIS_TOSA_REFLEC_BAND_NAMES, "TOSA Reflectance at {0} nm", "sr^-1");
+            final double[] tosaMin = new double[Constants.MODIS_TOSA_REFLEC_BAND_NAMES.length];
+            final double[] tosaMax = new double[Constants.MODIS_TOSA_REFLEC_BAND_NAMES.length];
+            Arrays.fill(tosaMin, MIN_INT16_TOSA_REFLEC);
+            Arrays.fill(tosaMax, MAX_INT16_TOSA_REFLEC);
+            addSpectralTargetBands(outputProduct, Constants.MODIS_TOSA_REFLEC_BAND_NAMES, "TOSA Reflectance at {0} nm", "sr^-1",
+                                   int16 ? tosaMin : null, int16 ? tosaMax : null);
         }
 
         final String[] splitSataziName = sataziNode.getName().split("/");
@@ -418,12 +1113,21 @@ public class ModisAtmosCorrectionOp extends Operator {
 //        outputProduct.getBand(splitSolzenName[2]).setSourceImage(flippedSolzenImage);
     }
 
-    private void addSpectralTargetBands(Product outputProduct, String[] bandNames, String descriptionPattern, String unit) {
+    private void addSpectralTargetBands(Product outputProduct, String[] bandNames, String descriptionPattern, String unit,
+                                        double[] int16Min, double[] int16Max) {
         for (int i = 0; i < Constants.MODIS_REFLEC_BAND_NAMES.length; i++) {
 //            final float wvl = Float.parseFloat(bandNames[i].substring(bandNames[i].length() - 3, bandNames[i].length()));
             final double wvl = Constants.MODIS_SPECTRAL_WAVELENGHTS_TO_USE[i];
             final String descr = MessageFormat.format(descriptionPattern, wvl);
-            final Band band = outputProduct.addBand(bandNames[i], ProductData.TYPE_FLOAT32);
+            final Band band;
+            if (int16Min != null) {
+                band = outputProduct.addBand(bandNames[i], ProductData.TYPE_INT16);
+                final ScaledInt16Encoding encoding = new ScaledInt16Encoding(int16Min[i], int16Max[i]);
+                encoding.applyTo(band);
+                int16Encodings.put(band, encoding);
+            } else {
+                band = outputProduct.addBand(bandNames[i], ProductData.TYPE_FLOAT32);
+            }
             band.setSpectralWavelength((float) wvl);
             band.setDescription(descr);
             band.setUnit(unit);
@@ -439,11 +1143,14 @@ public class ModisAtmosCorrectionOp extends Operator {
         final FlagCoding flagCoding = new FlagCoding(Constants.AC_FLAG_BAND_NAME);
         flagCoding.setDescription("Atmospheric Correction - Flag Coding");
 
-        addFlagAttribute(flagCoding, "INVALID", "Invalid input pixels (LAND || CLOUD_ICE || TOA_OOR)",
+        addFlagAttribute(flagCoding, "INVALID",
+                         "Invalid input pixels (LAND || CLOUD_ICE || TOA_OOR || INPUT_OOR || NAN_INPUT)",
                          AtmosCorrection.INVALID);
         addFlagAttribute(flagCoding, "LAND", "Land pixels", AtmosCorrection.LAND);
         addFlagAttribute(flagCoding, "CLOUD_ICE", "Cloud or ice pixels", AtmosCorrection.CLOUD_ICE);
         addFlagAttribute(flagCoding, "TOA_OOR", "TOA out of range", AtmosCorrection.TOA_OOR);
+        addFlagAttribute(flagCoding, "INPUT_OOR", "Input out of the neural net training range", AtmosCorrection.INPUT_OOR);
+        addFlagAttribute(flagCoding, "NAN_INPUT", "Neural net input NaN or infinite", AtmosCorrection.NAN_INPUT);
 
         return flagCoding;
     }
@@ -457,12 +1164,17 @@ public class ModisAtmosCorrectionOp extends Operator {
 
     public static void addAcMasks(Product product) {
         final ProductNodeGroup<Mask> maskGroup = product.getMaskGroup();
-        maskGroup.add(createMask(product, "ac_invalid", "'AC invalid' pixels (LAND || CLOUD_ICE || TOA_OOR)",
+        maskGroup.add(createMask(product, "ac_invalid",
+                                 "'AC invalid' pixels (LAND || CLOUD_ICE || TOA_OOR || INPUT_OOR || NAN_INPUT)",
                                  "ac_flags.INVALID", Color.RED, 0.5f));
         maskGroup.add(createMask(product, "ac_land", "Land pixels", "ac_flags.LAND", Color.GREEN, 0.5f));
         maskGroup.add(createMask(product, "cloud_ice", "Cloud or ice pixels", "ac_flags.CLOUD_ICE",
                                  Color.cyan, 0.5f));
         maskGroup.add(createMask(product, "toa_oor", "TOA out of range", "ac_flags.TOA_OOR", Color.MAGENTA, 0.5f));
+        maskGroup.add(createMask(product, "input_oor", "Input out of the neural net training range",
+                                 "ac_flags.INPUT_OOR", Color.ORANGE, 0.5f));
+        maskGroup.add(createMask(product, "nan_input", "Neural net input NaN or infinite",
+                                 "ac_flags.NAN_INPUT", Color.PINK, 0.5f));
     }
 
     private static Mask createMask(Product product, String name, String description, String expression, Color color,
@@ -472,6 +1184,32 @@ public class ModisAtmosCorrectionOp extends Operator {
                                          expression, color, transparency);
     }
 
+    // sets the definition and the prototype of the net, which are read and parsed only once per JVM
+    private void loadNeuralNet(String resourceNetName, File neuralNetFile) {
+        // a changed net file is read again, since its modification time is part of the key
+        final String key;
+        if (neuralNetFile.equals(new File(resourceNetName))) {
+            key = "resource:" + resourceNetName;
+        } else {
+            try {
+                key = neuralNetFile.getCanonicalPath() + "@" + neuralNetFile.lastModified();
+            } catch (IOException e) {
+                throw new OperatorException(e);
+            }
+        }
+        modisNeuralNetString = SharedResources.getNeuralNetDef(key);
+        modisNeuralNet = SharedResources.getNeuralNet(key);
+        if (modisNeuralNet == null) {
+            modisNeuralNetString = readNeuralNetFromStream(getNeuralNetStream(resourceNetName, neuralNetFile));
+            try {
+                modisNeuralNet = new NNffbpAlphaTabFast(modisNeuralNetString);
+            } catch (IOException e) {
+                throw new OperatorException("Could not initialize neural net", e);
+            }
+            SharedResources.putNeuralNet(key, modisNeuralNetString, modisNeuralNet);
+        }
+    }
+
     private InputStream getNeuralNetStream(String resourceNetName, File neuralNetFile) {
         InputStream neuralNetStream;
         if (neuralNetFile.equals((new File(resourceNetName)))) {
@@ -509,7 +1247,7 @@ public class ModisAtmosCorrectionOp extends Operator {
 
     private AuxdataProvider createSnTProvider() {
         try {
-            return AuxdataProviderFactory.createDataProvider();
+            return SharedResources.getAuxdataProvider();
         } catch (IOException ioe) {
             throw new OperatorException("Not able to create provider for auxiliary data.", ioe);
         }
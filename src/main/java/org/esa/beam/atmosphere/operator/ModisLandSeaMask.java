@@ -0,0 +1,77 @@
+package org.esa.beam.atmosphere.operator;
+
+/**
+ * Land detection from the 'Land/SeaMask' band of the MODIS GEO (MOD03) product.
+ * <p/>
+ * The mask values are defined in the MOD03 product specification:
+ * 0 = shallow ocean, 1 = land, 2 = coastline, 3 = shallow inland water, 4 = ephemeral water,
+ * 5 = deep inland water, 6 = continental ocean, 7 = deep ocean.
+ */
+public class ModisLandSeaMask {
+
+    public static final int LAND_VALUE = 1;
+    public static final int COASTLINE_VALUE = 2;
+    public static final int EPHEMERAL_WATER_VALUE = 4;
+
+    private ModisLandSeaMask() {
+    }
+
+    /**
+     * Coastline and ephemeral water pixels are mixed or only temporarily flooded, so they are treated as land
+     * and not corrected by the water net.
+     *
+     * @param landSeaMaskValue the value of the MODIS GEO Land/SeaMask band
+     * @return true, if the value denotes land, coastline or ephemeral water
+     */
+    public static boolean isLand(int landSeaMaskValue) {
+        return landSeaMaskValue == LAND_VALUE || landSeaMaskValue == COASTLINE_VALUE ||
+               landSeaMaskValue == EPHEMERAL_WATER_VALUE;
+    }
+
+    /**
+     * Moves the coastline of a land mask by the given number of pixels, using a square structuring element.
+     * Positive buffers dilate the land (coastal water pixels become land), negative buffers erode it.
+     *
+     * @param land   the land mask, row by row
+     * @param width  the width of the mask
+     * @param height the height of the mask
+     * @param buffer the coastline buffer in pixels
+     * @return the buffered land mask, or the input mask if the buffer is 0
+     */
+    public static boolean[] applyCoastlineBuffer(boolean[] land, int width, int height, int buffer) {
+        if (buffer == 0) {
+            return land;
+        }
+        final boolean dilate = buffer > 0;
+        final int radius = Math.abs(buffer);
+        final boolean[] rows = new boolean[land.length];
+        final int[] count = new int[Math.max(width, height) + 1];
+        for (int y = 0; y < height; y++) {
+            final int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                count[x + 1] = count[x] + (land[offset + x] ? 1 : 0);
+            }
+            for (int x = 0; x < width; x++) {
+                rows[offset + x] = isSet(count, x, width, radius, dilate);
+            }
+        }
+        final boolean[] result = new boolean[land.length];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                count[y + 1] = count[y] + (rows[y * width + x] ? 1 : 0);
+            }
+            for (int y = 0; y < height; y++) {
+                result[y * width + x] = isSet(count, y, height, radius, dilate);
+            }
+        }
+        return result;
+    }
+
+    // count[] holds the cumulative number of land pixels along a line, window is clipped at the line ends
+    private static boolean isSet(int[] count, int index, int length, int radius, boolean dilate) {
+        final int start = Math.max(0, index - radius);
+        final int end = Math.min(length, index + radius + 1);
+        final int landCount = count[end] - count[start];
+        return dilate ? landCount > 0 : landCount == end - start;
+    }
+}
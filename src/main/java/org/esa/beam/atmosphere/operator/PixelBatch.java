@@ -0,0 +1,124 @@
+package org.esa.beam.atmosphere.operator;
+
+import java.awt.Rectangle;
+
+/**
+ * Primitive buffers of the atmospheric correction for a batch of pixels, e.g. all pixels of a tile: the input
+ * data, the geometry terms derived from it and the results. The buffers are indexed by pixel, spectral data
+ * is stored band by band. A batch can be reused for any number of pixels up to its capacity.
+ */
+public class PixelBatch {
+
+    public final int[] pixelX;
+    public final int[] pixelY;
+    public final int[] validation;
+
+    public final double[] solzen;
+    public final double[] solazi;
+    public final double[] satzen;
+    public final double[] satazi;
+    public final double[] lat;
+    public final double[] lon;
+
+    public final double[][] toaReflectance;    /* [band][pixel] */
+    public final double[] temperature;
+    public final double[] salinity;
+    public final double[] ozone;               /* only used if not constant over the scene */
+    public final double[] pressure;            /* only used if not constant over the scene */
+    public int nadirColumnIndex;
+    public int columnStep = 1;                 /* the full resolution columns per column, > 1 for quicklooks */
+
+    // geometry, computed from the input angles
+    public final double[] cosSunZenith;
+    public final double[] sinSunZenith;
+    public final double[] cosViewZenith;       /* of the corrected view zenith angle */
+    public final double[] sinViewZenith;
+    public final double[] cosAziDiff;
+    public final double[] sinAziDiff;
+    public final double[] airMassSun;
+    public final double[] airMassView;
+    public final double[] rayleighPhase;
+    public final double[] lutPositionSun;      /* fractional table position of cos(sun), TOSA LUT mode only */
+    public final double[] lutPositionView;     /* fractional table position of cos(view), TOSA LUT mode only */
+
+    // results
+    public final int[] flag;
+    public final double[][] tosaReflec;        /* [band][pixel] */
+    public final double[][] reflec;            /* [band][pixel] */
+
+    private int size;
+
+    /**
+     * @param numBands the number of spectral bands
+     * @param capacity the maximum number of pixels
+     */
+    public PixelBatch(int numBands, int capacity) {
+        pixelX = new int[capacity];
+        pixelY = new int[capacity];
+        validation = new int[capacity];
+        solzen = new double[capacity];
+        solazi = new double[capacity];
+        satzen = new double[capacity];
+        satazi = new double[capacity];
+        lat = new double[capacity];
+        lon = new double[capacity];
+        toaReflectance = new double[numBands][capacity];
+        temperature = new double[capacity];
+        salinity = new double[capacity];
+        ozone = new double[capacity];
+        pressure = new double[capacity];
+
+        cosSunZenith = new double[capacity];
+        sinSunZenith = new double[capacity];
+        cosViewZenith = new double[capacity];
+        sinViewZenith = new double[capacity];
+        cosAziDiff = new double[capacity];
+        sinAziDiff = new double[capacity];
+        airMassSun = new double[capacity];
+        airMassView = new double[capacity];
+        rayleighPhase = new double[capacity];
+        lutPositionSun = new double[capacity];
+        lutPositionView = new double[capacity];
+
+        flag = new int[capacity];
+        tosaReflec = new double[numBands][capacity];
+        reflec = new double[numBands][capacity];
+    }
+
+    public int getCapacity() {
+        return pixelX.length;
+    }
+
+    public int getNumBands() {
+        return toaReflectance.length;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        if (size > getCapacity()) {
+            throw new IllegalArgumentException("size > capacity");
+        }
+        this.size = size;
+    }
+
+    /**
+     * Sets the size of the batch to the number of pixels in the rectangle and the pixel coordinates
+     * to those of the rectangle, row by row.
+     *
+     * @param rectangle the pixel rectangle
+     */
+    public void setRectangle(Rectangle rectangle) {
+        setSize(rectangle.width * rectangle.height);
+        int index = 0;
+        for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+            for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
+                pixelX[index] = x;
+                pixelY[index] = y;
+                index++;
+            }
+        }
+    }
+}
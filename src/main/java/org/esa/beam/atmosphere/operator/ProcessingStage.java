@@ -0,0 +1,46 @@
+package org.esa.beam.atmosphere.operator;
+
+/**
+ * The stages of the processing of a tile by {@link ModisAtmosCorrectionOp}, as timed by
+ * {@link ProcessingStatistics}.
+ */
+public enum ProcessingStage {
+
+    /**
+     * Fetching the source tiles, i.e. the reading of the MODIS products.
+     */
+    SOURCE_FETCH("SourceFetch"),
+    /**
+     * Fetching the TOA validation flags, which includes the land, cloud and TOA range detection.
+     */
+    VALIDATION("Validation"),
+    /**
+     * Lookup of salinity and temperature, and interpolation of the ozone and pressure auxiliary data.
+     */
+    SALINITY_TEMPERATURE("SalinityTemperature"),
+    /**
+     * Geometry and TOSA reflectances.
+     */
+    TOSA("Tosa"),
+    /**
+     * Neural net, including the conversion of its input.
+     */
+    NEURAL_NET("NeuralNet"),
+    /**
+     * Writing the results to the target tiles.
+     */
+    TARGET_WRITE("TargetWrite");
+
+    private final String label;
+
+    private ProcessingStage(String label) {
+        this.label = label;
+    }
+
+    /**
+     * @return the name of the stage as used in attribute names
+     */
+    public String getLabel() {
+        return label;
+    }
+}
@@ -0,0 +1,448 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.datamodel.MetadataElement;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timers of the processing stages of {@link ModisAtmosCorrectionOp}. Each operator instance has
+ * its own statistics, which forward all updates to the JVM-wide statistics returned by {@link #getJvmStatistics()}.
+ * Both can be published as JMX MBeans with {@link #register(String)}, under the domain {@link #JMX_DOMAIN}, and
+ * written to product metadata with {@link #writeMetadata(MetadataElement)}.
+ * <p/>
+ * The counters are updated once per strip of a tile, not per pixel, so the overhead is a few clock readings per
+ * some thousand pixels. They are {@link StripedCounter}s, so the threads computing tiles do not contend for them.
+ */
+public class ProcessingStatistics implements ProcessingStatisticsMBean {
+
+    public static final String JMX_DOMAIN = "org.esa.beam.atmosphere";
+    public static final String METADATA_ELEMENT_NAME = "Processing_Statistics";
+
+    private static ProcessingStatistics jvmStatistics;
+
+    private final ProcessingStatistics parent;
+    private final StripedCounter[] stageWallNanos = createCounters(ProcessingStage.values().length);
+    private final StripedCounter[] stageCpuNanos = createCounters(ProcessingStage.values().length);
+    private final StripedCounter computedTileCount = new StripedCounter();
+    private final StripedCounter skippedTileCount = new StripedCounter();
+    private final StripedCounter restoredTileCount = new StripedCounter();
+    private final StripedCounter processedPixelCount = new StripedCounter();
+    private final StripedCounter validPixelCount = new StripedCounter();
+    private final StripedCounter skippedPixelCount = new StripedCounter();
+    private final StripedCounter landPixelCount = new StripedCounter();
+    private final StripedCounter cloudIcePixelCount = new StripedCounter();
+    private final StripedCounter toaOorPixelCount = new StripedCounter();
+    private final StripedCounter inputOorPixelCount = new StripedCounter();
+    private final StripedCounter nanInputPixelCount = new StripedCounter();
+    private final StripedCounter prefetchHitCount = new StripedCounter();
+    private final StripedCounter prefetchLateCount = new StripedCounter();
+    private final StripedCounter prefetchMissCount = new StripedCounter();
+    // start of the first and end of the last tile, from System.nanoTime()
+    private final AtomicLong firstTileStart = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong lastTileEnd = new AtomicLong(Long.MIN_VALUE);
+
+    private ObjectName objectName;
+
+    /**
+     * Creates statistics which forward all updates to the JVM-wide statistics.
+     */
+    public ProcessingStatistics() {
+        this(getJvmStatistics());
+    }
+
+    private ProcessingStatistics(ProcessingStatistics parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Gets the statistics of all operator instances of this JVM. They are registered as MBean with the name
+     * {@code total} when first requested.
+     *
+     * @return the JVM-wide statistics
+     */
+    public static synchronized ProcessingStatistics getJvmStatistics() {
+        if (jvmStatistics == null) {
+            jvmStatistics = new ProcessingStatistics(null);
+            try {
+                jvmStatistics.register("total");
+            } catch (JMException ignore) {
+                // the statistics are still usable without JMX
+            }
+        }
+        return jvmStatistics;
+    }
+
+    /**
+     * Registers these statistics at the platform MBean server.
+     *
+     * @param name the value of the {@code name} key of the object name
+     * @throws JMException if the registration fails
+     */
+    public synchronized void register(String name) throws JMException {
+        final ObjectName newObjectName = new ObjectName(JMX_DOMAIN + ":type=ModisAtmosCorrection,name=" +
+                                                                ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, newObjectName);
+        objectName = newObjectName;
+    }
+
+    /**
+     * Removes these statistics from the platform MBean server, if registered.
+     */
+    public synchronized void unregister() {
+        if (objectName != null) {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+            } catch (JMException ignore) {
+                // already removed by someone else
+            }
+            objectName = null;
+        }
+    }
+
+    synchronized ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * @param stage     the processing stage
+     * @param wallNanos the elapsed time spent in the stage (ns)
+     * @param cpuNanos  the CPU time spent in the stage (ns)
+     */
+    public void addStageTime(ProcessingStage stage, long wallNanos, long cpuNanos) {
+        stageWallNanos[stage.ordinal()].add(wallNanos);
+        stageCpuNanos[stage.ordinal()].add(cpuNanos);
+        if (parent != null) {
+            parent.addStageTime(stage, wallNanos, cpuNanos);
+        }
+    }
+
+    /**
+     * Counts the pixels of a strip or tile by their AC flags.
+     *
+     * @param flags  the AC flags
+     * @param length the number of pixels
+     */
+    public void addFlags(int[] flags, int length) {
+        int valid = 0;
+        int land = 0;
+        int cloudIce = 0;
+        int toaOor = 0;
+        int inputOor = 0;
+        int nanInput = 0;
+        for (int i = 0; i < length; i++) {
+            final int flag = flags[i];
+            if (flag == 0) {
+                valid++;
+            }
+            if ((flag & AtmosCorrection.LAND) != 0) {
+                land++;
+            }
+            if ((flag & AtmosCorrection.CLOUD_ICE) != 0) {
+                cloudIce++;
+            }
+            if ((flag & AtmosCorrection.TOA_OOR) != 0) {
+                toaOor++;
+            }
+            if ((flag & AtmosCorrection.INPUT_OOR) != 0) {
+                inputOor++;
+            }
+            if ((flag & AtmosCorrection.NAN_INPUT) != 0) {
+                nanInput++;
+            }
+        }
+        addPixelCounts(length, valid, land, cloudIce, toaOor, inputOor, nanInput);
+    }
+
+    /**
+     * @param startNanos the start time of the computation of the tile, from {@link System#nanoTime()}
+     * @param skipped    true if the tile has been skipped, as it contains no correctable pixel
+     * @param tilePixels the number of pixels of the tile
+     */
+    public void addTile(long startNanos, boolean skipped, int tilePixels) {
+        updateMin(firstTileStart, startNanos);
+        updateMax(lastTileEnd, System.nanoTime());
+        computedTileCount.increment();
+        if (skipped) {
+            skippedTileCount.increment();
+            skippedPixelCount.add(tilePixels);
+        }
+        if (parent != null) {
+            parent.addTile(startNanos, skipped, tilePixels);
+        }
+    }
+
+    /**
+     * Counts a tile which has been restored from a checkpoint instead of being computed. The tile must also be
+     * added with {@link #addTile(long, boolean, int)}.
+     */
+    public void addRestoredTile() {
+        restoredTileCount.increment();
+        if (parent != null) {
+            parent.addRestoredTile();
+        }
+    }
+
+    /**
+     * Counts whether the sources of a tile had been read ahead by the {@link SourceTilePrefetcher}.
+     *
+     * @param requested true if the sources had been requested
+     * @param completed true if the sources had been read completely
+     */
+    public void addPrefetchLookup(boolean requested, boolean completed) {
+        if (!requested) {
+            prefetchMissCount.increment();
+        } else if (completed) {
+            prefetchHitCount.increment();
+        } else {
+            prefetchLateCount.increment();
+        }
+        if (parent != null) {
+            parent.addPrefetchLookup(requested, completed);
+        }
+    }
+
+    /**
+     * @param stage the processing stage
+     * @return the elapsed time spent in the stage (ns), summed up over all threads
+     */
+    public long getStageNanos(ProcessingStage stage) {
+        return stageWallNanos[stage.ordinal()].sum();
+    }
+
+    /**
+     * @param stage the processing stage
+     * @return the CPU time spent in the stage (ns), summed up over all threads
+     */
+    public long getStageCpuNanos(ProcessingStage stage) {
+        return stageCpuNanos[stage.ordinal()].sum();
+    }
+
+    /**
+     * @return the time from the start of the first to the end of the last computed tile (ns)
+     */
+    public long getWallNanos() {
+        final long start = firstTileStart.get();
+        final long end = lastTileEnd.get();
+        return end > start ? end - start : 0L;
+    }
+
+    @Override
+    public long getWallTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(getWallNanos());
+    }
+
+    @Override
+    public double getPixelsPerSecond() {
+        final long wallNanos = getWallNanos();
+        return wallNanos > 0 ? getProcessedPixelCount() * 1.0e9 / wallNanos : 0.0;
+    }
+
+    @Override
+    public long getComputedTileCount() {
+        return computedTileCount.sum();
+    }
+
+    @Override
+    public long getSkippedTileCount() {
+        return skippedTileCount.sum();
+    }
+
+    @Override
+    public long getRestoredTileCount() {
+        return restoredTileCount.sum();
+    }
+
+    @Override
+    public long getProcessedPixelCount() {
+        return processedPixelCount.sum();
+    }
+
+    @Override
+    public long getValidPixelCount() {
+        return validPixelCount.sum();
+    }
+
+    @Override
+    public long getSkippedPixelCount() {
+        return skippedPixelCount.sum();
+    }
+
+    @Override
+    public long getLandPixelCount() {
+        return landPixelCount.sum();
+    }
+
+    @Override
+    public long getCloudIcePixelCount() {
+        return cloudIcePixelCount.sum();
+    }
+
+    @Override
+    public long getToaOorPixelCount() {
+        return toaOorPixelCount.sum();
+    }
+
+    @Override
+    public long getInputOorPixelCount() {
+        return inputOorPixelCount.sum();
+    }
+
+    @Override
+    public long getNanInputPixelCount() {
+        return nanInputPixelCount.sum();
+    }
+
+    @Override
+    public long getPrefetchHitCount() {
+        return prefetchHitCount.sum();
+    }
+
+    @Override
+    public long getPrefetchLateCount() {
+        return prefetchLateCount.sum();
+    }
+
+    @Override
+    public long getPrefetchMissCount() {
+        return prefetchMissCount.sum();
+    }
+
+    @Override
+    public double getPrefetchHitRate() {
+        final long hits = getPrefetchHitCount();
+        final long lookups = hits + getPrefetchLateCount() + getPrefetchMissCount();
+        return lookups > 0 ? (double) hits / lookups : 0.0;
+    }
+
+    @Override
+    public long getSourceFetchTimeMillis() {
+        return getStageMillis(ProcessingStage.SOURCE_FETCH);
+    }
+
+    @Override
+    public long getValidationTimeMillis() {
+        return getStageMillis(ProcessingStage.VALIDATION);
+    }
+
+    @Override
+    public long getSalinityTemperatureTimeMillis() {
+        return getStageMillis(ProcessingStage.SALINITY_TEMPERATURE);
+    }
+
+    @Override
+    public long getTosaTimeMillis() {
+        return getStageMillis(ProcessingStage.TOSA);
+    }
+
+    @Override
+    public long getNeuralNetTimeMillis() {
+        return getStageMillis(ProcessingStage.NEURAL_NET);
+    }
+
+    @Override
+    public long getTargetWriteTimeMillis() {
+        return getStageMillis(ProcessingStage.TARGET_WRITE);
+    }
+
+    /**
+     * Sets all counters of these statistics to zero, the parent statistics are not changed.
+     */
+    @Override
+    public void reset() {
+        for (ProcessingStage stage : ProcessingStage.values()) {
+            stageWallNanos[stage.ordinal()].reset();
+            stageCpuNanos[stage.ordinal()].reset();
+        }
+        for (StripedCounter counter : new StripedCounter[]{
+                computedTileCount, skippedTileCount, restoredTileCount, processedPixelCount, validPixelCount,
+                skippedPixelCount, landPixelCount, cloudIcePixelCount, toaOorPixelCount, inputOorPixelCount,
+                nanInputPixelCount, prefetchHitCount, prefetchLateCount, prefetchMissCount}) {
+            counter.reset();
+        }
+        firstTileStart.set(Long.MAX_VALUE);
+        lastTileEnd.set(Long.MIN_VALUE);
+    }
+
+    /**
+     * Writes the current statistics as attributes to a metadata element, replacing the values of a previous call.
+     * The times per stage are written to one sub-element per stage. The counts are written as double attributes,
+     * which hold them exactly up to 2^53, as the counts of the JVM totals may exceed the range of int. All
+     * attributes are written by every call, so that writers defining the attributes in advance find all of them.
+     *
+     * @param element the metadata element, usually {@link #METADATA_ELEMENT_NAME}
+     */
+    public synchronized void writeMetadata(MetadataElement element) {
+        element.setAttributeDouble("wall_time_s", getWallNanos() / 1.0e9);
+        element.setAttributeDouble("pixels_per_second", getPixelsPerSecond());
+        element.setAttributeDouble("computed_tiles", getComputedTileCount());
+        element.setAttributeDouble("skipped_tiles", getSkippedTileCount());
+        element.setAttributeDouble("restored_tiles", getRestoredTileCount());
+        element.setAttributeDouble("processed_pixels", getProcessedPixelCount());
+        element.setAttributeDouble("valid_pixels", getValidPixelCount());
+        element.setAttributeDouble("land_pixels", getLandPixelCount());
+        element.setAttributeDouble("cloud_ice_pixels", getCloudIcePixelCount());
+        element.setAttributeDouble("toa_oor_pixels", getToaOorPixelCount());
+        element.setAttributeDouble("input_oor_pixels", getInputOorPixelCount());
+        element.setAttributeDouble("nan_input_pixels", getNanInputPixelCount());
+        element.setAttributeDouble("prefetch_hits", getPrefetchHitCount());
+        element.setAttributeDouble("prefetch_late", getPrefetchLateCount());
+        element.setAttributeDouble("prefetch_misses", getPrefetchMissCount());
+        for (ProcessingStage stage : ProcessingStage.values()) {
+            MetadataElement stageElement = element.getElement(stage.getLabel());
+            if (stageElement == null) {
+                stageElement = new MetadataElement(stage.getLabel());
+                element.addElement(stageElement);
+            }
+            stageElement.setAttributeDouble("wall_time_s", getStageNanos(stage) / 1.0e9);
+            stageElement.setAttributeDouble("cpu_time_s", getStageCpuNanos(stage) / 1.0e9);
+        }
+    }
+
+    private void addPixelCounts(int processed, int valid, int land, int cloudIce, int toaOor, int inputOor,
+                                int nanInput) {
+        processedPixelCount.add(processed);
+        validPixelCount.add(valid);
+        landPixelCount.add(land);
+        cloudIcePixelCount.add(cloudIce);
+        toaOorPixelCount.add(toaOor);
+        inputOorPixelCount.add(inputOor);
+        nanInputPixelCount.add(nanInput);
+        if (parent != null) {
+            parent.addPixelCounts(processed, valid, land, cloudIce, toaOor, inputOor, nanInput);
+        }
+    }
+
+    private long getStageMillis(ProcessingStage stage) {
+        return TimeUnit.NANOSECONDS.toMillis(getStageNanos(stage));
+    }
+
+    private static StripedCounter[] createCounters(int count) {
+        final StripedCounter[] counters = new StripedCounter[count];
+        for (int i = 0; i < count; i++) {
+            counters[i] = new StripedCounter();
+        }
+        return counters;
+    }
+
+    private static void updateMin(AtomicLong value, long candidate) {
+        long current = value.get();
+        while (candidate < current && !value.compareAndSet(current, candidate)) {
+            current = value.get();
+        }
+    }
+
+    private static void updateMax(AtomicLong value, long candidate) {
+        long current = value.get();
+        while (candidate > current && !value.compareAndSet(current, candidate)) {
+            current = value.get();
+        }
+    }
+}
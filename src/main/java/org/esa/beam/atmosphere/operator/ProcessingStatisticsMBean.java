@@ -0,0 +1,92 @@
+package org.esa.beam.atmosphere.operator;
+
+/**
+ * The JMX management interface of {@link ProcessingStatistics}. All times are accumulated over the threads
+ * computing tiles, so they may exceed the elapsed time.
+ */
+public interface ProcessingStatisticsMBean {
+
+    /**
+     * @return the time from the start of the first to the end of the last computed tile
+     */
+    long getWallTimeMillis();
+
+    /**
+     * @return the number of processed pixels per wall time second
+     */
+    double getPixelsPerSecond();
+
+    long getComputedTileCount();
+
+    long getSkippedTileCount();
+
+    /**
+     * @return the number of tiles restored from checkpoints, which are included in the computed tiles
+     */
+    long getRestoredTileCount();
+
+    /**
+     * @return the number of pixels of all computed tiles, including those of skipped tiles
+     */
+    long getProcessedPixelCount();
+
+    /**
+     * @return the number of pixels which have been corrected
+     */
+    long getValidPixelCount();
+
+    /**
+     * @return the number of pixels of the skipped tiles
+     */
+    long getSkippedPixelCount();
+
+    long getLandPixelCount();
+
+    long getCloudIcePixelCount();
+
+    long getToaOorPixelCount();
+
+    long getInputOorPixelCount();
+
+    /**
+     * @return the number of pixels with a NaN or infinite neural net input
+     */
+    long getNanInputPixelCount();
+
+    /**
+     * @return the number of tiles whose sources had been read ahead completely when the tile was started
+     */
+    long getPrefetchHitCount();
+
+    /**
+     * @return the number of tiles whose sources were still being read ahead when the tile was started
+     */
+    long getPrefetchLateCount();
+
+    /**
+     * @return the number of tiles whose sources had not been requested ahead
+     */
+    long getPrefetchMissCount();
+
+    /**
+     * @return the fraction of the started tiles which were prefetch hits, 0 if the sources are not read ahead
+     */
+    double getPrefetchHitRate();
+
+    long getSourceFetchTimeMillis();
+
+    long getValidationTimeMillis();
+
+    long getSalinityTemperatureTimeMillis();
+
+    long getTosaTimeMillis();
+
+    long getNeuralNetTimeMillis();
+
+    long getTargetWriteTimeMillis();
+
+    /**
+     * Sets all counters to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,85 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.datamodel.Band;
+
+/**
+ * Linear encoding of a value range as 16 bit integers. The range is mapped to the raw values
+ * [-32767, 32767], so the quantisation error is at most (max - min) / 131068. Values outside of the range are
+ * clipped to it, and the raw value -32768 marks pixels without data.
+ */
+class ScaledInt16Encoding {
+
+    static final short NO_DATA_VALUE = Short.MIN_VALUE;
+
+    private static final int MAX_RAW_VALUE = Short.MAX_VALUE;
+
+    private final double scalingFactor;
+    private final double scalingOffset;
+    private final double inverseScalingFactor;
+
+    /**
+     * Creates an encoding.
+     *
+     * @param min the minimum of the encoded range
+     * @param max the maximum of the encoded range
+     */
+    ScaledInt16Encoding(double min, double max) {
+        if (!(max > min)) {
+            throw new IllegalArgumentException("max <= min");
+        }
+        scalingOffset = 0.5 * (min + max);
+        scalingFactor = (max - min) / (2.0 * MAX_RAW_VALUE);
+        inverseScalingFactor = 1.0 / scalingFactor;
+    }
+
+    double getScalingFactor() {
+        return scalingFactor;
+    }
+
+    double getScalingOffset() {
+        return scalingOffset;
+    }
+
+    /**
+     * @return the maximum error of encoding and decoding a value of the range
+     */
+    double getMaxError() {
+        return 0.5 * scalingFactor;
+    }
+
+    /**
+     * Encodes a value.
+     *
+     * @param value the value
+     * @return the raw value, or {@link #NO_DATA_VALUE} if the value is NaN
+     */
+    int encode(double value) {
+        if (Double.isNaN(value)) {
+            return NO_DATA_VALUE;
+        }
+        final double raw = Math.rint((value - scalingOffset) * inverseScalingFactor);
+        if (raw > MAX_RAW_VALUE) {
+            return MAX_RAW_VALUE;
+        }
+        if (raw < -MAX_RAW_VALUE) {
+            return -MAX_RAW_VALUE;
+        }
+        return (int) raw;
+    }
+
+    double decode(int raw) {
+        return raw == NO_DATA_VALUE ? Double.NaN : raw * scalingFactor + scalingOffset;
+    }
+
+    /**
+     * Sets the scaling and the no-data value of a band of type {@code int16}.
+     *
+     * @param band the band
+     */
+    void applyTo(Band band) {
+        band.setScalingFactor(scalingFactor);
+        band.setScalingOffset(scalingOffset);
+        band.setNoDataValue(NO_DATA_VALUE);
+        band.setNoDataValueUsed(true);
+    }
+}
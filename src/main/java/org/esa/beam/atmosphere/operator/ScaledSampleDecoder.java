@@ -0,0 +1,184 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.RasterDataNode;
+import org.esa.beam.framework.gpf.Tile;
+
+import java.awt.Rectangle;
+
+/**
+ * Decodes the raw samples of a band into geophysical values in one pass over the raw data array,
+ * replacing the per-sample access via {@link ProductData#getElemFloatAt(int)} and {@link RasterDataNode#scale(double)}.
+ * <p/>
+ * For 8 and 16 bit integer data containing fill or saturation codes (or log-scaled data) a lookup table
+ * over all possible raw values is used, for all other data the scaling factor and offset are applied
+ * directly. Invalid raw values are decoded to NaN.
+ */
+public class ScaledSampleDecoder {
+
+    private final int dataType;
+    private final double scalingFactor;
+    private final double scalingOffset;
+    private final boolean log10Scaled;
+    private final boolean noDataValueUsed;
+    private final double noDataValue;
+    private final double maxValidRawValue;
+    private final double[] lookupTable;
+
+    /**
+     * Creates a decoder for the given band.
+     *
+     * @param node             the band
+     * @param maxValidRawValue the maximum valid raw value, greater values are treated as invalid
+     *
+     * @return the decoder
+     */
+    public static ScaledSampleDecoder create(RasterDataNode node, double maxValidRawValue) {
+        return new ScaledSampleDecoder(node.getDataType(), node.getScalingFactor(), node.getScalingOffset(),
+                                       node.isLog10Scaled(), node.isNoDataValueUsed(), node.getNoDataValue(),
+                                       maxValidRawValue);
+    }
+
+    /**
+     * Creates a decoder for the given band, with all raw values except the no-data value being valid.
+     *
+     * @param node the band
+     *
+     * @return the decoder
+     */
+    public static ScaledSampleDecoder create(RasterDataNode node) {
+        return create(node, Double.POSITIVE_INFINITY);
+    }
+
+    ScaledSampleDecoder(int dataType, double scalingFactor, double scalingOffset, boolean log10Scaled,
+                        boolean noDataValueUsed, double noDataValue, double maxValidRawValue) {
+        this.dataType = dataType;
+        this.scalingFactor = scalingFactor;
+        this.scalingOffset = scalingOffset;
+        this.log10Scaled = log10Scaled;
+        this.noDataValueUsed = noDataValueUsed;
+        this.noDataValue = noDataValue;
+        this.maxValidRawValue = maxValidRawValue;
+        final boolean hasInvalidValues = noDataValueUsed || maxValidRawValue < Double.POSITIVE_INFINITY;
+        if (isTabulated(dataType) && (hasInvalidValues || log10Scaled)) {
+            lookupTable = createLookupTable();
+        } else {
+            lookupTable = null;
+        }
+    }
+
+    /**
+     * Decodes the samples of a tile into the given buffer, row by row. The tile's data buffer is accessed
+     * directly, so no copy of the raw samples is made.
+     *
+     * @param tile      the tile
+     * @param rectangle the part of the tile to decode
+     * @param values    the buffer receiving the geophysical values, at least as long as the rectangle
+     */
+    public void decode(Tile tile, Rectangle rectangle, double[] values) {
+        final Object rawElems = tile.getDataBuffer().getElems();
+        for (int y = 0; y < rectangle.height; y++) {
+            decode(rawElems, tile.getDataBufferIndex(rectangle.x, rectangle.y + y), values, y * rectangle.width,
+                   rectangle.width);
+        }
+    }
+
+    /**
+     * Decodes raw samples into the given buffer.
+     *
+     * @param rawElems the primitive array holding the raw samples
+     * @param srcPos   the index of the first raw sample
+     * @param values   the buffer receiving the geophysical values
+     * @param destPos  the index of the first value
+     * @param length   the number of samples to decode
+     */
+    public void decode(Object rawElems, int srcPos, double[] values, int destPos, int length) {
+        final int delta = destPos - srcPos;
+        final int end = srcPos + length;
+        if (rawElems instanceof short[]) {
+            final short[] elems = (short[]) rawElems;
+            if (lookupTable != null) {
+                for (int i = srcPos; i < end; i++) {
+                    values[i + delta] = lookupTable[elems[i] & 0xFFFF];
+                }
+            } else if (dataType == ProductData.TYPE_UINT16) {
+                for (int i = srcPos; i < end; i++) {
+                    values[i + delta] = (elems[i] & 0xFFFF) * scalingFactor + scalingOffset;
+                }
+            } else {
+                for (int i = srcPos; i < end; i++) {
+                    values[i + delta] = elems[i] * scalingFactor + scalingOffset;
+                }
+            }
+        } else if (rawElems instanceof byte[]) {
+            final byte[] elems = (byte[]) rawElems;
+            if (lookupTable != null) {
+                for (int i = srcPos; i < end; i++) {
+                    values[i + delta] = lookupTable[elems[i] & 0xFF];
+                }
+            } else if (dataType == ProductData.TYPE_UINT8) {
+                for (int i = srcPos; i < end; i++) {
+                    values[i + delta] = (elems[i] & 0xFF) * scalingFactor + scalingOffset;
+                }
+            } else {
+                for (int i = srcPos; i < end; i++) {
+                    values[i + delta] = elems[i] * scalingFactor + scalingOffset;
+                }
+            }
+        } else if (rawElems instanceof float[]) {
+            final float[] elems = (float[]) rawElems;
+            for (int i = srcPos; i < end; i++) {
+                values[i + delta] = decodeValue(elems[i]);
+            }
+        } else if (rawElems instanceof double[]) {
+            final double[] elems = (double[]) rawElems;
+            for (int i = srcPos; i < end; i++) {
+                values[i + delta] = decodeValue(elems[i]);
+            }
+        } else if (rawElems instanceof int[]) {
+            final int[] elems = (int[]) rawElems;
+            final boolean unsigned = dataType == ProductData.TYPE_UINT32;
+            for (int i = srcPos; i < end; i++) {
+                values[i + delta] = decodeValue(unsigned ? elems[i] & 0xFFFFFFFFL : elems[i]);
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported raw data type: " + rawElems.getClass());
+        }
+    }
+
+    boolean isLookupTableUsed() {
+        return lookupTable != null;
+    }
+
+    private static boolean isTabulated(int dataType) {
+        return dataType == ProductData.TYPE_INT8 || dataType == ProductData.TYPE_UINT8 ||
+                dataType == ProductData.TYPE_INT16 || dataType == ProductData.TYPE_UINT16;
+    }
+
+    // the table is indexed by the unsigned bit pattern of the raw value
+    private double[] createLookupTable() {
+        final boolean eightBit = dataType == ProductData.TYPE_INT8 || dataType == ProductData.TYPE_UINT8;
+        final int numValues = eightBit ? 1 << 8 : 1 << 16;
+        final double[] table = new double[numValues];
+        for (int i = 0; i < numValues; i++) {
+            final int rawValue;
+            if (dataType == ProductData.TYPE_INT8) {
+                rawValue = (byte) i;
+            } else if (dataType == ProductData.TYPE_INT16) {
+                rawValue = (short) i;
+            } else {
+                rawValue = i;
+            }
+            table[i] = decodeValue(rawValue);
+        }
+        return table;
+    }
+
+    private double decodeValue(double rawValue) {
+        if ((noDataValueUsed && rawValue == noDataValue) || rawValue > maxValidRawValue) {
+            return Double.NaN;
+        }
+        final double value = rawValue * scalingFactor + scalingOffset;
+        return log10Scaled ? Math.pow(10.0, value) : value;
+    }
+}
@@ -0,0 +1,216 @@
+package org.esa.beam.atmosphere.operator;
+
+import com.bc.ceres.core.ProgressMonitor;
+import com.bc.ceres.glevel.MultiLevelImage;
+import org.esa.beam.dataio.dimap.DimapHeaderWriter;
+import org.esa.beam.dataio.dimap.DimapProductConstants;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.dataio.ProductWriter;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.util.io.FileUtils;
+
+import javax.media.jai.JAI;
+import javax.media.jai.TileCache;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a product in strips of complete rows from top to bottom. Each strip is computed, handed to the product
+ * writer and then removed from the JAI tile cache, together with the tiles of the given source products which
+ * are not needed by the following strips. If all products whose images are computed for the product are
+ * given, the memory needed depends on the strip height, but not on the height of the product.
+ * <p/>
+ * For {@link ModisAtmosCorrectionOp} the strip height should be the tile height given by its parameter
+ * {@code scansPerStrip}, so that each strip is computed by one call of {@code computeTileStack}, which reads
+ * only the source rows of the strip. Besides its source products, the products returned by
+ * {@link ModisAtmosCorrectionOp#getIntermediateProducts()} must be given. If the operator processes a region or
+ * a quicklook, the rows of the source products differ from the target rows, and the source region and the
+ * quicklook step of the operator must be given, see
+ * {@link #write(Product, File, String, Product[], int, int, Product[], ProgressMonitor)}.
+ * <p/>
+ * The header is written before the first strip. For BEAM-DIMAP, it is written again after the last strip, so
+ * that it holds the metadata completed while the strips were computed, like the processing statistics.
+ */
+public class ScanStripWriter {
+
+    private final int stripHeight;
+    private final List<RenderedImage> releasedImages;
+    private final List<Integer> releasedTileRows;
+    private final List<int[]> releasedRowMappings;
+
+    /**
+     * Creates a writer.
+     *
+     * @param stripHeight the number of rows written at once
+     */
+    public ScanStripWriter(int stripHeight) {
+        if (stripHeight < 1) {
+            throw new IllegalArgumentException("stripHeight < 1");
+        }
+        this.stripHeight = stripHeight;
+        releasedImages = new ArrayList<RenderedImage>();
+        releasedTileRows = new ArrayList<Integer>();
+        releasedRowMappings = new ArrayList<int[]>();
+    }
+
+    /**
+     * Writes a product, whose source products have the same rows as the product.
+     *
+     * @param product        the product
+     * @param file           the output file
+     * @param formatName     the name of the output format
+     * @param sourceProducts the source and intermediate products, whose cached tiles are released after they
+     *                       have been used
+     * @param pm             a progress monitor
+     * @throws IOException if the product cannot be written
+     */
+    public void write(Product product, File file, String formatName, Product[] sourceProducts,
+                      ProgressMonitor pm) throws IOException {
+        write(product, file, formatName, new Product[0], 0, 1, sourceProducts, pm);
+    }
+
+    /**
+     * Writes a product, whose source products have other rows than the product. Row {@code y} of the product
+     * is computed from row {@code sourceRowOffset + y * sourceRowStep} of the source products.
+     *
+     * @param product              the product
+     * @param file                 the output file
+     * @param formatName           the name of the output format
+     * @param sourceProducts       the source products, whose cached tiles are released after they have been used
+     * @param sourceRowOffset      the source row of the first row of the product
+     * @param sourceRowStep        the number of source rows per row of the product
+     * @param intermediateProducts the intermediate products, which have the same rows as the product, and whose
+     *                             cached tiles are released after they have been used
+     * @param pm                   a progress monitor
+     * @throws IOException if the product cannot be written
+     */
+    public void write(Product product, File file, String formatName, Product[] sourceProducts, int sourceRowOffset,
+                      int sourceRowStep, Product[] intermediateProducts, ProgressMonitor pm) throws IOException {
+        if (sourceRowStep < 1) {
+            throw new IllegalArgumentException("sourceRowStep < 1");
+        }
+        final ProductWriter writer = ProductIO.getProductWriter(formatName);
+        if (writer == null) {
+            throw new IOException("No writer found for format '" + formatName + "'.");
+        }
+        final int width = product.getSceneRasterWidth();
+        final int height = product.getSceneRasterHeight();
+        final int numStrips = (height + stripHeight - 1) / stripHeight;
+
+        pm.beginTask("Writing product in strips...", numStrips);
+        try {
+            writer.writeProductNodes(product, file);
+            final List<Band> bands = new ArrayList<Band>();
+            for (Band band : product.getBands()) {
+                if (writer.shouldWrite(band)) {
+                    bands.add(band);
+                    addReleasedImage(band.getSourceImage(), 0, 1);
+                }
+            }
+
+            final ProductData[] buffers = new ProductData[bands.size()];
+            for (int y = 0; y < height; y += stripHeight) {
+                final int h = Math.min(stripHeight, height - y);
+                final Rectangle strip = new Rectangle(0, y, width, h);
+                for (int i = 0; i < bands.size(); i++) {
+                    final Band band = bands.get(i);
+                    if (buffers[i] == null || buffers[i].getNumElems() != width * h) {
+                        buffers[i] = ProductData.createInstance(band.getDataType(), width * h);
+                    }
+                    final Raster raster = band.getSourceImage().getData(strip);
+                    raster.getDataElements(0, y, width, h, buffers[i].getElems());
+                    writer.writeBandRasterData(band, 0, y, width, h, buffers[i], ProgressMonitor.NULL);
+                }
+                // the images of the source products may have been created for this strip
+                for (Product sourceProduct : sourceProducts) {
+                    addReleasedImages(sourceProduct, sourceRowOffset, sourceRowStep);
+                }
+                for (Product intermediateProduct : intermediateProducts) {
+                    addReleasedImages(intermediateProduct, 0, 1);
+                }
+                releaseTiles(y + h);
+                pm.worked(1);
+            }
+            if (DimapProductConstants.DIMAP_FORMAT_NAME.equals(formatName)) {
+                rewriteDimapHeader(product, file);
+            }
+            writer.flush();
+        } finally {
+            writer.close();
+            releasedImages.clear();
+            releasedTileRows.clear();
+            releasedRowMappings.clear();
+            pm.done();
+        }
+    }
+
+    /**
+     * Writes the header of a BEAM-DIMAP product again, after the band data has been written.
+     *
+     * @param product the product
+     * @param file    the output file given to the product writer
+     * @throws IOException if the header cannot be written
+     */
+    static void rewriteDimapHeader(Product product, File file) throws IOException {
+        final File headerFile = FileUtils.ensureExtension(file, DimapProductConstants.DIMAP_HEADER_FILE_EXTENSION);
+        final String dataDirName = FileUtils.getFilenameWithoutExtension(headerFile) +
+                                   DimapProductConstants.DIMAP_DATA_DIRECTORY_EXTENSION;
+        final DimapHeaderWriter headerWriter = new DimapHeaderWriter(product, headerFile, dataDirName);
+        try {
+            headerWriter.writeHeader();
+        } finally {
+            headerWriter.close();
+        }
+    }
+
+    private void addReleasedImages(Product product, int rowOffset, int rowStep) {
+        for (Band band : product.getBands()) {
+            // images which have not been created are not used
+            if (band.isSourceImageSet()) {
+                addReleasedImage(band.getSourceImage(), rowOffset, rowStep);
+            }
+        }
+    }
+
+    private void addReleasedImage(MultiLevelImage image, int rowOffset, int rowStep) {
+        // the tiles are cached for the image of the highest resolution
+        final RenderedImage levelImage = image.getImage(0);
+        if (!releasedImages.contains(levelImage)) {
+            releasedImages.add(levelImage);
+            releasedTileRows.add(levelImage.getMinTileY());
+            releasedRowMappings.add(new int[]{rowOffset, rowStep});
+        }
+    }
+
+    /**
+     * Removes the cached tiles of all rows above a row, which are not needed anymore.
+     *
+     * @param completedRows the number of rows of the product which have been written
+     */
+    private void releaseTiles(int completedRows) {
+        final TileCache tileCache = JAI.getDefaultInstance().getTileCache();
+        for (int i = 0; i < releasedImages.size(); i++) {
+            final RenderedImage image = releasedImages.get(i);
+            final int[] rowMapping = releasedRowMappings.get(i);
+            // the first row of the image needed by the next row of the product
+            final int neededRow = rowMapping[0] + completedRows * rowMapping[1];
+            int tileY = releasedTileRows.get(i);
+            while (tileY < image.getMinTileY() + image.getNumYTiles() &&
+                   Math.min(image.getTileGridYOffset() + (tileY + 1) * image.getTileHeight(),
+                            image.getMinY() + image.getHeight()) <= neededRow) {
+                for (int tileX = image.getMinTileX(); tileX < image.getMinTileX() + image.getNumXTiles(); tileX++) {
+                    tileCache.remove(image, tileX, tileY);
+                }
+                tileY++;
+            }
+            releasedTileRows.set(i, tileY);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.nn.NNffbpAlphaTabFast;
+import org.esa.beam.waterradiance.AuxdataProvider;
+import org.esa.beam.waterradiance.AuxdataProviderFactory;
+import org.esa.beam.watermask.operator.WatermaskClassifier;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM-wide resources which are expensive to create and can be shared by all operator instances, so that
+ * processing many granules in one JVM parses the neural nets, initializes the water mask and loads the
+ * salinity and temperature climatology only once. Like {@link GriddedAuxdataCache}, a resource is created
+ * when it is first requested. A failure to create a resource is not remembered, so a later request tries
+ * again, e.g. after a transient I/O error in a long-running gpt or VISAT session.
+ * <p/>
+ * A neural net is kept as a parsed prototype, which is never used for computations itself. The operators
+ * use copies of it (see {@link NNffbpAlphaTabFast#createCopy()}), which share the weights of the prototype.
+ */
+public class SharedResources {
+
+    private static final Map<String, String> neuralNetDefs = new HashMap<String, String>();
+    private static final Map<String, NNffbpAlphaTabFast> neuralNets = new HashMap<String, NNffbpAlphaTabFast>();
+    private static final Map<String, WatermaskClassifier> watermaskClassifiers = new HashMap<String, WatermaskClassifier>();
+    private static AuxdataProvider auxdataProvider;
+
+    private SharedResources() {
+    }
+
+    /**
+     * Gets the definition of a neural net which has been read before.
+     *
+     * @param key the key identifying the neural net and its version
+     * @return the neural net definition, or {@code null} if it has not been read yet
+     */
+    static synchronized String getNeuralNetDef(String key) {
+        return neuralNetDefs.get(key);
+    }
+
+    /**
+     * Gets the prototype of a neural net which has been read before. The prototype must not be used for
+     * computations, but only be copied.
+     *
+     * @param key the key identifying the neural net and its version
+     * @return the parsed neural net, or {@code null} if it has not been read yet
+     */
+    static synchronized NNffbpAlphaTabFast getNeuralNet(String key) {
+        return neuralNets.get(key);
+    }
+
+    /**
+     * Keeps the definition and the parsed prototype of a neural net for all later operator instances.
+     *
+     * @param key          the key identifying the neural net and its version
+     * @param neuralNetDef the neural net definition
+     * @param neuralNet    the neural net parsed from the definition
+     */
+    static synchronized void putNeuralNet(String key, String neuralNetDef, NNffbpAlphaTabFast neuralNet) {
+        neuralNetDefs.put(key, neuralNetDef);
+        neuralNets.put(key, neuralNet);
+    }
+
+    /**
+     * Gets the water mask classifier for a resolution and super sampling, creating it if necessary.
+     *
+     * @param resolution     the resolution of the water mask (m)
+     * @param superSamplingX the super sampling in x direction
+     * @param superSamplingY the super sampling in y direction
+     * @return the water mask classifier
+     * @throws IOException if the classifier cannot be created
+     */
+    public static synchronized WatermaskClassifier getWatermaskClassifier(int resolution, int superSamplingX,
+                                                                          int superSamplingY) throws IOException {
+        final String key = resolution + "/" + superSamplingX + "/" + superSamplingY;
+        WatermaskClassifier classifier = watermaskClassifiers.get(key);
+        if (classifier == null) {
+            classifier = new WatermaskClassifier(resolution, superSamplingX, superSamplingY);
+            watermaskClassifiers.put(key, classifier);
+        }
+        return classifier;
+    }
+
+    /**
+     * Gets the provider of the salinity and temperature climatology, creating it if necessary.
+     *
+     * @return the auxiliary data provider
+     * @throws IOException if the provider cannot be created
+     */
+    public static synchronized AuxdataProvider getAuxdataProvider() throws IOException {
+        if (auxdataProvider == null) {
+            auxdataProvider = AuxdataProviderFactory.createDataProvider();
+        }
+        return auxdataProvider;
+    }
+
+    static synchronized void clear() {
+        neuralNetDefs.clear();
+        neuralNets.clear();
+        watermaskClassifiers.clear();
+        auxdataProvider = null;
+    }
+}
@@ -0,0 +1,207 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.datamodel.RasterDataNode;
+
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the source tiles of the next target tiles ahead, on a small pool of I/O threads, so that reading the
+ * L1b and GEO products overlaps with the atmospheric correction of the current tiles. The source tiles are
+ * requested from the source images, which puts them into the JAI tile cache, where {@code getSourceTile} finds
+ * them later.
+ * <p/>
+ * The target tiles are assumed to be computed row by row from the top left, as done by the product writers.
+ * When a tile is started, the source tiles of the following tiles in this order are requested, as long as
+ * fewer than the in-flight budget of tiles are being read. The sources of a tile are read in two steps: first
+ * the gate sources, which decide whether the tile contains processable pixels, then, only if so, the other
+ * sources. So no spectral data is read ahead for tiles which are skipped.
+ * <p/>
+ * For every started tile it is counted whether its sources had been read completely (hit), were still being
+ * read (late, the compute thread waits for them) or had not been requested (miss).
+ */
+class SourceTilePrefetcher {
+
+    /**
+     * Decides whether the sources of a target tile are needed.
+     */
+    interface TileFilter {
+
+        /**
+         * Called after the gate sources of the tile have been read.
+         *
+         * @param targetRectangle the rectangle of the target tile
+         * @return true if the other sources of the tile are needed
+         */
+        boolean isProcessable(Rectangle targetRectangle);
+    }
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final RasterDataNode[] gateNodes;
+    private final RasterDataNode[] sourceNodes;
+    private final TileFilter tileFilter;
+    private final int width;
+    private final int height;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int lookAhead;
+    private final ProcessingStatistics statistics;
+    private final Semaphore inFlightBudget;
+    private final ExecutorService executor;
+    private final ConcurrentMap<Rectangle, Future<?>> requests;
+    private final ConcurrentMap<Rectangle, Boolean> startedTiles;
+
+    /**
+     * Creates a prefetcher.
+     *
+     * @param gateNodes   the sources read first
+     * @param sourceNodes the sources read if the tile filter accepts the tile
+     * @param tileFilter  the tile filter
+     * @param targetImage an image of the target product, which defines the tiling
+     * @param lookAhead   the number of tiles read ahead, and the maximum number of tiles being read
+     * @param numThreads  the number of I/O threads
+     * @param statistics  the statistics receiving the hit counts
+     */
+    SourceTilePrefetcher(RasterDataNode[] gateNodes, RasterDataNode[] sourceNodes, TileFilter tileFilter,
+                         RenderedImage targetImage, int lookAhead, int numThreads, ProcessingStatistics statistics) {
+        if (lookAhead < 1) {
+            throw new IllegalArgumentException("lookAhead < 1");
+        }
+        this.gateNodes = gateNodes;
+        this.sourceNodes = sourceNodes;
+        this.tileFilter = tileFilter;
+        this.lookAhead = lookAhead;
+        this.statistics = statistics;
+        width = targetImage.getWidth();
+        height = targetImage.getHeight();
+        tileWidth = targetImage.getTileWidth();
+        tileHeight = targetImage.getTileHeight();
+        inFlightBudget = new Semaphore(lookAhead);
+        requests = new ConcurrentHashMap<Rectangle, Future<?>>();
+        startedTiles = new ConcurrentHashMap<Rectangle, Boolean>();
+        executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ModisAC-prefetch-" + THREAD_COUNT.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Called when the computation of a target tile starts. Waits until the sources of the tile have been read, if
+     * they are being read, and requests the sources of the following tiles.
+     *
+     * @param targetRectangle the rectangle of the target tile
+     */
+    void tileStarted(Rectangle targetRectangle) {
+        startedTiles.put(new Rectangle(targetRectangle), Boolean.TRUE);
+        final Future<?> request = requests.remove(targetRectangle);
+        if (request == null) {
+            statistics.addPrefetchLookup(false, false);
+        } else {
+            statistics.addPrefetchLookup(true, request.isDone());
+            try {
+                request.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ignore) {
+                // the compute thread reads the sources again and reports the error
+            }
+        }
+        requestFollowingTiles(targetRectangle);
+    }
+
+    /**
+     * Stops the I/O threads. Tiles being read are completed.
+     */
+    void dispose() {
+        executor.shutdown();
+        requests.clear();
+        startedTiles.clear();
+    }
+
+    private void requestFollowingTiles(Rectangle targetRectangle) {
+        final int numXTiles = (width + tileWidth - 1) / tileWidth;
+        final int numTiles = numXTiles * ((height + tileHeight - 1) / tileHeight);
+        final int tileIndex = (targetRectangle.y / tileHeight) * numXTiles + targetRectangle.x / tileWidth;
+        for (int i = tileIndex + 1; i <= tileIndex + lookAhead && i < numTiles; i++) {
+            final Rectangle rectangle = getTileRectangle(i % numXTiles, i / numXTiles);
+            if (requests.containsKey(rectangle) || startedTiles.containsKey(rectangle)) {
+                // requested before, or computed by another thread
+                continue;
+            }
+            if (executor.isShutdown() || !inFlightBudget.tryAcquire()) {
+                return;
+            }
+            final FutureTask<Object> request = new FutureTask<Object>(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        readTiles(gateNodes, rectangle);
+                        if (tileFilter.isProcessable(rectangle)) {
+                            readTiles(sourceNodes, rectangle);
+                        }
+                    } finally {
+                        inFlightBudget.release();
+                    }
+                }
+            }, null);
+            if (requests.putIfAbsent(rectangle, request) != null) {
+                // requested by another compute thread in the meantime
+                inFlightBudget.release();
+                continue;
+            }
+            try {
+                executor.execute(request);
+            } catch (RejectedExecutionException e) {
+                // after dispose
+                requests.remove(rectangle);
+                inFlightBudget.release();
+                return;
+            }
+        }
+    }
+
+    Rectangle getTileRectangle(int tileX, int tileY) {
+        final int x = tileX * tileWidth;
+        final int y = tileY * tileHeight;
+        return new Rectangle(x, y, Math.min(tileWidth, width - x), Math.min(tileHeight, height - y));
+    }
+
+    private static void readTiles(RasterDataNode[] nodes, Rectangle rectangle) {
+        for (RasterDataNode node : nodes) {
+            // the tiles are cached for the image of the highest resolution
+            final RenderedImage image = node.getSourceImage().getImage(0);
+            final int minTileX = getTileIndex(rectangle.x, image.getTileGridXOffset(), image.getTileWidth());
+            final int maxTileX = getTileIndex(rectangle.x + rectangle.width - 1, image.getTileGridXOffset(),
+                                              image.getTileWidth());
+            final int minTileY = getTileIndex(rectangle.y, image.getTileGridYOffset(), image.getTileHeight());
+            final int maxTileY = getTileIndex(rectangle.y + rectangle.height - 1, image.getTileGridYOffset(),
+                                              image.getTileHeight());
+            for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+                for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+                    image.getTile(tileX, tileY);
+                }
+            }
+        }
+    }
+
+    static int getTileIndex(int position, int tileGridOffset, int tileSize) {
+        final int offset = position - tileGridOffset;
+        return offset >= 0 ? offset / tileSize : (offset + 1) / tileSize - 1;
+    }
+}
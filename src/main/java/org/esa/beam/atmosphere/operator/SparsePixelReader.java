@@ -0,0 +1,201 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Reads a sparse file of valid water pixels written by {@link SparsePixelWriter}. The column files are
+ * memory-mapped, so single columns can be scanned without reading the others, and the dense raster of a column
+ * is only restored when it is requested.
+ * <p/>
+ * Usage: {@code SparsePixelReader <sparse directory> <output file> [<format name>]} restores the dense rasters of
+ * all columns and writes them as a product, by default in BEAM-DIMAP format.
+ */
+public class SparsePixelReader {
+
+    private final int width;
+    private final int height;
+    private final int count;
+    private final boolean complete;
+    private final String[] columnNames;
+    private final Map<String, ByteBuffer> columnBuffers;
+
+    /**
+     * Opens a sparse file.
+     *
+     * @param dir the directory of the sparse file
+     * @throws IOException if the header is missing or invalid, or a column file cannot be mapped
+     */
+    public SparsePixelReader(File dir) throws IOException {
+        final Properties header = new Properties();
+        final InputStream stream = new FileInputStream(new File(dir, SparsePixelWriter.HEADER_FILE_NAME));
+        try {
+            header.load(stream);
+        } finally {
+            stream.close();
+        }
+        if (!SparsePixelWriter.FORMAT_NAME.equals(header.getProperty("format"))) {
+            throw new IOException("Not a sparse file of valid water pixels: " + dir);
+        }
+        try {
+            width = Integer.parseInt(header.getProperty("width"));
+            height = Integer.parseInt(header.getProperty("height"));
+            count = Integer.parseInt(header.getProperty("count"));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid header of sparse file " + dir);
+        }
+        complete = Boolean.parseBoolean(header.getProperty("complete"));
+        columnNames = header.getProperty("columns", "").split(",");
+        columnBuffers = new HashMap<String, ByteBuffer>();
+        for (String columnName : columnNames) {
+            columnBuffers.put(columnName, map(new File(dir, columnName + SparsePixelWriter.COLUMN_FILE_EXTENSION),
+                                              4L * count));
+        }
+    }
+
+    private static ByteBuffer map(File file, long size) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            if (randomAccessFile.length() < size) {
+                throw new IOException("Column file " + file + " is too short.");
+            }
+            // the mapping remains valid after the file is closed
+            final FileChannel channel = randomAccessFile.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.BIG_ENDIAN);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: SparsePixelReader <sparse directory> <output file> [<format name>]");
+            System.exit(1);
+        }
+        final SparsePixelReader reader = new SparsePixelReader(new File(args[0]));
+        final Product product = reader.createProduct(new File(args[0]).getName());
+        ProductIO.writeProduct(product, new File(args[1]), args.length > 2 ? args[2] : ProductIO.DEFAULT_FORMAT_NAME,
+                               false);
+        product.dispose();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the number of pixels in the file
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return {@code false} if the processing stopped before all pixels had been computed
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public String[] getColumnNames() {
+        return columnNames.clone();
+    }
+
+    /**
+     * Gets a column as it is stored, one value per pixel of the file.
+     *
+     * @param columnName the name of the column
+     * @return a read-only view of the mapped column file
+     */
+    public ByteBuffer getColumn(String columnName) {
+        final ByteBuffer buffer = columnBuffers.get(columnName);
+        if (buffer == null) {
+            throw new IllegalArgumentException("Unknown column: " + columnName);
+        }
+        return buffer.asReadOnlyBuffer().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Restores the dense raster of a column of type {@code float32}.
+     *
+     * @param columnName the name of the column
+     * @param fillValue  the value of the pixels not in the file
+     * @return the raster, row by row
+     */
+    public float[] readFloatRaster(String columnName, float fillValue) {
+        final ByteBuffer column = getColumn(columnName);
+        final ByteBuffer rows = getColumn(SparsePixelWriter.ROW_COLUMN_NAME);
+        final ByteBuffer cols = getColumn(SparsePixelWriter.COL_COLUMN_NAME);
+        final float[] raster = new float[width * height];
+        Arrays.fill(raster, fillValue);
+        for (int i = 0; i < count; i++) {
+            raster[rows.getInt(4 * i) * width + cols.getInt(4 * i)] = column.getFloat(4 * i);
+        }
+        return raster;
+    }
+
+    /**
+     * Restores the dense raster of a column of type {@code int32}.
+     *
+     * @param columnName the name of the column
+     * @param fillValue  the value of the pixels not in the file
+     * @return the raster, row by row
+     */
+    public int[] readIntRaster(String columnName, int fillValue) {
+        final ByteBuffer column = getColumn(columnName);
+        final ByteBuffer rows = getColumn(SparsePixelWriter.ROW_COLUMN_NAME);
+        final ByteBuffer cols = getColumn(SparsePixelWriter.COL_COLUMN_NAME);
+        final int[] raster = new int[width * height];
+        Arrays.fill(raster, fillValue);
+        for (int i = 0; i < count; i++) {
+            raster[rows.getInt(4 * i) * width + cols.getInt(4 * i)] = column.getInt(4 * i);
+        }
+        return raster;
+    }
+
+    /**
+     * Creates a product with the dense rasters of the reflectances, the latitude and longitude and the flags.
+     * Pixels not in the file are NaN, and their flags are {@link AtmosCorrection#INVALID}.
+     *
+     * @param productName the name of the product
+     * @return the product
+     */
+    public Product createProduct(String productName) {
+        final Product product = new Product(productName, "MODIS_AC_SPARSE", width, height);
+        for (String columnName : columnNames) {
+            if (columnName.equals(SparsePixelWriter.ROW_COLUMN_NAME) ||
+                columnName.equals(SparsePixelWriter.COL_COLUMN_NAME)) {
+                continue;
+            }
+            if (SparsePixelWriter.TYPE_INT32.equals(SparsePixelWriter.getColumnType(columnName))) {
+                final Band band = product.addBand(columnName, ProductData.TYPE_INT32);
+                band.setRasterData(ProductData.createInstance(readIntRaster(columnName, AtmosCorrection.INVALID)));
+            } else {
+                final Band band = product.addBand(columnName, ProductData.TYPE_FLOAT32);
+                band.setNoDataValue(Double.NaN);
+                band.setNoDataValueUsed(true);
+                band.setRasterData(ProductData.createInstance(readFloatRaster(columnName, Float.NaN)));
+            }
+        }
+        return product;
+    }
+}
@@ -0,0 +1,264 @@
+package org.esa.beam.atmosphere.operator;
+
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Writes the valid water pixels of the atmospheric correction to a sparse, columnar file, so that the storage
+ * needed is proportional to the number of water pixels instead of the size of the granule. The file is a
+ * directory with one raw big-endian file per column, which can be memory-mapped, and a header file with the
+ * raster size, the number of pixels and the names and types of the columns. The columns are the row and the
+ * column of the pixel in the target product, the latitude and longitude, the water leaving and the TOSA
+ * reflectances and the flags. The dense raster is restored by {@link SparsePixelReader}.
+ * <p/>
+ * The pixels of a tile are collected in {@link TilePixels} while the tile is computed, and appended when the
+ * tile is completed, so the order of the pixels is the order of the tile completion. The pixels of a tile which
+ * fails are never appended, and if a tile is computed more than once, only the pixels of its first completion
+ * are appended. The file is complete when all pixels of the target product have been computed, then the header
+ * is written. A file closed before is marked as incomplete.
+ */
+public class SparsePixelWriter {
+
+    public static final String FORMAT_NAME = "Sparse-AC";
+    public static final String HEADER_FILE_NAME = "header.properties";
+    public static final String COLUMN_FILE_EXTENSION = ".raw";
+
+    static final String ROW_COLUMN_NAME = "row";
+    static final String COL_COLUMN_NAME = "col";
+    static final String LAT_COLUMN_NAME = "lat";
+    static final String LON_COLUMN_NAME = "lon";
+    static final String TYPE_INT32 = "int32";
+    static final String TYPE_FLOAT32 = "float32";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // all columns are of 4 byte types
+    private static final int COLUMN_ELEM_SIZE = 4;
+
+    private final File dir;
+    private final int width;
+    private final int height;
+    private final String[] columnNames;
+    private final OutputStream[] columnStreams;
+    private final Set<Rectangle> completedTiles;
+    private long completedPixelCount;
+    private long pixelCount;
+    private boolean closed;
+
+    /**
+     * Creates a writer and the column files.
+     *
+     * @param dir    the directory of the sparse file
+     * @param width  the width of the target product
+     * @param height the height of the target product
+     * @throws IOException if the files cannot be created
+     */
+    public SparsePixelWriter(File dir, int width, int height) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        this.dir = dir;
+        this.width = width;
+        this.height = height;
+        columnNames = getColumnNames();
+        columnStreams = new OutputStream[columnNames.length];
+        completedTiles = new HashSet<Rectangle>();
+        try {
+            for (int i = 0; i < columnNames.length; i++) {
+                final OutputStream stream = new FileOutputStream(new File(dir, columnNames[i] + COLUMN_FILE_EXTENSION));
+                columnStreams[i] = new BufferedOutputStream(stream, BUFFER_SIZE);
+            }
+        } catch (IOException e) {
+            closeStreams();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the names of the columns, in the order of the column streams
+     */
+    static String[] getColumnNames() {
+        final int numBands = Constants.MODIS_REFLEC_BAND_NAMES.length;
+        final String[] names = new String[5 + 2 * numBands];
+        names[0] = ROW_COLUMN_NAME;
+        names[1] = COL_COLUMN_NAME;
+        names[2] = LAT_COLUMN_NAME;
+        names[3] = LON_COLUMN_NAME;
+        System.arraycopy(Constants.MODIS_REFLEC_BAND_NAMES, 0, names, 4, numBands);
+        System.arraycopy(Constants.MODIS_TOSA_REFLEC_BAND_NAMES, 0, names, 4 + numBands, numBands);
+        names[names.length - 1] = Constants.AC_FLAG_BAND_NAME;
+        return names;
+    }
+
+    static String getColumnType(String columnName) {
+        if (columnName.equals(ROW_COLUMN_NAME) || columnName.equals(COL_COLUMN_NAME) ||
+            columnName.equals(Constants.AC_FLAG_BAND_NAME)) {
+            return TYPE_INT32;
+        }
+        return TYPE_FLOAT32;
+    }
+
+    /**
+     * Marks a tile without valid pixels as computed. When all pixels of the target product have been computed, the
+     * file is closed.
+     *
+     * @param tileRectangle the rectangle of the tile
+     * @throws IOException if the file cannot be closed
+     */
+    public void completeTile(Rectangle tileRectangle) throws IOException {
+        completeTile(tileRectangle, new TilePixels());
+    }
+
+    /**
+     * Appends the valid pixels of a tile and marks the tile as computed. The pixels of a tile which has already
+     * been completed are dropped. When all pixels of the target product have been computed, the file is closed.
+     *
+     * @param tileRectangle the rectangle of the tile
+     * @param tilePixels    the valid pixels of the tile
+     * @throws IOException if the pixels cannot be written or the file cannot be closed
+     */
+    public synchronized void completeTile(Rectangle tileRectangle, TilePixels tilePixels) throws IOException {
+        if (!closed && completedTiles.add(new Rectangle(tileRectangle))) {
+            // the buffers are only appended here, they have been filled without holding the lock
+            for (ByteBuffer[] columnBuffers : tilePixels.chunks) {
+                for (int i = 0; i < columnStreams.length; i++) {
+                    columnStreams[i].write(columnBuffers[i].array(), 0, columnBuffers[i].position());
+                }
+            }
+            pixelCount += tilePixels.pixelCount;
+            completedPixelCount += (long) tileRectangle.width * tileRectangle.height;
+            if (completedPixelCount >= (long) width * height) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * @return the number of pixels written
+     */
+    public synchronized long getPixelCount() {
+        return pixelCount;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the column files and writes the header. Does nothing if the writer has already been closed.
+     *
+     * @throws IOException if the files cannot be written
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeStreams();
+        final Properties header = new Properties();
+        header.setProperty("format", FORMAT_NAME);
+        header.setProperty("version", ModisAtmosCorrectionOp.MODIS_ATMOS_CORRECTION_VERSION);
+        header.setProperty("width", String.valueOf(width));
+        header.setProperty("height", String.valueOf(height));
+        header.setProperty("count", String.valueOf(pixelCount));
+        header.setProperty("complete", String.valueOf(completedPixelCount >= (long) width * height));
+        header.setProperty("byteOrder", "BIG_ENDIAN");
+        final StringBuilder columns = new StringBuilder();
+        for (String columnName : columnNames) {
+            if (columns.length() > 0) {
+                columns.append(',');
+            }
+            columns.append(columnName);
+            header.setProperty("type." + columnName, getColumnType(columnName));
+        }
+        header.setProperty("columns", columns.toString());
+        final OutputStream stream = new FileOutputStream(new File(dir, HEADER_FILE_NAME));
+        try {
+            header.store(stream, "Valid water pixels of the MODIS atmospheric correction");
+        } finally {
+            stream.close();
+        }
+    }
+
+    private void closeStreams() throws IOException {
+        IOException error = null;
+        for (OutputStream stream : columnStreams) {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * The valid pixels of one tile, packed into one big-endian buffer per column while the tile is computed. Not
+     * thread-safe, as a tile is computed by a single thread.
+     */
+    public static class TilePixels {
+
+        private final List<ByteBuffer[]> chunks = new ArrayList<ByteBuffer[]>();
+        private int pixelCount;
+
+        /**
+         * Adds the valid pixels of a batch, after the atmospheric correction. The batch may be reused afterwards.
+         *
+         * @param batch the batch
+         */
+        public void add(PixelBatch batch) {
+            final int size = batch.getSize();
+            int validCount = 0;
+            for (int i = 0; i < size; i++) {
+                if ((batch.flag[i] & AtmosCorrection.INVALID) == 0) {
+                    validCount++;
+                }
+            }
+            if (validCount == 0) {
+                return;
+            }
+            final int numBands = batch.getNumBands();
+            final ByteBuffer[] columnBuffers = new ByteBuffer[5 + 2 * numBands];
+            for (int c = 0; c < columnBuffers.length; c++) {
+                columnBuffers[c] = ByteBuffer.allocate(validCount * COLUMN_ELEM_SIZE);
+            }
+            final ByteBuffer flagBuffer = columnBuffers[columnBuffers.length - 1];
+            for (int i = 0; i < size; i++) {
+                if ((batch.flag[i] & AtmosCorrection.INVALID) != 0) {
+                    continue;
+                }
+                columnBuffers[0].putInt(batch.pixelY[i]);
+                columnBuffers[1].putInt(batch.pixelX[i]);
+                columnBuffers[2].putFloat((float) batch.lat[i]);
+                columnBuffers[3].putFloat((float) batch.lon[i]);
+                for (int b = 0; b < numBands; b++) {
+                    columnBuffers[4 + b].putFloat((float) batch.reflec[b][i]);
+                    columnBuffers[4 + numBands + b].putFloat((float) batch.tosaReflec[b][i]);
+                }
+                flagBuffer.putInt(batch.flag[i]);
+            }
+            chunks.add(columnBuffers);
+            pixelCount += validCount;
+        }
+
+        /**
+         * @return the number of pixels added
+         */
+        public int getPixelCount() {
+            return pixelCount;
+        }
+    }
+}
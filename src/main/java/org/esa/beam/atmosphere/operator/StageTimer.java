@@ -0,0 +1,51 @@
+package org.esa.beam.atmosphere.operator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the wall and CPU time of consecutive processing stages of the current thread and adds them to
+ * {@link ProcessingStatistics}. A timer must only be used by one thread, which is why one is created per tile.
+ * If the JVM does not support measuring the CPU time of threads, the CPU times are zero.
+ */
+class StageTimer {
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private final ProcessingStatistics statistics;
+    private final boolean cpuTimeSupported;
+    private long wallStart;
+    private long cpuStart;
+
+    StageTimer(ProcessingStatistics statistics) {
+        this.statistics = statistics;
+        cpuTimeSupported = THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() && THREAD_MX_BEAN.isThreadCpuTimeEnabled();
+        start();
+    }
+
+    /**
+     * Starts the time measurement of the next stage.
+     */
+    void start() {
+        wallStart = System.nanoTime();
+        cpuStart = getCpuTime();
+    }
+
+    /**
+     * Adds the time since the last call of {@link #start()} or {@code lap} to a stage, and starts the time
+     * measurement of the next stage.
+     *
+     * @param stage the stage which has been completed
+     */
+    void lap(ProcessingStage stage) {
+        final long wall = System.nanoTime();
+        final long cpu = getCpuTime();
+        statistics.addStageTime(stage, wall - wallStart, cpu - cpuStart);
+        wallStart = wall;
+        cpuStart = cpu;
+    }
+
+    private long getCpuTime() {
+        return cpuTimeSupported ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : 0L;
+    }
+}
@@ -0,0 +1,57 @@
+package org.esa.beam.atmosphere.operator;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which many threads can update without contention. Each thread adds to one of several cells,
+ * selected by its thread ID, and the cells are only summed up when the value is read. The cells are placed
+ * one cache line apart, so threads updating different cells do not invalidate each other's caches.
+ */
+class StripedCounter {
+
+    // 8 longs fill a cache line of 64 bytes
+    private static final int CELL_SPACING = 8;
+    private static final int NUM_CELLS = getNumCells(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray cells = new AtomicLongArray(NUM_CELLS * CELL_SPACING);
+
+    void add(long value) {
+        cells.addAndGet(getCellIndex(Thread.currentThread().getId()), value);
+    }
+
+    void increment() {
+        add(1L);
+    }
+
+    long sum() {
+        long sum = 0L;
+        for (int i = 0; i < NUM_CELLS; i++) {
+            sum += cells.get(i * CELL_SPACING);
+        }
+        return sum;
+    }
+
+    /**
+     * Sets the counter to zero. Concurrent updates may or may not be lost.
+     */
+    void reset() {
+        for (int i = 0; i < NUM_CELLS; i++) {
+            cells.set(i * CELL_SPACING, 0L);
+        }
+    }
+
+    // the smallest power of 2 which is at least twice the number of processors
+    static int getNumCells(int numProcessors) {
+        int numCells = 1;
+        while (numCells < 2 * numProcessors) {
+            numCells <<= 1;
+        }
+        return numCells;
+    }
+
+    private static int getCellIndex(long threadId) {
+        // thread IDs are consecutive, spread them over the cells
+        final long h = threadId * 0x9E3779B97F4A7C15L;
+        return ((int) (h >>> 32) & (NUM_CELLS - 1)) * CELL_SPACING;
+    }
+}
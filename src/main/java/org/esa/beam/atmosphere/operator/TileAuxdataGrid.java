@@ -0,0 +1,93 @@
+package org.esa.beam.atmosphere.operator;
+
+import java.awt.Rectangle;
+
+/**
+ * A coarse grid of auxiliary data values over the pixels of a tile. The values are only computed at the grid
+ * nodes, every {@code step} pixels and at the last row and column of the tile, and interpolated bilinearly
+ * in pixel space in between. This keeps the geographic interpolation of {@link GriddedAuxdata} out of the
+ * per-pixel processing.
+ */
+class TileAuxdataGrid {
+
+    private final Rectangle rectangle;
+    private final int step;
+    private final int numNodesX;
+    private final int numNodesY;
+    private final double[] nodeValues;
+
+    /**
+     * @param rectangle the tile rectangle
+     * @param step      the distance of the grid nodes (pixels)
+     */
+    TileAuxdataGrid(Rectangle rectangle, int step) {
+        if (step < 1) {
+            throw new IllegalArgumentException("step < 1");
+        }
+        this.rectangle = new Rectangle(rectangle);
+        this.step = step;
+        numNodesX = getNumNodes(rectangle.width, step);
+        numNodesY = getNumNodes(rectangle.height, step);
+        nodeValues = new double[numNodesX * numNodesY];
+    }
+
+    int getNumNodesX() {
+        return numNodesX;
+    }
+
+    int getNumNodesY() {
+        return numNodesY;
+    }
+
+    /**
+     * @param i the node column
+     * @return the pixel x coordinate of the node column
+     */
+    int getNodeX(int i) {
+        return rectangle.x + Math.min(i * step, rectangle.width - 1);
+    }
+
+    /**
+     * @param j the node row
+     * @return the pixel y coordinate of the node row
+     */
+    int getNodeY(int j) {
+        return rectangle.y + Math.min(j * step, rectangle.height - 1);
+    }
+
+    void setNodeValue(int i, int j, double value) {
+        nodeValues[j * numNodesX + i] = value;
+    }
+
+    /**
+     * Interpolates the node values at pixel positions inside the tile.
+     *
+     * @param pixelX the pixel x coordinates
+     * @param pixelY the pixel y coordinates
+     * @param values the buffer for the interpolated values
+     * @param length the number of pixels
+     */
+    void interpolate(int[] pixelX, int[] pixelY, double[] values, int length) {
+        for (int k = 0; k < length; k++) {
+            final int dx = pixelX[k] - rectangle.x;
+            final int dy = pixelY[k] - rectangle.y;
+            final int i = Math.min(dx / step, numNodesX - 1);
+            final int j = Math.min(dy / step, numNodesY - 1);
+            final int i1 = Math.min(i + 1, numNodesX - 1);
+            final int j1 = Math.min(j + 1, numNodesY - 1);
+            final int spanX = getNodeX(i1) - getNodeX(i);
+            final int spanY = getNodeY(j1) - getNodeY(j);
+            final double wx = spanX > 0 ? (double) (dx - i * step) / spanX : 0.0;
+            final double wy = spanY > 0 ? (double) (dy - j * step) / spanY : 0.0;
+            final double v00 = nodeValues[j * numNodesX + i];
+            final double v01 = nodeValues[j * numNodesX + i1];
+            final double v10 = nodeValues[j1 * numNodesX + i];
+            final double v11 = nodeValues[j1 * numNodesX + i1];
+            values[k] = (1.0 - wy) * ((1.0 - wx) * v00 + wx * v01) + wy * ((1.0 - wx) * v10 + wx * v11);
+        }
+    }
+
+    private static int getNumNodes(int length, int step) {
+        return (length - 1 + step - 1) / step + 1;
+    }
+}
@@ -0,0 +1,216 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.gpf.Tile;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Stores the samples of the computed target tiles in a checkpoint directory, so that a processing which has been
+ * interrupted, e.g. by a crash of the JVM, only computes the missing tiles when it is started again. There is
+ * one file per tile, named by the tile rectangle, with the samples of all bands of the tile stack. The files are
+ * written to a temporary file first, forced to the disk and then atomically renamed, so a file either is complete
+ * or does not exist.
+ * <p/>
+ * The files of a processing are kept in a sub-directory named by a key, which is derived from the granule, the
+ * checksum of the neural net and the operator parameters. Hence a processing with another net or other
+ * parameters does not reuse the tiles.
+ */
+class TileCheckpointStore {
+
+    private static final int MAGIC = 0x4d414354; // "MACT"
+    private static final int FILE_VERSION = 1;
+    private static final String FILE_EXTENSION = ".tile";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File dir;
+
+    /**
+     * Creates a store.
+     *
+     * @param checkpointDir the checkpoint directory
+     * @param key           the key of the processing, see {@link #createKey(String, String, SortedMap)}
+     * @throws IOException if the directory cannot be created
+     */
+    TileCheckpointStore(File checkpointDir, String key) throws IOException {
+        dir = new File(checkpointDir, key);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create checkpoint directory " + dir);
+        }
+    }
+
+    File getDir() {
+        return dir;
+    }
+
+    /**
+     * Derives the key of a processing.
+     *
+     * @param granuleId  the identification of the granule, e.g. its file, size and start time
+     * @param netString  the neural net
+     * @param parameters the values of the parameters which influence the target samples
+     * @return the key, a hexadecimal SHA-1 digest
+     */
+    static String createKey(String granuleId, String netString, SortedMap<String, String> parameters) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(granuleId.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(netString.getBytes("UTF-8"));
+            for (Map.Entry<String, String> entry : parameters.entrySet()) {
+                digest.update((byte) 0);
+                digest.update((entry.getKey() + "=" + entry.getValue()).getBytes("UTF-8"));
+            }
+            final StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b & 0xff));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Restores the samples of a tile stack, if it has been stored.
+     *
+     * @param targetTiles     the target tiles
+     * @param targetRectangle the rectangle of the tiles
+     * @return true if the tiles have been restored, false if they have not been stored
+     * @throws IOException if the file of the tile exists, but cannot be read or does not match the tiles
+     */
+    boolean restore(Map<Band, Tile> targetTiles, Rectangle targetRectangle) throws IOException {
+        final File file = getFile(targetRectangle);
+        if (!file.isFile()) {
+            return false;
+        }
+        final List<Band> bands = getSortedBands(targetTiles);
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                                                                               BUFFER_SIZE));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+            if (in.readInt() != bands.size()) {
+                throw new IOException("Checkpoint file " + file + " does not match the target bands.");
+            }
+            for (Band band : bands) {
+                if (!in.readUTF().equals(band.getName()) || in.readInt() != band.getDataType()) {
+                    throw new IOException("Checkpoint file " + file + " does not match the target bands.");
+                }
+                final Tile tile = targetTiles.get(band);
+                final ProductData buffer = tile.getDataBuffer();
+                final boolean floatingPoint = buffer.isFloatingPointType();
+                for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; y++) {
+                    final int offset = tile.getDataBufferIndex(targetRectangle.x, y);
+                    for (int x = 0; x < targetRectangle.width; x++) {
+                        if (floatingPoint) {
+                            buffer.setElemFloatAt(offset + x, in.readFloat());
+                        } else {
+                            buffer.setElemIntAt(offset + x, in.readInt());
+                        }
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    /**
+     * Stores the samples of a computed tile stack.
+     *
+     * @param targetTiles     the target tiles
+     * @param targetRectangle the rectangle of the tiles
+     * @throws IOException if the file cannot be written
+     */
+    void store(Map<Band, Tile> targetTiles, Rectangle targetRectangle) throws IOException {
+        final File file = getFile(targetRectangle);
+        final File tempFile = new File(dir, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        final List<Band> bands = getSortedBands(targetTiles);
+        final FileOutputStream fileOut = new FileOutputStream(tempFile);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, BUFFER_SIZE));
+        boolean written = false;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(bands.size());
+            for (Band band : bands) {
+                out.writeUTF(band.getName());
+                out.writeInt(band.getDataType());
+                final Tile tile = targetTiles.get(band);
+                final ProductData buffer = tile.getDataBuffer();
+                final boolean floatingPoint = buffer.isFloatingPointType();
+                for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; y++) {
+                    final int offset = tile.getDataBufferIndex(targetRectangle.x, y);
+                    for (int x = 0; x < targetRectangle.width; x++) {
+                        if (floatingPoint) {
+                            out.writeFloat(buffer.getElemFloatAt(offset + x));
+                        } else {
+                            out.writeInt(buffer.getElemIntAt(offset + x));
+                        }
+                    }
+                }
+            }
+            out.flush();
+            // the samples must be on the disk before the file is renamed, else a crash may leave a renamed,
+            // but incomplete file
+            fileOut.getChannel().force(true);
+            out.close();
+            // the tile may have been computed again, e.g. after it has been removed from the tile cache
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                throw new IOException("Cannot rename " + tempFile + " to " + file + ": " + e.getMessage(), e);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                out.close();
+                if (tempFile.exists() && !tempFile.delete()) {
+                    tempFile.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    File getFile(Rectangle rectangle) {
+        return new File(dir, "tile_" + rectangle.x + "_" + rectangle.y + "_" + rectangle.width + "_" +
+                rectangle.height + FILE_EXTENSION);
+    }
+
+    private static List<Band> getSortedBands(Map<Band, Tile> targetTiles) {
+        final List<Band> bands = new ArrayList<Band>(targetTiles.keySet());
+        Collections.sort(bands, new Comparator<Band>() {
+            @Override
+            public int compare(Band band1, Band band2) {
+                return band1.getName().compareTo(band2.getName());
+            }
+        });
+        return bands;
+    }
+}
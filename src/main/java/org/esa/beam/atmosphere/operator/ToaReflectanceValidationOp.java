@@ -1,7 +1,9 @@
 package org.esa.beam.atmosphere.operator;
 
 import com.bc.ceres.core.ProgressMonitor;
+import com.bc.jexp.ParseException;
 import org.esa.beam.framework.datamodel.*;
+import org.esa.beam.framework.dataop.barithm.BandArithmetic;
 import org.esa.beam.framework.gpf.Operator;
 import org.esa.beam.framework.gpf.OperatorException;
 import org.esa.beam.framework.gpf.OperatorSpi;
@@ -18,6 +20,8 @@ import org.esa.beam.watermask.operator.WatermaskClassifier;
 
 import java.awt.*;
 import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Operator for validation of TOA reflectances.
@@ -39,6 +43,9 @@ public class ToaReflectanceValidationOp extends Operator {
 
     @SourceProduct(alias = "input")
     private Product sourceProduct;
+    @SourceProduct(alias = "geo", optional = true,
+                   description = "The MODIS GEO product, only needed if the MODIS Land/SeaMask is used.")
+    private Product geoProduct;
     @TargetProduct
     private Product targetProduct;
 
@@ -46,6 +53,16 @@ public class ToaReflectanceValidationOp extends Operator {
                description = "If set to 'false' a land detection expression as defined below is used.")
     private boolean useSrtmWaterMask;
 
+    @Parameter(label = "Use MODIS GEO Land/SeaMask", defaultValue = "false",
+               description = "If set to 'true' the Land/SeaMask band of the MODIS GEO product is used for land " +
+                       "detection, instead of the SRTM mask or the land detection expression. Land, coastline " +
+                       "and ephemeral water pixels (mask values 1, 2 and 4) are treated as land.")
+    private boolean useModisLandSeaMask;
+
+    @Parameter(label = "Coastline buffer of MODIS Land/SeaMask", defaultValue = "0", unit = "pixels",
+               description = "Positive values dilate the land of the MODIS Land/SeaMask, negative values erode it.")
+    private int coastlineBuffer;
+
     @Parameter(defaultValue = "EV_1KM_RefSB_16 > 0.1",
                label = "Land detection expression", notEmpty = true, notNull = true)
     private String landExpression;
@@ -59,27 +76,47 @@ public class ToaReflectanceValidationOp extends Operator {
     private Band landWaterBand;
     private Band cloudIceBand;
     private Band rlToaOorBand;
+    private Band landSeaMaskBand;
     private Product reflProduct;
+    private Product landWaterProduct;
+    private Product cloudIceProduct;
+    private Product rlToaOorProduct;
 
     private WatermaskClassifier classifier;
     private WatermaskStrategy strategy = null;
+    private Dimension preferredTileSize;
     private static final byte WATERMASK_FRACTION_THRESH = 23;   // for 3x3 subsampling, this means 2 subpixels water
 
 
     public static ToaReflectanceValidationOp create(Product sourceProduct,
+                                                    Product geoProduct,
                                                     boolean useSrtmWaterMask,
+                                                    boolean useModisLandSeaMask,
+                                                    int coastlineBuffer,
                                                     String landExpression,
                                                     String cloudIceExpression,
                                                     String rlToaOorExpression) {
         final ToaReflectanceValidationOp validationOp = new ToaReflectanceValidationOp();
         validationOp.sourceProduct = sourceProduct;
+        validationOp.geoProduct = geoProduct;
         validationOp.useSrtmWaterMask = useSrtmWaterMask;
+        validationOp.useModisLandSeaMask = useModisLandSeaMask;
+        validationOp.coastlineBuffer = coastlineBuffer;
         validationOp.landExpression = landExpression;
         validationOp.cloudIceExpression = cloudIceExpression;
         validationOp.rlToaOorExpression= rlToaOorExpression;
         return validationOp;
     }
 
+    /**
+     * Sets the tile size of the target product, e.g. to compute it in the same strips as the calling operator.
+     *
+     * @param preferredTileSize the tile size
+     */
+    void setPreferredTileSize(Dimension preferredTileSize) {
+        this.preferredTileSize = preferredTileSize;
+    }
+
     @Override
     public void initialize() throws OperatorException {
         targetProduct = new Product(String.format("%s_cls", sourceProduct.getName()),
@@ -92,24 +129,39 @@ public class ToaReflectanceValidationOp extends Operator {
                                   sourceProduct.getSceneRasterWidth(),
                                   sourceProduct.getSceneRasterHeight());
 //        reflProduct = sourceProduct;
+        if (preferredTileSize != null) {
+            targetProduct.setPreferredTileSize(preferredTileSize);
+            reflProduct.setPreferredTileSize(preferredTileSize);
+        }
 
-        //
-        for (Band b : sourceProduct.getBands()) {
-            if (b.getName().startsWith(Constants.MODIS_TOA_BAND_NAME_PREFIX)) {
-                ProductUtils.copyBand(b.getName(), sourceProduct, reflProduct, true);
-            }
+        // only copy the bands referenced by the expressions, so no other band is ever read
+        for (String bandName : getReferencedBandNames(sourceProduct, landExpression, cloudIceExpression,
+                                                      rlToaOorExpression)) {
+            ProductUtils.copyBand(bandName, sourceProduct, reflProduct, true);
         }
 
-        setWatermaskStrategy();
+        if (useModisLandSeaMask) {
+            final String landSeaMaskName = Constants.MODIS_GEO_DATAFIELDS_BAND_NAME_PREFIX +
+                    Constants.MODIS_LAND_SEA_MASK_BAND_NAME;
+            if (geoProduct == null || !geoProduct.containsBand(landSeaMaskName)) {
+                throw new OperatorException("MODIS GEO product with band '" + landSeaMaskName + "' required.");
+            }
+            landSeaMaskBand = geoProduct.getBand(landSeaMaskName);
+        } else if (useSrtmWaterMask) {
+            setWatermaskStrategy();
+        }
 
         BandMathsOp landWaterOp = BandMathsOp.createBooleanExpressionBand(landExpression, reflProduct);
-        landWaterBand = landWaterOp.getTargetProduct().getBandAt(0);
+        landWaterProduct = landWaterOp.getTargetProduct();
+        landWaterBand = landWaterProduct.getBandAt(0);
 
         BandMathsOp cloudIceOp = BandMathsOp.createBooleanExpressionBand(cloudIceExpression, reflProduct);
-        cloudIceBand = cloudIceOp.getTargetProduct().getBandAt(0);
+        cloudIceProduct = cloudIceOp.getTargetProduct();
+        cloudIceBand = cloudIceProduct.getBandAt(0);
 
         BandMathsOp rlToaOorOp = BandMathsOp.createBooleanExpressionBand(rlToaOorExpression, reflProduct);
-        rlToaOorBand = rlToaOorOp.getTargetProduct().getBandAt(0);
+        rlToaOorProduct = rlToaOorOp.getTargetProduct();
+        rlToaOorBand = rlToaOorProduct.getBandAt(0);
 
         final FlagCoding flagCoding = new FlagCoding("rlToa_flags");
         flagCoding.addFlag("land", LAND_FLAG_MASK, "Pixel is land");
@@ -124,12 +176,28 @@ public class ToaReflectanceValidationOp extends Operator {
 
     }
 
+    /**
+     * Returns the products computed internally for the target product, that is the product with the copied
+     * reflectance bands and the products of the band maths expressions.
+     *
+     * @return the intermediate products, or an empty array if the operator has not been initialised
+     */
+    Product[] getIntermediateProducts() {
+        if (reflProduct == null) {
+            return new Product[0];
+        }
+        return new Product[]{reflProduct, landWaterProduct, cloudIceProduct, rlToaOorProduct};
+    }
+
     @Override
     public void dispose() {
-        if (reflProduct != null) {
-            reflProduct.dispose();
-            reflProduct = null;
+        for (Product product : getIntermediateProducts()) {
+            product.dispose();
         }
+        reflProduct = null;
+        landWaterProduct = null;
+        cloudIceProduct = null;
+        rlToaOorProduct = null;
         super.dispose();
     }
 
@@ -138,29 +206,38 @@ public class ToaReflectanceValidationOp extends Operator {
         try {
             pm.beginTask("Computing TOA_Reflectance classification", 4 * targetTile.getHeight());
 
-            final Tile landWaterTile = getSourceTile(landWaterBand, targetTile.getRectangle());
+            final boolean useLandExpression = !useModisLandSeaMask && !useSrtmWaterMask;
+            final Tile landWaterTile = useLandExpression ? getSourceTile(landWaterBand, targetTile.getRectangle()) : null;
             final Tile cloudIceTile = getSourceTile(cloudIceBand, targetTile.getRectangle());
             final Tile rlToaOorTile = getSourceTile(rlToaOorBand, targetTile.getRectangle());
 
             GeoPos geoPos = null;
 
             Rectangle rectangle = targetTile.getRectangle();
+            Rectangle landSeaMaskRectangle = null;
+            boolean[] landSeaMask = null;
+            if (useModisLandSeaMask) {
+                landSeaMaskRectangle = getLandSeaMaskRectangle(rectangle);
+                landSeaMask = computeLandSeaMask(landSeaMaskRectangle);
+            }
             for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
                 checkForCancellation();
                 for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
-                    byte waterMaskSample = WatermaskClassifier.INVALID_VALUE;
-                    byte waterMaskFraction = WatermaskClassifier.INVALID_VALUE;
-                    final GeoCoding geoCoding = sourceProduct.getGeoCoding();
-                    if (geoCoding.canGetGeoPos()) {
-                        geoPos = geoCoding.getGeoPos(new PixelPos(x, y), geoPos);
-                        waterMaskSample = strategy.getWatermaskSample(geoPos.lat, geoPos.lon);
-                        waterMaskFraction = strategy.getWatermaskFraction(geoCoding, x, y);
-                    }
-
                     byte value = 0;
 
                     boolean isLand;
-                    if (useSrtmWaterMask) {
+                    if (useModisLandSeaMask) {
+                        isLand = landSeaMask[(y - landSeaMaskRectangle.y) * landSeaMaskRectangle.width +
+                                (x - landSeaMaskRectangle.x)];
+                    } else if (useSrtmWaterMask) {
+                        byte waterMaskSample = WatermaskClassifier.INVALID_VALUE;
+                        byte waterMaskFraction = WatermaskClassifier.INVALID_VALUE;
+                        final GeoCoding geoCoding = sourceProduct.getGeoCoding();
+                        if (geoCoding.canGetGeoPos()) {
+                            geoPos = geoCoding.getGeoPos(new PixelPos(x, y), geoPos);
+                            waterMaskSample = strategy.getWatermaskSample(geoPos.lat, geoPos.lon);
+                            waterMaskFraction = strategy.getWatermaskFraction(geoCoding, x, y);
+                        }
                         isLand = !(waterMaskSample == WatermaskClassifier.WATER_VALUE) &&
                                 waterMaskFraction < WATERMASK_FRACTION_THRESH;
                     } else {
@@ -189,9 +266,46 @@ public class ToaReflectanceValidationOp extends Operator {
 
     }
 
+    static Set<String> getReferencedBandNames(Product product, String... expressions) {
+        final Set<String> bandNames = new TreeSet<String>();
+        for (String expression : expressions) {
+            try {
+                for (RasterDataNode node : BandArithmetic.getRefRasters(expression, new Product[]{product})) {
+                    if (node instanceof Band) {
+                        bandNames.add(node.getName());
+                    }
+                }
+            } catch (ParseException e) {
+                throw new OperatorException("Invalid expression '" + expression + "'.", e);
+            }
+        }
+        return bandNames;
+    }
+
+    // the land/sea mask is read with a border of the coastline buffer width, so that tiles fit together seamlessly
+    private Rectangle getLandSeaMaskRectangle(Rectangle rectangle) {
+        final int border = Math.abs(coastlineBuffer);
+        final Rectangle borderRectangle = new Rectangle(rectangle.x - border, rectangle.y - border,
+                                                        rectangle.width + 2 * border, rectangle.height + 2 * border);
+        return borderRectangle.intersection(new Rectangle(0, 0, landSeaMaskBand.getSceneRasterWidth(),
+                                                          landSeaMaskBand.getSceneRasterHeight()));
+    }
+
+    private boolean[] computeLandSeaMask(Rectangle rectangle) {
+        final Tile landSeaMaskTile = getSourceTile(landSeaMaskBand, rectangle);
+        final boolean[] land = new boolean[rectangle.width * rectangle.height];
+        int index = 0;
+        for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+            for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
+                land[index++] = ModisLandSeaMask.isLand(landSeaMaskTile.getSampleInt(x, y));
+            }
+        }
+        return ModisLandSeaMask.applyCoastlineBuffer(land, rectangle.width, rectangle.height, coastlineBuffer);
+    }
+
     private void setWatermaskStrategy() {
         try {
-            classifier = new WatermaskClassifier(50, 3, 3);
+            classifier = SharedResources.getWatermaskClassifier(50, 3, 3);
         } catch (IOException e) {
             getLogger().warning("Watermask classifier could not be initialized - fallback mode is used.");
         }
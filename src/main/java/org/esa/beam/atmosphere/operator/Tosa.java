@@ -131,10 +131,6 @@ public class Tosa {
             rlTosa[i] = lTosa[i] / edTosa[i];
         }
 
-        if (pixel.pixelX == 856 && pixel.pixelY == 233) {
-            System.out.println("x = " + pixel.pixelX);
-        }
-
         return rlTosa;
     }
 
@@ -87,7 +87,7 @@ public class NNffbpAlphaTabFast {
      * The table containing the tabulated activation function as used during the
      * training of the NN.
      */
-    private double[] alphaTab = new double[NUM_ALPHA];
+    private double[] alphaTab;
     /**
      * The reciprocal of the increment of the entries of {@link #alphaTab}.
      */
@@ -122,6 +122,40 @@ public class NNffbpAlphaTabFast {
         this(readNeuralNet(neuralNetStream));
     }
 
+    // a copy sharing the definition of the net, see createCopy()
+    private NNffbpAlphaTabFast(NNffbpAlphaTabFast prototype) {
+        inmin = prototype.inmin;
+        inmax = prototype.inmax;
+        outmin = prototype.outmin;
+        outmax = prototype.outmax;
+        nplanes = prototype.nplanes;
+        size = prototype.size;
+        wgt = prototype.wgt;
+        bias = prototype.bias;
+        nn_in = prototype.nn_in;
+        nn_out = prototype.nn_out;
+        alphaTab = prototype.alphaTab;
+        recDeltaAlpha = prototype.recDeltaAlpha;
+        act = new double[nplanes][];
+        for (int i = 0; i < nplanes; i++) {
+            act[i] = new double[size[i]];
+        }
+        NNresjacob = new NNCalc();
+        declareArrays();
+    }
+
+    /**
+     * Creates a copy of this neural net without parsing the definition again. The copy shares the weights,
+     * biases, input and output ranges and the activation table with this net, which are not modified by the
+     * computations, but has its own activation buffers. So copies can be used by several threads at once,
+     * whereas a single net must not.
+     *
+     * @return the copy
+     */
+    public NNffbpAlphaTabFast createCopy() {
+        return new NNffbpAlphaTabFast(this);
+    }
+
     public double[] getInmin() {
         return inmin;
     }
@@ -152,6 +186,7 @@ public class NNffbpAlphaTabFast {
      * function used during the training of the NN.
      */
     private void makeAlphaTab() {
+        alphaTab = new double[NUM_ALPHA];
         double delta = (-2.0 * ALPHA_START) / (NUM_ALPHA - 1.0);
         double sum = ALPHA_START + (0.5 * delta);
         for (int i = 0; i < NUM_ALPHA; i++) {
@@ -390,7 +425,20 @@ public class NNffbpAlphaTabFast {
      */
     public double[] calc(double[] nninp) {
         double[] res = new double[nn_out];
+        calc(nninp, res);
+        return res;
+    }
 
+    /**
+     * Method calc The NN is used. For a given input vector the corresponding
+     * output vector is written into a given buffer, so that no memory is
+     * allocated.
+     *
+     * @param nninp The vector contains the {@link #nn_in}input parameters (must
+     *              be in right order).
+     * @param res   The buffer for the {@link #nn_out} output values.
+     */
+    public void calc(double[] nninp, double[] res) {
         for (int i = 0; i < nn_in; i++) {
             act[0][i] = (nninp[i] - inmin[i]) / (inmax[i] - inmin[i]);
         }
@@ -408,7 +456,6 @@ public class NNffbpAlphaTabFast {
         for (int i = 0; i < nn_out; i++) {
             res[i] = act_nnplanes1[i] * (outmax[i] - outmin[i]) + outmin[i];
         }
-        return res;
     }
 
 
@@ -3,6 +3,11 @@ package org.esa.beam.nn.util;
 /**
  * Helper class providing combinations of exponential/logarithm and multiplication/division for double arrays
  * (to be used for frequent changes of input/output of RD's neural nets)
+ * <p/>
+ * Each conversion is available as allocating variant, returning a new array, and as variant writing into a
+ * destination buffer at an offset, in the style of {@link System#arraycopy}. Source and destination may be the
+ * same array, also with overlapping ranges. For data stored band by band, e.g. in pixel batches, log(PI * x) can also be gathered for one
+ * pixel from all bands straight into the input vector of a neural net.
  * Date: 23.07.12
  * Time: 15:14
  *
@@ -10,67 +15,137 @@ package org.esa.beam.nn.util;
  */
 public class NeuralNetIOConverter {
 
+    private static final double LOG_PI = Math.log(Math.PI);
+
     public static double[] multiplyPi(double[] arr) {
         double[] result = new double[arr.length];
-        for (int i = 0; i < arr.length; i++) {
-            result[i] = arr[i] * Math.PI;
-        }
+        multiplyPi(arr, 0, result, 0, arr.length);
         return result;
     }
+
+    public static void multiplyPi(double[] src, int srcPos, double[] dest, int destPos, int length) {
+        final boolean backward = isBackward(src, srcPos, dest, destPos);
+        for (int k = 0; k < length; k++) {
+            final int i = backward ? length - 1 - k : k;
+            dest[destPos + i] = src[srcPos + i] * Math.PI;
+        }
+    }
+
     public static double[] dividePi(double[] arr) {
         double[] result = new double[arr.length];
-        for (int i = 0; i < arr.length; i++) {
-            result[i] = arr[i] / Math.PI;
-        }
+        dividePi(arr, 0, result, 0, arr.length);
         return result;
     }
 
+    public static void dividePi(double[] src, int srcPos, double[] dest, int destPos, int length) {
+        final boolean backward = isBackward(src, srcPos, dest, destPos);
+        for (int k = 0; k < length; k++) {
+            final int i = backward ? length - 1 - k : k;
+            dest[destPos + i] = src[srcPos + i] / Math.PI;
+        }
+    }
+
     public static double[] convertLogarithm(double[] arr) {
         double[] result = new double[arr.length];
-        for (int i = 0; i < arr.length; i++) {
-            result[i] = Math.log(arr[i]);
-        }
+        convertLogarithm(arr, 0, result, 0, arr.length);
         return result;
     }
 
+    public static void convertLogarithm(double[] src, int srcPos, double[] dest, int destPos, int length) {
+        final boolean backward = isBackward(src, srcPos, dest, destPos);
+        for (int k = 0; k < length; k++) {
+            final int i = backward ? length - 1 - k : k;
+            dest[destPos + i] = Math.log(src[srcPos + i]);
+        }
+    }
+
     public static double[] convertLogarithmMultipliedPi(double[] arr) {
         double[] result = new double[arr.length];
-        for (int i = 0; i < arr.length; i++) {
-            result[i] = Math.log(arr[i] * Math.PI);
-        }
+        convertLogarithmMultipliedPi(arr, 0, result, 0, arr.length);
         return result;
     }
 
+    public static void convertLogarithmMultipliedPi(double[] src, int srcPos, double[] dest, int destPos, int length) {
+        final boolean backward = isBackward(src, srcPos, dest, destPos);
+        for (int k = 0; k < length; k++) {
+            final int i = backward ? length - 1 - k : k;
+            dest[destPos + i] = Math.log(src[srcPos + i] * Math.PI);
+        }
+    }
+
+    /**
+     * Computes log(PI * x) for the values of one pixel in all bands.
+     *
+     * @param bandValues the values, [band][pixel]
+     * @param pixelIndex the index of the pixel
+     * @param dest       the destination buffer, e.g. the neural net input
+     * @param destPos    the position of the first band in the destination buffer
+     */
+    public static void convertLogarithmMultipliedPi(double[][] bandValues, int pixelIndex, double[] dest, int destPos) {
+        for (int b = 0; b < bandValues.length; b++) {
+            dest[destPos + b] = Math.log(bandValues[b][pixelIndex] * Math.PI);
+        }
+    }
+
     public static double[] convertLogarithmDividedPi(double[] arr) {
         double[] result = new double[arr.length];
-        for (int i = 0; i < arr.length; i++) {
-            result[i] = Math.log(arr[i] / Math.PI);
-        }
+        convertLogarithmDividedPi(arr, 0, result, 0, arr.length);
         return result;
     }
 
+    public static void convertLogarithmDividedPi(double[] src, int srcPos, double[] dest, int destPos, int length) {
+        final boolean backward = isBackward(src, srcPos, dest, destPos);
+        for (int k = 0; k < length; k++) {
+            final int i = backward ? length - 1 - k : k;
+            dest[destPos + i] = Math.log(src[srcPos + i] / Math.PI);
+        }
+    }
+
     public static double[] convertExponential(double[] arr) {
         double[] result = new double[arr.length];
-        for (int i = 0; i < arr.length; i++) {
-            result[i] = Math.exp(arr[i]);
-        }
+        convertExponential(arr, 0, result, 0, arr.length);
         return result;
     }
 
+    public static void convertExponential(double[] src, int srcPos, double[] dest, int destPos, int length) {
+        final boolean backward = isBackward(src, srcPos, dest, destPos);
+        for (int k = 0; k < length; k++) {
+            final int i = backward ? length - 1 - k : k;
+            dest[destPos + i] = Math.exp(src[srcPos + i]);
+        }
+    }
+
     public static double[] convertExponentialMultiplyPi(double[] arr) {
         double[] result = new double[arr.length];
-        for (int i = 0; i < arr.length; i++) {
-            result[i] = Math.exp(arr[i] + Math.log(Math.PI));
-        }
+        convertExponentialMultiplyPi(arr, 0, result, 0, arr.length);
         return result;
     }
 
+    public static void convertExponentialMultiplyPi(double[] src, int srcPos, double[] dest, int destPos, int length) {
+        final boolean backward = isBackward(src, srcPos, dest, destPos);
+        for (int k = 0; k < length; k++) {
+            final int i = backward ? length - 1 - k : k;
+            dest[destPos + i] = Math.exp(src[srcPos + i] + LOG_PI);
+        }
+    }
+
     public static double[] convertExponentialDividePi(double[] arr) {
         double[] result = new double[arr.length];
-        for (int i = 0; i < arr.length; i++) {
-            result[i] = Math.exp(arr[i] - Math.log(Math.PI));
-        }
+        convertExponentialDividePi(arr, 0, result, 0, arr.length);
         return result;
     }
 
+    public static void convertExponentialDividePi(double[] src, int srcPos, double[] dest, int destPos, int length) {
+        final boolean backward = isBackward(src, srcPos, dest, destPos);
+        for (int k = 0; k < length; k++) {
+            final int i = backward ? length - 1 - k : k;
+            dest[destPos + i] = Math.exp(src[srcPos + i] - LOG_PI);
+        }
+    }
+
+    // as in System.arraycopy, overlapping ranges are handled as if the source were copied first: if the
+    // destination starts behind the source, the values are converted from the end, so none is overwritten early
+    private static boolean isBackward(double[] src, int srcPos, double[] dest, int destPos) {
+        return src == dest && srcPos < destPos;
+    }
 }
@@ -0,0 +1,119 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.nn.NNffbpAlphaTabFast;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Guards the hot path of the correction against memory allocations creeping back. The bytes allocated by the
+ * current thread are measured with {@code com.sun.management.ThreadMXBean}, the tests are skipped on JVMs
+ * which do not provide it.
+ */
+public class AllocationTest {
+
+    private static final int NUM_BANDS = 9;
+    private static final int NUM_PIXELS = 4096;
+    private static final int NUM_RUNS = 20;
+    // some bytes for the measurement itself, far less than one byte per pixel
+    private static final long MAX_ALLOCATED_BYTES = 1024;
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+
+    @Before
+    public void setUp() throws Exception {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void testAtmosCorrectionDoesNotAllocate() throws Exception {
+        assertNoAllocation("strict", new AtmosCorrection(AtmosCorrectionTest.loadAtmosphereNet(),
+                                                         new BatchTosa(330.0, 1000.0, 0.0)));
+    }
+
+    @Test
+    public void testAtmosCorrectionWithLutAndFastMathDoesNotAllocate() throws Exception {
+        final BatchTosa batchTosa = new BatchTosa(330.0, 1000.0, 0.0, BatchTosa.DEFAULT_LUT_SIZE);
+        batchTosa.setFastMath(true);
+        assertNoAllocation("LUT, fast math", new AtmosCorrection(AtmosCorrectionTest.loadAtmosphereNet(),
+                                                                 batchTosa));
+    }
+
+    @Test
+    public void testAtmosCorrectionWithPixelAuxdataDoesNotAllocate() throws Exception {
+        assertNoAllocation("per-pixel auxdata", new AtmosCorrection(AtmosCorrectionTest.loadAtmosphereNet(),
+                                                                    new BatchTosa(0.0)));
+    }
+
+    @Test
+    public void testStatisticsDoNotAllocate() throws Exception {
+        // the StageTimer is not included, as reading the thread CPU time allocates in some JVMs (once per strip)
+        final ProcessingStatistics statistics = new ProcessingStatistics();
+        final int[] flags = new int[NUM_PIXELS];
+        final Runnable work = new Runnable() {
+            @Override
+            public void run() {
+                statistics.addFlags(flags, flags.length);
+                statistics.addStageTime(ProcessingStage.TARGET_WRITE, 1000L, 1000L);
+            }
+        };
+        assertNoAllocation("statistics", work);
+    }
+
+    @Test
+    public void testNeuralNetWithOutputBufferDoesNotAllocate() throws Exception {
+        final NNffbpAlphaTabFast net = AtmosCorrectionTest.loadAtmosphereNet();
+        final double[] input = new double[net.getInmin().length];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = 0.5 * (net.getInmin()[i] + net.getInmax()[i]);
+        }
+        final double[] output = new double[net.getOutmin().length];
+        final Runnable work = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < NUM_PIXELS; i++) {
+                    net.calc(input, output);
+                }
+            }
+        };
+        assertNoAllocation("neural net", work);
+    }
+
+    private void assertNoAllocation(String name, final AtmosCorrection ac) {
+        final PixelBatch batch = BatchTosaTest.createRandomBatch(NUM_BANDS, NUM_PIXELS, new Random(5));
+        for (int i = 0; i < NUM_PIXELS; i++) {
+            batch.ozone[i] = 300.0 + i % 50;
+            batch.pressure[i] = 990.0 + i % 30;
+        }
+        batch.validation[17] = ToaReflectanceValidationOp.LAND_FLAG_MASK;
+        assertNoAllocation(name, new Runnable() {
+            @Override
+            public void run() {
+                ac.perform(batch);
+            }
+        });
+    }
+
+    private void assertNoAllocation(String name, Runnable work) {
+        // steady state: the first runs may allocate, e.g. when classes are loaded or the JIT compiles
+        for (int run = 0; run < NUM_RUNS; run++) {
+            work.run();
+        }
+        final long threadId = Thread.currentThread().getId();
+        final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int run = 0; run < NUM_RUNS; run++) {
+            work.run();
+        }
+        final long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+        assertTrue(name + ": " + allocated + " bytes allocated", allocated <= MAX_ALLOCATED_BYTES);
+    }
+}
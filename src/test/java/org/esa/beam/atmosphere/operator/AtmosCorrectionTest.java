@@ -1,7 +1,12 @@
 package org.esa.beam.atmosphere.operator;
 
+import org.esa.beam.PixelData;
+import org.esa.beam.nn.NNffbpAlphaTabFast;
 import org.junit.Test;
 
+import java.io.InputStream;
+import java.util.Random;
+
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
 
@@ -13,4 +18,163 @@ public class AtmosCorrectionTest {
     public void testSomething() throws Exception {
         assertTrue(true);
     }
+
+    @Test
+    public void testGetInvalidFlags() throws Exception {
+        assertEquals(0, AtmosCorrection.getInvalidFlags(0, 30.0, 74.93));
+        assertEquals(AtmosCorrection.INVALID | AtmosCorrection.LAND,
+                     AtmosCorrection.getInvalidFlags(ToaReflectanceValidationOp.LAND_FLAG_MASK, 30.0, 74.93));
+        assertEquals(AtmosCorrection.INVALID | AtmosCorrection.CLOUD_ICE,
+                     AtmosCorrection.getInvalidFlags(ToaReflectanceValidationOp.CLOUD_ICE_FLAG_MASK, 30.0, 74.93));
+        assertEquals(AtmosCorrection.INVALID | AtmosCorrection.TOA_OOR | AtmosCorrection.INPUT_OOR,
+                     AtmosCorrection.getInvalidFlags(ToaReflectanceValidationOp.RLTOA_OOR_FLAG_MASK, 80.0, 74.93));
+        assertEquals(AtmosCorrection.INVALID | AtmosCorrection.INPUT_OOR,
+                     AtmosCorrection.getInvalidFlags(0, 74.94, 74.93));
+    }
+
+    @Test
+    public void testGetNeuralNetInputFlags() throws Exception {
+        final double[] inmin = {0.0, -1.0, -5.0};
+        final double[] inmax = {75.0, 1.0, -0.1};
+        assertEquals(0, AtmosCorrection.getNeuralNetInputFlags(new double[]{30.0, 0.5, -2.0}, inmin, inmax, true));
+        assertEquals(0, AtmosCorrection.getNeuralNetInputFlags(new double[]{0.0, 1.0, -0.1}, inmin, inmax, true));
+        assertEquals(AtmosCorrection.INVALID | AtmosCorrection.INPUT_OOR,
+                     AtmosCorrection.getNeuralNetInputFlags(new double[]{30.0, 1.5, -2.0}, inmin, inmax, true));
+        assertEquals(0, AtmosCorrection.getNeuralNetInputFlags(new double[]{30.0, 1.5, -2.0}, inmin, inmax, false));
+        assertEquals(AtmosCorrection.INVALID | AtmosCorrection.NAN_INPUT,
+                     AtmosCorrection.getNeuralNetInputFlags(new double[]{30.0, 0.5, Double.NaN}, inmin, inmax, true));
+        assertEquals(AtmosCorrection.INVALID | AtmosCorrection.NAN_INPUT,
+                     AtmosCorrection.getNeuralNetInputFlags(new double[]{30.0, 1.5, Double.NEGATIVE_INFINITY},
+                                                            inmin, inmax, false));
+    }
+
+    @Test
+    public void testInvalidNeuralNetInputIsFlagged() throws Exception {
+        final NNffbpAlphaTabFast net = loadAtmosphereNet();
+        final PixelBatch batch = BatchTosaTest.createRandomBatch(9, 3, new Random(42));
+        for (int i = 0; i < 3; i++) {
+            // a pixel within the training range of the net
+            batch.solzen[i] = 40.0;
+            batch.solazi[i] = 150.0;
+            batch.satzen[i] = 20.0;
+            batch.satazi[i] = -80.0;
+            batch.temperature[i] = 15.0;
+            batch.salinity[i] = 35.0;
+            for (int b = 0; b < 9; b++) {
+                batch.toaReflectance[b][i] = 0.1;
+            }
+        }
+        // the TOSA reflectance of a zero TOA reflectance is negative
+        batch.toaReflectance[4][1] = 0.0;
+        batch.temperature[2] = 40.0;
+
+        final AtmosCorrection ac = new AtmosCorrection(net, new BatchTosa(330.0, 1013.25, 0.0));
+        ac.perform(batch);
+
+        assertEquals(0, batch.flag[0]);
+        assertEquals(AtmosCorrection.INVALID | AtmosCorrection.NAN_INPUT, batch.flag[1]);
+        assertEquals(Constants.INVALID_REFLEC_VALUE, batch.reflec[0][1], 0.0);
+        assertEquals(Constants.INVALID_REFLEC_VALUE, batch.tosaReflec[0][1], 0.0);
+        assertEquals(AtmosCorrection.INVALID | AtmosCorrection.INPUT_OOR, batch.flag[2]);
+
+        ac.setInputRangeCheck(false);
+        ac.perform(batch);
+        assertEquals(0, batch.flag[2]);
+        assertTrue(batch.reflec[0][2] != Constants.INVALID_REFLEC_VALUE);
+    }
+
+    @Test
+    public void testBatchPerformEqualsPixelPerform() throws Exception {
+        final NNffbpAlphaTabFast net = loadAtmosphereNet();
+        final int numPixels = 50;
+        final PixelBatch batch = BatchTosaTest.createRandomBatch(9, numPixels, new Random(42));
+        batch.validation[3] = ToaReflectanceValidationOp.CLOUD_ICE_FLAG_MASK;
+        // invalid neural net inputs, for which the TOSA reflectance is computed before the pixel is flagged
+        batch.toaReflectance[4][5] = 0.0;
+        batch.temperature[6] = 40.0;
+
+        final AtmosCorrection ac = new AtmosCorrection(net, new BatchTosa(330.0, 1000.0, 0.0));
+        ac.perform(batch);
+        assertTrue((batch.flag[3] & AtmosCorrection.CLOUD_ICE) != 0);
+        assertTrue((batch.flag[5] & AtmosCorrection.INVALID) != 0);
+        assertTrue((batch.flag[6] & AtmosCorrection.INVALID) != 0);
+
+        for (int i = 0; i < numPixels; i++) {
+            final PixelData pixel = BatchTosaTest.createPixelData(batch, i);
+            pixel.validation = batch.validation[i];
+            final AtmosCorrectionResult result = ac.perform(pixel, batch.temperature[i], batch.salinity[i]);
+            assertEquals(result.getFlag(), batch.flag[i]);
+            for (int b = 0; b < batch.getNumBands(); b++) {
+                if (result.getFlag() == 0) {
+                    assertEquals(result.getTosaReflec()[b], batch.tosaReflec[b][i], 1.0e-10);
+                    assertEquals(result.getReflec()[b], batch.reflec[b][i], 1.0e-8);
+                } else {
+                    // both paths set the invalid values for all flags, including NAN_INPUT and INPUT_OOR
+                    assertEquals(Constants.INVALID_REFLEC_VALUE, result.getTosaReflec()[b], 0.0);
+                    assertEquals(Constants.INVALID_REFLEC_VALUE, result.getReflec()[b], 0.0);
+                    assertEquals(Constants.INVALID_REFLEC_VALUE, batch.tosaReflec[b][i], 0.0);
+                    assertEquals(Constants.INVALID_REFLEC_VALUE, batch.reflec[b][i], 0.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFastMathEqualsStrictMath() throws Exception {
+        final NNffbpAlphaTabFast net = loadAtmosphereNet();
+        final int numPixels = 4096;
+        final PixelBatch strictBatch = BatchTosaTest.createRandomBatch(9, numPixels, new Random(7));
+        final PixelBatch fastBatch = BatchTosaTest.createRandomBatch(9, numPixels, new Random(7));
+
+        final BatchTosa fastTosa = new BatchTosa(330.0, 990.0, 0.0);
+        fastTosa.setFastMath(true);
+        final AtmosCorrection strictAc = new AtmosCorrection(net, new BatchTosa(330.0, 990.0, 0.0));
+        final AtmosCorrection fastAc = new AtmosCorrection(net, fastTosa);
+        strictAc.perform(strictBatch);
+        fastAc.perform(fastBatch);
+
+        double maxTosaError = 0.0;
+        double maxReflecError = 0.0;
+        for (int b = 0; b < 9; b++) {
+            for (int i = 0; i < numPixels; i++) {
+                assertEquals(strictBatch.flag[i], fastBatch.flag[i]);
+                maxTosaError = Math.max(maxTosaError, Math.abs(fastBatch.tosaReflec[b][i] - strictBatch.tosaReflec[b][i]));
+                maxReflecError = Math.max(maxReflecError, Math.abs(fastBatch.reflec[b][i] - strictBatch.reflec[b][i]));
+            }
+        }
+        assertTrue("max. TOSA error = " + maxTosaError, maxTosaError < 1.0e-12);
+        assertTrue("max. reflectance error = " + maxReflecError, maxReflecError < 1.0e-10);
+    }
+
+    @Test
+    public void testFastMathEqualsStrictMathOnGranule() throws Exception {
+        // a coastal scene at high sun zenith with the specular direction in the right half of the swath
+        final SyntheticModisGranule granule = SyntheticModisGranule.createTestGranule(120, 60);
+        granule.setSunGeometry(55.0, 80.0, 100.0);
+        granule.setGlintReflectance(0.05);
+        final PixelBatch input = granule.createPixelBatch();
+
+        final BatchTosa fastTosa = new BatchTosa(330.0, 990.0, 0.0);
+        fastTosa.setFastMath(true);
+        final EquivalenceHarness.Path strict = EquivalenceHarnessTest.createPath(new BatchTosa(330.0, 990.0, 0.0));
+        final EquivalenceHarness.Path fast = EquivalenceHarnessTest.createPath(fastTosa);
+        final EquivalenceHarness.Report report = new EquivalenceHarness(strict, fast).compare(input);
+
+        assertEquals(120 * 60, report.pixelCount);
+        assertTrue(report.validPixelCount > 0);
+        assertTrue(report.validPixelCount < report.pixelCount);
+        final EquivalenceHarness.Thresholds thresholds = new EquivalenceHarness.Thresholds(1.0e-10, 1.0e-8);
+        thresholds.maxMeanRelDifference = 1.0e-10;
+        thresholds.maxFlagMismatchCount = 0;
+        report.assertWithin(thresholds);
+    }
+
+    static NNffbpAlphaTabFast loadAtmosphereNet() throws Exception {
+        final InputStream stream = AtmosCorrectionTest.class.getResourceAsStream(Constants.MODIS_ATMOSPHERIC_NET_NAME);
+        try {
+            return new NNffbpAlphaTabFast(stream);
+        } finally {
+            stream.close();
+        }
+    }
 }
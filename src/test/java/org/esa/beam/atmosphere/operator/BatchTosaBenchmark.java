@@ -0,0 +1,59 @@
+package org.esa.beam.atmosphere.operator;
+
+import java.util.Random;
+
+/**
+ * Compares the throughput of the exact TOSA correction of {@link BatchTosa} with the lookup table mode, on a
+ * batch of random pixels, and reports the maximum error of the lookup table mode relative to the TOA
+ * reflectance.
+ * <p/>
+ * Usage: {@code BatchTosaBenchmark [batches [runs]]}, by default 200 batches of 4096 pixels are corrected in
+ * each of 3 runs, and the best run is reported.
+ */
+public class BatchTosaBenchmark {
+
+    private static final double OZONE = 330.0;
+    private static final double PRESSURE = 980.0;
+    private static final double ALTITUDE = 0.0;
+
+    public static void main(String[] args) {
+        final int numBatches = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        final int numBands = Constants.MODIS_SPECTRAL_WAVELENGHTS_TO_USE.length;
+        final PixelBatch exactBatch = BatchTosaTest.createRandomBatch(numBands, 4096, new Random(5));
+        final PixelBatch lutBatch = BatchTosaTest.createRandomBatch(numBands, 4096, new Random(5));
+        AtmosCorrection.computeGeometry(exactBatch);
+        AtmosCorrection.computeGeometry(lutBatch);
+        final BatchTosa exactTosa = new BatchTosa(OZONE, PRESSURE, ALTITUDE);
+        final BatchTosa lutTosa = new BatchTosa(OZONE, PRESSURE, ALTITUDE, BatchTosa.DEFAULT_LUT_SIZE);
+
+        double exactSeconds = Double.MAX_VALUE;
+        double lutSeconds = Double.MAX_VALUE;
+        for (int run = 0; run < runs; run++) {
+            exactSeconds = Math.min(exactSeconds, timeBatches(exactTosa, exactBatch, numBatches));
+            lutSeconds = Math.min(lutSeconds, timeBatches(lutTosa, lutBatch, numBatches));
+        }
+        double maxError = 0.0;
+        for (int b = 0; b < numBands; b++) {
+            for (int i = 0; i < exactBatch.getSize(); i++) {
+                // relative to the TOA reflectance, as the TOSA reflectance can be close to zero
+                final double error = Math.abs(lutBatch.tosaReflec[b][i] - exactBatch.tosaReflec[b][i]);
+                maxError = Math.max(maxError, error / exactBatch.toaReflectance[b][i]);
+            }
+        }
+        System.out.println("mode\tseconds");
+        System.out.printf("exact\t%.3f%n", exactSeconds);
+        System.out.printf("LUT\t%.3f%n", lutSeconds);
+        System.out.printf("speedup\t%.2f%n", exactSeconds / lutSeconds);
+        System.out.printf("max. LUT error relative to TOA reflectance\t%.3e%n", maxError);
+    }
+
+    private static double timeBatches(BatchTosa tosa, PixelBatch batch, int n) {
+        final long t1 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            tosa.perform(batch);
+        }
+        return (System.nanoTime() - t1) / 1.0e9;
+    }
+}
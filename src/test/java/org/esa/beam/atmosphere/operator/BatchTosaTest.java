@@ -0,0 +1,144 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.PixelData;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BatchTosaTest {
+
+    private static final double OZONE = 330.0;
+    private static final double PRESSURE = 1000.0;
+    private static final double ALTITUDE = 0.0;
+
+    @Test
+    public void testBatchTosaEqualsTosa() throws Exception {
+        final int numBands = Constants.MODIS_SPECTRAL_WAVELENGHTS_TO_USE.length;
+        final int numPixels = 100;
+        final PixelBatch batch = createRandomBatch(numBands, numPixels, new Random(4711));
+
+        AtmosCorrection.computeGeometry(batch);
+        new BatchTosa(OZONE, PRESSURE, ALTITUDE).perform(batch);
+
+        for (int i = 0; i < numPixels; i++) {
+            final PixelData pixel = createPixelData(batch, i);
+            final double viewZenith = AtmosCorrection.correctViewAngle(batch.satzen[i], batch.pixelX[i],
+                                                                       batch.nadirColumnIndex);
+            final Tosa tosa = new Tosa();
+            tosa.init();
+            final double[] expected = tosa.perform(pixel, Math.toRadians(viewZenith), Math.toRadians(batch.solzen[i]));
+            for (int b = 0; b < numBands; b++) {
+                assertEquals(expected[b], batch.tosaReflec[b][i], Math.abs(expected[b]) * 1.0e-10);
+            }
+        }
+    }
+
+    @Test
+    public void testBatchTosaWithPixelAuxdataEqualsTosa() throws Exception {
+        final int numBands = Constants.MODIS_SPECTRAL_WAVELENGHTS_TO_USE.length;
+        final int numPixels = 100;
+        final Random random = new Random(17);
+        final PixelBatch batch = createRandomBatch(numBands, numPixels, random);
+        for (int i = 0; i < numPixels; i++) {
+            batch.ozone[i] = 250.0 + 200.0 * random.nextDouble();
+            batch.pressure[i] = 960.0 + 80.0 * random.nextDouble();
+        }
+
+        AtmosCorrection.computeGeometry(batch);
+        new BatchTosa(ALTITUDE).perform(batch);
+
+        for (int i = 0; i < numPixels; i++) {
+            final PixelData pixel = createPixelData(batch, i);
+            pixel.ozone = batch.ozone[i];
+            pixel.pressure = batch.pressure[i];
+            final double viewZenith = AtmosCorrection.correctViewAngle(batch.satzen[i], batch.pixelX[i],
+                                                                       batch.nadirColumnIndex);
+            final Tosa tosa = new Tosa();
+            tosa.init();
+            final double[] expected = tosa.perform(pixel, Math.toRadians(viewZenith), Math.toRadians(batch.solzen[i]));
+            for (int b = 0; b < numBands; b++) {
+                assertEquals(expected[b], batch.tosaReflec[b][i], 1.0e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testFlaggedPixelsAreSkipped() throws Exception {
+        final int numBands = Constants.MODIS_SPECTRAL_WAVELENGHTS_TO_USE.length;
+        final PixelBatch batch = createRandomBatch(numBands, 2, new Random(1));
+        batch.flag[1] = AtmosCorrection.INVALID | AtmosCorrection.LAND;
+        batch.tosaReflec[0][1] = -1.0;
+
+        AtmosCorrection.computeGeometry(batch);
+        new BatchTosa(OZONE, PRESSURE, ALTITUDE).perform(batch);
+
+        assertEquals(-1.0, batch.tosaReflec[0][1], 0.0);
+    }
+
+    @Test
+    public void testLutErrorBound() throws Exception {
+        final int numBands = Constants.MODIS_SPECTRAL_WAVELENGHTS_TO_USE.length;
+        final int numPixels = 10000;
+        final PixelBatch exactBatch = createRandomBatch(numBands, numPixels, new Random(815));
+        final PixelBatch lutBatch = createRandomBatch(numBands, numPixels, new Random(815));
+
+        double maxError = 0.0;
+        for (double pressure : new double[]{950.0, 1013.25, 1040.0}) {
+            AtmosCorrection.computeGeometry(exactBatch);
+            new BatchTosa(OZONE, pressure, ALTITUDE).perform(exactBatch);
+            AtmosCorrection.computeGeometry(lutBatch);
+            new BatchTosa(OZONE, pressure, ALTITUDE, BatchTosa.DEFAULT_LUT_SIZE).perform(lutBatch);
+            for (int b = 0; b < numBands; b++) {
+                for (int i = 0; i < numPixels; i++) {
+                    // relative to the TOA reflectance, as the TOSA reflectance can be close to zero
+                    final double error = Math.abs(lutBatch.tosaReflec[b][i] - exactBatch.tosaReflec[b][i]);
+                    maxError = Math.max(maxError, error / exactBatch.toaReflectance[b][i]);
+                }
+            }
+        }
+        assertTrue("max. error relative to TOA reflectance = " + maxError, maxError < 1.0e-5);
+    }
+
+    static PixelBatch createRandomBatch(int numBands, int numPixels, Random random) {
+        final PixelBatch batch = new PixelBatch(numBands, numPixels);
+        batch.setSize(numPixels);
+        batch.nadirColumnIndex = 677;
+        for (int i = 0; i < numPixels; i++) {
+            batch.pixelX[i] = random.nextInt(1354);
+            batch.pixelY[i] = random.nextInt(2030);
+            batch.solzen[i] = 5.0 + 65.0 * random.nextDouble();
+            batch.solazi[i] = 360.0 * random.nextDouble() - 180.0;
+            batch.satzen[i] = 60.0 * random.nextDouble();
+            batch.satazi[i] = 360.0 * random.nextDouble() - 180.0;
+            batch.temperature[i] = 5.0 + 20.0 * random.nextDouble();
+            batch.salinity[i] = 30.0 + 8.0 * random.nextDouble();
+            for (int b = 0; b < numBands; b++) {
+                batch.toaReflectance[b][i] = 0.01 + 0.2 * random.nextDouble();
+            }
+        }
+        return batch;
+    }
+
+    static PixelData createPixelData(PixelBatch batch, int i) {
+        final PixelData pixel = new PixelData();
+        pixel.pixelX = batch.pixelX[i];
+        pixel.pixelY = batch.pixelY[i];
+        pixel.nadirColumnIndex = batch.nadirColumnIndex;
+        pixel.solzen = batch.solzen[i];
+        pixel.solazi = batch.solazi[i];
+        pixel.satzen = batch.satzen[i];
+        pixel.satazi = batch.satazi[i];
+        pixel.ozone = OZONE;
+        pixel.pressure = PRESSURE;
+        pixel.altitude = ALTITUDE;
+        pixel.solar_flux = Constants.SOLAR_FLUXES_TO_USE.clone();
+        pixel.toa_radiance = new double[batch.getNumBands()];
+        for (int b = 0; b < batch.getNumBands(); b++) {
+            pixel.toa_radiance[b] = batch.toaReflectance[b][i];
+        }
+        return pixel;
+    }
+}
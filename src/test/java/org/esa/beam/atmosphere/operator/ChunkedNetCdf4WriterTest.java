@@ -0,0 +1,113 @@
+package org.esa.beam.atmosphere.operator;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.MetadataElement;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.junit.Test;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkedNetCdf4WriterTest {
+
+    @Test
+    public void testGetChunkShape() {
+        assertArrayEquals(new int[]{10, 16}, ChunkedNetCdf4Writer.getChunkShape(new Dimension(16, 10), 30, 25));
+        assertArrayEquals(new int[]{25, 30}, ChunkedNetCdf4Writer.getChunkShape(new Dimension(512, 512), 30, 25));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCompressionLevel() {
+        new ChunkedNetCdf4Writer(10, 1);
+    }
+
+    @Test
+    public void testStatisticsAreWritten() throws Exception {
+        final Product product = new Product("test", "MODIS_L2_AC", 4, 3);
+        product.addBand(Constants.AC_FLAG_BAND_NAME, ProductData.TYPE_UINT16).setRasterData(
+                ProductData.createInstance(new short[4 * 3]));
+        final MetadataElement statisticsElement = new MetadataElement(ProcessingStatistics.METADATA_ELEMENT_NAME);
+        statisticsElement.setAttributeString("neural_net_file", "test.net");
+        new ProcessingStatistics().writeMetadata(statisticsElement);
+        // more pixels than the range of int
+        statisticsElement.setAttributeDouble("processed_pixels", 5.0e9);
+        statisticsElement.getElement(ProcessingStage.TOSA.getLabel()).setAttributeDouble("wall_time_s", 1.5);
+        product.getMetadataRoot().addElement(statisticsElement);
+
+        final File file = File.createTempFile("ChunkedNetCdf4WriterTest", ChunkedNetCdf4Writer.FILE_EXTENSION);
+        NetcdfFile netcdfFile = null;
+        try {
+            new ChunkedNetCdf4Writer(5, 1).write(product, file, ProgressMonitor.NULL);
+
+            netcdfFile = NetcdfFile.open(file.getPath());
+            assertEquals("test.net", netcdfFile.findGlobalAttribute("neural_net_file").getStringValue());
+            final Variable statisticsVariable = netcdfFile.findVariable("processing_statistics");
+            assertNotNull(statisticsVariable);
+            final List<String> names = Arrays.asList(
+                    statisticsVariable.findAttribute("statistic_names").getStringValue().split(" "));
+            assertEquals(ChunkedNetCdf4Writer.getStatisticNames(statisticsElement), names);
+            final double[] values = (double[]) statisticsVariable.read().getStorage();
+            assertEquals(5.0e9, values[names.indexOf("processed_pixels")], 0.0);
+            assertEquals(1.5, values[names.indexOf(ProcessingStage.TOSA.getLabel() + ".wall_time_s")], 0.0);
+        } finally {
+            if (netcdfFile != null) {
+                netcdfFile.close();
+            }
+            product.dispose();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        final int width = 30;
+        final int height = 25;
+        final Product product = new Product("test", "MODIS_L2_AC", width, height);
+        // the tiles do not divide the raster, so there are partial chunks at the right and bottom
+        product.setPreferredTileSize(16, 10);
+        final float[] reflectances = new float[width * height];
+        final short[] flags = new short[width * height];
+        for (int i = 0; i < reflectances.length; i++) {
+            reflectances[i] = 0.001f * i;
+            flags[i] = (short) (i % 3 == 0 ? AtmosCorrection.INVALID | AtmosCorrection.LAND : 0);
+        }
+        final Band reflBand = product.addBand(Constants.MODIS_REFLEC_BAND_NAMES[0], ProductData.TYPE_FLOAT32);
+        reflBand.setRasterData(ProductData.createInstance(reflectances));
+        final Band flagBand = product.addBand(Constants.AC_FLAG_BAND_NAME, ProductData.TYPE_UINT16);
+        flagBand.setRasterData(ProductData.createInstance(flags));
+
+        final File file = File.createTempFile("ChunkedNetCdf4WriterTest", ChunkedNetCdf4Writer.FILE_EXTENSION);
+        NetcdfFile netcdfFile = null;
+        try {
+            final File writtenFile = new ChunkedNetCdf4Writer(5, 2).write(product, file, ProgressMonitor.NULL);
+            assertEquals(file, writtenFile);
+            assertTrue(file.length() > 0);
+
+            netcdfFile = NetcdfFile.open(file.getPath());
+            final Variable reflVariable = netcdfFile.findVariable(Constants.MODIS_REFLEC_BAND_NAMES[0]);
+            assertNotNull(reflVariable);
+            assertArrayEquals(new int[]{height, width}, reflVariable.getShape());
+            assertArrayEquals(reflectances, (float[]) reflVariable.read().getStorage(), 0.0f);
+            final Variable flagVariable = netcdfFile.findVariable(Constants.AC_FLAG_BAND_NAME);
+            assertNotNull(flagVariable);
+            assertArrayEquals(flags, (short[]) flagVariable.read().getStorage());
+        } finally {
+            if (netcdfFile != null) {
+                netcdfFile.close();
+            }
+            product.dispose();
+            file.delete();
+        }
+    }
+}
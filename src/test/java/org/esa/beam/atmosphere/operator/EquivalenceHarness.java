@@ -0,0 +1,452 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.PixelData;
+import org.esa.beam.nn.NNffbpAlphaTabFast;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares a candidate implementation of the atmospheric correction, e.g. with lookup tables, fast math or a
+ * faster neural net, against the reference implementation, usually the original per-pixel correction
+ * ({@link PerPixelPath}). Both are run on copies of the same pixel set, which is either synthetic (see
+ * {@link BatchTosaTest#createRandomBatch}) or recorded with {@link #writePixelSet}.
+ * The differences are reported per {@code refl_*} and {@code tosa_*} band, over the pixels which are
+ * valid for both paths, and checked against {@link Thresholds}.
+ */
+class EquivalenceHarness {
+
+    /**
+     * A way to correct a pixel batch, i.e. to compute its flags, TOSA reflectances and reflectances.
+     */
+    interface Path {
+
+        void perform(PixelBatch batch);
+    }
+
+    /**
+     * The original per-pixel correction, {@link AtmosCorrection#perform(PixelData, double, double)} with
+     * {@link Tosa}, for a scene of constant ozone, pressure and altitude.
+     */
+    static class PerPixelPath implements Path {
+
+        private final AtmosCorrection atmosCorrection;
+        private final double ozone;
+        private final double pressure;
+        private final double altitude;
+
+        PerPixelPath(NNffbpAlphaTabFast net, double ozone, double pressure, double altitude) {
+            atmosCorrection = new AtmosCorrection(net);
+            this.ozone = ozone;
+            this.pressure = pressure;
+            this.altitude = altitude;
+        }
+
+        @Override
+        public void perform(PixelBatch batch) {
+            for (int i = 0; i < batch.getSize(); i++) {
+                final PixelData pixel = new PixelData();
+                pixel.pixelX = batch.pixelX[i] * batch.columnStep;
+                pixel.pixelY = batch.pixelY[i];
+                pixel.nadirColumnIndex = batch.nadirColumnIndex;
+                pixel.validation = batch.validation[i];
+                pixel.lat = batch.lat[i];
+                pixel.lon = batch.lon[i];
+                pixel.solzen = batch.solzen[i];
+                pixel.solazi = batch.solazi[i];
+                pixel.satzen = batch.satzen[i];
+                pixel.satazi = batch.satazi[i];
+                pixel.ozone = ozone;
+                pixel.pressure = pressure;
+                pixel.altitude = altitude;
+                pixel.solar_flux = Constants.SOLAR_FLUXES_TO_USE.clone();
+                pixel.toa_radiance = new double[batch.getNumBands()];
+                for (int b = 0; b < batch.getNumBands(); b++) {
+                    pixel.toa_radiance[b] = batch.toaReflectance[b][i];
+                }
+                final AtmosCorrectionResult result = atmosCorrection.perform(pixel, batch.temperature[i],
+                                                                             batch.salinity[i]);
+                batch.flag[i] = result.getFlag();
+                for (int b = 0; b < batch.getNumBands(); b++) {
+                    batch.tosaReflec[b][i] = result.getTosaReflec()[b];
+                    batch.reflec[b][i] = result.getReflec()[b];
+                }
+            }
+        }
+    }
+
+    private static final double[] PERCENTILES = {50.0, 95.0, 99.0};
+    private static final String[] PIXEL_SET_COLUMNS = {
+            "pixelX", "pixelY", "validation", "lat", "lon", "solzen", "solazi", "satzen", "satazi", "temperature",
+            "salinity", "ozone", "pressure"
+    };
+
+    private final Path reference;
+    private final Path candidate;
+
+    EquivalenceHarness(Path reference, Path candidate) {
+        this.reference = reference;
+        this.candidate = candidate;
+    }
+
+    /**
+     * Runs both paths on copies of the input batch and computes the differences of their results.
+     *
+     * @param input the input pixels, the batch is not modified
+     * @return the report of the differences
+     */
+    Report compare(PixelBatch input) {
+        final PixelBatch referenceBatch = copyInput(input);
+        final PixelBatch candidateBatch = copyInput(input);
+        reference.perform(referenceBatch);
+        candidate.perform(candidateBatch);
+
+        final int size = input.getSize();
+        final boolean[] valid = new boolean[size];
+        int flagMismatchCount = 0;
+        int validCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (referenceBatch.flag[i] != candidateBatch.flag[i]) {
+                flagMismatchCount++;
+            } else if (referenceBatch.flag[i] == 0) {
+                valid[i] = true;
+                validCount++;
+            }
+        }
+
+        final List<BandDifferences> bandDifferences = new ArrayList<BandDifferences>();
+        for (int b = 0; b < input.getNumBands(); b++) {
+            bandDifferences.add(new BandDifferences(Constants.MODIS_REFLEC_BAND_NAMES[b],
+                                                    referenceBatch.reflec[b], candidateBatch.reflec[b], valid));
+        }
+        for (int b = 0; b < input.getNumBands(); b++) {
+            bandDifferences.add(new BandDifferences(Constants.MODIS_TOSA_REFLEC_BAND_NAMES[b],
+                                                    referenceBatch.tosaReflec[b], candidateBatch.tosaReflec[b], valid));
+        }
+        return new Report(size, validCount, flagMismatchCount, bandDifferences);
+    }
+
+    /**
+     * Copies the input buffers of a batch, i.e. everything the correction does not compute.
+     *
+     * @param input the batch
+     * @return a new batch with the same input
+     */
+    static PixelBatch copyInput(PixelBatch input) {
+        final int size = input.getSize();
+        final PixelBatch copy = new PixelBatch(input.getNumBands(), size);
+        copy.setSize(size);
+        copy.nadirColumnIndex = input.nadirColumnIndex;
+        copy.columnStep = input.columnStep;
+        System.arraycopy(input.pixelX, 0, copy.pixelX, 0, size);
+        System.arraycopy(input.pixelY, 0, copy.pixelY, 0, size);
+        System.arraycopy(input.validation, 0, copy.validation, 0, size);
+        System.arraycopy(input.solzen, 0, copy.solzen, 0, size);
+        System.arraycopy(input.solazi, 0, copy.solazi, 0, size);
+        System.arraycopy(input.satzen, 0, copy.satzen, 0, size);
+        System.arraycopy(input.satazi, 0, copy.satazi, 0, size);
+        System.arraycopy(input.lat, 0, copy.lat, 0, size);
+        System.arraycopy(input.lon, 0, copy.lon, 0, size);
+        System.arraycopy(input.temperature, 0, copy.temperature, 0, size);
+        System.arraycopy(input.salinity, 0, copy.salinity, 0, size);
+        System.arraycopy(input.ozone, 0, copy.ozone, 0, size);
+        System.arraycopy(input.pressure, 0, copy.pressure, 0, size);
+        for (int b = 0; b < input.getNumBands(); b++) {
+            System.arraycopy(input.toaReflectance[b], 0, copy.toaReflectance[b], 0, size);
+        }
+        return copy;
+    }
+
+    /**
+     * Records the input of a batch as CSV, one pixel per line, the TOA reflectances in the last columns. The
+     * nadir column index and the column step are recorded in the header line.
+     *
+     * @param batch  the batch
+     * @param writer the destination
+     */
+    static void writePixelSet(PixelBatch batch, Writer writer) {
+        final PrintWriter printWriter = new PrintWriter(writer);
+        final StringBuilder header = new StringBuilder("nadirColumnIndex=" + batch.nadirColumnIndex);
+        header.append(",columnStep=").append(batch.columnStep);
+        for (String column : PIXEL_SET_COLUMNS) {
+            header.append(',').append(column);
+        }
+        for (int b = 0; b < batch.getNumBands(); b++) {
+            header.append(",toa_").append(b + 1);
+        }
+        printWriter.println(header);
+        for (int i = 0; i < batch.getSize(); i++) {
+            final StringBuilder line = new StringBuilder();
+            line.append(batch.pixelX[i]).append(',').append(batch.pixelY[i]).append(',').append(batch.validation[i]);
+            for (double value : new double[]{
+                    batch.lat[i], batch.lon[i], batch.solzen[i], batch.solazi[i], batch.satzen[i], batch.satazi[i], batch.temperature[i],
+                    batch.salinity[i], batch.ozone[i], batch.pressure[i]}) {
+                // Double.toString() round-trips exactly
+                line.append(',').append(Double.toString(value));
+            }
+            for (int b = 0; b < batch.getNumBands(); b++) {
+                line.append(',').append(Double.toString(batch.toaReflectance[b][i]));
+            }
+            printWriter.println(line);
+        }
+        printWriter.flush();
+    }
+
+    /**
+     * Reads a pixel set recorded with {@link #writePixelSet}.
+     *
+     * @param reader the source
+     * @return a batch with the recorded input
+     * @throws IOException if the pixel set cannot be read or is malformed
+     */
+    static PixelBatch readPixelSet(Reader reader) throws IOException {
+        final BufferedReader bufferedReader = new BufferedReader(reader);
+        final String header = bufferedReader.readLine();
+        if (header == null || !header.startsWith("nadirColumnIndex=")) {
+            throw new IOException("Not a pixel set: missing header.");
+        }
+        final String[] headerColumns = header.split(",");
+        if (headerColumns.length < 2 || !headerColumns[1].startsWith("columnStep=")) {
+            throw new IOException("Not a pixel set: missing column step.");
+        }
+        final int numBands = headerColumns.length - 2 - PIXEL_SET_COLUMNS.length;
+        final List<String[]> lines = new ArrayList<String[]>();
+        String line = bufferedReader.readLine();
+        while (line != null) {
+            if (!line.trim().isEmpty()) {
+                final String[] columns = line.split(",");
+                if (columns.length != PIXEL_SET_COLUMNS.length + numBands) {
+                    throw new IOException("Malformed pixel set line " + (lines.size() + 2) + ": " + line);
+                }
+                lines.add(columns);
+            }
+            line = bufferedReader.readLine();
+        }
+
+        final PixelBatch batch = new PixelBatch(numBands, lines.size());
+        batch.setSize(lines.size());
+        try {
+            batch.nadirColumnIndex = Integer.parseInt(headerColumns[0].substring("nadirColumnIndex=".length()));
+            batch.columnStep = Integer.parseInt(headerColumns[1].substring("columnStep=".length()));
+            for (int i = 0; i < lines.size(); i++) {
+                final String[] columns = lines.get(i);
+                batch.pixelX[i] = Integer.parseInt(columns[0]);
+                batch.pixelY[i] = Integer.parseInt(columns[1]);
+                batch.validation[i] = Integer.parseInt(columns[2]);
+                batch.lat[i] = Double.parseDouble(columns[3]);
+                batch.lon[i] = Double.parseDouble(columns[4]);
+                batch.solzen[i] = Double.parseDouble(columns[5]);
+                batch.solazi[i] = Double.parseDouble(columns[6]);
+                batch.satzen[i] = Double.parseDouble(columns[7]);
+                batch.satazi[i] = Double.parseDouble(columns[8]);
+                batch.temperature[i] = Double.parseDouble(columns[9]);
+                batch.salinity[i] = Double.parseDouble(columns[10]);
+                batch.ozone[i] = Double.parseDouble(columns[11]);
+                batch.pressure[i] = Double.parseDouble(columns[12]);
+                for (int b = 0; b < numBands; b++) {
+                    batch.toaReflectance[b][i] = Double.parseDouble(columns[PIXEL_SET_COLUMNS.length + b]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed pixel set: " + e.getMessage());
+        }
+        return batch;
+    }
+
+    /**
+     * The maximum differences accepted between reference and candidate, for all bands. Bands can be excluded
+     * by a name prefix, e.g. to check the TOSA reflectances of a TOSA candidate only.
+     */
+    static class Thresholds {
+
+        double maxAbsDifference;
+        double maxRelDifference;
+        double maxMeanAbsDifference = Double.POSITIVE_INFINITY;
+        double maxMeanRelDifference = Double.POSITIVE_INFINITY;
+        /* one of 50, 95 or 99 */
+        double percentile = 99.0;
+        double maxPercentileAbsDifference = Double.POSITIVE_INFINITY;
+        int maxFlagMismatchCount = 0;
+        String bandNamePrefix = "";
+
+        Thresholds(double maxAbsDifference, double maxRelDifference) {
+            this.maxAbsDifference = maxAbsDifference;
+            this.maxRelDifference = maxRelDifference;
+        }
+    }
+
+    /**
+     * The differences of one band.
+     */
+    static class BandDifferences {
+
+        final String bandName;
+        final int count;
+        final double maxAbs;
+        final double meanAbs;
+        final double maxRel;
+        final double meanRel;
+        final double[] percentileAbs;    /* for PERCENTILES */
+        final double[] percentileRel;    /* for PERCENTILES */
+
+        BandDifferences(String bandName, double[] reference, double[] candidate, boolean[] valid) {
+            this.bandName = bandName;
+            final double[] abs = new double[valid.length];
+            final double[] rel = new double[valid.length];
+            int n = 0;
+            int numRel = 0;
+            double sumAbs = 0.0;
+            double sumRel = 0.0;
+            for (int i = 0; i < valid.length; i++) {
+                if (valid[i]) {
+                    // a NaN difference must not slip through the comparisons below
+                    final double diff = Math.abs(candidate[i] - reference[i]);
+                    abs[n++] = Double.isNaN(diff) ? Double.POSITIVE_INFINITY : diff;
+                    sumAbs += abs[n - 1];
+                    if (reference[i] != 0.0) {
+                        rel[numRel++] = abs[n - 1] / Math.abs(reference[i]);
+                        sumRel += rel[numRel - 1];
+                    }
+                }
+            }
+            count = n;
+            meanAbs = n > 0 ? sumAbs / n : 0.0;
+            meanRel = numRel > 0 ? sumRel / numRel : 0.0;
+            final double[] sortedAbs = Arrays.copyOf(abs, n);
+            final double[] sortedRel = Arrays.copyOf(rel, numRel);
+            Arrays.sort(sortedAbs);
+            Arrays.sort(sortedRel);
+            maxAbs = n > 0 ? sortedAbs[n - 1] : 0.0;
+            maxRel = numRel > 0 ? sortedRel[numRel - 1] : 0.0;
+            percentileAbs = new double[PERCENTILES.length];
+            percentileRel = new double[PERCENTILES.length];
+            for (int k = 0; k < PERCENTILES.length; k++) {
+                percentileAbs[k] = getPercentile(sortedAbs, PERCENTILES[k]);
+                percentileRel[k] = getPercentile(sortedRel, PERCENTILES[k]);
+            }
+        }
+
+        double getPercentileAbs(double percentile) {
+            return percentileAbs[getPercentileIndex(percentile)];
+        }
+
+        double getPercentileRel(double percentile) {
+            return percentileRel[getPercentileIndex(percentile)];
+        }
+
+        // nearest rank
+        private static double getPercentile(double[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0.0;
+            }
+            final int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+        }
+
+        private static int getPercentileIndex(double percentile) {
+            for (int k = 0; k < PERCENTILES.length; k++) {
+                if (PERCENTILES[k] == percentile) {
+                    return k;
+                }
+            }
+            throw new IllegalArgumentException("Percentile " + percentile + " not in " + Arrays.toString(PERCENTILES));
+        }
+    }
+
+    /**
+     * The result of a comparison.
+     */
+    static class Report {
+
+        final int pixelCount;
+        final int validPixelCount;
+        final int flagMismatchCount;
+        final List<BandDifferences> bandDifferences;
+
+        Report(int pixelCount, int validPixelCount, int flagMismatchCount, List<BandDifferences> bandDifferences) {
+            this.pixelCount = pixelCount;
+            this.validPixelCount = validPixelCount;
+            this.flagMismatchCount = flagMismatchCount;
+            this.bandDifferences = bandDifferences;
+        }
+
+        BandDifferences getBandDifferences(String bandName) {
+            for (BandDifferences differences : bandDifferences) {
+                if (differences.bandName.equals(bandName)) {
+                    return differences;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @param thresholds the thresholds
+         * @return the violations of the thresholds, empty if there are none
+         */
+        List<String> getViolations(Thresholds thresholds) {
+            final List<String> violations = new ArrayList<String>();
+            if (flagMismatchCount > thresholds.maxFlagMismatchCount) {
+                violations.add(flagMismatchCount + " pixels with different flags");
+            }
+            for (BandDifferences differences : bandDifferences) {
+                if (!differences.bandName.startsWith(thresholds.bandNamePrefix)) {
+                    continue;
+                }
+                checkThreshold(violations, differences.bandName, "max. abs. difference",
+                               differences.maxAbs, thresholds.maxAbsDifference);
+                checkThreshold(violations, differences.bandName, "max. rel. difference",
+                               differences.maxRel, thresholds.maxRelDifference);
+                checkThreshold(violations, differences.bandName, "mean abs. difference",
+                               differences.meanAbs, thresholds.maxMeanAbsDifference);
+                checkThreshold(violations, differences.bandName, "mean rel. difference",
+                               differences.meanRel, thresholds.maxMeanRelDifference);
+                checkThreshold(violations, differences.bandName, thresholds.percentile + "% abs. difference",
+                               differences.getPercentileAbs(thresholds.percentile),
+                               thresholds.maxPercentileAbsDifference);
+            }
+            return violations;
+        }
+
+        /**
+         * @param thresholds the thresholds
+         * @throws AssertionError if any threshold is exceeded, with the report as message
+         */
+        void assertWithin(Thresholds thresholds) {
+            final List<String> violations = getViolations(thresholds);
+            if (!violations.isEmpty()) {
+                throw new AssertionError("Candidate differs from reference: " + violations + "\n" + this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.ENGLISH, "%d pixels, %d valid, %d with different flags%n",
+                                    pixelCount, validPixelCount, flagMismatchCount));
+            sb.append(String.format(Locale.ENGLISH, "%-16s %10s %10s %10s %10s %10s %10s %10s %10s%n", "band",
+                                    "max abs", "mean abs", "p50 abs", "p95 abs", "p99 abs", "max rel", "mean rel",
+                                    "p99 rel"));
+            for (BandDifferences d : bandDifferences) {
+                sb.append(String.format(Locale.ENGLISH,
+                                        "%-16s %10.3e %10.3e %10.3e %10.3e %10.3e %10.3e %10.3e %10.3e%n",
+                                        d.bandName, d.maxAbs, d.meanAbs, d.percentileAbs[0], d.percentileAbs[1],
+                                        d.percentileAbs[2], d.maxRel, d.meanRel, d.percentileRel[2]));
+            }
+            return sb.toString();
+        }
+
+        private static void checkThreshold(List<String> violations, String bandName, String name, double value,
+                                           double threshold) {
+            if (!(value <= threshold)) {
+                violations.add(String.format(Locale.ENGLISH, "%s: %s %.3e > %.3e", bandName, name, value, threshold));
+            }
+        }
+    }
+}
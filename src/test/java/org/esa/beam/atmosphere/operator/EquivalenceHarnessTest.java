@@ -0,0 +1,204 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.nn.NNffbpAlphaTabFast;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the harness itself, and the optimised modes of the correction against the reference.
+ */
+public class EquivalenceHarnessTest {
+
+    private static final int NUM_BANDS = 9;
+
+    @Test
+    public void testIdenticalPathsHaveNoDifferences() throws Exception {
+        final EquivalenceHarness.Path path = createPath(new BatchTosa(330.0, 1000.0, 0.0));
+        final EquivalenceHarness.Report report = new EquivalenceHarness(path, path).compare(createInput(1000));
+
+        assertEquals(1000, report.pixelCount);
+        assertEquals(0, report.flagMismatchCount);
+        assertTrue(report.validPixelCount > 0);
+        assertEquals(2 * NUM_BANDS, report.bandDifferences.size());
+        final EquivalenceHarness.BandDifferences differences = report.getBandDifferences("refl_412");
+        assertEquals(report.validPixelCount, differences.count);
+        assertEquals(0.0, differences.maxAbs, 0.0);
+        assertEquals(0.0, differences.maxRel, 0.0);
+        report.assertWithin(new EquivalenceHarness.Thresholds(0.0, 0.0));
+    }
+
+    @Test
+    public void testBatchPathEqualsPerPixelPath() throws Exception {
+        final EquivalenceHarness.Path reference = createPerPixelPath();
+        final EquivalenceHarness.Path candidate = createPath(new BatchTosa(330.0, 1000.0, 0.0));
+        final EquivalenceHarness.Report report = new EquivalenceHarness(reference, candidate).compare(createInput(4096));
+
+        assertTrue(report.validPixelCount > 0);
+        final EquivalenceHarness.Thresholds thresholds = new EquivalenceHarness.Thresholds(1.0e-10, 1.0e-8);
+        thresholds.maxMeanRelDifference = 1.0e-10;
+        report.assertWithin(thresholds);
+    }
+
+    @Test
+    public void testTosaLutIsEquivalent() throws Exception {
+        final EquivalenceHarness.Path reference = createPerPixelPath();
+        final EquivalenceHarness.Path candidate = createPath(new BatchTosa(330.0, 1000.0, 0.0,
+                                                                          BatchTosa.DEFAULT_LUT_SIZE));
+        final EquivalenceHarness.Report report = new EquivalenceHarness(reference, candidate).compare(createInput(4096));
+
+        final EquivalenceHarness.Thresholds thresholds = new EquivalenceHarness.Thresholds(1.0e-6, 1.0e-5);
+        thresholds.bandNamePrefix = "tosa_";
+        thresholds.maxPercentileAbsDifference = 5.0e-7;
+        report.assertWithin(thresholds);
+    }
+
+    @Test
+    public void testFastMathIsEquivalent() throws Exception {
+        final BatchTosa fastTosa = new BatchTosa(330.0, 1000.0, 0.0);
+        fastTosa.setFastMath(true);
+        final EquivalenceHarness.Path reference = createPerPixelPath();
+        final EquivalenceHarness.Path candidate = createPath(fastTosa);
+        final EquivalenceHarness.Report report = new EquivalenceHarness(reference, candidate).compare(createInput(4096));
+
+        report.assertWithin(new EquivalenceHarness.Thresholds(1.0e-10, 1.0e-8));
+    }
+
+    @Test
+    public void testThresholdsAreChecked() throws Exception {
+        final EquivalenceHarness.Path reference = createPath(new BatchTosa(330.0, 1000.0, 0.0));
+        final EquivalenceHarness.Path candidate = createPath(new BatchTosa(300.0, 1000.0, 0.0));
+        final EquivalenceHarness.Report report = new EquivalenceHarness(reference, candidate).compare(createInput(500));
+
+        final EquivalenceHarness.Thresholds thresholds = new EquivalenceHarness.Thresholds(1.0e-6, 1.0e-6);
+        assertFalse(report.getViolations(thresholds).isEmpty());
+        try {
+            report.assertWithin(thresholds);
+            fail();
+        } catch (AssertionError expected) {
+            assertTrue(expected.getMessage().contains("tosa_412"));
+        }
+    }
+
+    @Test
+    public void testFlagMismatchesAreCounted() throws Exception {
+        final EquivalenceHarness.Path reference = createPath(new BatchTosa(330.0, 1000.0, 0.0));
+        final EquivalenceHarness.Path candidate = new EquivalenceHarness.Path() {
+            @Override
+            public void perform(PixelBatch batch) {
+                reference.perform(batch);
+                batch.flag[0] ^= AtmosCorrection.INVALID;
+            }
+        };
+        final EquivalenceHarness.Report report = new EquivalenceHarness(reference, candidate).compare(createInput(10));
+
+        assertEquals(1, report.flagMismatchCount);
+        assertEquals(1, report.getViolations(new EquivalenceHarness.Thresholds(1.0, 1.0)).size());
+    }
+
+    @Test
+    public void testPercentiles() {
+        final double[] reference = new double[100];
+        final double[] candidate = new double[100];
+        final boolean[] valid = new boolean[100];
+        for (int i = 0; i < 100; i++) {
+            reference[i] = 1.0;
+            candidate[i] = 1.0 + (i + 1) * 0.01;
+            valid[i] = true;
+        }
+        final EquivalenceHarness.BandDifferences differences =
+                new EquivalenceHarness.BandDifferences("test", reference, candidate, valid);
+        assertEquals(1.0, differences.maxAbs, 1.0e-12);
+        assertEquals(0.505, differences.meanAbs, 1.0e-12);
+        assertEquals(0.5, differences.getPercentileAbs(50.0), 1.0e-12);
+        assertEquals(0.95, differences.getPercentileAbs(95.0), 1.0e-12);
+        assertEquals(0.99, differences.getPercentileRel(99.0), 1.0e-12);
+        assertEquals(0.505, differences.meanRel, 1.0e-12);
+    }
+
+    @Test
+    public void testMeanRelDifferenceIsChecked() {
+        final EquivalenceHarness.BandDifferences differences = new EquivalenceHarness.BandDifferences(
+                "tosa_412", new double[]{1.0, 2.0}, new double[]{1.1, 2.0}, new boolean[]{true, true});
+        final EquivalenceHarness.Report report = new EquivalenceHarness.Report(
+                2, 2, 0, Arrays.asList(differences));
+        final EquivalenceHarness.Thresholds thresholds = new EquivalenceHarness.Thresholds(1.0, 1.0);
+        assertTrue(report.getViolations(thresholds).isEmpty());
+        thresholds.maxMeanRelDifference = 0.01;
+        assertEquals(1, report.getViolations(thresholds).size());
+        assertTrue(report.getViolations(thresholds).get(0).contains("mean rel."));
+        assertTrue(report.toString().contains("mean rel"));
+    }
+
+    @Test
+    public void testNaNIsADifference() {
+        final EquivalenceHarness.BandDifferences differences = new EquivalenceHarness.BandDifferences(
+                "test", new double[]{1.0, 2.0}, new double[]{1.0, Double.NaN}, new boolean[]{true, true});
+        assertEquals(Double.POSITIVE_INFINITY, differences.maxAbs, 0.0);
+    }
+
+    @Test
+    public void testPixelSetRoundTrip() throws Exception {
+        final PixelBatch batch = createInput(20);
+        batch.validation[5] = ToaReflectanceValidationOp.LAND_FLAG_MASK;
+        batch.columnStep = 8;
+        for (int i = 0; i < batch.getSize(); i++) {
+            batch.lat[i] = 54.0 + 0.1 * i;
+            batch.lon[i] = 7.0 - 0.3 * i;
+        }
+        final StringWriter writer = new StringWriter();
+        EquivalenceHarness.writePixelSet(batch, writer);
+        final PixelBatch copy = EquivalenceHarness.readPixelSet(new StringReader(writer.toString()));
+
+        assertEquals(batch.getSize(), copy.getSize());
+        assertEquals(batch.getNumBands(), copy.getNumBands());
+        assertEquals(batch.nadirColumnIndex, copy.nadirColumnIndex);
+        assertEquals(8, copy.columnStep);
+        for (int i = 0; i < batch.getSize(); i++) {
+            assertEquals(batch.pixelX[i], copy.pixelX[i]);
+            assertEquals(batch.lat[i], copy.lat[i], 0.0);
+            assertEquals(batch.lon[i], copy.lon[i], 0.0);
+            assertEquals(batch.validation[i], copy.validation[i]);
+            assertEquals(batch.satazi[i], copy.satazi[i], 0.0);
+            assertEquals(batch.salinity[i], copy.salinity[i], 0.0);
+            for (int b = 0; b < batch.getNumBands(); b++) {
+                assertEquals(batch.toaReflectance[b][i], copy.toaReflectance[b][i], 0.0);
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedPixelSet() throws Exception {
+        EquivalenceHarness.readPixelSet(new StringReader("pixelX,pixelY\n1,2\n"));
+    }
+
+    private static PixelBatch createInput(int numPixels) {
+        final PixelBatch batch = BatchTosaTest.createRandomBatch(NUM_BANDS, numPixels, new Random(4711));
+        batch.validation[numPixels / 2] = ToaReflectanceValidationOp.CLOUD_ICE_FLAG_MASK;
+        return batch;
+    }
+
+    private static EquivalenceHarness.Path createPerPixelPath() throws Exception {
+        return new EquivalenceHarness.PerPixelPath(AtmosCorrectionTest.loadAtmosphereNet(), 330.0, 1000.0, 0.0);
+    }
+
+    static EquivalenceHarness.Path createPath(BatchTosa batchTosa) throws Exception {
+        final NNffbpAlphaTabFast net = AtmosCorrectionTest.loadAtmosphereNet();
+        final AtmosCorrection ac = new AtmosCorrection(net, batchTosa);
+        return new EquivalenceHarness.Path() {
+            @Override
+            public void perform(PixelBatch batch) {
+                ac.perform(batch);
+            }
+        };
+    }
+}
@@ -0,0 +1,49 @@
+package org.esa.beam.atmosphere.operator;
+
+import java.util.Random;
+
+/**
+ * Compares the throughput of {@link FastMath#exp} with {@link Math#exp}, for arguments in the range of the
+ * TOSA correction.
+ * <p/>
+ * Usage: {@code FastMathBenchmark [repetitions [runs]]}, by default 100 repetitions over 100000 arguments are
+ * timed in each of 10 runs, and the best run is reported.
+ */
+public class FastMathBenchmark {
+
+    public static void main(String[] args) {
+        final int repetitions = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        final int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        final Random random = new Random(1);
+        final double[] x = new double[100000];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = -1.5 * random.nextDouble() - 0.01;
+        }
+        double mathSeconds = Double.MAX_VALUE;
+        double fastSeconds = Double.MAX_VALUE;
+        double sum = 0.0;
+        for (int run = 0; run < runs; run++) {
+            final long t1 = System.nanoTime();
+            for (int n = 0; n < repetitions; n++) {
+                for (double value : x) {
+                    sum += Math.exp(value);
+                }
+            }
+            final long t2 = System.nanoTime();
+            for (int n = 0; n < repetitions; n++) {
+                for (double value : x) {
+                    sum += FastMath.exp(value);
+                }
+            }
+            final long t3 = System.nanoTime();
+            mathSeconds = Math.min(mathSeconds, (t2 - t1) / 1.0e9);
+            fastSeconds = Math.min(fastSeconds, (t3 - t2) / 1.0e9);
+        }
+        // the sum keeps the JIT from removing the loops
+        System.out.println("function\tseconds\t(checksum " + sum + ")");
+        System.out.printf("Math.exp\t%.3f%n", mathSeconds);
+        System.out.printf("FastMath.exp\t%.3f%n", fastSeconds);
+        System.out.printf("speedup\t%.2f%n", mathSeconds / fastSeconds);
+    }
+}
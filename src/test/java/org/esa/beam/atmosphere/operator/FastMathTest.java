@@ -0,0 +1,33 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FastMathTest {
+
+    private static final int N = 1000000;
+
+    @Test
+    public void testExp() throws Exception {
+        final Random random = new Random(2);
+        double maxUlps = 0.0;
+        for (int i = 0; i < N; i++) {
+            final double x = 1400.0 * random.nextDouble() - 700.0;
+            maxUlps = Math.max(maxUlps, ulps(FastMath.exp(x), Math.exp(x)));
+        }
+        for (int i = 0; i < N; i++) {
+            final double x = 10.0 * random.nextDouble() - 5.0;
+            maxUlps = Math.max(maxUlps, ulps(FastMath.exp(x), Math.exp(x)));
+        }
+        assertTrue("max. error = " + maxUlps + " ulp", maxUlps <= 2.0);
+        assertEquals(1.0, FastMath.exp(0.0), 0.0);
+    }
+
+    private static double ulps(double actual, double expected) {
+        return Math.abs(actual - expected) / Math.ulp(expected);
+    }
+}
@@ -0,0 +1,98 @@
+package org.esa.beam.atmosphere.operator;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import org.esa.beam.framework.datamodel.Product;
+import org.junit.Test;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GeoRegionFinderTest {
+
+    @Test
+    public void testBoundingBox() {
+        // lat/lon bounding box of the Baltic Sea
+        final GeoRegionFinder finder = new GeoRegionFinder(new GeometryFactory().toGeometry(
+                new Envelope(9.0, 31.0, 53.0, 66.0)));
+        assertTrue(finder.isInside(55.0f, 15.0f));
+        assertTrue(finder.isInside(53.0f, 9.0f));
+        assertFalse(finder.isInside(52.9f, 15.0f));
+        assertFalse(finder.isInside(55.0f, 31.1f));
+    }
+
+    @Test
+    public void testAddPixelRegion() {
+        final GeoRegionFinder finder = new GeoRegionFinder(new GeometryFactory().toGeometry(
+                new Envelope(10.0, 20.0, 50.0, 60.0)));
+        // a swath of 20 x 10 pixels with 1 degree per pixel, from 5E and 45N, read in two parts
+        final Rectangle pixelRegion = new Rectangle();
+        for (int y0 = 0; y0 < 20; y0 += 10) {
+            final Rectangle rectangle = new Rectangle(0, y0, 20, 10);
+            final float[] lat = new float[200];
+            final float[] lon = new float[200];
+            for (int y = 0; y < 10; y++) {
+                for (int x = 0; x < 20; x++) {
+                    lat[y * 20 + x] = 45.0f + y0 + y;
+                    lon[y * 20 + x] = 5.0f + x;
+                }
+            }
+            finder.addPixelRegion(lat, lon, rectangle, pixelRegion);
+        }
+        assertEquals(new Rectangle(5, 5, 11, 11), pixelRegion);
+    }
+
+    @Test
+    public void testNoPixelInside() {
+        final GeoRegionFinder finder = new GeoRegionFinder(new GeometryFactory().toGeometry(
+                new Envelope(100.0, 110.0, -10.0, 0.0)));
+        final Rectangle pixelRegion = new Rectangle();
+        finder.addPixelRegion(new float[]{50.0f, 51.0f}, new float[]{10.0f, 10.0f}, new Rectangle(0, 0, 2, 1),
+                              pixelRegion);
+        assertTrue(pixelRegion.isEmpty());
+    }
+
+    @Test
+    public void testTargetProductIsSubsetOfGranule() throws Exception {
+        final SyntheticModisGranule granule = new SyntheticModisGranule(60, 40, SyntheticModisGranule.TEST_SEED);
+        final Product l1bProduct = granule.createL1bProduct();
+        final Product geoProduct = granule.createGeoProduct();
+        final Geometry region = new GeometryFactory().toGeometry(new Envelope(5.0, 10.0, 54.85, 55.1));
+        final Rectangle pixelRegion = new GeoRegionFinder(region).findPixelRegion(
+                geoProduct.getRasterDataNode(Constants.MODIS_GEO_GEOLOCATION_BAND_NAME_PREFIX +
+                                                     Constants.MODIS_LATITUDE_BAND_NAME),
+                geoProduct.getRasterDataNode(Constants.MODIS_GEO_GEOLOCATION_BAND_NAME_PREFIX +
+                                                     Constants.MODIS_LONGITUDE_BAND_NAME));
+        assertFalse(pixelRegion.isEmpty());
+        assertTrue(pixelRegion.width < 60 && pixelRegion.height < 40);
+
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("geoRegion", region);
+        final Product regionProduct = SyntheticModisGranule.createTargetProduct(l1bProduct, geoProduct, parameters);
+        final Product fullProduct = SyntheticModisGranule.createTargetProduct(l1bProduct, geoProduct);
+        try {
+            assertEquals(pixelRegion.width, regionProduct.getSceneRasterWidth());
+            assertEquals(pixelRegion.height, regionProduct.getSceneRasterHeight());
+            SyntheticModisGranule.assertBandsEqual(fullProduct, regionProduct, new String[]{
+                    Constants.AC_FLAG_BAND_NAME, Constants.MODIS_REFLEC_BAND_NAMES[2]
+            }, pixelRegion, new Point(0, 0));
+        } finally {
+            regionProduct.dispose();
+            fullProduct.dispose();
+        }
+    }
+
+    @Test
+    public void testAlignToScans() {
+        assertEquals(new Rectangle(3, 10, 7, 20), GeoRegionFinder.alignToScans(new Rectangle(3, 12, 7, 15), 2030));
+        assertEquals(new Rectangle(3, 20, 7, 10), GeoRegionFinder.alignToScans(new Rectangle(3, 20, 7, 10), 2030));
+        assertEquals(new Rectangle(0, 2020, 5, 5), GeoRegionFinder.alignToScans(new Rectangle(0, 2021, 5, 3), 2025));
+    }
+}
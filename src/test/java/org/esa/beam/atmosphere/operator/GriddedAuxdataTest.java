@@ -0,0 +1,85 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GriddedAuxdataTest {
+
+    @Test
+    public void testGetValue() throws Exception {
+        // 90N..90S in 30 deg steps, 0..330E in 30 deg steps, value = lat + lon / 10
+        final float[] values = new float[7 * 12];
+        for (int i = 0; i < 7; i++) {
+            for (int j = 0; j < 12; j++) {
+                values[i * 12 + j] = (float) (90.0 - 30.0 * i + 3.0 * j);
+            }
+        }
+        final GriddedAuxdata auxdata = new GriddedAuxdata(90.0, -30.0, 7, 0.0, 30.0, 12, values);
+
+        assertEquals(90.0, auxdata.getValue(90.0, 0.0), 1.0e-6);
+        assertEquals(45.0 + 1.5, auxdata.getValue(45.0, 15.0), 1.0e-6);
+        assertEquals(-60.0 + 33.0, auxdata.getValue(-60.0, 330.0), 1.0e-6);
+        // wrapped around between 330E and 0E
+        assertEquals(0.0 + 16.5, auxdata.getValue(0.0, 345.0), 1.0e-6);
+        assertEquals(0.0 + 16.5, auxdata.getValue(0.0, -15.0), 1.0e-6);
+        // clamped at the poles
+        assertEquals(-90.0, auxdata.getValue(-95.0, 0.0), 1.0e-6);
+    }
+
+    @Test
+    public void testGetValueWithMissingValue() throws Exception {
+        final float[] values = {1.0f, 2.0f, Float.NaN, 4.0f};
+        final GriddedAuxdata auxdata = new GriddedAuxdata(0.0, 1.0, 2, 0.0, 1.0, 2, values);
+
+        assertEquals(1.5, auxdata.getValue(0.0, 0.5), 1.0e-6);
+        assertTrue(Double.isNaN(auxdata.getValue(0.5, 0.5)));
+    }
+
+    @Test
+    public void testGetTimeIndex() throws Exception {
+        assertEquals(0, GriddedAuxdata.getTimeIndex(0.1, 1));
+        assertEquals(0, GriddedAuxdata.getTimeIndex(0.1, 4));
+        assertEquals(1, GriddedAuxdata.getTimeIndex(0.3, 4));
+        assertEquals(3, GriddedAuxdata.getTimeIndex(0.95, 4));
+    }
+
+    @Test
+    public void testReadTestFile() throws Exception {
+        final File file = new File(GriddedAuxdataTest.class.getResource("auxdata_test.nc").toURI());
+
+        final GriddedAuxdata[] ozone = GriddedAuxdata.read(file, "ozone");
+        assertEquals(2, ozone.length);
+        assertEquals(300.0 + 45.0, ozone[0].getValue(45.0, 15.0), 1.0e-4);
+        assertEquals(310.0 + 45.0, ozone[1].getValue(45.0, 15.0), 1.0e-4);
+
+        // converted from Pa to hPa
+        final GriddedAuxdata[] pressure = GriddedAuxdata.read(file, "pressure");
+        assertEquals(1, pressure.length);
+        assertEquals(1013.25 + 0.15, pressure[0].getValue(45.0, 15.0), 1.0e-4);
+
+        GriddedAuxdataCache.clear();
+        assertEquals(310.0 + 45.0, GriddedAuxdataCache.get(file, "ozone", 0.6).getValue(45.0, 15.0), 1.0e-4);
+        GriddedAuxdataCache.get(file, "ozone", 0.1);
+        assertEquals(1, GriddedAuxdataCache.size());
+    }
+
+    @Test
+    public void testCacheKeyChangesWithFile() throws Exception {
+        final File file = File.createTempFile("auxdata", ".nc");
+        try {
+            final String key = GriddedAuxdataCache.getKey(file, "ozone");
+            assertEquals(key, GriddedAuxdataCache.getKey(file, "ozone"));
+            assertFalse(key.equals(GriddedAuxdataCache.getKey(file, "pressure")));
+            // a file replaced in place
+            assertTrue(file.setLastModified(file.lastModified() - 60000L));
+            assertFalse(key.equals(GriddedAuxdataCache.getKey(file, "ozone")));
+        } finally {
+            file.delete();
+        }
+    }
+}
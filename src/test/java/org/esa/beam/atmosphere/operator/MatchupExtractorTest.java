@@ -0,0 +1,171 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.RasterDataNode;
+import org.junit.Test;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MatchupExtractorTest {
+
+    @Test
+    public void testReadStations() throws IOException {
+        List<MatchupExtractor.Station> stations = MatchupExtractor.readStations(new StringReader(
+                "Name,Lat,Lon\nHelgoland,54.18,7.9\n\n# comment\nGotland, 57.0 ,18.5\n"));
+        assertEquals(2, stations.size());
+        assertEquals("Helgoland", stations.get(0).name);
+        assertEquals(54.18, stations.get(0).lat, 0.0);
+        assertEquals(7.9, stations.get(0).lon, 0.0);
+        assertEquals("Gotland", stations.get(1).name);
+        assertEquals(18.5, stations.get(1).lon, 0.0);
+
+        stations = MatchupExtractor.readStations(new StringReader("longitude;latitude\n-3.5;44.25\n"));
+        assertEquals(1, stations.size());
+        assertEquals("1", stations.get(0).name);
+        assertEquals(44.25, stations.get(0).lat, 0.0);
+        assertEquals(-3.5, stations.get(0).lon, 0.0);
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadStationsWithoutLatitude() throws IOException {
+        MatchupExtractor.readStations(new StringReader("name,lon\nA,7.9\n"));
+    }
+
+    @Test
+    public void testGetDistance() {
+        assertEquals(111.195, MatchupExtractor.getDistance(54.0, 8.0, 55.0, 8.0), 1.0e-9);
+        assertEquals(0.5 * 111.195, MatchupExtractor.getDistance(60.0, 8.0, 60.0, 9.0), 0.1);
+        // across the date line
+        assertEquals(MatchupExtractor.getDistance(0.0, 179.9, 0.0, 180.1),
+                     MatchupExtractor.getDistance(0.0, 179.9, 0.0, -179.9), 1.0e-9);
+    }
+
+    @Test
+    public void testFindNearestPixel() {
+        final float[] lats = {55.0f, 55.0f, 55.0f, 55.01f, 55.01f, 55.01f};
+        final float[] lons = {5.0f, 5.02f, 5.04f, 5.0f, 5.02f, 5.04f};
+        assertEquals(4, MatchupExtractor.findNearestPixel(lats, lons, 55.008, 5.021));
+        assertEquals(0, MatchupExtractor.findNearestPixel(lats, lons, 54.0, 4.0));
+    }
+
+    @Test
+    public void testGetWindow() {
+        assertEquals(new Rectangle(9, 19, 3, 3), MatchupExtractor.getWindow(new Point(10, 20), 3, 1354, 2030));
+        assertEquals(new Rectangle(0, 18, 3, 5), MatchupExtractor.getWindow(new Point(0, 20), 5, 1354, 2030));
+        assertEquals(new Rectangle(1351, 2027, 3, 3), MatchupExtractor.getWindow(new Point(1353, 2029), 5, 1354,
+                                                                                 2030));
+    }
+
+    @Test
+    public void testToCsvField() {
+        assertEquals("Helgoland", MatchupExtractor.toCsvField("Helgoland"));
+        assertEquals("\"Venice, AAOT\"", MatchupExtractor.toCsvField("Venice, AAOT"));
+        assertEquals("\"Station \"\"A\"\"\"", MatchupExtractor.toCsvField("Station \"A\""));
+        assertEquals("\"North\nSea\"", MatchupExtractor.toCsvField("North\nSea"));
+        assertEquals("\"North\r\nSea\"", MatchupExtractor.toCsvField("North\r\nSea"));
+        assertEquals("", MatchupExtractor.toCsvField(""));
+    }
+
+    @Test
+    public void testStationNameIsEscaped() throws Exception {
+        final SyntheticModisGranule granule = new SyntheticModisGranule(60, 40, SyntheticModisGranule.TEST_SEED);
+        final Product l1bProduct = granule.createL1bProduct();
+        final Product geoProduct = granule.createGeoProduct();
+        final RasterDataNode latNode = geoProduct.getRasterDataNode(
+                Constants.MODIS_GEO_GEOLOCATION_BAND_NAME_PREFIX + Constants.MODIS_LATITUDE_BAND_NAME);
+        final RasterDataNode lonNode = geoProduct.getRasterDataNode(
+                Constants.MODIS_GEO_GEOLOCATION_BAND_NAME_PREFIX + Constants.MODIS_LONGITUDE_BAND_NAME);
+        final List<MatchupExtractor.Station> stations = Arrays.asList(
+                new MatchupExtractor.Station("Venice \"AAOT\", IT", readPixel(latNode, 31, 17),
+                                             readPixel(lonNode, 31, 17)));
+        final HashMap<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("useSnTMap", false);
+        parameters.put("useSrtmWaterMask", false);
+        parameters.put("useModisLandSeaMask", true);
+        final MatchupExtractor extractor = new MatchupExtractor(stations, 1, 5.0, parameters);
+
+        final StringWriter csv = new StringWriter();
+        assertEquals(1, extractor.extract("MOD.A2010123.1030", l1bProduct, geoProduct, new PrintWriter(csv)));
+        final String[] lines = csv.toString().split("\n");
+        assertEquals(2, lines.length);
+        final int columnCount = lines[0].trim().split(",").length;
+        assertTrue(lines[1].startsWith("MOD.A2010123.1030,\"Venice \"\"AAOT\"\", IT\","));
+        final String unquotedRow = lines[1].trim().replace("\"Venice \"\"AAOT\"\", IT\"", "Venice");
+        assertEquals(columnCount, unquotedRow.split(",").length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEvenWindowSize() {
+        new MatchupExtractor(Arrays.<MatchupExtractor.Station>asList(), 4, 5.0, new HashMap<String, Object>());
+    }
+
+    @Test
+    public void testWindowEqualsFullSceneProduct() throws Exception {
+        final SyntheticModisGranule granule = new SyntheticModisGranule(60, 40, SyntheticModisGranule.TEST_SEED);
+        final Product l1bProduct = granule.createL1bProduct();
+        final Product geoProduct = granule.createGeoProduct();
+        final RasterDataNode latNode = geoProduct.getRasterDataNode(
+                Constants.MODIS_GEO_GEOLOCATION_BAND_NAME_PREFIX + Constants.MODIS_LATITUDE_BAND_NAME);
+        final RasterDataNode lonNode = geoProduct.getRasterDataNode(
+                Constants.MODIS_GEO_GEOLOCATION_BAND_NAME_PREFIX + Constants.MODIS_LONGITUDE_BAND_NAME);
+        final float stationLat = readPixel(latNode, 31, 17);
+        final float stationLon = readPixel(lonNode, 31, 17);
+        final List<MatchupExtractor.Station> stations = Arrays.asList(
+                new MatchupExtractor.Station("inside", stationLat, stationLon),
+                new MatchupExtractor.Station("outside", stationLat + 10.0, stationLon));
+        final HashMap<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("useSnTMap", false);
+        parameters.put("useSrtmWaterMask", false);
+        parameters.put("useModisLandSeaMask", true);
+        final MatchupExtractor extractor = new MatchupExtractor(stations, 3, 5.0, parameters);
+
+        final Point pixel = extractor.findPixel(latNode, lonNode, l1bProduct.getGeoCoding(), stationLat,
+                                                stationLon);
+        assertEquals(new Point(31, 17), pixel);
+        assertEquals(pixel, extractor.findPixel(latNode, lonNode, null, stationLat, stationLon));
+        assertNull(extractor.findPixel(latNode, lonNode, null, stationLat + 10.0, stationLon));
+
+        final StringWriter csv = new StringWriter();
+        assertEquals(1, extractor.extract("MOD.A2010123.1030", l1bProduct, geoProduct, new PrintWriter(csv)));
+        final String[] lines = csv.toString().split("\n");
+        assertEquals(1 + 9, lines.length);
+        final List<String> columns = Arrays.asList(lines[0].trim().split(","));
+        final int reflecColumn = columns.indexOf(Constants.MODIS_REFLEC_BAND_NAMES[2]);
+        final int flagsColumn = columns.indexOf(Constants.AC_FLAG_BAND_NAME);
+        assertTrue(reflecColumn > 0 && flagsColumn > 0);
+
+        final Product fullProduct = SyntheticModisGranule.createTargetProduct(l1bProduct, geoProduct);
+        try {
+            for (int i = 1; i < lines.length; i++) {
+                final String[] values = lines[i].trim().split(",");
+                assertEquals("MOD.A2010123.1030", values[0]);
+                assertEquals("inside", values[1]);
+                final int x = Integer.parseInt(values[4]);
+                final int y = Integer.parseInt(values[5]);
+                assertTrue(Math.abs(x - 31) <= 1 && Math.abs(y - 17) <= 1);
+                assertEquals(readPixel(fullProduct.getBand(Constants.MODIS_REFLEC_BAND_NAMES[2]), x, y),
+                             Float.parseFloat(values[reflecColumn]), 0.0f);
+                assertEquals((int) readPixel(fullProduct.getBand(Constants.AC_FLAG_BAND_NAME), x, y),
+                             Integer.parseInt(values[flagsColumn]));
+            }
+        } finally {
+            fullProduct.dispose();
+        }
+    }
+
+    private static float readPixel(RasterDataNode node, int x, int y) throws IOException {
+        return node.readPixels(x, y, 1, 1, new float[1])[0];
+    }
+}
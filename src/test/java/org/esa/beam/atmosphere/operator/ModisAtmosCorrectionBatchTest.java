@@ -0,0 +1,187 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Product;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ModisAtmosCorrectionBatchTest {
+
+    @Test
+    public void testFindGranulePairs() {
+        final List<File> files = Arrays.asList(
+                new File("MOD03.A2010123.1035.005.2010123235959.hdf"),
+                new File("MOD021KM.A2010123.1030.005.2010124000000.hdf"),
+                new File("MOD021KM.A2010123.1035.005.2010124000001.hdf"),
+                new File("MYD03.A2010123.1030.005.2010123235959.hdf"),
+                new File("MOD03.A2010123.1030.005.2010123235959.hdf"),
+                new File("MOD021KM.A2010123.1040.005.2010124000002.hdf"),
+                new File("readme.txt"));
+        final List<File> unmatchedFiles = new ArrayList<File>();
+        final List<ModisAtmosCorrectionBatch.GranulePair> pairs =
+                ModisAtmosCorrectionBatch.findGranulePairs(files, unmatchedFiles);
+
+        assertEquals(2, pairs.size());
+        assertEquals("MOD.A2010123.1030", pairs.get(0).granuleId);
+        assertEquals("MOD021KM.A2010123.1030.005.2010124000000.hdf", pairs.get(0).l1bFile.getName());
+        assertEquals("MOD03.A2010123.1030.005.2010123235959.hdf", pairs.get(0).geoFile.getName());
+        assertEquals("MOD.A2010123.1035", pairs.get(1).granuleId);
+        assertEquals("MOD03.A2010123.1035.005.2010123235959.hdf", pairs.get(1).geoFile.getName());
+
+        assertEquals(3, unmatchedFiles.size());
+        assertTrue(unmatchedFiles.contains(new File("readme.txt")));
+        assertTrue(unmatchedFiles.contains(new File("MOD021KM.A2010123.1040.005.2010124000002.hdf")));
+        assertTrue(unmatchedFiles.contains(new File("MYD03.A2010123.1030.005.2010123235959.hdf")));
+    }
+
+    @Test
+    public void testListInputFilesFromFileList() throws Exception {
+        final File fileList = File.createTempFile("granules", ".txt");
+        try {
+            final PrintWriter writer = new PrintWriter(new FileWriter(fileList));
+            writer.println("# day 123");
+            writer.println("MOD021KM.A2010123.1030.005.2010124000000.hdf");
+            writer.println();
+            writer.println("  /data/MOD03.A2010123.1030.005.2010123235959.hdf  ");
+            writer.close();
+
+            final List<File> files = ModisAtmosCorrectionBatch.listInputFiles(fileList);
+            assertEquals(2, files.size());
+            assertEquals(new File(fileList.getParentFile(), "MOD021KM.A2010123.1030.005.2010124000000.hdf"),
+                         files.get(0));
+            assertEquals(new File("/data/MOD03.A2010123.1030.005.2010123235959.hdf"), files.get(1));
+        } finally {
+            assertTrue(fileList.delete());
+        }
+    }
+
+    @Test
+    public void testProcessAndWriteSummary() throws Exception {
+        final File dir = File.createTempFile("ModisAtmosCorrectionBatchTest", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+        try {
+            final SyntheticModisGranule granule = SyntheticModisGranule.createTestGranule(40, 20);
+            final File l1bFile = new File(dir, "MOD021KM.A2010123.1030.005.2010124000000.dim");
+            final File geoFile = new File(dir, "MOD03.A2010123.1030.005.2010123235959.dim");
+            writeProduct(granule.createL1bProduct(), l1bFile);
+            writeProduct(granule.createGeoProduct(), geoFile);
+            final File outputDir = new File(dir, "output");
+            assertTrue(outputDir.mkdir());
+            final List<ModisAtmosCorrectionBatch.GranulePair> pairs = Arrays.asList(
+                    new ModisAtmosCorrectionBatch.GranulePair("MOD.A2010123.1030", l1bFile, geoFile),
+                    // the GEO file of the second granule is missing
+                    new ModisAtmosCorrectionBatch.GranulePair("MOD.A2010123.1035", l1bFile,
+                                                              new File(dir, "MOD03.A2010123.1035.dim")));
+            final Map<String, Object> parameters = new HashMap<String, Object>();
+            parameters.put("useSnTMap", false);
+            parameters.put("useSrtmWaterMask", false);
+            parameters.put("useModisLandSeaMask", true);
+
+            final List<ModisAtmosCorrectionBatch.GranuleResult> results =
+                    new ModisAtmosCorrectionBatch(outputDir, ProductIO.DEFAULT_FORMAT_NAME, 2,
+                                                  parameters).process(pairs);
+            assertEquals(2, results.size());
+            final ModisAtmosCorrectionBatch.GranuleResult result = results.get(0);
+            assertNull(result.error);
+            assertEquals(40 * 20, result.processedPixels);
+            assertTrue(result.validPixels > 0 && result.validPixels < result.processedPixels);
+            assertTrue(new File(outputDir, "MOD021KM.A2010123.1030.005.2010124000000_AC.dim").isFile());
+            assertNotNull(results.get(1).error);
+
+            final File summaryFile = new File(outputDir, ModisAtmosCorrectionBatch.SUMMARY_FILE_NAME);
+            ModisAtmosCorrectionBatch.writeSummary(summaryFile, results, Arrays.asList(new File("readme.txt")),
+                                                   2.0);
+            final List<String[]> rows = readSummary(summaryFile);
+            assertEquals(5, rows.size());
+            assertEquals(Arrays.asList("granule", "status", "seconds", "processed_pixels", "valid_pixels",
+                                       "l1b_file", "geo_file", "output", "message"), Arrays.asList(rows.get(0)));
+            for (String[] row : rows.subList(0, 4)) {
+                assertEquals(9, row.length);
+            }
+            assertEquals("MOD.A2010123.1030", rows.get(1)[0]);
+            assertEquals("OK", rows.get(1)[1]);
+            assertEquals("800", rows.get(1)[3]);
+            assertEquals(String.valueOf(result.validPixels), rows.get(1)[4]);
+            assertEquals(l1bFile.getPath(), rows.get(1)[5]);
+            assertEquals(geoFile.getPath(), rows.get(1)[6]);
+            assertEquals(result.outputFile.getPath(), rows.get(1)[7]);
+            assertEquals("", rows.get(1)[8]);
+            assertEquals("MOD.A2010123.1035", rows.get(2)[0]);
+            assertEquals("FAILED", rows.get(2)[1]);
+            assertEquals("0", rows.get(2)[3]);
+            assertFalse(rows.get(2)[8].isEmpty());
+            assertEquals("UNMATCHED", rows.get(3)[1]);
+            assertEquals("readme.txt", rows.get(3)[5]);
+            assertTrue(rows.get(4)[0], rows.get(4)[0].startsWith(
+                    "# total: 2 granules, 1 unmatched files, 2.000 s, 800 processed pixels, " +
+                    result.validPixels + " valid pixels, 400 pixels/s"));
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testConvertParameter() {
+        assertEquals(Boolean.FALSE, ModisAtmosCorrectionBatch.convertParameter("useSnTMap", "false"));
+        assertEquals(2, ModisAtmosCorrectionBatch.convertParameter("coastlineBuffer", "2"));
+        assertEquals(35.5, ModisAtmosCorrectionBatch.convertParameter("averageSalinity", "35.5"));
+        assertEquals(new File("my.net"), ModisAtmosCorrectionBatch.convertParameter("atmoNetModisFile", "my.net"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConvertUnknownParameter() {
+        ModisAtmosCorrectionBatch.convertParameter("batchTosa", "true");
+    }
+
+    private static void writeProduct(Product product, File file) throws IOException {
+        try {
+            ProductIO.writeProduct(product, file, ProductIO.DEFAULT_FORMAT_NAME, false);
+        } finally {
+            product.dispose();
+        }
+    }
+
+    private static List<String[]> readSummary(File summaryFile) throws IOException {
+        final List<String[]> rows = new ArrayList<String[]>();
+        final BufferedReader reader = new BufferedReader(new FileReader(summaryFile));
+        try {
+            String line = reader.readLine();
+            while (line != null) {
+                // keeps the empty trailing columns
+                rows.add(line.split("\t", -1));
+                line = reader.readLine();
+            }
+        } finally {
+            reader.close();
+        }
+        return rows;
+    }
+
+    private static void deleteTree(File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,96 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.datamodel.Product;
+
+import javax.media.jai.JAI;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * End-to-end throughput benchmark of {@link ModisAtmosCorrectionOp} on a {@link SyntheticModisGranule}.
+ * It runs offline: the default neural net is used, land is taken from the synthetic MODIS Land/SeaMask and
+ * the salinity and temperature are constant. The target tiles are computed, but not written.
+ * <p/>
+ * Usage: {@code ModisAtmosCorrectionBenchmark [width [height [maxThreads [runs]]]]}, by default a complete
+ * granule of 1354 x 2030 pixels is processed with 1, 2, 4, ... threads up to the number of processors.
+ */
+public class ModisAtmosCorrectionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int width = args.length > 0 ? Integer.parseInt(args[0]) : SyntheticModisGranule.SCAN_WIDTH;
+        final int height = args.length > 1 ? Integer.parseInt(args[1]) : 203 * SyntheticModisGranule.LINES_PER_SCAN;
+        final int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        final int runs = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        final SyntheticModisGranule granule = new SyntheticModisGranule(width, height,
+                                                                        SyntheticModisGranule.TEST_SEED);
+        final Product l1bProduct = granule.createL1bProduct();
+        final Product geoProduct = granule.createGeoProduct();
+
+        System.out.println("granule: " + width + " x " + height + " pixels");
+        System.out.println("threads\tpixels/s\tseconds");
+        for (int numThreads = 1; numThreads <= maxThreads; numThreads = nextThreadCount(numThreads, maxThreads)) {
+            double bestSeconds = Double.MAX_VALUE;
+            for (int run = 0; run < runs; run++) {
+                bestSeconds = Math.min(bestSeconds, computeTargetProduct(l1bProduct, geoProduct,
+                                                                          new HashMap<String, Object>(), numThreads));
+            }
+            System.out.printf("%d\t%.0f\t%.3f%n", numThreads, width * (double) height / bestSeconds, bestSeconds);
+        }
+    }
+
+    /**
+     * Computes all tiles of a new target product with a pool of threads.
+     *
+     * @param l1bProduct the L1b product
+     * @param geoProduct the GEO product
+     * @param parameters the operator parameters overriding the defaults
+     * @param numThreads the number of threads
+     * @return the time needed (s)
+     * @throws Exception if the computation fails
+     */
+    static double computeTargetProduct(Product l1bProduct, Product geoProduct, Map<String, Object> parameters,
+                                       int numThreads) throws Exception {
+        JAI.getDefaultInstance().getTileCache().flush();
+        JAI.getDefaultInstance().getTileScheduler().setParallelism(numThreads);
+        final Product targetProduct = SyntheticModisGranule.createTargetProduct(l1bProduct, geoProduct, parameters);
+        // all target bands are computed together, so requesting the tiles of the flag band is sufficient
+        final RenderedImage image = targetProduct.getBand(Constants.AC_FLAG_BAND_NAME).getSourceImage();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for (int tileY = image.getMinTileY(); tileY < image.getMinTileY() + image.getNumYTiles(); tileY++) {
+                for (int tileX = image.getMinTileX(); tileX < image.getMinTileX() + image.getNumXTiles(); tileX++) {
+                    final int x = tileX;
+                    final int y = tileY;
+                    tasks.add(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            return image.getTile(x, y);
+                        }
+                    });
+                }
+            }
+            final long t1 = System.nanoTime();
+            for (Future<Object> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+            return (System.nanoTime() - t1) / 1.0e9;
+        } finally {
+            executor.shutdown();
+            targetProduct.dispose();
+        }
+    }
+
+    private static int nextThreadCount(int numThreads, int maxThreads) {
+        return numThreads < maxThreads && 2 * numThreads > maxThreads ? maxThreads : 2 * numThreads;
+    }
+}
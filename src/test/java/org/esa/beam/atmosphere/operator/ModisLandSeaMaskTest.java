@@ -0,0 +1,71 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ModisLandSeaMaskTest {
+
+    @Test
+    public void testIsLand() throws Exception {
+        assertTrue(ModisLandSeaMask.isLand(1));
+        assertFalse(ModisLandSeaMask.isLand(0));
+        assertTrue(ModisLandSeaMask.isLand(2));
+        assertFalse(ModisLandSeaMask.isLand(3));
+        assertTrue(ModisLandSeaMask.isLand(4));
+        assertFalse(ModisLandSeaMask.isLand(5));
+        assertFalse(ModisLandSeaMask.isLand(6));
+        assertFalse(ModisLandSeaMask.isLand(7));
+    }
+
+    @Test
+    public void testNoCoastlineBuffer() throws Exception {
+        final boolean[] land = createLand("..##",
+                                          "..##");
+        assertSame(land, ModisLandSeaMask.applyCoastlineBuffer(land, 4, 2, 0));
+    }
+
+    @Test
+    public void testDilateLand() throws Exception {
+        final boolean[] land = createLand(".....",
+                                          ".....",
+                                          "...#.",
+                                          ".....");
+        final boolean[] expected = createLand(".....",
+                                              "..###",
+                                              "..###",
+                                              "..###");
+        assertMask(expected, ModisLandSeaMask.applyCoastlineBuffer(land, 5, 4, 1));
+    }
+
+    @Test
+    public void testErodeLand() throws Exception {
+        final boolean[] land = createLand("####.",
+                                          "####.",
+                                          "####.",
+                                          "####.");
+        final boolean[] expected = createLand("##...",
+                                              "##...",
+                                              "##...",
+                                              "##...");
+        assertMask(expected, ModisLandSeaMask.applyCoastlineBuffer(land, 5, 4, -2));
+    }
+
+    private static boolean[] createLand(String... rows) {
+        final int width = rows[0].length();
+        final boolean[] land = new boolean[width * rows.length];
+        for (int y = 0; y < rows.length; y++) {
+            for (int x = 0; x < width; x++) {
+                land[y * width + x] = rows[y].charAt(x) == '#';
+            }
+        }
+        return land;
+    }
+
+    private static void assertMask(boolean[] expected, boolean[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("index " + i, expected[i], actual[i]);
+        }
+    }
+}
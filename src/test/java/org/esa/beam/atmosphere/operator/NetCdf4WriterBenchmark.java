@@ -0,0 +1,133 @@
+package org.esa.beam.atmosphere.operator;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.util.ProductUtils;
+
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compares the write throughput and the file size of {@link ChunkedNetCdf4Writer} with the default writers.
+ * The target product of a {@link SyntheticModisGranule} is computed once and kept in memory, so only the
+ * writing is measured.
+ * <p/>
+ * Usage: {@code NetCdf4WriterBenchmark [width [height [outputDir]]]}, by default a complete granule of
+ * 1354 x 2030 pixels is written to the temporary directory.
+ */
+public class NetCdf4WriterBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int width = args.length > 0 ? Integer.parseInt(args[0]) : SyntheticModisGranule.SCAN_WIDTH;
+        final int height = args.length > 1 ? Integer.parseInt(args[1]) : 203 * SyntheticModisGranule.LINES_PER_SCAN;
+        final File outputDir = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"),
+                                        "NetCdf4WriterBenchmark");
+        final int numThreads = Runtime.getRuntime().availableProcessors();
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create output directory " + outputDir);
+        }
+
+        final SyntheticModisGranule granule = new SyntheticModisGranule(width, height,
+                                                                        SyntheticModisGranule.TEST_SEED);
+        final Product targetProduct = SyntheticModisGranule.createTargetProduct(granule.createL1bProduct(),
+                                                                                granule.createGeoProduct());
+        final Product product = createMemoryProduct(targetProduct);
+        final double rawMegabytes = getRawBytes(product) / 1.0e6;
+
+        System.out.printf("granule: %d x %d pixels, %d bands, %.1f MB raw%n", width, height,
+                          product.getNumBands(), rawMegabytes);
+        System.out.println("writer\tseconds\tMB/s (raw)\tfile MB\tratio");
+        printResult("BEAM-DIMAP", writeWithProductIO(product, outputDir, "BEAM-DIMAP"), outputDir, rawMegabytes);
+        printResult("NetCDF4-CF", writeWithProductIO(product, outputDir, "NetCDF4-CF"), outputDir, rawMegabytes);
+        for (int level : new int[]{0, 1, 5, 9}) {
+            for (int threads : numThreads > 1 ? new int[]{1, numThreads} : new int[]{1}) {
+                final long t1 = System.nanoTime();
+                new ChunkedNetCdf4Writer(level, threads).write(product, new File(outputDir, "chunked"),
+                                                               ProgressMonitor.NULL);
+                final double seconds = (System.nanoTime() - t1) / 1.0e9;
+                printResult(ChunkedNetCdf4Writer.FORMAT_NAME + " deflate=" + level + " threads=" + threads,
+                            seconds, outputDir, rawMegabytes);
+            }
+        }
+        product.dispose();
+        targetProduct.dispose();
+    }
+
+    /**
+     * Creates a copy of a product with all bands held in memory, computing all of its tiles.
+     *
+     * @param product the product
+     * @return the copy
+     */
+    static Product createMemoryProduct(Product product) {
+        final int width = product.getSceneRasterWidth();
+        final int height = product.getSceneRasterHeight();
+        final Product memoryProduct = new Product(product.getName(), product.getProductType(), width, height);
+        final RenderedImage tileImage = product.getBandAt(0).getSourceImage();
+        memoryProduct.setPreferredTileSize(tileImage.getTileWidth(), tileImage.getTileHeight());
+        memoryProduct.setStartTime(product.getStartTime());
+        memoryProduct.setEndTime(product.getEndTime());
+        ProductUtils.copyGeoCoding(product, memoryProduct);
+        ProductUtils.copyFlagBands(product, memoryProduct, false);
+        for (Band band : product.getBands()) {
+            if (!memoryProduct.containsBand(band.getName())) {
+                ProductUtils.copyBand(band.getName(), product, memoryProduct, false);
+            }
+            final ProductData data = ProductData.createInstance(band.getDataType(), width * height);
+            final Raster raster = band.getSourceImage().getData();
+            raster.getDataElements(0, 0, width, height, data.getElems());
+            memoryProduct.getBand(band.getName()).setRasterData(data);
+        }
+        return memoryProduct;
+    }
+
+    private static double writeWithProductIO(Product product, File outputDir, String formatName) throws IOException {
+        final long t1 = System.nanoTime();
+        ProductIO.writeProduct(product, new File(outputDir, "default"), formatName, false);
+        return (System.nanoTime() - t1) / 1.0e9;
+    }
+
+    private static void printResult(String writerName, double seconds, File outputDir, double rawMegabytes) {
+        final double fileMegabytes = getSize(outputDir) / 1.0e6;
+        System.out.printf("%s\t%.3f\t%.1f\t%.1f\t%.2f%n", writerName, seconds, rawMegabytes / seconds,
+                          fileMegabytes, fileMegabytes / rawMegabytes);
+        delete(outputDir);
+        outputDir.mkdirs();
+    }
+
+    private static long getRawBytes(Product product) {
+        long bytes = 0;
+        for (Band band : product.getBands()) {
+            bytes += (long) ProductData.getElemSize(band.getDataType()) * band.getSceneRasterWidth() *
+                    band.getSceneRasterHeight();
+        }
+        return bytes;
+    }
+
+    private static long getSize(File file) {
+        final File[] files = file.listFiles();
+        if (files == null) {
+            return file.length();
+        }
+        long size = 0;
+        for (File child : files) {
+            size += getSize(child);
+        }
+        return size;
+    }
+
+    private static void delete(File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,166 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessingStatisticsTest {
+
+    @Test
+    public void testUpdatesAreForwardedToJvmStatistics() {
+        final ProcessingStatistics jvmStatistics = ProcessingStatistics.getJvmStatistics();
+        final long jvmNanos = jvmStatistics.getStageNanos(ProcessingStage.NEURAL_NET);
+        final long jvmTiles = jvmStatistics.getComputedTileCount();
+        final long jvmPixels = jvmStatistics.getProcessedPixelCount();
+
+        final ProcessingStatistics statistics = new ProcessingStatistics();
+        statistics.addStageTime(ProcessingStage.NEURAL_NET, 3000000L, 2000000L);
+        statistics.addStageTime(ProcessingStage.NEURAL_NET, 2000000L, 1000000L);
+        statistics.addFlags(new int[100], 60);
+        statistics.addTile(System.nanoTime(), false, 60);
+        statistics.addFlags(createFlags(50, AtmosCorrection.INVALID | AtmosCorrection.LAND), 50);
+        statistics.addTile(System.nanoTime(), true, 50);
+
+        assertEquals(5000000L, statistics.getStageNanos(ProcessingStage.NEURAL_NET));
+        assertEquals(3000000L, statistics.getStageCpuNanos(ProcessingStage.NEURAL_NET));
+        assertEquals(5L, statistics.getNeuralNetTimeMillis());
+        assertEquals(0L, statistics.getTosaTimeMillis());
+        assertEquals(2L, statistics.getComputedTileCount());
+        assertEquals(1L, statistics.getSkippedTileCount());
+        assertEquals(110L, statistics.getProcessedPixelCount());
+        assertEquals(60L, statistics.getValidPixelCount());
+        assertEquals(50L, statistics.getSkippedPixelCount());
+        assertEquals(50L, statistics.getLandPixelCount());
+
+        // other tests may run concurrently, so the JVM-wide statistics can only grow
+        assertTrue(jvmStatistics.getStageNanos(ProcessingStage.NEURAL_NET) >= jvmNanos + 5000000L);
+        assertTrue(jvmStatistics.getComputedTileCount() >= jvmTiles + 2);
+        assertTrue(jvmStatistics.getProcessedPixelCount() >= jvmPixels + 110);
+    }
+
+    @Test
+    public void testReset() {
+        final ProcessingStatistics statistics = new ProcessingStatistics();
+        statistics.addStageTime(ProcessingStage.TOSA, 1000L, 1000L);
+        statistics.addTile(System.nanoTime() - 1000000L, true, 10);
+        assertTrue(statistics.getWallNanos() > 0);
+        statistics.reset();
+
+        assertEquals(0L, statistics.getStageNanos(ProcessingStage.TOSA));
+        assertEquals(0L, statistics.getStageCpuNanos(ProcessingStage.TOSA));
+        assertEquals(0L, statistics.getComputedTileCount());
+        assertEquals(0L, statistics.getSkippedPixelCount());
+        assertEquals(0L, statistics.getWallNanos());
+    }
+
+    @Test
+    public void testPrefetchHitRate() {
+        final ProcessingStatistics statistics = new ProcessingStatistics();
+        assertEquals(0.0, statistics.getPrefetchHitRate(), 0.0);
+        statistics.addPrefetchLookup(false, false);
+        statistics.addPrefetchLookup(true, true);
+        statistics.addPrefetchLookup(true, true);
+        statistics.addPrefetchLookup(true, false);
+        assertEquals(2L, statistics.getPrefetchHitCount());
+        assertEquals(1L, statistics.getPrefetchLateCount());
+        assertEquals(1L, statistics.getPrefetchMissCount());
+        assertEquals(0.5, statistics.getPrefetchHitRate(), 1.0e-12);
+        statistics.reset();
+        assertEquals(0L, statistics.getPrefetchHitCount());
+    }
+
+    @Test
+    public void testFlagCounts() {
+        final ProcessingStatistics statistics = new ProcessingStatistics();
+        final int[] flags = {
+                0, AtmosCorrection.INVALID | AtmosCorrection.LAND, AtmosCorrection.INVALID | AtmosCorrection.CLOUD_ICE,
+                AtmosCorrection.INVALID | AtmosCorrection.CLOUD_ICE | AtmosCorrection.TOA_OOR,
+                AtmosCorrection.INVALID | AtmosCorrection.INPUT_OOR, 0, AtmosCorrection.LAND
+        };
+        statistics.addFlags(flags, 6);
+
+        assertEquals(6L, statistics.getProcessedPixelCount());
+        assertEquals(2L, statistics.getValidPixelCount());
+        assertEquals(1L, statistics.getLandPixelCount());
+        assertEquals(2L, statistics.getCloudIcePixelCount());
+        assertEquals(1L, statistics.getToaOorPixelCount());
+        assertEquals(1L, statistics.getInputOorPixelCount());
+    }
+
+    @Test
+    public void testWallTimeSpansAllTiles() throws Exception {
+        final ProcessingStatistics statistics = new ProcessingStatistics();
+        final long start = System.nanoTime();
+        statistics.addFlags(new int[1000], 1000);
+        statistics.addTile(start, false, 1000);
+        Thread.sleep(20);
+        statistics.addTile(System.nanoTime(), true, 0);
+
+        assertTrue(statistics.getWallTimeMillis() >= 20);
+        assertTrue(statistics.getPixelsPerSecond() > 0.0);
+        assertTrue(statistics.getPixelsPerSecond() <= 1000 / 0.02);
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final ProcessingStatistics statistics = new ProcessingStatistics();
+        final int[] flags = new int[100];
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        statistics.addFlags(flags, flags.length);
+                        statistics.addStageTime(ProcessingStage.TOSA, 1L, 1L);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(8L * 10000 * 100, statistics.getProcessedPixelCount());
+        assertEquals(8L * 10000 * 100, statistics.getValidPixelCount());
+        assertEquals(8L * 10000, statistics.getStageNanos(ProcessingStage.TOSA));
+    }
+
+    @Test
+    public void testRegisterAsMBean() throws Exception {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(new ObjectName(ProcessingStatistics.JMX_DOMAIN +
+                                                              ":type=ModisAtmosCorrection,name=\"total\"")));
+
+        final ProcessingStatistics statistics = new ProcessingStatistics();
+        statistics.register("MOD021KM.test, with: special=chars");
+        final ObjectName objectName = statistics.getObjectName();
+        assertNotNull(objectName);
+        assertTrue(server.isRegistered(objectName));
+
+        statistics.addFlags(new int[17], 17);
+        assertEquals(17L, server.getAttribute(objectName, "ValidPixelCount"));
+        server.invoke(objectName, "reset", null, null);
+        assertEquals(0L, statistics.getValidPixelCount());
+
+        statistics.unregister();
+        assertNull(statistics.getObjectName());
+        assertFalse(server.isRegistered(objectName));
+    }
+
+    private static int[] createFlags(int length, int flag) {
+        final int[] flags = new int[length];
+        Arrays.fill(flags, flag);
+        return flags;
+    }
+}
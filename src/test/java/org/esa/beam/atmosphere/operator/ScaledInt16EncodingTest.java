@@ -0,0 +1,98 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScaledInt16EncodingTest {
+
+    @Test
+    public void testQuantisationError() {
+        final ScaledInt16Encoding encoding = new ScaledInt16Encoding(0.000014, 0.2498);
+        assertEquals((0.2498 - 0.000014) / 131068, encoding.getMaxError(), 1.0e-15);
+        assertTrue(encoding.getMaxError() < 2.0e-6);
+
+        double maxError = 0.0;
+        for (int i = 0; i <= 100000; i++) {
+            final double value = 0.000014 + i * (0.2498 - 0.000014) / 100000;
+            final int raw = encoding.encode(value);
+            assertTrue(raw >= -Short.MAX_VALUE && raw <= Short.MAX_VALUE);
+            maxError = Math.max(maxError, Math.abs(encoding.decode(raw) - value));
+        }
+        assertTrue(maxError <= encoding.getMaxError() * (1.0 + 1.0e-9));
+        assertTrue(new ScaledInt16Encoding(0.0, 1.5).getMaxError() < 1.2e-5);
+    }
+
+    @Test
+    public void testEncodeOutOfRangeAndNaN() {
+        final ScaledInt16Encoding encoding = new ScaledInt16Encoding(0.0, 1.5);
+        assertEquals(Short.MAX_VALUE, encoding.encode(2.0));
+        assertEquals(-Short.MAX_VALUE, encoding.encode(-0.1));
+        assertEquals(ScaledInt16Encoding.NO_DATA_VALUE, encoding.encode(Double.NaN));
+        assertTrue(Double.isNaN(encoding.decode(ScaledInt16Encoding.NO_DATA_VALUE)));
+        assertEquals(0.0, encoding.decode(encoding.encode(0.0)), 0.0);
+        assertEquals(1.5, encoding.decode(encoding.encode(1.5)), 1.0e-12);
+    }
+
+    @Test
+    public void testNegativeTosaReflectancesAreNotClipped() {
+        final ScaledInt16Encoding encoding = new ScaledInt16Encoding(ModisAtmosCorrectionOp.MIN_INT16_TOSA_REFLEC,
+                                                                     ModisAtmosCorrectionOp.MAX_INT16_TOSA_REFLEC);
+        assertTrue(encoding.getMaxError() < 1.6e-5);
+        for (double tosa : new double[]{-0.25, -0.012, -1.0e-4, 0.0, 2.0e-5, 1.2}) {
+            final int raw = encoding.encode(tosa);
+            assertTrue(raw > -Short.MAX_VALUE && raw < Short.MAX_VALUE);
+            assertEquals(tosa, encoding.decode(raw), encoding.getMaxError() * (1.0 + 1.0e-9));
+        }
+    }
+
+    @Test
+    public void testInt16ProductEqualsFloat32Product() throws Exception {
+        final SyntheticModisGranule granule = SyntheticModisGranule.createTestGranule(60, 40);
+        final Product l1bProduct = granule.createL1bProduct();
+        final Product geoProduct = granule.createGeoProduct();
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("reflectanceEncoding", ModisAtmosCorrectionOp.REFLECTANCE_ENCODING_INT16);
+        final Product int16Product = SyntheticModisGranule.createTargetProduct(l1bProduct, geoProduct, parameters);
+        final Product float32Product = SyntheticModisGranule.createTargetProduct(l1bProduct, geoProduct);
+        try {
+            SyntheticModisGranule.assertBandsEqual(float32Product, int16Product,
+                                                   new String[]{Constants.AC_FLAG_BAND_NAME},
+                                                   new Rectangle(0, 0, 60, 40));
+            final int[] flags = float32Product.getBand(Constants.AC_FLAG_BAND_NAME).readPixels(0, 0, 60, 40,
+                                                                                                new int[60 * 40]);
+            for (String[] bandNames : new String[][]{
+                    Constants.MODIS_REFLEC_BAND_NAMES, Constants.MODIS_TOSA_REFLEC_BAND_NAMES}) {
+                for (String bandName : bandNames) {
+                    final Band int16Band = int16Product.getBand(bandName);
+                    assertEquals(ProductData.TYPE_INT16, int16Band.getDataType());
+                    assertTrue(int16Band.isNoDataValueUsed());
+                    final double maxError = 0.5 * int16Band.getScalingFactor();
+                    final double[] expected = float32Product.getBand(bandName).readPixels(0, 0, 60, 40,
+                                                                                         new double[60 * 40]);
+                    final int[] raw = int16Band.getSourceImage().getData().getSamples(0, 0, 60, 40, 0,
+                                                                                       new int[60 * 40]);
+                    for (int i = 0; i < raw.length; i++) {
+                        if ((flags[i] & AtmosCorrection.INVALID) != 0) {
+                            assertEquals(ScaledInt16Encoding.NO_DATA_VALUE, raw[i]);
+                        } else {
+                            assertEquals(bandName + " at " + i, expected[i], int16Band.scale(raw[i]),
+                                         maxError + 1.0e-7);
+                        }
+                    }
+                }
+            }
+        } finally {
+            int16Product.dispose();
+            float32Product.dispose();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.datamodel.ProductData;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScaledSampleDecoderTest {
+
+    @Test
+    public void testDecodeUnsignedShortWithInvalidCodes() throws Exception {
+        final ScaledSampleDecoder decoder = new ScaledSampleDecoder(ProductData.TYPE_UINT16, 2.0E-5, 0.01,
+                                                                    false, false, 0.0,
+                                                                    Constants.MODIS_L1B_MAX_VALID_SCALED_INTEGER);
+        assertTrue(decoder.isLookupTableUsed());
+
+        final short[] raw = {0, 1000, 32767, (short) 65533, (short) 65535};
+        final double[] values = new double[raw.length];
+        decoder.decode(raw, 0, values, 0, raw.length);
+        assertEquals(0.01, values[0], 1.0E-12);
+        assertEquals(1000 * 2.0E-5 + 0.01, values[1], 1.0E-12);
+        assertEquals(32767 * 2.0E-5 + 0.01, values[2], 1.0E-12);
+        assertTrue(Double.isNaN(values[3]));
+        assertTrue(Double.isNaN(values[4]));
+    }
+
+    @Test
+    public void testDecodeSignedShortWithNoDataValue() throws Exception {
+        final ScaledSampleDecoder decoder = new ScaledSampleDecoder(ProductData.TYPE_INT16, 0.01, 0.0,
+                                                                    false, true, -32767, Double.POSITIVE_INFINITY);
+        final short[] raw = {-32767, -1500, 4500};
+        final double[] values = new double[raw.length];
+        decoder.decode(raw, 0, values, 0, raw.length);
+        assertTrue(Double.isNaN(values[0]));
+        assertEquals(-15.0, values[1], 1.0E-12);
+        assertEquals(45.0, values[2], 1.0E-12);
+    }
+
+    @Test
+    public void testDecodeWithoutLookupTable() throws Exception {
+        final ScaledSampleDecoder decoder = new ScaledSampleDecoder(ProductData.TYPE_INT16, 0.01, 0.0,
+                                                                    false, false, 0.0, Double.POSITIVE_INFINITY);
+        assertFalse(decoder.isLookupTableUsed());
+        final short[] raw = {-1500, 4500};
+        final double[] values = new double[raw.length];
+        decoder.decode(raw, 0, values, 0, raw.length);
+        assertEquals(-15.0, values[0], 1.0E-12);
+        assertEquals(45.0, values[1], 1.0E-12);
+    }
+
+    @Test
+    public void testDecodeWithOffsets() throws Exception {
+        final ScaledSampleDecoder decoder = new ScaledSampleDecoder(ProductData.TYPE_FLOAT32, 1.0, 0.0,
+                                                                    false, false, 0.0, Double.POSITIVE_INFINITY);
+        final float[] raw = {1.0f, 2.0f, 3.0f, 4.0f};
+        final double[] values = new double[5];
+        decoder.decode(raw, 1, values, 2, 3);
+        assertEquals(0.0, values[1], 0.0);
+        assertEquals(2.0, values[2], 0.0);
+        assertEquals(3.0, values[3], 0.0);
+        assertEquals(4.0, values[4], 0.0);
+    }
+
+    @Test
+    public void testDecodeLog10Scaled() throws Exception {
+        final ScaledSampleDecoder decoder = new ScaledSampleDecoder(ProductData.TYPE_UINT8, 0.1, -1.0,
+                                                                    true, false, 0.0, Double.POSITIVE_INFINITY);
+        assertTrue(decoder.isLookupTableUsed());
+        final byte[] raw = {10, 20, (byte) 200};
+        final double[] values = new double[raw.length];
+        decoder.decode(raw, 0, values, 0, raw.length);
+        assertEquals(1.0, values[0], 1.0E-12);
+        assertEquals(10.0, values[1], 1.0E-12);
+        assertEquals(1.0E19, values[2], 1.0E7);
+    }
+}
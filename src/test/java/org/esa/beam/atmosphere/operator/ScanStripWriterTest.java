@@ -0,0 +1,224 @@
+package org.esa.beam.atmosphere.operator;
+
+import com.bc.ceres.core.NullProgressMonitor;
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.MetadataElement;
+import org.esa.beam.framework.datamodel.Product;
+import org.junit.Test;
+
+import javax.media.jai.JAI;
+import javax.media.jai.TileCache;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScanStripWriterTest {
+
+    @Test
+    public void testStripsAreWrittenLikeTiles() throws Exception {
+        final SyntheticModisGranule granule = SyntheticModisGranule.createTestGranule(60, 45);
+        final Product l1bProduct = granule.createL1bProduct();
+        final Product geoProduct = granule.createGeoProduct();
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("scansPerStrip", 2);
+        final Product streamedProduct = SyntheticModisGranule.createTargetProduct(l1bProduct, geoProduct, parameters);
+        final Product referenceProduct = SyntheticModisGranule.createTargetProduct(l1bProduct, geoProduct);
+
+        final File dir = new File(System.getProperty("java.io.tmpdir"), "ScanStripWriterTest");
+        final File file = new File(dir, "streamed.dim");
+        Product writtenProduct = null;
+        try {
+            assertEquals(new Dimension(60, 20), streamedProduct.getPreferredTileSize());
+            // the last strip has only 5 rows
+            new ScanStripWriter(20).write(streamedProduct, file, ProductIO.DEFAULT_FORMAT_NAME,
+                                          new Product[]{l1bProduct, geoProduct}, ProgressMonitor.NULL);
+
+            writtenProduct = ProductIO.readProduct(file);
+            assertNotNull(writtenProduct);
+            SyntheticModisGranule.assertBandsEqual(referenceProduct, writtenProduct, new String[]{
+                    Constants.AC_FLAG_BAND_NAME, Constants.MODIS_REFLEC_BAND_NAMES[0],
+                    Constants.MODIS_TOSA_REFLEC_BAND_NAMES[8]
+            }, new Rectangle(0, 0, 60, 45));
+        } finally {
+            if (writtenProduct != null) {
+                writtenProduct.dispose();
+            }
+            streamedProduct.dispose();
+            referenceProduct.dispose();
+            deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testHeaderHoldsStatisticsOfAllStrips() throws Exception {
+        final SyntheticModisGranule granule = SyntheticModisGranule.createTestGranule(60, 45);
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("scansPerStrip", 2);
+        final Product targetProduct = SyntheticModisGranule.createTargetProduct(granule.createL1bProduct(),
+                                                                                granule.createGeoProduct(),
+                                                                                parameters);
+
+        final File dir = new File(System.getProperty("java.io.tmpdir"), "ScanStripWriterTest");
+        final File file = new File(dir, "statistics.dim");
+        Product writtenProduct = null;
+        try {
+            new ScanStripWriter(20).write(targetProduct, file, ProductIO.DEFAULT_FORMAT_NAME, new Product[0],
+                                          ProgressMonitor.NULL);
+
+            final MetadataElement expected = targetProduct.getMetadataRoot().getElement(
+                    ProcessingStatistics.METADATA_ELEMENT_NAME);
+            writtenProduct = ProductIO.readProduct(file);
+            final MetadataElement actual = writtenProduct.getMetadataRoot().getElement(
+                    ProcessingStatistics.METADATA_ELEMENT_NAME);
+            assertNotNull(actual);
+            assertTrue(actual.getAttributeDouble("processed_pixels", 0.0) >= 60 * 45);
+            assertTrue(actual.getAttributeDouble("valid_pixels", 0.0) > 0.0);
+            for (String name : new String[]{"computed_tiles", "processed_pixels", "valid_pixels", "land_pixels"}) {
+                assertEquals(name, expected.getAttributeDouble(name, -1.0), actual.getAttributeDouble(name, 0.0),
+                             0.0);
+            }
+        } finally {
+            if (writtenProduct != null) {
+                writtenProduct.dispose();
+            }
+            targetProduct.dispose();
+            deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testTilesOfWrittenStripsAreReleased() throws Exception {
+        final SyntheticModisGranule granule = SyntheticModisGranule.createTestGranule(60, 45);
+        final Product l1bProduct = granule.createL1bProduct();
+        final Product geoProduct = granule.createGeoProduct();
+        final ModisAtmosCorrectionOp operator = new ModisAtmosCorrectionOp();
+        operator.setSourceProduct("modisL1bProduct", l1bProduct);
+        operator.setSourceProduct("modisGeoProduct", geoProduct);
+        operator.setParameter("useSnTMap", false);
+        operator.setParameter("useSrtmWaterMask", false);
+        operator.setParameter("useModisLandSeaMask", true);
+        operator.setParameter("scansPerStrip", 2);
+        final Product targetProduct = operator.getTargetProduct();
+        final Product[] intermediateProducts = operator.getIntermediateProducts();
+        assertTrue(intermediateProducts.length > 0);
+
+        final List<Product> products = new ArrayList<Product>();
+        products.add(l1bProduct);
+        products.add(geoProduct);
+        products.addAll(Arrays.asList(intermediateProducts));
+        final Product[] releasedProducts = products.toArray(new Product[products.size()]);
+        products.add(targetProduct);
+
+        final File dir = new File(System.getProperty("java.io.tmpdir"), "ScanStripWriterTest");
+        final File file = new File(dir, "released.dim");
+        try {
+            JAI.getDefaultInstance().getTileCache().flush();
+            new ScanStripWriter(20).write(targetProduct, file, ProductIO.DEFAULT_FORMAT_NAME, releasedProducts,
+                                          new NullProgressMonitor() {
+                                              private int completedRows;
+
+                                              @Override
+                                              public void worked(int work) {
+                                                  completedRows = Math.min(completedRows + 20, 45);
+                                                  for (Product product : products) {
+                                                      assertNoCachedTiles(product, completedRows);
+                                                  }
+                                              }
+                                          });
+        } finally {
+            targetProduct.dispose();
+            deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testSourceTilesOfQuicklookRegionAreReleased() throws Exception {
+        final SyntheticModisGranule granule = SyntheticModisGranule.createTestGranule(60, 60);
+        final Product l1bProduct = granule.createL1bProduct();
+        final Product geoProduct = granule.createGeoProduct();
+        final ModisAtmosCorrectionOp operator = new ModisAtmosCorrectionOp();
+        operator.setSourceProduct("modisL1bProduct", l1bProduct);
+        operator.setSourceProduct("modisGeoProduct", geoProduct);
+        operator.setParameter("useSnTMap", false);
+        operator.setParameter("useSrtmWaterMask", false);
+        operator.setParameter("useModisLandSeaMask", true);
+        operator.setParameter("scansPerStrip", 1);
+        operator.setParameter("pixelRegion", new Rectangle(0, 10, 60, 40));
+        operator.setParameter("quicklookStep", 2);
+        final Product targetProduct = operator.getTargetProduct();
+        final Product[] sourceProducts = {l1bProduct, geoProduct};
+        final Product[] intermediateProducts = operator.getIntermediateProducts();
+        assertEquals(new Rectangle(0, 10, 60, 40), operator.getSourceRegion());
+        assertEquals(20, targetProduct.getSceneRasterHeight());
+
+        final File dir = new File(System.getProperty("java.io.tmpdir"), "ScanStripWriterTest");
+        final File file = new File(dir, "quicklook.dim");
+        try {
+            JAI.getDefaultInstance().getTileCache().flush();
+            new ScanStripWriter(10).write(targetProduct, file, ProductIO.DEFAULT_FORMAT_NAME, sourceProducts,
+                                          10, 2, intermediateProducts, new NullProgressMonitor() {
+                private int completedRows;
+
+                @Override
+                public void worked(int work) {
+                    completedRows += 10;
+                    // target row y is computed from source row 10 + 2 * y
+                    for (Product sourceProduct : sourceProducts) {
+                        assertNoCachedTiles(sourceProduct, 10 + 2 * completedRows);
+                    }
+                    for (Product intermediateProduct : intermediateProducts) {
+                        assertNoCachedTiles(intermediateProduct, completedRows);
+                    }
+                    assertNoCachedTiles(targetProduct, completedRows);
+                }
+            });
+        } finally {
+            targetProduct.dispose();
+            deleteTree(dir);
+        }
+    }
+
+    private static void assertNoCachedTiles(Product product, int completedRows) {
+        final TileCache tileCache = JAI.getDefaultInstance().getTileCache();
+        for (Band band : product.getBands()) {
+            if (!band.isSourceImageSet()) {
+                continue;
+            }
+            final RenderedImage image = band.getSourceImage().getImage(0);
+            for (int tileY = image.getMinTileY(); tileY < image.getMinTileY() + image.getNumYTiles(); tileY++) {
+                final int tileBottom = Math.min(image.getTileGridYOffset() + (tileY + 1) * image.getTileHeight(),
+                                                image.getMinY() + image.getHeight());
+                if (tileBottom > completedRows) {
+                    break;
+                }
+                for (int tileX = image.getMinTileX(); tileX < image.getMinTileX() + image.getNumXTiles(); tileX++) {
+                    assertNull(product.getName() + "/" + band.getName() + " tile " + tileX + "," + tileY,
+                               tileCache.getTile(image, tileX, tileY));
+                }
+            }
+        }
+    }
+
+    private static void deleteTree(File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,61 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.datamodel.MetadataElement;
+import org.esa.beam.framework.datamodel.Product;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SourceTilePrefetcherTest {
+
+    @Test
+    public void testGetTileIndex() {
+        assertEquals(0, SourceTilePrefetcher.getTileIndex(0, 0, 512));
+        assertEquals(0, SourceTilePrefetcher.getTileIndex(511, 0, 512));
+        assertEquals(1, SourceTilePrefetcher.getTileIndex(512, 0, 512));
+        assertEquals(2, SourceTilePrefetcher.getTileIndex(25, 5, 10));
+        assertEquals(-1, SourceTilePrefetcher.getTileIndex(-1, 0, 10));
+        assertEquals(-1, SourceTilePrefetcher.getTileIndex(-10, 0, 10));
+        assertEquals(-2, SourceTilePrefetcher.getTileIndex(-11, 0, 10));
+    }
+
+    @Test
+    public void testPrefetchedProductEqualsProduct() throws Exception {
+        final SyntheticModisGranule granule = SyntheticModisGranule.createTestGranule(60, 80);
+        final Product l1bProduct = granule.createL1bProduct();
+        final Product geoProduct = granule.createGeoProduct();
+        // tiles of one scan over the full width
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("scansPerStrip", 1);
+        final Product expectedProduct = SyntheticModisGranule.createTargetProduct(l1bProduct, geoProduct, parameters);
+        parameters.put("prefetchTiles", 2);
+        final Product prefetchedProduct = SyntheticModisGranule.createTargetProduct(l1bProduct, geoProduct,
+                                                                                    parameters);
+        try {
+            // row by row, as written by the product writers
+            for (int y = 0; y < 80; y += 10) {
+                SyntheticModisGranule.assertBandsEqual(expectedProduct, prefetchedProduct, new String[]{
+                        Constants.AC_FLAG_BAND_NAME, Constants.MODIS_REFLEC_BAND_NAMES[0],
+                        Constants.MODIS_TOSA_REFLEC_BAND_NAMES[8]
+                }, new Rectangle(0, y, 60, 10));
+            }
+            final MetadataElement statisticsElement = prefetchedProduct.getMetadataRoot().getElement(
+                    ProcessingStatistics.METADATA_ELEMENT_NAME);
+            final int hits = statisticsElement.getAttributeInt("prefetch_hits", 0);
+            final int late = statisticsElement.getAttributeInt("prefetch_late", 0);
+            final int misses = statisticsElement.getAttributeInt("prefetch_misses", 0);
+            assertEquals(statisticsElement.getAttributeInt("computed_tiles", 0), hits + late + misses);
+            // at least the first tile is not read ahead
+            assertTrue(misses >= 1);
+            assertTrue(hits + late >= 1);
+        } finally {
+            prefetchedProduct.dispose();
+            expectedProduct.dispose();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.datamodel.Product;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SparsePixelWriterTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("sparse", "");
+        assertTrue(dir.delete());
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testWriteAndRestoreDenseRaster() throws IOException {
+        final int numBands = Constants.MODIS_REFLEC_BAND_NAMES.length;
+        final SparsePixelWriter writer = new SparsePixelWriter(dir, 4, 3);
+        final PixelBatch batch = new PixelBatch(numBands, 8);
+        // the upper two rows, every second pixel is land
+        batch.setRectangle(new Rectangle(0, 0, 4, 2));
+        for (int i = 0; i < 8; i++) {
+            batch.flag[i] = i % 2 == 0 ? 0 : AtmosCorrection.INVALID | AtmosCorrection.LAND;
+            batch.lat[i] = 55.0 + i;
+            batch.lon[i] = 5.0 + i;
+            for (int b = 0; b < numBands; b++) {
+                batch.reflec[b][i] = 0.01 * b + 0.001 * i;
+                batch.tosaReflec[b][i] = 0.1 * b + 0.001 * i;
+            }
+        }
+        final SparsePixelWriter.TilePixels upperPixels = new SparsePixelWriter.TilePixels();
+        upperPixels.add(batch);
+        assertEquals(4, upperPixels.getPixelCount());
+        // the pixels are not written before the tile is complete
+        assertEquals(0, writer.getPixelCount());
+        writer.completeTile(new Rectangle(0, 0, 4, 2), upperPixels);
+        assertEquals(4, writer.getPixelCount());
+        assertFalse(writer.isClosed());
+        // the last row, which is all water, the batch is reused
+        batch.setRectangle(new Rectangle(0, 2, 4, 1));
+        for (int i = 0; i < 4; i++) {
+            batch.flag[i] = 0;
+        }
+        final SparsePixelWriter.TilePixels lowerPixels = new SparsePixelWriter.TilePixels();
+        lowerPixels.add(batch);
+        // a tile computed again is neither appended again nor completes the file
+        writer.completeTile(new Rectangle(0, 0, 4, 2), upperPixels);
+        assertEquals(4, writer.getPixelCount());
+        assertFalse(writer.isClosed());
+        writer.completeTile(new Rectangle(0, 2, 4, 1), lowerPixels);
+        assertTrue(writer.isClosed());
+        assertEquals(8, writer.getPixelCount());
+
+        final SparsePixelReader reader = new SparsePixelReader(dir);
+        assertEquals(4, reader.getWidth());
+        assertEquals(3, reader.getHeight());
+        assertEquals(8, reader.getCount());
+        assertTrue(reader.isComplete());
+        assertEquals(4L * 8, reader.getColumn(Constants.MODIS_REFLEC_BAND_NAMES[0]).capacity());
+
+        final float[] reflec = reader.readFloatRaster(Constants.MODIS_REFLEC_BAND_NAMES[3], Float.NaN);
+        final float[] lat = reader.readFloatRaster(SparsePixelWriter.LAT_COLUMN_NAME, Float.NaN);
+        final int[] flags = reader.readIntRaster(Constants.AC_FLAG_BAND_NAME, AtmosCorrection.INVALID);
+        for (int i = 0; i < 12; i++) {
+            if (i < 8 && i % 2 != 0) {
+                assertTrue(Float.isNaN(reflec[i]));
+                assertEquals(AtmosCorrection.INVALID, flags[i]);
+            } else {
+                final int batchIndex = i < 8 ? i : i - 8;
+                assertEquals((float) (0.03 + 0.001 * batchIndex), reflec[i], 0.0f);
+                assertEquals((float) (55.0 + batchIndex), lat[i], 0.0f);
+                assertEquals(0, flags[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testIncompleteFile() throws IOException {
+        final SparsePixelWriter writer = new SparsePixelWriter(dir, 4, 3);
+        writer.completeTile(new Rectangle(0, 0, 4, 2));
+        // the pixels of a tile which fails are never appended
+        final PixelBatch batch = new PixelBatch(Constants.MODIS_REFLEC_BAND_NAMES.length, 4);
+        batch.setRectangle(new Rectangle(0, 2, 4, 1));
+        new SparsePixelWriter.TilePixels().add(batch);
+        writer.close();
+        final SparsePixelReader reader = new SparsePixelReader(dir);
+        assertFalse(reader.isComplete());
+        assertEquals(0, reader.getCount());
+        assertEquals(SparsePixelWriter.getColumnNames().length, reader.getColumnNames().length);
+    }
+
+    @Test
+    public void testSparseFileEqualsDenseProduct() throws Exception {
+        final SyntheticModisGranule granule = new SyntheticModisGranule(60, 40, SyntheticModisGranule.TEST_SEED);
+        granule.setLandFraction(0.5);
+        granule.setCloudFraction(0.2);
+        final Product l1bProduct = granule.createL1bProduct();
+        final Product geoProduct = granule.createGeoProduct();
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("sparseOutputDir", dir);
+        final Product targetProduct = SyntheticModisGranule.createTargetProduct(l1bProduct, geoProduct, parameters);
+        try {
+            final int[] flags = targetProduct.getBand(Constants.AC_FLAG_BAND_NAME).readPixels(0, 0, 60, 40,
+                                                                                              new int[60 * 40]);
+            final float[] expected = targetProduct.getBand(Constants.MODIS_REFLEC_BAND_NAMES[1]).readPixels(
+                    0, 0, 60, 40, new float[60 * 40]);
+            final SparsePixelReader reader = new SparsePixelReader(dir);
+            assertTrue(reader.isComplete());
+            int validCount = 0;
+            for (int flag : flags) {
+                if ((flag & AtmosCorrection.INVALID) == 0) {
+                    validCount++;
+                }
+            }
+            assertTrue(validCount > 0 && validCount < 60 * 40);
+            assertEquals(validCount, reader.getCount());
+            final float[] actual = reader.readFloatRaster(Constants.MODIS_REFLEC_BAND_NAMES[1], Float.NaN);
+            final int[] actualFlags = reader.readIntRaster(Constants.AC_FLAG_BAND_NAME, AtmosCorrection.INVALID);
+            for (int i = 0; i < actual.length; i++) {
+                if ((flags[i] & AtmosCorrection.INVALID) == 0) {
+                    assertEquals(expected[i], actual[i], 0.0f);
+                    assertEquals(flags[i], actualFlags[i]);
+                } else {
+                    assertTrue(Float.isNaN(actual[i]));
+                }
+            }
+        } finally {
+            targetProduct.dispose();
+        }
+    }
+}
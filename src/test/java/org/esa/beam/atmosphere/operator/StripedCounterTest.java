@@ -0,0 +1,47 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class StripedCounterTest {
+
+    @Test
+    public void testGetNumCells() {
+        assertEquals(2, StripedCounter.getNumCells(1));
+        assertEquals(8, StripedCounter.getNumCells(3));
+        assertEquals(8, StripedCounter.getNumCells(4));
+        assertEquals(64, StripedCounter.getNumCells(24));
+    }
+
+    @Test
+    public void testAddAndReset() {
+        final StripedCounter counter = new StripedCounter();
+        counter.add(5L);
+        counter.increment();
+        assertEquals(6L, counter.sum());
+        counter.reset();
+        assertEquals(0L, counter.sum());
+    }
+
+    @Test
+    public void testNoUpdatesAreLost() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        final Thread[] threads = new Thread[16];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        counter.increment();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(16L * 100000, counter.sum());
+    }
+}
@@ -0,0 +1,544 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.TiePointGeoCoding;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+import org.esa.beam.framework.gpf.GPF;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Generator of synthetic in-memory MODIS L1b (MOD021KM) and GEO (MOD03) products, for tests and benchmarks
+ * of {@link ModisAtmosCorrectionOp} without real granules. The products have the band names of
+ * {@link Constants}, with the scaled integers and scaling of the MODIS products:
+ * <ul>
+ * <li>L1b: all {@code EV_1KM_RefSB_*} bands as UINT16 reflectance scaled integers, with saturation
+ * codes for bright clouds in the ocean bands, and a tie-point geo-coding</li>
+ * <li>GEO: latitude and longitude (FLOAT32), sun and sensor angles (INT16, scaled by 0.01) and the
+ * Land/SeaMask (UINT8)</li>
+ * </ul>
+ * The geometry follows a descending daytime swath: the view zenith increases across track from the center
+ * column (nadir) to 65 deg at the edges, the sun zenith increases along track. Land and clouds are smooth
+ * random patterns with the given fractions; water, land and cloud pixels get typical TOA reflectance spectra.
+ * Optionally, water pixels near the specular direction get sun glint.
+ * <p/>
+ * The static methods create the target product of the operator from the synthetic products and compare
+ * target products, as needed by most tests of the operator.
+ */
+public class SyntheticModisGranule {
+
+    public static final int SCAN_WIDTH = 1354;
+    public static final int LINES_PER_SCAN = 10;
+
+    /**
+     * The seed of the granules used by the tests.
+     */
+    public static final long TEST_SEED = 4711L;
+
+    private static final int TIE_POINT_SUBSAMPLING = 5;
+
+    private static final double[] WATER_REFLECTANCES = {0.16, 0.14, 0.11, 0.08, 0.075, 0.04, 0.038, 0.03, 0.02};
+    private static final double[] LAND_REFLECTANCES = {0.07, 0.075, 0.08, 0.1, 0.11, 0.12, 0.12, 0.25, 0.3};
+    private static final double CLOUD_REFLECTANCE = 0.6;
+
+    private static final int SATURATION_CODE = 65533;
+    private static final double REFLECTANCE_OFFSET = 316.9722;
+
+    private final int width;
+    private final int height;
+    private final long seed;
+    private double landFraction;
+    private double cloudFraction;
+    private double firstSunZenith;
+    private double lastSunZenith;
+    private double sunAzimuth;
+    private double glintReflectance;
+    private double startLat;
+    private double startLon;
+    private String startTime;
+
+    private float[] lats;
+    private float[] lons;
+    private boolean[] land;
+    private boolean[] cloud;
+
+    /**
+     * @param width  the number of pixels across track, {@link #SCAN_WIDTH} for complete granules
+     * @param height the number of lines, a multiple of {@link #LINES_PER_SCAN} for complete scans
+     * @param seed   the seed of the random land and cloud patterns
+     */
+    public SyntheticModisGranule(int width, int height, long seed) {
+        this.width = width;
+        this.height = height;
+        this.seed = seed;
+        landFraction = 0.2;
+        cloudFraction = 0.2;
+        firstSunZenith = 30.0;
+        lastSunZenith = 45.0;
+        sunAzimuth = 150.0;
+        glintReflectance = 0.0;
+        startLat = 55.0;
+        startLon = 5.0;
+        startTime = "15-JUN-2012 10:30:00";
+    }
+
+    /**
+     * Creates the granule used by the tests, with 30 % land and 10 % clouds.
+     *
+     * @param width  the number of pixels across track
+     * @param height the number of lines
+     * @return the granule
+     */
+    public static SyntheticModisGranule createTestGranule(int width, int height) {
+        final SyntheticModisGranule granule = new SyntheticModisGranule(width, height, TEST_SEED);
+        granule.setLandFraction(0.3);
+        granule.setCloudFraction(0.1);
+        return granule;
+    }
+
+    /**
+     * Creates the target product of {@link ModisAtmosCorrectionOp} with the defaults for synthetic granules:
+     * the MODIS Land/SeaMask is used, neither the SRTM water mask nor salinity and temperature maps.
+     *
+     * @param l1bProduct the L1b product
+     * @param geoProduct the GEO product
+     * @param parameters the operator parameters overriding the defaults
+     * @return the target product
+     */
+    public static Product createTargetProduct(Product l1bProduct, Product geoProduct,
+                                              Map<String, Object> parameters) {
+        final Map<String, Object> allParameters = new HashMap<String, Object>();
+        allParameters.put("useSnTMap", false);
+        allParameters.put("useSrtmWaterMask", false);
+        allParameters.put("useModisLandSeaMask", true);
+        allParameters.putAll(parameters);
+        final Map<String, Product> sourceProducts = new HashMap<String, Product>();
+        sourceProducts.put("modisL1bProduct", l1bProduct);
+        sourceProducts.put("modisGeoProduct", geoProduct);
+        return GPF.createProduct(GPF.getOperatorAlias(ModisAtmosCorrectionOp.class), allParameters, sourceProducts);
+    }
+
+    /**
+     * Creates the target product of {@link ModisAtmosCorrectionOp} with the defaults for synthetic granules.
+     *
+     * @param l1bProduct the L1b product
+     * @param geoProduct the GEO product
+     * @return the target product
+     */
+    public static Product createTargetProduct(Product l1bProduct, Product geoProduct) {
+        return createTargetProduct(l1bProduct, geoProduct, new HashMap<String, Object>());
+    }
+
+    /**
+     * Asserts that bands of two products have equal pixels in a region.
+     *
+     * @param expected  the expected product
+     * @param actual    the actual product
+     * @param bandNames the names of the compared bands
+     * @param region    the compared region
+     * @throws IOException if the pixels cannot be read
+     */
+    public static void assertBandsEqual(Product expected, Product actual, String[] bandNames,
+                                        Rectangle region) throws IOException {
+        assertBandsEqual(expected, actual, bandNames, region, region.getLocation());
+    }
+
+    /**
+     * Asserts that bands of two products have equal pixels, where the actual product is a subset of the
+     * expected product.
+     *
+     * @param expected       the expected product
+     * @param actual         the actual product
+     * @param bandNames      the names of the compared bands
+     * @param region         the compared region of the expected product
+     * @param actualLocation the location of the region in the actual product
+     * @throws IOException if the pixels cannot be read
+     */
+    public static void assertBandsEqual(Product expected, Product actual, String[] bandNames, Rectangle region,
+                                        Point actualLocation) throws IOException {
+        final int numPixels = region.width * region.height;
+        for (String bandName : bandNames) {
+            final Band expectedBand = expected.getBand(bandName);
+            final Band actualBand = actual.getBand(bandName);
+            assertNotNull(bandName, expectedBand);
+            assertNotNull(bandName, actualBand);
+            final float[] expectedPixels = expectedBand.readPixels(region.x, region.y, region.width, region.height,
+                                                                   new float[numPixels]);
+            final float[] actualPixels = actualBand.readPixels(actualLocation.x, actualLocation.y, region.width,
+                                                               region.height, new float[numPixels]);
+            for (int i = 0; i < numPixels; i++) {
+                assertEquals(bandName + " at " + (region.x + i % region.width) + "," + (region.y + i / region.width),
+                             expectedPixels[i], actualPixels[i], 0.0f);
+            }
+        }
+    }
+
+    public void setLandFraction(double landFraction) {
+        this.landFraction = landFraction;
+        land = null;
+    }
+
+    public void setCloudFraction(double cloudFraction) {
+        this.cloudFraction = cloudFraction;
+        cloud = null;
+    }
+
+    /**
+     * @param firstSunZenith the sun zenith angle at nadir of the first line (deg), 30 by default
+     * @param lastSunZenith  the sun zenith angle at nadir of the last line (deg), 45 by default
+     * @param sunAzimuth     the sun azimuth angle at nadir (deg), 150 by default
+     */
+    public void setSunGeometry(double firstSunZenith, double lastSunZenith, double sunAzimuth) {
+        this.firstSunZenith = firstSunZenith;
+        this.lastSunZenith = lastSunZenith;
+        this.sunAzimuth = sunAzimuth;
+    }
+
+    /**
+     * @param glintReflectance the reflectance added to water pixels in the specular direction, falling off
+     *                         with the angle to it; 0 (no glint) by default
+     */
+    public void setGlintReflectance(double glintReflectance) {
+        this.glintReflectance = glintReflectance;
+    }
+
+    /**
+     * @param startLat the latitude of the first line (deg)
+     * @param startLon the longitude of the nadir column of the first line (deg)
+     */
+    public void setStartLocation(double startLat, double startLon) {
+        this.startLat = startLat;
+        this.startLon = startLon;
+        lats = null;
+        lons = null;
+    }
+
+    /**
+     * @param startTime the sensing start time, in the format "dd-MMM-yyyy HH:mm:ss"
+     */
+    public void setStartTime(String startTime) {
+        this.startTime = startTime;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Product createL1bProduct() {
+        ensureSurface();
+        final Product product = new Product("MOD021KM.SYNTHETIC", "MOD021KM", width, height);
+        setTimes(product);
+
+        final double[] noise = createNoise();
+        for (int b = 0; b < Constants.MODIS_SPECTRAL_BAND_NAMES.length; b++) {
+            final String bandName = Constants.MODIS_TOA_BAND_NAME_PREFIX + Constants.MODIS_SPECTRAL_BAND_NAMES[b];
+            final int spectralIndex = Arrays.asList(Constants.MODIS_SPECTRAL_BANDNAMES_TO_USE).indexOf(bandName);
+            final double scalingFactor = 5.0e-5 + b * 1.0e-6;
+            final short[] data = new short[width * height];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    final int i = y * width + x;
+                    data[i] = (short) toScaledInteger(getReflectance(spectralIndex, x, y, noise[i]), scalingFactor,
+                                                      spectralIndex >= 0 && spectralIndex < 5 && cloud[i] &&
+                                                              noise[i] > 1.0);
+                }
+            }
+            final Band band = product.addBand(bandName, ProductData.TYPE_UINT16);
+            band.setScalingFactor(scalingFactor);
+            band.setScalingOffset(-REFLECTANCE_OFFSET * scalingFactor);
+            if (spectralIndex >= 0) {
+                band.setSpectralWavelength((float) Constants.MODIS_SPECTRAL_WAVELENGHTS_TO_USE[spectralIndex]);
+            }
+            band.setRasterData(ProductData.createUnsignedInstance(data));
+        }
+
+        product.addTiePointGrid(createTiePointGrid("latitude", lats));
+        product.addTiePointGrid(createTiePointGrid("longitude", lons));
+        product.setGeoCoding(new TiePointGeoCoding(product.getTiePointGrid("latitude"),
+                                                   product.getTiePointGrid("longitude")));
+        return product;
+    }
+
+    public Product createGeoProduct() {
+        ensureSurface();
+        final Product product = new Product("MOD03.SYNTHETIC", "MOD03", width, height);
+        setTimes(product);
+
+        final String geolocationPrefix = Constants.MODIS_GEO_GEOLOCATION_BAND_NAME_PREFIX;
+        final String dataPrefix = Constants.MODIS_GEO_DATAFIELDS_BAND_NAME_PREFIX;
+        product.addBand(geolocationPrefix + Constants.MODIS_LATITUDE_BAND_NAME, ProductData.TYPE_FLOAT32)
+                .setRasterData(ProductData.createInstance(lats));
+        product.addBand(geolocationPrefix + Constants.MODIS_LONGITUDE_BAND_NAME, ProductData.TYPE_FLOAT32)
+                .setRasterData(ProductData.createInstance(lons));
+
+        final short[] solzen = new short[width * height];
+        final short[] solazi = new short[width * height];
+        final short[] satzen = new short[width * height];
+        final short[] satazi = new short[width * height];
+        final byte[] landSeaMask = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int i = y * width + x;
+                solzen[i] = toAngle(getSunZenith(x, y));
+                solazi[i] = toAngle(getSunAzimuth(x));
+                satzen[i] = toAngle(getViewZenith(x));
+                satazi[i] = toAngle(getViewAzimuth(x));
+                landSeaMask[i] = (byte) (land[i] ? ModisLandSeaMask.LAND_VALUE : 0);
+            }
+        }
+        addAngleBand(product, dataPrefix + Constants.MODIS_SUN_ZENITH_BAND_NAME, solzen);
+        addAngleBand(product, dataPrefix + Constants.MODIS_SUN_AZIMUTH_BAND_NAME, solazi);
+        addAngleBand(product, dataPrefix + Constants.MODIS_VIEW_ZENITH_BAND_NAME, satzen);
+        addAngleBand(product, dataPrefix + Constants.MODIS_VIEW_AZIMUTH_BAND_NAME, satazi);
+        product.addBand(dataPrefix + Constants.MODIS_LAND_SEA_MASK_BAND_NAME, ProductData.TYPE_UINT8)
+                .setRasterData(ProductData.createUnsignedInstance(landSeaMask));
+        return product;
+    }
+
+    /**
+     * Creates a pixel batch of all pixels of the granule, row by row, with the TOA reflectances of the bands
+     * used by the correction, without the quantisation of the L1b product. The validation mask marks the land
+     * and cloud pixels, the temperature and salinity are constant.
+     *
+     * @return the pixel batch
+     */
+    public PixelBatch createPixelBatch() {
+        ensureSurface();
+        final int numBands = Constants.MODIS_SPECTRAL_WAVELENGHTS_TO_USE.length;
+        final PixelBatch batch = new PixelBatch(numBands, width * height);
+        batch.setSize(width * height);
+        batch.nadirColumnIndex = (width - 1) / 2;
+        final double[] noise = createNoise();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int i = y * width + x;
+                batch.pixelX[i] = x;
+                batch.pixelY[i] = y;
+                batch.validation[i] = (land[i] ? ToaReflectanceValidationOp.LAND_FLAG_MASK : 0) |
+                                      (cloud[i] ? ToaReflectanceValidationOp.CLOUD_ICE_FLAG_MASK : 0);
+                batch.lat[i] = lats[i];
+                batch.lon[i] = lons[i];
+                batch.solzen[i] = toAngle(getSunZenith(x, y)) * 0.01;
+                batch.solazi[i] = toAngle(getSunAzimuth(x)) * 0.01;
+                batch.satzen[i] = toAngle(getViewZenith(x)) * 0.01;
+                batch.satazi[i] = toAngle(getViewAzimuth(x)) * 0.01;
+                batch.temperature[i] = 15.0;
+                batch.salinity[i] = 35.0;
+                for (int b = 0; b < numBands; b++) {
+                    batch.toaReflectance[b][i] = getReflectance(b, x, y, noise[i]);
+                }
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * @return true for the land pixels, row by row
+     */
+    boolean[] getLand() {
+        ensureSurface();
+        return land;
+    }
+
+    /**
+     * @return true for the cloud pixels, row by row
+     */
+    boolean[] getCloud() {
+        ensureSurface();
+        return cloud;
+    }
+
+    private double getReflectance(int spectralIndex, int x, int y, double noise) {
+        final int i = y * width + x;
+        if (cloud[i]) {
+            return CLOUD_REFLECTANCE * noise;
+        }
+        // the bands not used by the correction get the reflectance of the 869 nm band
+        final int index = spectralIndex >= 0 ? spectralIndex : WATER_REFLECTANCES.length - 1;
+        if (land[i]) {
+            return LAND_REFLECTANCES[index] * noise;
+        }
+        return (WATER_REFLECTANCES[index] + getGlintReflectance(x, y)) * noise;
+    }
+
+    private double getGlintReflectance(int x, int y) {
+        if (glintReflectance == 0.0) {
+            return 0.0;
+        }
+        // the angle between the view direction and the direction of the specular reflection of the sun
+        final double sunZenith = Math.toRadians(getSunZenith(x, y));
+        final double viewZenith = Math.toRadians(getViewZenith(x));
+        final double azimuthDifference = Math.toRadians(getViewAzimuth(x) - getSunAzimuth(x));
+        final double cosAngle = Math.cos(sunZenith) * Math.cos(viewZenith) -
+                                Math.sin(sunZenith) * Math.sin(viewZenith) * Math.cos(azimuthDifference);
+        final double angle = Math.toDegrees(Math.acos(Math.max(-1.0, Math.min(1.0, cosAngle))));
+        return glintReflectance * Math.exp(-(angle * angle) / (2.0 * 15.0 * 15.0));
+    }
+
+    private double[] createNoise() {
+        final Random random = new Random(seed + 1);
+        final double[] noise = new double[width * height];
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = 1.0 + 0.02 * random.nextGaussian();
+        }
+        return noise;
+    }
+
+    private double getSunZenith(int x, int y) {
+        return firstSunZenith + (lastSunZenith - firstSunZenith) * y / Math.max(1, height - 1) +
+               5.0 * getAcrossTrackPosition(x);
+    }
+
+    private double getSunAzimuth(int x) {
+        return sunAzimuth + 10.0 * getAcrossTrackPosition(x);
+    }
+
+    private double getViewZenith(int x) {
+        final double acrossTrack = Math.abs(getAcrossTrackPosition(x));
+        return 65.0 * acrossTrack * (0.85 + 0.15 * acrossTrack);
+    }
+
+    private double getViewAzimuth(int x) {
+        return getAcrossTrackPosition(x) < 0.0 ? 100.0 : -80.0;
+    }
+
+    private static int toScaledInteger(double reflectance, double scalingFactor, boolean saturated) {
+        if (saturated) {
+            return SATURATION_CODE;
+        }
+        final long value = Math.round(reflectance / scalingFactor + REFLECTANCE_OFFSET);
+        return (int) Math.max(0, Math.min(value, Constants.MODIS_L1B_MAX_VALID_SCALED_INTEGER));
+    }
+
+    private static short toAngle(double degrees) {
+        return (short) Math.round(degrees * 100.0);
+    }
+
+    private static void addAngleBand(Product product, String bandName, short[] data) {
+        final Band band = product.addBand(bandName, ProductData.TYPE_INT16);
+        band.setScalingFactor(0.01);
+        band.setUnit("degrees");
+        band.setRasterData(ProductData.createInstance(data));
+    }
+
+    private TiePointGrid createTiePointGrid(String name, float[] values) {
+        final int gridWidth = (width - 1) / TIE_POINT_SUBSAMPLING + 2;
+        final int gridHeight = (height - 1) / TIE_POINT_SUBSAMPLING + 2;
+        final float[] gridValues = new float[gridWidth * gridHeight];
+        for (int j = 0; j < gridHeight; j++) {
+            for (int i = 0; i < gridWidth; i++) {
+                // tie points beyond the last pixel are extrapolated by the geo-location model
+                final int x = i * TIE_POINT_SUBSAMPLING;
+                final int y = j * TIE_POINT_SUBSAMPLING;
+                gridValues[j * gridWidth + i] = x < width && y < height ? values[y * width + x] :
+                        (float) (name.equals("latitude") ? getLat(x, y) : getLon(x, y));
+            }
+        }
+        return new TiePointGrid(name, gridWidth, gridHeight, 0.5f, 0.5f,
+                                TIE_POINT_SUBSAMPLING, TIE_POINT_SUBSAMPLING, gridValues);
+    }
+
+    private void setTimes(Product product) {
+        try {
+            final ProductData.UTC start = ProductData.UTC.parse(startTime);
+            product.setStartTime(start);
+            // a MODIS granule covers 5 minutes
+            product.setEndTime(ProductData.UTC.create(new Date(start.getAsDate().getTime() + 300000L), 0));
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Invalid start time: " + startTime, e);
+        }
+    }
+
+    private void ensureSurface() {
+        if (lats == null) {
+            lats = new float[width * height];
+            lons = new float[width * height];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    lats[y * width + x] = (float) getLat(x, y);
+                    lons[y * width + x] = (float) getLon(x, y);
+                }
+            }
+        }
+        if (land == null) {
+            land = createPattern(new Random(seed), landFraction);
+        }
+        if (cloud == null) {
+            cloud = createPattern(new Random(seed + 2), cloudFraction);
+        }
+    }
+
+    // -1 at the left edge, 0 at nadir and 1 at the right edge of the swath
+    private double getAcrossTrackPosition(int x) {
+        final double nadirX = (width - 1) / 2.0;
+        return nadirX > 0.0 ? (x - nadirX) / nadirX : 0.0;
+    }
+
+    private double getLat(int x, int y) {
+        // descending orbit, about 1 km per line, slightly tilted
+        return startLat - 0.009 * y + 0.001 * getAcrossTrackPosition(x);
+    }
+
+    private double getLon(int x, int y) {
+        // pixels grow towards the swath edges
+        final double acrossTrack = getAcrossTrackPosition(x);
+        final double km = 1165.0 * (acrossTrack + 0.5 * acrossTrack * acrossTrack * acrossTrack);
+        return startLon + km / (111.0 * Math.cos(Math.toRadians(getLatAtNadir(y))));
+    }
+
+    private double getLatAtNadir(int y) {
+        return startLat - 0.009 * y;
+    }
+
+    // smooth random pattern from a sum of plane waves, thresholded to the given fraction of pixels
+    private boolean[] createPattern(Random random, double fraction) {
+        final int numWaves = 6;
+        final double[] kx = new double[numWaves];
+        final double[] ky = new double[numWaves];
+        final double[] phase = new double[numWaves];
+        for (int k = 0; k < numWaves; k++) {
+            kx[k] = 2.0 * Math.PI * (random.nextDouble() - 0.5) / 60.0;
+            ky[k] = 2.0 * Math.PI * (random.nextDouble() - 0.5) / 60.0;
+            phase[k] = 2.0 * Math.PI * random.nextDouble();
+        }
+        final double[] field = new double[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double value = 0.0;
+                for (int k = 0; k < numWaves; k++) {
+                    value += Math.sin(kx[k] * x + ky[k] * y + phase[k]);
+                }
+                field[y * width + x] = value;
+            }
+        }
+        final boolean[] pattern = new boolean[field.length];
+        if (fraction <= 0.0) {
+            return pattern;
+        }
+        final double[] sorted = field.clone();
+        Arrays.sort(sorted);
+        final int thresholdIndex = (int) Math.min(sorted.length - 1, Math.round((1.0 - fraction) * sorted.length));
+        final double threshold = sorted[thresholdIndex];
+        for (int i = 0; i < field.length; i++) {
+            pattern[i] = field[i] >= threshold;
+        }
+        return pattern;
+    }
+}
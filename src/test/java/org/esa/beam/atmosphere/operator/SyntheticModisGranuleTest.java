@@ -0,0 +1,126 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.junit.Test;
+
+import java.awt.image.Raster;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class SyntheticModisGranuleTest {
+
+    @Test
+    public void testSurfaceFractions() {
+        final SyntheticModisGranule granule = SyntheticModisGranule.createTestGranule(200, 100);
+
+        assertEquals(0.3, getFraction(granule.getLand()), 0.01);
+        assertEquals(0.1, getFraction(granule.getCloud()), 0.01);
+    }
+
+    @Test
+    public void testSurfaceIsReproducible() {
+        final boolean[] land1 = new SyntheticModisGranule(50, 40, 1L).getLand();
+        final boolean[] land2 = new SyntheticModisGranule(50, 40, 1L).getLand();
+        for (int i = 0; i < land1.length; i++) {
+            assertEquals(land1[i], land2[i]);
+        }
+    }
+
+    @Test
+    public void testProductStructure() {
+        final SyntheticModisGranule granule = new SyntheticModisGranule(60, 40, SyntheticModisGranule.TEST_SEED);
+        final Product l1bProduct = granule.createL1bProduct();
+        final Product geoProduct = granule.createGeoProduct();
+
+        assertEquals(60, l1bProduct.getSceneRasterWidth());
+        assertEquals(40, l1bProduct.getSceneRasterHeight());
+        assertNotNull(l1bProduct.getGeoCoding());
+        assertNotNull(l1bProduct.getStartTime());
+        for (String bandName : Constants.MODIS_SPECTRAL_BANDNAMES_TO_USE) {
+            final Band band = l1bProduct.getBand(bandName);
+            assertNotNull(bandName, band);
+            assertEquals(ProductData.TYPE_UINT16, band.getDataType());
+        }
+        for (String bandName : new String[]{
+                Constants.MODIS_SUN_ZENITH_BAND_NAME, Constants.MODIS_SUN_AZIMUTH_BAND_NAME,
+                Constants.MODIS_VIEW_ZENITH_BAND_NAME, Constants.MODIS_VIEW_AZIMUTH_BAND_NAME}) {
+            final Band band = geoProduct.getBand(Constants.MODIS_GEO_DATAFIELDS_BAND_NAME_PREFIX + bandName);
+            assertNotNull(bandName, band);
+            assertEquals(ProductData.TYPE_INT16, band.getDataType());
+        }
+        assertNotNull(geoProduct.getBand(Constants.MODIS_GEO_DATAFIELDS_BAND_NAME_PREFIX +
+                                                 Constants.MODIS_LAND_SEA_MASK_BAND_NAME));
+    }
+
+    @Test
+    public void testLandPixelsAreFlagged() {
+        final SyntheticModisGranule granule = new SyntheticModisGranule(60, 40, SyntheticModisGranule.TEST_SEED);
+        granule.setLandFraction(0.5);
+        granule.setCloudFraction(0.0);
+        final Product targetProduct = SyntheticModisGranule.createTargetProduct(granule.createL1bProduct(),
+                                                                                granule.createGeoProduct());
+        try {
+            final Band flagBand = targetProduct.getBand(Constants.AC_FLAG_BAND_NAME);
+            final Raster flagData = flagBand.getSourceImage().getData();
+            final boolean[] land = granule.getLand();
+            for (int y = 0; y < granule.getHeight(); y++) {
+                for (int x = 0; x < granule.getWidth(); x++) {
+                    final int flags = flagData.getSample(x, y, 0);
+                    if (land[y * granule.getWidth() + x]) {
+                        assertTrue((flags & AtmosCorrection.LAND) != 0);
+                        assertTrue((flags & AtmosCorrection.INVALID) != 0);
+                    }
+                }
+            }
+        } finally {
+            targetProduct.dispose();
+        }
+    }
+
+    @Test
+    public void testQuicklookIsSubsampledProduct() {
+        final SyntheticModisGranule granule = SyntheticModisGranule.createTestGranule(60, 40);
+        final Product l1bProduct = granule.createL1bProduct();
+        final Product geoProduct = granule.createGeoProduct();
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("quicklookStep", 3);
+        final Product quicklookProduct = SyntheticModisGranule.createTargetProduct(l1bProduct, geoProduct,
+                                                                                   parameters);
+        final Product fullProduct = SyntheticModisGranule.createTargetProduct(l1bProduct, geoProduct);
+        try {
+            assertEquals(20, quicklookProduct.getSceneRasterWidth());
+            assertEquals(14, quicklookProduct.getSceneRasterHeight());
+            assertNotNull(quicklookProduct.getGeoCoding());
+            for (String bandName : new String[]{Constants.AC_FLAG_BAND_NAME, Constants.MODIS_REFLEC_BAND_NAMES[2],
+                    Constants.MODIS_TOSA_REFLEC_BAND_NAMES[5]}) {
+                final Raster expected = fullProduct.getBand(bandName).getSourceImage().getData();
+                final Raster actual = quicklookProduct.getBand(bandName).getSourceImage().getData();
+                for (int y = 0; y < 14; y++) {
+                    for (int x = 0; x < 20; x++) {
+                        assertEquals(bandName + " at " + x + "," + y, expected.getSampleFloat(3 * x, 3 * y, 0),
+                                     actual.getSampleFloat(x, y, 0), 0.0f);
+                    }
+                }
+            }
+        } finally {
+            quicklookProduct.dispose();
+            fullProduct.dispose();
+        }
+    }
+
+    private static double getFraction(boolean[] mask) {
+        int count = 0;
+        for (boolean b : mask) {
+            if (b) {
+                count++;
+            }
+        }
+        return (double) count / mask.length;
+    }
+}
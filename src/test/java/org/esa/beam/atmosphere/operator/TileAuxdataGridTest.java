@@ -0,0 +1,44 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.junit.Test;
+
+import java.awt.Rectangle;
+
+import static org.junit.Assert.assertEquals;
+
+public class TileAuxdataGridTest {
+
+    @Test
+    public void testNodes() throws Exception {
+        final TileAuxdataGrid grid = new TileAuxdataGrid(new Rectangle(100, 200, 34, 16), 16);
+
+        assertEquals(4, grid.getNumNodesX());
+        assertEquals(2, grid.getNumNodesY());
+        assertEquals(100, grid.getNodeX(0));
+        assertEquals(116, grid.getNodeX(1));
+        assertEquals(132, grid.getNodeX(2));
+        assertEquals(133, grid.getNodeX(3));
+        assertEquals(200, grid.getNodeY(0));
+        assertEquals(215, grid.getNodeY(1));
+    }
+
+    @Test
+    public void testInterpolateLinearField() throws Exception {
+        final Rectangle rectangle = new Rectangle(10, 20, 37, 21);
+        final TileAuxdataGrid grid = new TileAuxdataGrid(rectangle, 8);
+        for (int j = 0; j < grid.getNumNodesY(); j++) {
+            for (int i = 0; i < grid.getNumNodesX(); i++) {
+                grid.setNodeValue(i, j, grid.getNodeX(i) + 2.0 * grid.getNodeY(j));
+            }
+        }
+
+        final PixelBatch batch = new PixelBatch(1, rectangle.width * rectangle.height);
+        batch.setRectangle(rectangle);
+        final double[] values = new double[batch.getSize()];
+        grid.interpolate(batch.pixelX, batch.pixelY, values, batch.getSize());
+
+        for (int k = 0; k < batch.getSize(); k++) {
+            assertEquals(batch.pixelX[k] + 2.0 * batch.pixelY[k], values[k], 1.0e-9);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.datamodel.MetadataElement;
+import org.esa.beam.framework.datamodel.Product;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TileCheckpointStoreTest {
+
+    private File checkpointDir;
+
+    @Before
+    public void setUp() throws IOException {
+        checkpointDir = File.createTempFile("checkpoints", "");
+        assertTrue(checkpointDir.delete());
+    }
+
+    @After
+    public void tearDown() {
+        delete(checkpointDir);
+    }
+
+    @Test
+    public void testCreateKey() {
+        final SortedMap<String, String> parameters = new TreeMap<String, String>();
+        parameters.put("ozone", "350.0");
+        parameters.put("pressure", "1013.25");
+        final String key = TileCheckpointStore.createKey("MOD021KM.A2010123.1030", "net", parameters);
+        assertEquals(40, key.length());
+        assertTrue(key.matches("[0-9a-f]+"));
+        assertEquals(key, TileCheckpointStore.createKey("MOD021KM.A2010123.1030", "net",
+                                                        new TreeMap<String, String>(parameters)));
+        assertFalse(key.equals(TileCheckpointStore.createKey("MOD021KM.A2010123.1035", "net", parameters)));
+        assertFalse(key.equals(TileCheckpointStore.createKey("MOD021KM.A2010123.1030", "net2", parameters)));
+        parameters.put("ozone", "300.0");
+        assertFalse(key.equals(TileCheckpointStore.createKey("MOD021KM.A2010123.1030", "net", parameters)));
+    }
+
+    @Test
+    public void testFileNames() throws IOException {
+        final TileCheckpointStore store = new TileCheckpointStore(checkpointDir, "abc");
+        assertTrue(store.getDir().isDirectory());
+        assertEquals(new File(checkpointDir, "abc"), store.getDir());
+        assertEquals("tile_0_512_1354_10.tile", store.getFile(new Rectangle(0, 512, 1354, 10)).getName());
+    }
+
+    @Test
+    public void testRestartRestoresAllTiles() throws Exception {
+        final SyntheticModisGranule granule = new SyntheticModisGranule(60, 40, SyntheticModisGranule.TEST_SEED);
+        granule.setLandFraction(0.3);
+        final Product l1bProduct = granule.createL1bProduct();
+        final Product geoProduct = granule.createGeoProduct();
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("scansPerStrip", 1);
+        final Product referenceProduct = SyntheticModisGranule.createTargetProduct(l1bProduct, geoProduct,
+                                                                                   parameters);
+        parameters.put("checkpointDir", checkpointDir);
+
+        final Product firstProduct = SyntheticModisGranule.createTargetProduct(l1bProduct, geoProduct, parameters);
+        final Product secondProduct;
+        try {
+            firstProduct.getBand(Constants.AC_FLAG_BAND_NAME).readPixels(0, 0, 60, 40, new int[60 * 40]);
+            final File[] keyDirs = checkpointDir.listFiles();
+            assertNotNull(keyDirs);
+            assertEquals(1, keyDirs.length);
+            assertEquals(4, keyDirs[0].list().length);
+
+            secondProduct = SyntheticModisGranule.createTargetProduct(l1bProduct, geoProduct, parameters);
+            SyntheticModisGranule.assertBandsEqual(referenceProduct, secondProduct, new String[]{
+                    Constants.MODIS_REFLEC_BAND_NAMES[4], Constants.AC_FLAG_BAND_NAME
+            }, new Rectangle(0, 0, 60, 40));
+            final MetadataElement statisticsElement = secondProduct.getMetadataRoot().getElement(
+                    ProcessingStatistics.METADATA_ELEMENT_NAME);
+            assertEquals(4, statisticsElement.getAttributeInt("restored_tiles", 0));
+        } finally {
+            firstProduct.dispose();
+            referenceProduct.dispose();
+        }
+        secondProduct.dispose();
+
+        // other parameters do not reuse the tiles
+        parameters.put("ozone", 300.0);
+        final Product thirdProduct = SyntheticModisGranule.createTargetProduct(l1bProduct, geoProduct, parameters);
+        thirdProduct.getBand(Constants.AC_FLAG_BAND_NAME).readPixels(0, 0, 60, 40, new int[60 * 40]);
+        thirdProduct.dispose();
+        assertEquals(2, checkpointDir.listFiles().length);
+    }
+
+    private static void delete(File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,57 @@
+package org.esa.beam.atmosphere.operator;
+
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ToaReflectanceValidationOpTest {
+
+    private Product product;
+
+    @Before
+    public void setUp() {
+        product = new Product("test", "test", 4, 3);
+        for (String bandName : new String[]{"EV_250_Aggr1km_RefSB_1", "EV_250_Aggr1km_RefSB_2",
+                "EV_500_Aggr1km_RefSB_3", "EV_1KM_RefSB_8", "unused"}) {
+            product.addBand(bandName, ProductData.TYPE_FLOAT32);
+        }
+        product.addBand("ratio", "EV_250_Aggr1km_RefSB_2 / EV_250_Aggr1km_RefSB_1");
+        product.addTiePointGrid(new TiePointGrid("SensorZenith", 2, 2, 0.5f, 0.5f, 3.0f, 2.0f, new float[4]));
+    }
+
+    @Test
+    public void testNestedReferences() {
+        final Set<String> bandNames = ToaReflectanceValidationOp.getReferencedBandNames(
+                product,
+                "EV_250_Aggr1km_RefSB_2 > 0.1 && (EV_1KM_RefSB_8 < 0.2 || " +
+                "max(EV_500_Aggr1km_RefSB_3, EV_250_Aggr1km_RefSB_2) > 0.3)",
+                "ratio > 1.5 && SensorZenith < 60",
+                "EV_250_Aggr1km_RefSB_2 < 0.0");
+
+        // bands are reported once, tie-point grids are not bands, virtual bands are copied themselves
+        assertEquals(new TreeSet<String>(Arrays.asList("EV_1KM_RefSB_8", "EV_250_Aggr1km_RefSB_2",
+                                                       "EV_500_Aggr1km_RefSB_3", "ratio")), bandNames);
+    }
+
+    @Test
+    public void testNoReferences() {
+        assertTrue(ToaReflectanceValidationOp.getReferencedBandNames(product, "true", "1 > 2").isEmpty());
+        assertTrue(ToaReflectanceValidationOp.getReferencedBandNames(product).isEmpty());
+    }
+
+    @Test(expected = OperatorException.class)
+    public void testAbsentReference() {
+        ToaReflectanceValidationOp.getReferencedBandNames(product, "EV_250_Aggr1km_RefSB_1 > 0.1",
+                                                          "EV_1KM_RefSB_9 > 0.2");
+    }
+}
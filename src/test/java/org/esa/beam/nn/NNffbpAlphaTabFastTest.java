@@ -53,6 +53,37 @@ public class NNffbpAlphaTabFastTest {
 
     }
 
+    @Test
+    public void testCalcIntoBuffer() {
+        final NNffbpAlphaTabFast tab = loadTestNet();
+
+        final double[] nnInput = new double[]{1.0, 3.4, 6.988, 4.4, 7.0, 16.21};
+        final double[] nnOutput = new double[1];
+        tab.calc(nnInput, nnOutput);
+
+        assertEquals(tab.calc(nnInput)[0], nnOutput[0], 0.0);
+        assertEquals(0.9999546066706964, nnOutput[0], 1.0e-6);
+    }
+
+    @Test
+    public void testCopySharesDefinitionButNotBuffers() {
+        final NNffbpAlphaTabFast tab = loadTestNet();
+        final NNffbpAlphaTabFast copy = tab.createCopy();
+        assertSame(tab.getInmin(), copy.getInmin());
+        assertSame(tab.getOutmax(), copy.getOutmax());
+
+        final double[] nnInput = new double[]{1.0, 3.4, 6.988, 4.4, 7.0, 16.21};
+        final double[] otherInput = new double[]{2.0, 3.0, 6.0, 5.0, 6.5, 15.0};
+        final double expected = tab.calc(nnInput)[0];
+        final double otherExpected = tab.calc(otherInput)[0];
+        // a computation of the copy in between does not change the activations of the net
+        final NNCalc nnCalc = tab.calcJacobi(nnInput);
+        assertEquals(otherExpected, copy.calc(otherInput)[0], 0.0);
+        assertEquals(expected, nnCalc.getNnOutput()[0], 0.0);
+        assertEquals(expected, copy.calc(nnInput)[0], 0.0);
+        assertEquals(nnCalc.getJacobiMatrix()[0][2], copy.calcJacobi(nnInput).getJacobiMatrix()[0][2], 0.0);
+    }
+
     // deactivated this test; it fails sometimes
     public void testCalcJacobiPerformance() {
         final NNffbpAlphaTabFast tab = loadTestNet();
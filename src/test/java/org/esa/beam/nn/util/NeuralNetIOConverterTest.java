@@ -94,4 +94,63 @@ public class NeuralNetIOConverterTest {
         assertEquals(2.0, result[1], 1.E-3);
         assertEquals(3.0, result[2], 1.E-3);
     }
+
+    @Test
+    public void testVariantsWithDestinationBuffer() throws Exception {
+        double[] arr = new double[]{0.5, 1.0, 2.0, 3.0};
+        double[] dest = new double[]{-1.0, -1.0, -1.0, -1.0};
+        NeuralNetIOConverter.convertLogarithmMultipliedPi(arr, 1, dest, 2, 2);
+        assertEquals(-1.0, dest[0], 0.0);
+        assertEquals(-1.0, dest[1], 0.0);
+        assertEquals(Math.log(Math.PI), dest[2], 1.E-12);
+        assertEquals(Math.log(2.0 * Math.PI), dest[3], 1.E-12);
+
+        NeuralNetIOConverter.multiplyPi(arr, 0, dest, 0, 1);
+        assertEquals(0.5 * Math.PI, dest[0], 1.E-12);
+        NeuralNetIOConverter.convertExponentialDividePi(dest, 2, dest, 1, 1);
+        assertEquals(1.0, dest[1], 1.E-12);
+    }
+
+    @Test
+    public void testVariantsInPlace() throws Exception {
+        double[] arr = new double[]{1.0, 2.0, 3.0};
+        NeuralNetIOConverter.convertLogarithm(arr, 0, arr, 0, arr.length);
+        NeuralNetIOConverter.convertExponentialMultiplyPi(arr, 0, arr, 0, arr.length);
+        NeuralNetIOConverter.dividePi(arr, 0, arr, 0, arr.length);
+        assertEquals(1.0, arr[0], 1.E-12);
+        assertEquals(2.0, arr[1], 1.E-12);
+        assertEquals(3.0, arr[2], 1.E-12);
+    }
+
+    @Test
+    public void testVariantsWithOverlappingRanges() throws Exception {
+        // destination behind the source
+        double[] arr = new double[]{1.0, 2.0, 3.0, 4.0, 5.0};
+        NeuralNetIOConverter.multiplyPi(arr, 0, arr, 1, 4);
+        assertEquals(1.0, arr[0], 0.0);
+        assertEquals(1.0 * Math.PI, arr[1], 1.E-12);
+        assertEquals(2.0 * Math.PI, arr[2], 1.E-12);
+        assertEquals(3.0 * Math.PI, arr[3], 1.E-12);
+        assertEquals(4.0 * Math.PI, arr[4], 1.E-12);
+
+        // destination before the source
+        arr = new double[]{1.0, 2.0, 3.0, 4.0, 5.0};
+        NeuralNetIOConverter.convertLogarithm(arr, 2, arr, 0, 3);
+        assertEquals(Math.log(3.0), arr[0], 1.E-12);
+        assertEquals(Math.log(4.0), arr[1], 1.E-12);
+        assertEquals(Math.log(5.0), arr[2], 1.E-12);
+        assertEquals(4.0, arr[3], 0.0);
+        assertEquals(5.0, arr[4], 0.0);
+    }
+
+    @Test
+    public void testConvertLogarithmMultipliedPiOfBandValues() throws Exception {
+        double[][] bandValues = new double[][]{{1.0, 2.0}, {3.0, 4.0}, {5.0, 6.0}};
+        double[] nnInput = new double[5];
+        NeuralNetIOConverter.convertLogarithmMultipliedPi(bandValues, 1, nnInput, 2);
+        assertEquals(0.0, nnInput[1], 0.0);
+        assertEquals(Math.log(2.0 * Math.PI), nnInput[2], 1.E-12);
+        assertEquals(Math.log(4.0 * Math.PI), nnInput[3], 1.E-12);
+        assertEquals(Math.log(6.0 * Math.PI), nnInput[4], 1.E-12);
+    }
 }